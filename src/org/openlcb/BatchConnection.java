@@ -0,0 +1,20 @@
+package org.openlcb;
+
+/**
+ * A Connection that can take several messages in one call. The output queue of the
+ * OlcbInterface hands down everything it has accumulated at once, so that the lower layers can
+ * render and write the whole batch together instead of one message at a time.
+ * <p>
+ * The arrays belong to the caller and are reused after the call returns; implementations must
+ * not keep references to them.
+ */
+public interface BatchConnection extends Connection {
+
+    /**
+     * Put a number of messages to this connection, in order.
+     * @param msgs    messages to send; only the first count entries are valid
+     * @param senders for each message, the sender as in {@link Connection#put}
+     * @param count   number of messages in the batch
+     */
+    public void putBatch(Message[] msgs, Connection[] senders, int count);
+}
@@ -0,0 +1,218 @@
+package org.openlcb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+
+/**
+ * Paces the SNIP and PIP requests that the {@link MimicNodeStore} sends to the nodes.
+ * <p>
+ * After a refresh on a large layout, hundreds of nodes want their identification fetched at
+ * the same time. The requests are queued here, and sent such that
+ * <ul>
+ * <li>at most a given number of them is outstanding,
+ * <li>requests for nodes with a higher priority (the ones the user is looking at) go first,
+ * <li>the requests and their replies take at most a given share of the bus bandwidth.
+ * </ul>
+ * A request that is already queued or outstanding is not queued again.
+ */
+public class DiscoveryCrawler {
+    /// Number of CAN frames per second on a 125 kbit/s bus.
+    public static final int BUS_FRAMES_PER_SECOND = 1000;
+    /// Default share of the bus bandwidth used for discovery.
+    public static final double DEFAULT_BUS_SHARE = 0.25;
+    /// Default number of requests outstanding at the same time.
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    /// Priority of nodes that are shown to the user.
+    public static final int PRIORITY_VISIBLE = 1;
+    /// Priority of nodes that the user is waiting for.
+    public static final int PRIORITY_URGENT = 2;
+    /// Estimated bus frames of a SNIP request and its reply.
+    static final int SNIP_FRAMES = 12;
+    /// Estimated bus frames of a PIP request and its reply.
+    static final int PIP_FRAMES = 2;
+
+    private static class Request {
+        final MimicNodeStore.NodeMemo memo;
+        final Interaction interaction;
+
+        Request(MimicNodeStore.NodeMemo memo, Interaction interaction) {
+            this.memo = memo;
+            this.interaction = interaction;
+        }
+    }
+
+    private final MimicNodeStore store;
+    /// Queued requests, oldest first.
+    private final List<Request> queue = new ArrayList<>();
+    private final Set<Interaction> inFlight = new HashSet<>();
+    private final Map<NodeID, Integer> priorities = new HashMap<>();
+    private Set<NodeID> visibleNodes = new HashSet<>();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private double busShare = DEFAULT_BUS_SHARE;
+    /// Earliest time for the next request, in milliseconds since the epoch.
+    private long nextSendTime = 0;
+    private boolean wakeupPending = false;
+
+    DiscoveryCrawler(MimicNodeStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Queues an interaction with a node.
+     * @param memo        the node
+     * @param interaction the interaction to start on the node when it gets a slot
+     */
+    void submit(MimicNodeStore.NodeMemo memo, Interaction interaction) {
+        synchronized (this) {
+            if (inFlight.contains(interaction)) return;
+            for (Request r : queue) {
+                if (r.interaction == interaction) return;
+            }
+            queue.add(new Request(memo, interaction));
+        }
+        dispatch();
+    }
+
+    /**
+     * Releases the slot of an interaction that completed or timed out. The next request is
+     * started from the timer thread, so this may be called with any lock held.
+     */
+    void done(Interaction interaction) {
+        synchronized (this) {
+            if (!inFlight.remove(interaction) || queue.isEmpty() || wakeupPending) return;
+            wakeupPending = true;
+        }
+        store.scheduleTask(new Wakeup(), 0);
+    }
+
+    /// Drops the queued requests of a node that is no longer in the store.
+    synchronized void cancel(MimicNodeStore.NodeMemo memo) {
+        for (Iterator<Request> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().memo == memo) it.remove();
+        }
+        priorities.remove(memo.getNodeID());
+    }
+
+    /// Drops all queued requests and forgets the outstanding ones.
+    synchronized void clear() {
+        queue.clear();
+        inFlight.clear();
+    }
+
+    /**
+     * Sets the priority of a node. Requests for nodes with a higher priority are sent first.
+     * @param node     the node
+     * @param priority the new priority, e.g. {@link #PRIORITY_URGENT}; 0 resets it to the
+     *                 default.
+     */
+    public synchronized void setPriority(NodeID node, int priority) {
+        if (priority == 0) {
+            priorities.remove(node);
+        } else {
+            priorities.put(node, priority);
+        }
+    }
+
+    /**
+     * Sets the nodes that are shown to the user. These get {@link #PRIORITY_VISIBLE} unless
+     * they have a priority set by {@link #setPriority}.
+     * @param nodes the nodes currently visible
+     */
+    public synchronized void setVisibleNodes(Collection<NodeID> nodes) {
+        visibleNodes = new HashSet<>(nodes);
+    }
+
+    /// @return the priority of a node's requests.
+    public synchronized int getPriority(NodeID node) {
+        Integer p = priorities.get(node);
+        if (p != null) return p;
+        return visibleNodes.contains(node) ? PRIORITY_VISIBLE : 0;
+    }
+
+    /// Sets the number of requests outstanding at the same time.
+    public void setMaxInFlight(int max) {
+        synchronized (this) {
+            maxInFlight = max;
+        }
+        dispatch();
+    }
+
+    /**
+     * Sets the share of the bus bandwidth that discovery may use.
+     * @param share between 0 and 1; 0 turns pacing off.
+     */
+    public void setBusShare(double share) {
+        synchronized (this) {
+            busShare = share;
+            if (share <= 0) nextSendTime = 0;
+        }
+        dispatch();
+    }
+
+    /// @return the number of requests waiting for a slot.
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /// @return the number of requests sent and not yet completed.
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /// Starts requests while there are free slots and the pacing allows.
+    private void dispatch() {
+        while (true) {
+            Request next;
+            synchronized (this) {
+                if (inFlight.size() >= maxInFlight || queue.isEmpty()) return;
+                long now = System.currentTimeMillis();
+                if (now < nextSendTime) {
+                    if (!wakeupPending) {
+                        wakeupPending = true;
+                        store.scheduleTask(new Wakeup(), (int) (nextSendTime - now));
+                    }
+                    return;
+                }
+                next = pollNext();
+                inFlight.add(next.interaction);
+                if (busShare > 0) {
+                    nextSendTime = now + (long) (next.interaction.frameCost * 1000.0 /
+                            (busShare * BUS_FRAMES_PER_SECOND));
+                }
+            }
+            next.memo.startInteraction(next.interaction);
+        }
+    }
+
+    /// @return the oldest request among those with the highest priority. Called with the lock
+    /// held.
+    private Request pollNext() {
+        int best = 0;
+        int bestPriority = Integer.MIN_VALUE;
+        for (int i = 0; i < queue.size(); i++) {
+            int p = getPriority(queue.get(i).memo.getNodeID());
+            if (p > bestPriority) {
+                best = i;
+                bestPriority = p;
+            }
+        }
+        return queue.remove(best);
+    }
+
+    private class Wakeup extends TimerTask {
+        @Override
+        public void run() {
+            synchronized (DiscoveryCrawler.this) {
+                wakeupPending = false;
+            }
+            dispatch();
+        }
+    }
+}
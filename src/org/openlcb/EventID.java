@@ -1,13 +1,15 @@
 package org.openlcb;
 
 // For annotations
-import net.jcip.annotations.*; 
-import edu.umd.cs.findbugs.annotations.*; 
+import net.jcip.annotations.*;
+import edu.umd.cs.findbugs.annotations.*;
 
 /**
  * Common EventID implementation.
  * <p>
- * EventID objects are immutable once created.
+ * EventID objects are immutable once created. The 64-bit ID is kept in a long, so comparing and
+ * hashing is constant time and no array is held per object. {@link #valueOf(long)} returns
+ * shared objects for recently used IDs.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
@@ -17,26 +19,24 @@ import edu.umd.cs.findbugs.annotations.*;
 public class EventID {
 
     static final int BYTECOUNT = 8;
-    
+    /// Number of slots in the cache of recently used IDs. Power of two.
+    private static final int CACHE_SIZE = 1024;
+    private static final EventID[] cache = new EventID[CACHE_SIZE];
+
     @CheckReturnValue
     public EventID(@NonNull NodeID node, int b7, int b8) {
-        this.contents = new byte[BYTECOUNT];
-        System.arraycopy(node.contents, 0, this.contents, 0, BYTECOUNT-2);
-            
-        this.contents[6] = (byte)b7;
-        this.contents[7] = (byte)b8;
+        this.value = (node.toLong() << 16) | ((b7 & 0xff) << 8) | (b8 & 0xff);
     }
-    
+
     @CheckReturnValue
     public EventID(@NonNull byte[] contents) {
         if (contents == null)
             throw new java.lang.IllegalArgumentException("null argument invalid");
         if (contents.length != BYTECOUNT)
             throw new java.lang.IllegalArgumentException("Wrong EventID length: "+contents.length);
-        this.contents = new byte[BYTECOUNT];
-        System.arraycopy(contents, 0, this.contents, 0, BYTECOUNT);
+        this.value = fromBytes(contents);
     }
-    
+
     @CheckReturnValue
     public EventID(@NonNull String value) {
         if (value == null)
@@ -44,78 +44,88 @@ public class EventID {
         byte[] data = org.openlcb.Utilities.bytesFromHexString(value);
         if (data.length != BYTECOUNT)
             throw new java.lang.IllegalArgumentException("Wrong EventID length: "+data.length);
-        this.contents = new byte[BYTECOUNT];
-        System.arraycopy(data, 0, this.contents, 0, BYTECOUNT);
+        this.value = fromBytes(data);
     }
-    
-    byte[] contents;
-    
+
+    @CheckReturnValue
+    public EventID(long value) {
+        this.value = value;
+    }
+
+    /**
+     * Returns an EventID for a number, sharing the object with earlier calls for the same ID
+     * when possible. Use this on paths that see the same events over and over.
+     * @param value the event ID
+     * @return the EventID
+     */
+    @CheckReturnValue
+    @NonNull
+    public static EventID valueOf(long value) {
+        int slot = (int) (value ^ (value >>> 21) ^ (value >>> 42)) & (CACHE_SIZE - 1);
+        EventID e = cache[slot];
+        if (e != null && e.value == value) return e;
+        e = new EventID(value);
+        // Races only lose a cache entry; the objects are immutable.
+        cache[slot] = e;
+        return e;
+    }
+
+    private final long value;
+
+    private static long fromBytes(byte[] data) {
+        long ret = 0;
+        for (int i = 0; i < BYTECOUNT; ++i) {
+            ret = (ret << 8) | (data[i] & 0xff);
+        }
+        return ret;
+    }
+
     @CheckReturnValue
     @NonNull
     public byte[] getContents() {
         // copy to ensure immutable
         byte[] retval = new byte[BYTECOUNT];
-        System.arraycopy(contents, 0, retval, 0, BYTECOUNT);
+        copyTo(retval, 0);
         return retval;
     }
 
+    /**
+     * Writes the eight bytes of the ID into an array, without allocating.
+     * @param dst    destination array
+     * @param offset where to write the first (most significant) byte
+     */
+    public void copyTo(@NonNull byte[] dst, int offset) {
+        for (int i = 0; i < BYTECOUNT; i++) {
+            dst[offset + i] = (byte) (value >>> (8 * (BYTECOUNT - 1 - i)));
+        }
+    }
+
     @CheckReturnValue
     @Override
     public boolean equals(Object o){
-        // try to cast, else not equal
-        try {
-            EventID other = (EventID) o;
-            for (int i = 0; i<BYTECOUNT; i++)
-                if (other.contents[i] != this.contents[i]) return false;
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
-    }  
+        if (!(o instanceof EventID)) return false;
+        return ((EventID) o).value == value;
+    }
 
     /// Checks whether a given Event ID comes from a given Node ID's space.
     public boolean startsWith(NodeID id) {
-        for (int i = 0; i < 6; ++i) {
-            if (contents[i] != id.contents[i]) return false;
-        }
-        return true;
+        return (value >>> 16) == id.toLong();
     }
 
     @CheckReturnValue
     @Override
     public int hashCode() {
-        return (contents[0]<<21)
-            +(contents[1]<<18)
-            +(contents[2]<<15)
-            +(contents[3]<<12)
-            +(contents[4]<<9)
-            +(contents[5]<<6)
-            +(contents[6]<<3)
-            +(contents[7]);
-    } 
+        return Long.hashCode(value);
+    }
 
     @CheckReturnValue
     @NonNull
     @Override
     public String toString() {
-        return "EventID:"
-                +Utilities.toHexPair(contents[0])+"."
-                +Utilities.toHexPair(contents[1])+"."
-                +Utilities.toHexPair(contents[2])+"."
-                +Utilities.toHexPair(contents[3])+"."
-                +Utilities.toHexPair(contents[4])+"."
-                +Utilities.toHexPair(contents[5])+"."
-                +Utilities.toHexPair(contents[6])+"."
-                +Utilities.toHexPair(contents[7]);
+        return "EventID:" + Utilities.toHexDotsString(value, BYTECOUNT);
     }
 
     public long toLong() {
-        long ret = 0;
-        for (int i = 0; i < 8; ++i) {
-            ret <<= 8;
-            int e = contents[i];
-            ret |= (e & 0xff);
-        }
-        return ret;
+        return value;
     }
 }
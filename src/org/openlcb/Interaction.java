@@ -11,6 +11,12 @@ public abstract class Interaction {
      */
     int deadlineMsec = 700;
 
+    /**
+     * Estimated number of CAN frames that the request and its reply take on the bus. Used by
+     * the {@link DiscoveryCrawler} for pacing.
+     */
+    int frameCost = 1;
+
     /**
      * Set to true by the system when a cancel/complete call arrives for this
      * interaction.
@@ -4,10 +4,10 @@ import edu.umd.cs.findbugs.annotations.Nullable;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -16,12 +16,21 @@ import java.util.logging.Logger;
  * Store containing mimic proxies for nodes on external connections
  * <p>
  * Provides a Connection for incoming Messages.
+ * <p>
+ * The store may be read from any thread. Nodes that stop talking can be aged out (see
+ * {@link #setNodeTimeout}), and the number of nodes can be capped (see {@link #setMaxNodes}).
  *
  * @author  Bob Jacobsen   Copyright 2011
  */
 public class MimicNodeStore extends AbstractConnection {
     public static final String ADD_PROP_NODE = "AddNode";
     public static final String CLEAR_ALL_NODES = "ClearAllNodes";
+    /// Fired with the removed NodeMemo as the old value when a departed node is dropped.
+    public static final String REMOVE_PROP_NODE = "RemoveNode";
+    /// How long nodes have to answer the verify message sent by {@link #verifyNodes}.
+    public static final int VERIFY_REPLY_MSEC = 3000;
+    /// Delay between learning new identification data and saving the identity cache.
+    static final int CACHE_SAVE_DELAY_MSEC = 2000;
     private final static Logger logger = Logger.getLogger(MimicNodeStore.class.getName());
     
     private static class MimicNodeStoreTimer {
@@ -40,6 +49,13 @@ public class MimicNodeStore extends AbstractConnection {
                 timer.schedule(t,delay);
             }
         }
+
+        private synchronized void schedule(final TimerTask t, final long delay, final long
+                period) {
+            if (timer != null) {
+                timer.schedule(t, delay, period);
+            }
+        }
         
         private synchronized void cancel() {
             if (timer != null ) {
@@ -58,6 +74,10 @@ public class MimicNodeStore extends AbstractConnection {
     }
 
     public void dispose() {
+        NodeIdentityCache cache = identityCache;
+        if (cache != null) {
+            cache.save();
+        }
         // cancel the timer.
         timer.cancel();
     }
@@ -68,8 +88,73 @@ public class MimicNodeStore extends AbstractConnection {
     
     Connection connection;
     NodeID node;
-    private static MimicNodeStoreTimer timer = new MimicNodeStoreTimer();
-    
+    private final MimicNodeStoreTimer timer = new MimicNodeStoreTimer();
+    private final DiscoveryCrawler crawler = new DiscoveryCrawler(this);
+    /// Nodes not seen for this long are dropped; 0 to keep nodes forever.
+    private long nodeTimeoutMsec = 0;
+    private TimerTask ageTask = null;
+    /// Maximum number of nodes to keep; 0 for no limit.
+    private volatile int maxNodes = 0;
+    private volatile NodeIdentityCache identityCache = null;
+    private boolean cacheSavePending = false;
+
+    /**
+     * Sets a persistent cache of the nodes' identification, and adds the nodes in the cache
+     * to the store with their cached SNIP and PIP data. These nodes count as not seen yet, so
+     * they are the first to go when aging out or trimming nodes, and their data counts as not
+     * verified until the node confirms it (see {@link NodeMemo#isVerified}). Newly learned
+     * identification data is saved to the cache.
+     * @param cache the cache, or null to stop using it.
+     */
+    public void setIdentityCache(@Nullable NodeIdentityCache cache) {
+        identityCache = cache;
+        if (cache == null) return;
+        for (NodeID id : cache.getNodes()) {
+            if (map.containsKey(id)) continue;
+            NodeMemo memo = new NodeMemo(id);
+            memo.lastSeen = 0;
+            memo.verified = false;
+            byte[] snip = cache.getSimpleNodeIdent(id);
+            if (snip != null) {
+                memo.pSimpleNode = new SimpleNodeIdent(node, id, snip);
+            }
+            Long protocols = cache.getProtocols(id);
+            if (protocols != null) {
+                memo.pIdent = new ProtocolIdentification(node, id, protocols);
+            }
+            if (map.putIfAbsent(id, memo) == null) {
+                pcs.firePropertyChange(ADD_PROP_NODE, null, memo);
+            }
+        }
+        trimToMax();
+    }
+
+    /// Saves the identity cache a little later, so that a burst of replies is saved once.
+    private void scheduleCacheSave() {
+        synchronized (this) {
+            if (cacheSavePending) return;
+            cacheSavePending = true;
+        }
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (MimicNodeStore.this) {
+                    cacheSavePending = false;
+                }
+                NodeIdentityCache cache = identityCache;
+                if (cache != null) {
+                    cache.save();
+                }
+            }
+        }, CACHE_SAVE_DELAY_MSEC);
+    }
+
+    /// @return the queue that paces the SNIP and PIP requests to the nodes.
+    public DiscoveryCrawler getDiscoveryCrawler() {
+        return crawler;
+    }
+
+    /// @return a live view of the known nodes. Safe to iterate while nodes come and go.
     public Collection<NodeMemo> getNodeMemos() {
         return map.values();
     } 
@@ -77,8 +162,11 @@ public class MimicNodeStore extends AbstractConnection {
     @Override
     public void put(Message msg, Connection sender) {
         NodeMemo memo = addNode(msg.getSourceNodeID());
+        memo.lastSeen = System.currentTimeMillis();
         // check for necessary updates in specific node
         memo.put(msg, sender);
+        // The first message of a cached node in this session, e.g. its Verified Node ID reply.
+        memo.revalidate();
     }
 
     /**
@@ -86,16 +174,113 @@ public class MimicNodeStore extends AbstractConnection {
      */
     public void refresh() {
         map.clear();
+        crawler.clear();
         pcs.firePropertyChange(CLEAR_ALL_NODES, null, null);
         connection.put(new VerifyNodeIDNumberMessage(node), this);
     }
 
+    /**
+     * Re-verifies the known nodes without clearing the store. Sends a global verify message;
+     * nodes that do not answer within {@link #VERIFY_REPLY_MSEC} are removed, and new nodes
+     * that answer are added.
+     */
+    public void verifyNodes() {
+        final long start = System.currentTimeMillis();
+        connection.put(new VerifyNodeIDNumberMessage(node), this);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                removeNodesNotSeenSince(start);
+            }
+        }, VERIFY_REPLY_MSEC);
+    }
+
+    /**
+     * Sets how long a node may stay silent before it is dropped. Silent nodes are verified
+     * first, and only dropped if they do not answer.
+     * @param msec timeout in milliseconds, or 0 to keep nodes forever.
+     */
+    public synchronized void setNodeTimeout(long msec) {
+        nodeTimeoutMsec = msec;
+        if (ageTask != null) {
+            ageTask.cancel();
+            ageTask = null;
+        }
+        if (msec <= 0) return;
+        ageTask = new TimerTask() {
+            @Override
+            public void run() {
+                checkSilentNodes();
+            }
+        };
+        timer.schedule(ageTask, msec, msec);
+    }
+
+    /**
+     * Caps the number of nodes in the store. When a new node goes over the cap, the node
+     * that was seen least recently is dropped.
+     * @param max the maximum number of nodes, or 0 for no limit.
+     */
+    public void setMaxNodes(int max) {
+        maxNodes = max;
+        trimToMax();
+    }
+
+    /// Verifies the nodes if any of them has been silent for longer than the timeout.
+    private void checkSilentNodes() {
+        long cutoff;
+        synchronized (this) {
+            if (nodeTimeoutMsec <= 0) return;
+            cutoff = System.currentTimeMillis() - nodeTimeoutMsec;
+        }
+        for (NodeMemo memo : map.values()) {
+            if (memo.lastSeen < cutoff) {
+                verifyNodes();
+                return;
+            }
+        }
+    }
+
+    /// Drops every node that sent nothing since the given time.
+    void removeNodesNotSeenSince(long time) {
+        for (NodeMemo memo : map.values()) {
+            if (memo.lastSeen < time) {
+                removeNode(memo);
+            }
+        }
+    }
+
+    private void trimToMax() {
+        int max = maxNodes;
+        while (max > 0 && map.size() > max) {
+            NodeMemo oldest = null;
+            for (NodeMemo memo : map.values()) {
+                if (oldest == null || memo.lastSeen < oldest.lastSeen) {
+                    oldest = memo;
+                }
+            }
+            if (oldest == null) return;
+            removeNode(oldest);
+        }
+    }
+
+    private void removeNode(NodeMemo memo) {
+        if (map.remove(memo.getNodeID(), memo)) {
+            crawler.cancel(memo);
+            pcs.firePropertyChange(REMOVE_PROP_NODE, memo, null);
+        }
+    }
+
     public NodeMemo addNode(NodeID id) {
         NodeMemo memo = map.get(id);
         if (memo == null) {
-            memo = new NodeMemo(id);
-            map.put(id, memo);
-            pcs.firePropertyChange(ADD_PROP_NODE, null, memo);
+            NodeMemo added = new NodeMemo(id);
+            memo = map.putIfAbsent(id, added);
+            if (memo == null) {
+                memo = added;
+                pcs.firePropertyChange(ADD_PROP_NODE, null, memo);
+                trimToMax();
+            }
         }
         return memo;
     }
@@ -128,7 +313,7 @@ public class MimicNodeStore extends AbstractConnection {
         return (memo == null) ? null : memo.getProtocolIdentification();
     }
     
-    HashMap<NodeID, NodeMemo> map = new java.util.HashMap<NodeID, NodeMemo>();
+    final ConcurrentHashMap<NodeID, NodeMemo> map = new ConcurrentHashMap<>();
 
     PropertyChangeSupport pcs = new PropertyChangeSupport(this);
     
@@ -144,6 +329,12 @@ public class MimicNodeStore extends AbstractConnection {
         public static final String UPDATE_PROP_SIMPLE_NODE_IDENT = "updateSimpleNodeIdent";
         public static final String UPDATE_PROP_PROTOCOL = "updateProtocol";
         NodeID id;
+        /// When the node last sent a message, in milliseconds since the epoch.
+        volatile long lastSeen = System.currentTimeMillis();
+        /// False while the identification data comes from the identity cache.
+        volatile boolean verified = true;
+        /// Set once the node was asked to confirm its cached identification data.
+        private boolean revalidating = false;
         
         public NodeMemo(NodeID id) {
             this.id = id;
@@ -153,6 +344,38 @@ public class MimicNodeStore extends AbstractConnection {
             return id;
         }
 
+        /// @return when the node last sent a message, in milliseconds since the epoch.
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * @return false if the SNIP data was loaded from the identity cache and the node has
+         * not sent a fresh SNIP reply in this session yet. Such data may be out of date, e.g.
+         * after a firmware update.
+         */
+        public boolean isVerified() {
+            return verified;
+        }
+
+        /**
+         * Asks the node for fresh SNIP and PIP data through the discovery crawler if its data
+         * came from the identity cache. Done only once; the cached data stays visible until the
+         * replies arrive. Called when the node first shows up in this session.
+         */
+        public void revalidate() {
+            synchronized (this) {
+                if (verified || revalidating) return;
+                revalidating = true;
+            }
+            if (pIdent != null && pipInteraction == null) {
+                requestProtocols();
+            }
+            if (pSimpleNode != null && snipInteraction == null) {
+                requestSimpleNodeIdent();
+            }
+        }
+
         Queue<Interaction> pendingInteractions = new ConcurrentLinkedDeque<>();
         Interaction currentInteraction = null;
         private TimerTask currentTask;
@@ -190,6 +413,7 @@ public class MimicNodeStore extends AbstractConnection {
                 request.isComplete = true;
             }
             if (currentInteraction != request) {
+                crawler.done(request);
                 return;
             }
             completeInteraction(request);
@@ -205,6 +429,7 @@ public class MimicNodeStore extends AbstractConnection {
             currentTask.cancel();
             currentInteraction = null;
             currentTask = null;
+            crawler.done(request);
             if (pendingInteractions.isEmpty()) {
                 return;
             }
@@ -219,6 +444,11 @@ public class MimicNodeStore extends AbstractConnection {
         public void handleProtocolIdentificationReply(ProtocolIdentificationReplyMessage msg, Connection sender){
             // accept assumes from mimic'd node
             pIdent = new ProtocolIdentification(node, msg);
+            NodeIdentityCache cache = identityCache;
+            if (cache != null) {
+                cache.putProtocols(id, pIdent.getValue());
+                scheduleCacheSave();
+            }
             pcs.firePropertyChange(UPDATE_PROP_PROTOCOL, null, pIdent);
             tryCompleteInteraction(pipInteraction);
             pipInteraction = null;
@@ -230,40 +460,49 @@ public class MimicNodeStore extends AbstractConnection {
                     throw new AssertionError("MimicNodeStore id == null");
                 }
                 pIdent = new ProtocolIdentification(node, id);
-                pipInteraction = new Interaction() {
-                    int numTriesLeft = 3;
+                requestProtocols();
+            }
+            return pIdent;
+        }
 
-                    @Override
-                    void sendRequest(Connection downstream) {
-                        pIdent.start(downstream);
-                    }
+        /// Queues a PIP request to the node.
+        private void requestProtocols() {
+            pipInteraction = new Interaction() {
+                int numTriesLeft = 3;
 
-                    @Override
-                    NodeID dstNode() {
-                        return node;
-                    }
+                {
+                    frameCost = DiscoveryCrawler.PIP_FRAMES;
+                }
 
-                    @Override
-                    void onTimeout() {
-                        synchronized (this) {
-                            if (isComplete) {
-                                return;
-                            }
-                        }
-                        final Interaction request = this;
-                        if (--numTriesLeft > 0) {
-                            scheduleTask(new TimerTask() {
-                                @Override
-                                public void run() {
-                                    startInteraction(request);
-                                }
-                            }, 200);
+                @Override
+                void sendRequest(Connection downstream) {
+                    pIdent.start(downstream);
+                }
+
+                @Override
+                NodeID dstNode() {
+                    return node;
+                }
+
+                @Override
+                void onTimeout() {
+                    synchronized (this) {
+                        if (isComplete) {
+                            return;
                         }
                     }
-                };
-                startInteraction(pipInteraction);
-            }
-            return pIdent;
+                    final Interaction request = this;
+                    if (--numTriesLeft > 0) {
+                        scheduleTask(new TimerTask() {
+                            @Override
+                            public void run() {
+                                crawler.submit(NodeMemo.this, request);
+                            }
+                        }, 200);
+                    }
+                }
+            };
+            crawler.submit(this, pipInteraction);
         }
 
         SimpleNodeIdent pSimpleNode = null;
@@ -279,8 +518,14 @@ public class MimicNodeStore extends AbstractConnection {
                 pSimpleNode.addMsg(msg);
             }
             if (pSimpleNode.contentComplete()) {
+                verified = true;
                 tryCompleteInteraction(snipInteraction);
                 snipInteraction = null;
+                NodeIdentityCache cache = identityCache;
+                if (cache != null) {
+                    cache.putSimpleNodeIdent(id, pSimpleNode.getRawData());
+                    scheduleCacheSave();
+                }
             }
             pcs.firePropertyChange(UPDATE_PROP_SIMPLE_NODE_IDENT, null, pSimpleNode);
         }  
@@ -288,40 +533,55 @@ public class MimicNodeStore extends AbstractConnection {
         public SimpleNodeIdent getSimpleNodeIdent() {
             if (pSimpleNode == null) {
                 pSimpleNode = new SimpleNodeIdent(node, id);
-                snipInteraction = new Interaction() {
-                    int numTriesLeft = 3;
+                requestSimpleNodeIdent();
+            }
+            return pSimpleNode;
+        }
 
-                    @Override
-                    void sendRequest(Connection downstream) {
-                        pSimpleNode.start(downstream);
-                    }
+        /// Queues a SNIP request to the node.
+        private void requestSimpleNodeIdent() {
+            snipInteraction = new Interaction() {
+                int numTriesLeft = 3;
+
+                {
+                    frameCost = DiscoveryCrawler.SNIP_FRAMES;
+                }
 
-                    @Override
-                    NodeID dstNode() {
-                        return node;
+                @Override
+                void sendRequest(Connection downstream) {
+                    if (!verified) {
+                        // Keeps the cached data until the first reply replaces it.
+                        downstream.put(new SimpleNodeIdentInfoRequestMessage(node, id),
+                                null);
+                        return;
                     }
+                    pSimpleNode.start(downstream);
+                }
 
-                    @Override
-                    void onTimeout() {
-                        synchronized (this) {
-                            if (isComplete) {
-                                return;
-                            }
-                        }
-                        final Interaction request = this;
-                        if (--numTriesLeft > 0) {
-                            scheduleTask(new TimerTask() {
-                                @Override
-                                public void run() {
-                                    startInteraction(request);
-                                }
-                            }, 200);
+                @Override
+                NodeID dstNode() {
+                    return node;
+                }
+
+                @Override
+                void onTimeout() {
+                    synchronized (this) {
+                        if (isComplete) {
+                            return;
                         }
                     }
-                };
-                startInteraction(snipInteraction);
-            }
-            return pSimpleNode;
+                    final Interaction request = this;
+                    if (--numTriesLeft > 0) {
+                        scheduleTask(new TimerTask() {
+                            @Override
+                            public void run() {
+                                crawler.submit(NodeMemo.this, request);
+                            }
+                        }, 200);
+                    }
+                }
+            };
+            crawler.submit(this, snipInteraction);
         }
 
         @Override
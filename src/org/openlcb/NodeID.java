@@ -1,13 +1,15 @@
 package org.openlcb;
 
 // For annotations
-import net.jcip.annotations.*; 
-import edu.umd.cs.findbugs.annotations.*; 
+import net.jcip.annotations.*;
+import edu.umd.cs.findbugs.annotations.*;
 
 /**
  * Common NodeID implementation
  * <p>
- * NodeID objects are immutable once created.
+ * NodeID objects are immutable once created. The 48-bit ID is kept in a long, so comparing and
+ * hashing is constant time and no array is held per object. {@link #valueOf(long)} returns
+ * shared objects for recently used IDs.
  *
  * @author  Bob Jacobsen   Copyright 2009, 2010, 2011
  * @version $Revision$
@@ -16,28 +18,30 @@ import edu.umd.cs.findbugs.annotations.*;
 @ThreadSafe
 public class NodeID {
     static final int BYTECOUNT = 6;
-    
+    private static final long MASK = 0xFFFFFFFFFFFFL;
+    /// Number of slots in the cache of recently used IDs. Power of two.
+    private static final int CACHE_SIZE = 256;
+    private static final NodeID[] cache = new NodeID[CACHE_SIZE];
+
     @CheckReturnValue
     public NodeID(@NonNull NodeID node) {
-        this (node.contents);
+        this.value = node.value;
     }
-    
+
     @CheckReturnValue
     public NodeID() {
-        this (new byte[]{0,0,0,0,0,0});
+        this.value = 0;
     }
-    
+
     @CheckReturnValue
     public NodeID(@NonNull byte[] contents) {
         if (contents == null)
             throw new java.lang.IllegalArgumentException("null argument invalid");
         if (contents.length < BYTECOUNT)
             throw new java.lang.IllegalArgumentException("Wrong NodeID length: "+contents.length);
-        this.contents = new byte[BYTECOUNT];
-        for (int i = 0; i < BYTECOUNT; i++)
-            this.contents[i] = contents[i];
+        this.value = fromBytes(contents, 0);
     }
-    
+
     @CheckReturnValue
     public NodeID(@NonNull String value) {
         if (value == null)
@@ -45,45 +49,60 @@ public class NodeID {
         byte[] contents = org.openlcb.Utilities.bytesFromHexString(value);
         if (contents.length < BYTECOUNT)
             throw new java.lang.IllegalArgumentException("Wrong NodeID length: "+contents.length);
-        this.contents = new byte[BYTECOUNT];
-        for (int i = 0; i < BYTECOUNT; i++)
-            this.contents[i] = contents[i];
+        this.value = fromBytes(contents, 0);
     }
 
-    byte[] contents;
+    /**
+     * @param value the node ID in the low 48 bits.
+     */
+    @CheckReturnValue
+    public NodeID(long value) {
+        if ((value & ~MASK) != 0)
+            throw new java.lang.IllegalArgumentException("NodeID out of range: "+Long.toHexString(value));
+        this.value = value;
+    }
 
+    /**
+     * Returns a NodeID for a number, sharing the object with earlier calls for the same ID when
+     * possible.
+     * @param value the node ID in the low 48 bits.
+     * @return the NodeID
+     */
     @CheckReturnValue
-    public boolean equals(Object o){
-        // try to cast, else not equal
-        try {
-            NodeID other = (NodeID) o;
-            for (int i = 0; i<BYTECOUNT; i++)
-                if (other.contents[i] != this.contents[i]) return false;
-            return true;
-        } catch (Exception e) {
-            return false;
+    @NonNull
+    public static NodeID valueOf(long value) {
+        int slot = (int) (value ^ (value >>> 17)) & (CACHE_SIZE - 1);
+        NodeID n = cache[slot];
+        if (n != null && n.value == value) return n;
+        n = new NodeID(value);
+        // Races only lose a cache entry; the objects are immutable.
+        cache[slot] = n;
+        return n;
+    }
+
+    private final long value;
+
+    private static long fromBytes(byte[] data, int offset) {
+        long retval = 0;
+        for (int i = 0; i < BYTECOUNT; i++) {
+            retval = (retval << 8) | (data[offset + i] & 0xff);
         }
-    }  
-    
+        return retval;
+    }
+
+    @CheckReturnValue
+    public boolean equals(Object o){
+        if (!(o instanceof NodeID)) return false;
+        return ((NodeID) o).value == value;
+    }
+
     @CheckReturnValue
     public int hashCode() {
-        return contents[0]
-            +contents[1]<<5
-            +contents[2]<<10
-            +contents[3]<<15
-            +contents[4]<<20
-            +contents[5]<<25;
-    } 
+        return Long.hashCode(value);
+    }
 
     public long toLong() {
-        long retval = 0;
-        retval |= contents[0] & 0xff; retval <<= 8;
-        retval |= contents[1] & 0xff; retval <<= 8;
-        retval |= contents[2] & 0xff; retval <<= 8;
-        retval |= contents[3] & 0xff; retval <<= 8;
-        retval |= contents[4] & 0xff; retval <<= 8;
-        retval |= contents[5] & 0xff;
-        return retval;
+        return value;
     }
 
     @CheckReturnValue
@@ -91,15 +110,25 @@ public class NodeID {
     public byte[] getContents() {
         // copy to ensure immutable
         byte[] retval = new byte[BYTECOUNT];
-        for (int i =0; i < BYTECOUNT; i++) 
-            retval[i] = contents[i];
+        copyTo(retval, 0);
         return retval;
     }
 
+    /**
+     * Writes the six bytes of the ID into an array, without allocating.
+     * @param dst    destination array
+     * @param offset where to write the first (most significant) byte
+     */
+    public void copyTo(@NonNull byte[] dst, int offset) {
+        for (int i = 0; i < BYTECOUNT; i++) {
+            dst[offset + i] = (byte) (value >>> (8 * (BYTECOUNT - 1 - i)));
+        }
+    }
+
     @CheckReturnValue
     @NonNull
     public String toString() {
-        return Utilities.toHexDotsString(contents);
+        return Utilities.toHexDotsString(value, BYTECOUNT);
     }
-    
+
 }
@@ -0,0 +1,179 @@
+package org.openlcb;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Persistent cache of the identification (SNIP and PIP) of the nodes on a network.
+ * <p>
+ * The {@link MimicNodeStore} fills its node memos from the cache at startup (see
+ * {@link MimicNodeStore#setIdentityCache}), so that a node tree can show the named layout right
+ * away instead of waiting for hundreds of requests on the bus. Cached values are replaced when
+ * a node sends a fresh reply, which happens when the node reinitializes.
+ * <p>
+ * All entries are kept in one small file, which is replaced atomically by {@link #save}.
+ */
+public class NodeIdentityCache {
+    private static final Logger logger = Logger.getLogger(NodeIdentityCache.class.getName());
+    private static final int MAGIC = 0x4F4E4944; // "ONID"
+    private static final int VERSION = 1;
+    /// Sanity limit for the number of entries in a file.
+    private static final int MAX_ENTRIES = 65536;
+
+    private static class Entry {
+        byte[] snip = null;
+        Long protocols = null;
+    }
+
+    private final Path file;
+    private final Map<NodeID, Entry> entries = new LinkedHashMap<>();
+    private boolean dirty = false;
+
+    /**
+     * Creates the cache and loads the existing entries from the file. A missing or damaged file
+     * gives an empty cache.
+     * @param file where to keep the cache.
+     */
+    public NodeIdentityCache(Path file) {
+        this.file = file;
+        try {
+            load();
+        } catch (NoSuchFileException e) {
+            // first use
+        } catch (IOException e) {
+            logger.info("Ignoring damaged node identity cache " + file + ": " + e.toString());
+            entries.clear();
+        }
+    }
+
+    /// @return the nodes that have cached data.
+    public synchronized List<NodeID> getNodes() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /// @return the payload of the node's SNIP replies, or null if it is not cached.
+    public synchronized @Nullable byte[] getSimpleNodeIdent(NodeID node) {
+        Entry e = entries.get(node);
+        return e == null || e.snip == null ? null : e.snip.clone();
+    }
+
+    /// @return the node's protocol bits, or null if they are not cached.
+    public synchronized @Nullable Long getProtocols(NodeID node) {
+        Entry e = entries.get(node);
+        return e == null ? null : e.protocols;
+    }
+
+    /// Stores the complete payload of a node's SNIP replies.
+    public synchronized void putSimpleNodeIdent(NodeID node, byte[] data) {
+        entryFor(node).snip = data.clone();
+        dirty = true;
+    }
+
+    /// Stores a node's protocol bits.
+    public synchronized void putProtocols(NodeID node, long value) {
+        entryFor(node).protocols = value;
+        dirty = true;
+    }
+
+    /// Forgets a node.
+    public synchronized void remove(NodeID node) {
+        if (entries.remove(node) != null) {
+            dirty = true;
+        }
+    }
+
+    /// @return true if there are changes not yet saved.
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Writes the cache to its file if it has changed. Errors are logged and otherwise ignored;
+     * the cache is only an optimization.
+     */
+    public synchronized void save() {
+        if (!dirty) return;
+        Path tmp = null;
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, "nodes", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files
+                    .newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<NodeID, Entry> e : entries.entrySet()) {
+                    out.write(e.getKey().getContents());
+                    byte[] snip = e.getValue().snip;
+                    out.writeShort(snip == null ? -1 : snip.length);
+                    if (snip != null) out.write(snip);
+                    Long protocols = e.getValue().protocols;
+                    out.writeBoolean(protocols != null);
+                    out.writeLong(protocols == null ? 0 : protocols);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption
+                    .ATOMIC_MOVE);
+            tmp = null;
+            dirty = false;
+        } catch (IOException e) {
+            logger.warning("Error writing node identity cache " + file + ": " + e.toString());
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    logger.fine("Error deleting " + tmp + ": " + e.toString());
+                }
+            }
+        }
+    }
+
+    private Entry entryFor(NodeID node) {
+        Entry e = entries.get(node);
+        if (e == null) {
+            e = new Entry();
+            entries.put(node, e);
+        }
+        return e;
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files
+                .newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a node identity cache");
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ENTRIES) throw new IOException("bad entry count");
+            for (int i = 0; i < count; i++) {
+                byte[] id = new byte[6];
+                in.readFully(id);
+                Entry e = entryFor(new NodeID(id));
+                int len = in.readShort();
+                if (len > SimpleNodeIdent.MAX_REPLY_LENGTH) throw new IOException("bad length");
+                if (len >= 0) {
+                    e.snip = new byte[len];
+                    in.readFully(e.snip);
+                }
+                boolean hasProtocols = in.readBoolean();
+                long protocols = in.readLong();
+                if (hasProtocols) e.protocols = protocols;
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.openlcb;
 
+import org.openlcb.cdi.impl.CdiCache;
+import org.openlcb.cdi.impl.ConfigLoadScheduler;
 import org.openlcb.cdi.impl.ConfigRepresentation;
 import org.openlcb.implementations.DatagramMeteringBuffer;
 import org.openlcb.implementations.DatagramService;
@@ -8,12 +10,12 @@ import org.openlcb.implementations.MemoryConfigurationService;
 import org.openlcb.protocols.VerifyNodeIdHandler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Timer;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -60,6 +62,9 @@ public class OlcbInterface {
     // Event Table is a helper for user interfaces to register and retrieve user names for
     // events. By default this is null, initialized lazily when needed only.
     private EventTable eventTable = null;
+    private CdiCache cdiCache = null;
+    private int cdiReadWindow = DEFAULT_CDI_READ_WINDOW;
+    private ConfigLoadScheduler configLoadScheduler = null;
 
 
     private ThreadPoolExecutor threadPool = null;
@@ -127,8 +132,14 @@ public class OlcbInterface {
         dcs = new DatagramService(nodeId, dmb);
         mcs = new MemoryConfigurationService(nodeId, dcs);
         inputConnection.registerMessageListener(nodeStore);
-        inputConnection.registerMessageListener(dmb.connectionForRepliesFromDownstream());
-        inputConnection.registerMessageListener(dcs);
+        registerMessageListener(dmb.connectionForRepliesFromDownstream(),
+                DatagramAcknowledgedMessage.class, DatagramRejectedMessage.class,
+                InitializationCompleteMessage.class);
+        registerMessageListener(dcs, DatagramMessage.class,
+                DatagramAcknowledgedMessage.class, DatagramRejectedMessage.class);
+        mcs.enableStreamRead(getOutputConnection(), nodeStore);
+        registerMessageListener(mcs.getStreamConnection(), StreamInitiateRequestMessage.class,
+                StreamDataSendMessage.class, StreamDataCompleteMessage.class);
         new VerifyNodeIdHandler(nodeId, this); // will register itself.
 
         outputConnection.registerStartNotification(new Connection.ConnectionListener() {
@@ -223,6 +234,51 @@ public class OlcbInterface {
         }
         return eventTable;
     }
+
+    /**
+     * Sets a persistent cache for the CDI documents of remote nodes. Without a cache, every
+     * new config representation downloads the CDI from the node.
+     * @param cache the cache to use, or null to turn off caching.
+     */
+    public synchronized void setCdiCache(CdiCache cache) {
+        cdiCache = cache;
+    }
+
+    /// @return the persistent CDI cache, or null if there is none.
+    public synchronized CdiCache getCdiCache() {
+        return cdiCache;
+    }
+
+    /// By default the CDI is downloaded with one read request at a time.
+    public static final int DEFAULT_CDI_READ_WINDOW = 1;
+
+    /**
+     * Sets how many read requests the CDI downloads over datagrams may keep in flight. The
+     * actual number starts at one and grows as long as the node keeps up. Only set this above
+     * one if the nodes on the bus accept multiple outstanding datagrams.
+     * @param window largest number of outstanding reads, at least 1.
+     */
+    public synchronized void setCdiReadWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Invalid CDI read window " + window);
+        }
+        cdiReadWindow = window;
+    }
+
+    /// @return the largest number of outstanding reads for CDI downloads.
+    public synchronized int getCdiReadWindow() {
+        return cdiReadWindow;
+    }
+
+    /// @return the scheduler shared by the config loads of all remote nodes.
+    public synchronized ConfigLoadScheduler getConfigLoadScheduler() {
+        if (configLoadScheduler == null) {
+            // Uses all the datagram slots, so that loading many nodes is not slowed down.
+            configLoadScheduler = new ConfigLoadScheduler(dmb.getMaxInFlight());
+        }
+        return configLoadScheduler;
+    }
+
     /**
      * Creates a new or returns a cached CDI representation for the given node.
      * @param remoteNode    target node (on the network)
@@ -237,6 +293,44 @@ public class OlcbInterface {
         return rep;
     }
 
+    /**
+     * What to do when a message is sent while the output queue is full.
+     */
+    public enum OutputQueuePolicy {
+        /// The sender waits until there is space in the queue.
+        BLOCK,
+        /// The oldest queued message is discarded to make space.
+        DROP_OLDEST,
+        /// The put call throws an IllegalStateException.
+        FAIL
+    }
+
+    /// Default number of messages the output queue holds before the policy kicks in.
+    public static final int DEFAULT_OUTPUT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Sets how many messages may be waiting to be sent to the network and what happens when
+     * more are sent. The default is to block the sender with a capacity of
+     * {@link #DEFAULT_OUTPUT_QUEUE_CAPACITY}.
+     * <p>
+     * Messages sent from the output thread itself (e.g. replies to looped back messages) and
+     * messages sent before the connection is up are never blocked, since nobody would drain the
+     * queue; the queue grows beyond the capacity in that case.
+     * @param policy   what to do when the queue is full
+     * @param capacity number of messages in the queue
+     */
+    public void setOutputQueuePolicy(OutputQueuePolicy policy, int capacity) {
+        queuedOutputConnection.setPolicy(policy, capacity);
+    }
+
+    /**
+     * @return how many outgoing messages were discarded or refused because the output queue was
+     * full.
+     */
+    public long getOutputQueueDropCount() {
+        return queuedOutputConnection.getDropCount();
+    }
+
     /**
      * Blocks the current thread until the outgoing messages are all sent out. Useful for testing.
      */
@@ -245,10 +339,63 @@ public class OlcbInterface {
         queuedOutputConnection.waitForSendQueue();
     }
 
+    /**
+     * Registers a listener for all incoming messages. Listeners are called in the order of
+     * registration. Dispatch holds no locks, so a listener may be called concurrently for
+     * messages arriving from the network and for messages looped back from the output.
+     * @param c listener to add
+     */
     public void registerMessageListener(Connection c) {
         inputConnection.registerMessageListener(c);
     }
 
+    /**
+     * Registers a listener that is only interested in some types of messages. The listener will
+     * not be invoked for any other message, which keeps the dispatch cost independent of the
+     * number of listeners that care about something else.
+     * @param c     listener to add
+     * @param types message classes (or superclasses) that the listener wants to see
+     */
+    @SafeVarargs
+    public final void registerMessageListener(Connection c, Class<? extends Message>... types) {
+        inputConnection.registerMessageListener(c, types);
+    }
+
+    /**
+     * Registers a listener for the event messages (event reports, identify and identified
+     * messages, learn) that carry a given event ID. The listener is found by a hash lookup on
+     * the event ID, so it costs nothing to dispatch messages about other events. Range
+     * identified messages are delivered if the announced range contains the event.
+     * <p>
+     * Messages without an event ID (e.g. Identify Events) are not routed by this table; use
+     * {@link #registerMessageListener(Connection, Class[])} for those.
+     * @param c     listener to add
+     * @param event the event ID the listener is interested in
+     */
+    public void registerEventListener(Connection c, EventID event) {
+        inputConnection.registerEventListener(c, event.toLong(), event.toLong());
+    }
+
+    /**
+     * Registers a listener for the event messages carrying any event ID between first and last
+     * (inclusive, comparing the event IDs as unsigned 64-bit numbers).
+     * @param c     listener to add
+     * @param first lowest event ID of the range
+     * @param last  highest event ID of the range
+     */
+    public void registerEventRangeListener(Connection c, EventID first, EventID last) {
+        long lo = first.toLong();
+        long hi = last.toLong();
+        if (Long.compareUnsigned(lo, hi) > 0) {
+            throw new IllegalArgumentException("Empty event range " + first + " - " + last);
+        }
+        inputConnection.registerEventListener(c, lo, hi);
+    }
+
+    /**
+     * Removes a listener, including all of its event registrations.
+     * @param c listener to remove
+     */
     public void unRegisterMessageListener(Connection c) {
         inputConnection.unRegisterMessageListener(c);
     }
@@ -261,37 +408,343 @@ public class OlcbInterface {
     }
 
     class MessageDispatcher extends AbstractConnection {
-        // This is not the ideal container for add/remove, but keeping the ordering of
-        // registrations is useful in ensuring that the system components receive the messages
-        // earlier as the later-registered user components.
-        private List<Connection> listeners = new ArrayList<>();
-        private List<Connection> pendingListeners = new ArrayList<>();
-        private List<Connection> unpendingListeners = new ArrayList<>();
+        // Registrations are kept in order, so that the system components receive the messages
+        // earlier than the later-registered user components. The list is copied on every
+        // change; dispatch reads a snapshot without locking.
+        private volatile Registration[] registrations = new Registration[0];
+        // Per message class the listeners that want it, in registration order. Filled lazily,
+        // and thrown away whenever the registrations change.
+        private volatile Map<Class<?>, Connection[]> byClass = new HashMap<>();
+        // Listeners registered for specific event IDs or event ID ranges.
+        private volatile EventRoutes eventRoutes = EventRoutes.EMPTY;
+
+        public void registerMessageListener(Connection c) {
+            addRegistration(new Registration(c, null));
+        }
+
+        public void registerMessageListener(Connection c, Class<? extends Message>[] types) {
+            addRegistration(new Registration(c, types.clone()));
+        }
 
-        public synchronized void registerMessageListener(Connection c) {
-            pendingListeners.add(c);
+        private synchronized void addRegistration(Registration r) {
+            Registration[] n = Arrays.copyOf(registrations, registrations.length + 1);
+            n[n.length - 1] = r;
+            registrations = n;
+            byClass = new HashMap<>();
+        }
+
+        public synchronized void registerEventListener(Connection c, long lo, long hi) {
+            eventRoutes = eventRoutes.with(c, lo, hi);
         }
 
         public synchronized void unRegisterMessageListener(Connection c) {
-            unpendingListeners.add(c);
+            List<Registration> n = new ArrayList<>(registrations.length);
+            for (Registration r : registrations) {
+                if (!r.listener.equals(c)) n.add(r);
+            }
+            registrations = n.toArray(new Registration[n.size()]);
+            byClass = new HashMap<>();
+            eventRoutes = eventRoutes.without(c);
         }
 
-        public synchronized int numListeners() {
-            return listeners.size() + pendingListeners.size() - unpendingListeners.size();
+        public int numListeners() {
+            return registrations.length;
         }
 
         @Override
-        public synchronized void put(Message msg, Connection sender) {
-            if (!pendingListeners.isEmpty() || !unpendingListeners.isEmpty()) {
-                listeners.addAll(pendingListeners);
-                pendingListeners.clear();
-                listeners.removeAll(unpendingListeners);
-                unpendingListeners.clear();
-            }
-            for (Connection c : listeners) {
+        public void put(Message msg, Connection sender) {
+            Connection[] targets = byClass.get(msg.getClass());
+            if (targets == null) {
+                targets = resolve(msg.getClass());
+            }
+            for (Connection c : targets) {
                 c.put(msg, sender);
             }
+            if (msg instanceof EventMessage) {
+                eventRoutes.dispatch((EventMessage) msg, sender, targets);
+            }
+        }
+
+        private synchronized Connection[] resolve(Class<?> cls) {
+            Connection[] targets = byClass.get(cls);
+            if (targets != null) return targets;
+            List<Connection> l = new ArrayList<>();
+            for (Registration r : registrations) {
+                if (r.wants(cls) && !containsIdentity(l, r.listener)) {
+                    l.add(r.listener);
+                }
+            }
+            targets = l.toArray(new Connection[l.size()]);
+            Map<Class<?>, Connection[]> n = new HashMap<>(byClass);
+            n.put(cls, targets);
+            byClass = n;
+            return targets;
+        }
+    }
+
+    private static class Registration {
+        final Connection listener;
+        /// null for all messages
+        final Class<? extends Message>[] types;
+
+        Registration(Connection listener, Class<? extends Message>[] types) {
+            this.listener = listener;
+            this.types = types;
+        }
+
+        boolean wants(Class<?> cls) {
+            if (types == null) return true;
+            for (Class<? extends Message> t : types) {
+                if (t.isAssignableFrom(cls)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Immutable routing table from event IDs to listeners. Every change makes a new table, so
+     * the dispatch needs no locks and does not allocate. Adding a registration copies the arrays
+     * and updates only the affected entries, so registering n listeners costs O(n) each.
+     */
+    private static final class EventRoutes {
+        static final EventRoutes EMPTY = new EventRoutes(new Connection[0], new long[0],
+                new long[0], new long[8], new Connection[8][], new int[0], 0);
+
+        /// All registrations, in order: listener and inclusive [lo, hi] event ID range.
+        final Connection[] listeners;
+        final long[] lo;
+        final long[] hi;
+        /// Open-addressing hash table of the single-event registrations. An empty slot has a
+        /// null value. Each value also contains the listeners of ranges covering that event, in
+        /// registration order.
+        final long[] keys;
+        final Connection[][] values;
+        /// Number of used slots in keys/values.
+        final int numKeys;
+        /// Indexes (into listeners/lo/hi) of the true range registrations.
+        final int[] ranges;
+
+        private EventRoutes(Connection[] listeners, long[] lo, long[] hi, long[] keys,
+                            Connection[][] values, int[] ranges, int numKeys) {
+            this.listeners = listeners;
+            this.lo = lo;
+            this.hi = hi;
+            this.keys = keys;
+            this.values = values;
+            this.ranges = ranges;
+            this.numKeys = numKeys;
+        }
+
+        /**
+         * Builds the table for a list of registrations in one pass.
+         */
+        static EventRoutes build(Connection[] listeners, long[] lo, long[] hi) {
+            // Per single event, the listeners in registration order.
+            Map<Long, List<Connection>> byEvent = new HashMap<>();
+            int numRanges = 0;
+            for (int i = 0; i < listeners.length; i++) {
+                if (lo[i] == hi[i]) byEvent.put(lo[i], new ArrayList<Connection>());
+                else numRanges++;
+            }
+            int[] ranges = new int[numRanges];
+            numRanges = 0;
+            for (int i = 0; i < listeners.length; i++) {
+                if (lo[i] == hi[i]) {
+                    addIfAbsent(byEvent.get(lo[i]), listeners[i]);
+                    continue;
+                }
+                ranges[numRanges++] = i;
+                for (Map.Entry<Long, List<Connection>> e : byEvent.entrySet()) {
+                    if (contains(lo[i], hi[i], e.getKey())) {
+                        addIfAbsent(e.getValue(), listeners[i]);
+                    }
+                }
+            }
+            int capacity = capacityFor(byEvent.size());
+            long[] keys = new long[capacity];
+            Connection[][] values = new Connection[capacity][];
+            for (Map.Entry<Long, List<Connection>> e : byEvent.entrySet()) {
+                int s = find(keys, values, e.getKey());
+                keys[s] = e.getKey();
+                values[s] = e.getValue().toArray(new Connection[e.getValue().size()]);
+            }
+            return new EventRoutes(listeners, lo, hi, keys, values, ranges, byEvent.size());
+        }
+
+        private static int capacityFor(int numKeys) {
+            int capacity = 8;
+            while (capacity < numKeys * 2) capacity *= 2;
+            return capacity;
+        }
+
+        private static void addIfAbsent(List<Connection> l, Connection c) {
+            if (!containsIdentity(l, c)) l.add(c);
+        }
+
+        private static Connection[] append(Connection[] l, Connection c) {
+            if (containsIdentity(l, c)) return l;
+            Connection[] n = Arrays.copyOf(l, l.length + 1);
+            n[l.length] = c;
+            return n;
+        }
+
+        private static boolean contains(long lo, long hi, long event) {
+            return Long.compareUnsigned(lo, event) <= 0 && Long.compareUnsigned(event, hi) <= 0;
+        }
+
+        private boolean contains(int i, long event) {
+            return contains(lo[i], hi[i], event);
+        }
+
+        private int find(long event) {
+            return find(keys, values, event);
+        }
+
+        private static int find(long[] keys, Connection[][] values, long event) {
+            int mask = keys.length - 1;
+            long h = event * 0x9E3779B97F4A7C15L;
+            int s = (int) (h ^ (h >>> 32)) & mask;
+            while (values[s] != null && keys[s] != event) {
+                s = (s + 1) & mask;
+            }
+            return s;
+        }
+
+        EventRoutes with(Connection c, long l, long h) {
+            int n = listeners.length;
+            Connection[] nl = Arrays.copyOf(listeners, n + 1);
+            long[] nlo = Arrays.copyOf(lo, n + 1);
+            long[] nhi = Arrays.copyOf(hi, n + 1);
+            nl[n] = c;
+            nlo[n] = l;
+            nhi[n] = h;
+            // The new registration is the last one, so appending keeps registration order.
+            if (l != h) {
+                int[] nranges = Arrays.copyOf(ranges, ranges.length + 1);
+                nranges[ranges.length] = n;
+                Connection[][] nvalues = values.clone();
+                for (int s = 0; s < keys.length; s++) {
+                    if (nvalues[s] != null && contains(l, h, keys[s])) {
+                        nvalues[s] = append(nvalues[s], c);
+                    }
+                }
+                return new EventRoutes(nl, nlo, nhi, keys, nvalues, nranges, numKeys);
+            }
+            long[] nkeys;
+            Connection[][] nvalues;
+            if (capacityFor(numKeys + 1) > keys.length) {
+                nkeys = new long[keys.length * 2];
+                nvalues = new Connection[keys.length * 2][];
+                for (int s = 0; s < keys.length; s++) {
+                    if (values[s] == null) continue;
+                    int ns = find(nkeys, nvalues, keys[s]);
+                    nkeys[ns] = keys[s];
+                    nvalues[ns] = values[s];
+                }
+            } else {
+                nkeys = keys.clone();
+                nvalues = values.clone();
+            }
+            int s = find(nkeys, nvalues, l);
+            if (nvalues[s] != null) {
+                nvalues[s] = append(nvalues[s], c);
+                return new EventRoutes(nl, nlo, nhi, nkeys, nvalues, ranges, numKeys);
+            }
+            // First single registration of this event: earlier ranges covering it come first.
+            List<Connection> v = new ArrayList<>();
+            for (int r : ranges) {
+                if (contains(r, l)) addIfAbsent(v, listeners[r]);
+            }
+            addIfAbsent(v, c);
+            nkeys[s] = l;
+            nvalues[s] = v.toArray(new Connection[v.size()]);
+            return new EventRoutes(nl, nlo, nhi, nkeys, nvalues, ranges, numKeys + 1);
+        }
+
+        EventRoutes without(Connection c) {
+            int n = 0;
+            for (Connection e : listeners) {
+                if (!e.equals(c)) n++;
+            }
+            if (n == listeners.length) return this;
+            Connection[] nl = new Connection[n];
+            long[] nlo = new long[n];
+            long[] nhi = new long[n];
+            n = 0;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i].equals(c)) continue;
+                nl[n] = listeners[i];
+                nlo[n] = lo[i];
+                nhi[n] = hi[i];
+                n++;
+            }
+            return build(nl, nlo, nhi);
+        }
+
+        /**
+         * Forwards an event message to the listeners registered for its event ID.
+         * @param msg     message to dispatch
+         * @param sender  sender to pass on
+         * @param skip    listeners that have already received this message
+         */
+        void dispatch(EventMessage msg, Connection sender, Connection[] skip) {
+            if (listeners.length == 0) return;
+            long event = msg.getEventID().toLong();
+            if (msg instanceof ProducerRangeIdentifiedMessage
+                    || msg instanceof ConsumerRangeIdentifiedMessage) {
+                // The range is encoded in the trailing bits that are equal to the last bit.
+                long mask = ((event & 1) != 0 ? event ^ (event + 1) : event ^ (event - 1)) >>> 1;
+                long rlo = event & ~mask;
+                long rhi = event | mask;
+                for (int i = 0; i < listeners.length; i++) {
+                    if (Long.compareUnsigned(lo[i], rhi) <= 0
+                            && Long.compareUnsigned(rlo, hi[i]) <= 0
+                            && !seenBefore(i, rlo, rhi, skip)) {
+                        listeners[i].put(msg, sender);
+                    }
+                }
+                return;
+            }
+            int s = find(event);
+            if (values[s] != null) {
+                for (Connection c : values[s]) {
+                    if (!containsIdentity(skip, c)) c.put(msg, sender);
+                }
+                return;
+            }
+            for (int r : ranges) {
+                if (contains(r, event) && !seenBefore(r, event, event, skip)) {
+                    listeners[r].put(msg, sender);
+                }
+            }
+        }
+
+        /// @return true if listener i was already called for the event range [rlo, rhi].
+        private boolean seenBefore(int i, long rlo, long rhi, Connection[] skip) {
+            Connection c = listeners[i];
+            if (containsIdentity(skip, c)) return true;
+            for (int j = 0; j < i; j++) {
+                if (listeners[j] == c && Long.compareUnsigned(lo[j], rhi) <= 0
+                        && Long.compareUnsigned(rlo, hi[j]) <= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static boolean containsIdentity(List<Connection> l, Connection c) {
+        for (Connection e : l) {
+            if (e == c) return true;
+        }
+        return false;
+    }
+
+    private static boolean containsIdentity(Connection[] l, Connection c) {
+        for (Connection e : l) {
+            if (e == c) return true;
         }
+        return false;
     }
 
     /**
@@ -314,8 +767,11 @@ public class OlcbInterface {
      * Performs local feedback of addressed and global messages. This class is on the critical
      * path to sending messages.
      */
-    class OutputConnectionSniffer implements Connection {
+    class OutputConnectionSniffer implements BatchConnection {
         private final Connection realOutput;
+        // Messages of the current batch that go to the network. Only used by the output thread.
+        private Message[] remoteMsgs = new Message[0];
+        private Connection[] remoteSenders = new Connection[0];
 
         OutputConnectionSniffer(Connection realOutput) {
             this.realOutput = realOutput;
@@ -340,6 +796,68 @@ public class OlcbInterface {
             realOutput.put(msg, sender);
         }
 
+        /**
+         * Sends a batch of messages. The local copies of all messages in the batch are delivered
+         * before the batch goes to the network in one call, so local listeners may see the
+         * second message of a batch before the first one is on the wire. The order of the
+         * messages is kept both locally and on the network.
+         */
+        @Override
+        public void putBatch(Message[] msgs, Connection[] senders, int count) {
+            if (!(realOutput instanceof BatchConnection)) {
+                for (int i = 0; i < count; i++) {
+                    putOne(msgs[i], senders[i]);
+                }
+                return;
+            }
+            if (remoteMsgs.length < count) {
+                remoteMsgs = new Message[count];
+                remoteSenders = new Connection[count];
+            }
+            int remote = 0;
+            for (int i = 0; i < count; i++) {
+                Message msg = msgs[i];
+                try {
+                    if (msg instanceof AddressedMessage) {
+                        if (((AddressedMessage) msg).destNodeID.equals(nodeId)) {
+                            inputConnection.put(msg, senders[i]);
+                            continue;
+                        }
+                        nodeStore.put(msg, senders[i]);
+                    } else {
+                        inputConnection.put(msg, senders[i]);
+                    }
+                } catch (RejectedExecutionException ex) {
+                    throw ex;
+                } catch (Throwable e) {
+                    // Same as put(): a message whose local delivery failed is not sent.
+                    log.warning("Exception while sending message: " + e.toString());
+                    e.printStackTrace();
+                    continue;
+                }
+                remoteMsgs[remote] = msg;
+                remoteSenders[remote] = senders[i];
+                remote++;
+            }
+            try {
+                ((BatchConnection) realOutput).putBatch(remoteMsgs, remoteSenders, remote);
+            } finally {
+                Arrays.fill(remoteMsgs, 0, remote, null);
+                Arrays.fill(remoteSenders, 0, remote, null);
+            }
+        }
+
+        private void putOne(Message msg, Connection sender) {
+            try {
+                put(msg, sender);
+            } catch (RejectedExecutionException ex) {
+                throw ex;
+            } catch (Throwable e) {
+                log.warning("Exception while sending message: " + e.toString());
+                e.printStackTrace();
+            }
+        }
+
 
         @Override
         public void registerStartNotification(ConnectionListener c) {
@@ -380,26 +898,128 @@ public class OlcbInterface {
 
     /**
      * This class keeps an output connection operating using an internal queue. It keeps
-     * messages in an internal thread-safe queue and sends them on a separate thread.
+     * messages in a bounded ring buffer and sends them on a separate thread. Everything that
+     * accumulated in the queue while the previous batch was being sent is handed down to the
+     * output in a single call.
      * <p>
      * The caller must donate a thread to this connection by calling the run() method.
      */
     private class QueuedOutputConnection implements Connection {
         private final Connection realOutput;
-        private final BlockingQueue<QEntry> outputQueue = new
-                LinkedBlockingQueue<>();
-        private int pendingCount = 0;
+        /// Maximum number of messages handed down in one call.
+        private static final int BATCH_SIZE = 150;
+
+        // The ring buffer; guarded by this.
+        private Message[] msgs;
+        private Connection[] senders;
+        private int head = 0;
+        private int count = 0;
+        private int capacity;
+        private OutputQueuePolicy policy = OutputQueuePolicy.BLOCK;
+        /// Number of messages taken off the queue but not yet sent; guarded by this.
+        private int inFlight = 0;
+        private long dropCount = 0;
+        /// The thread running the output loop, null if not started yet.
+        private volatile Thread outputThread = null;
+        /// The thread currently sending a batch (may be the loopback thread).
+        private volatile Thread sendingThread = null;
+
+        // The batch being sent. Only touched by the output thread (and the loopback thread
+        // while the output thread waits for it).
+        private final Message[] batchMsgs = new Message[BATCH_SIZE];
+        private final Connection[] batchSenders = new Connection[BATCH_SIZE];
+        private int batchCount = 0;
+        private final Runnable sendBatch = new Runnable() {
+            @Override
+            public void run() {
+                sendingThread = Thread.currentThread();
+                try {
+                    sendCurrentBatch();
+                } finally {
+                    sendingThread = null;
+                }
+            }
+        };
 
         QueuedOutputConnection(Connection realOutput) {
             this.realOutput = realOutput;
+            this.capacity = DEFAULT_OUTPUT_QUEUE_CAPACITY;
+            msgs = new Message[capacity];
+            senders = new Connection[capacity];
         }
 
         @Override
         public void put(Message msg, Connection sender) {
-            synchronized(this) {
-                pendingCount++;
+            synchronized (this) {
+                while (count >= capacity) {
+                    Thread current = Thread.currentThread();
+                    if (outputThread == null || current == outputThread
+                            || current == sendingThread) {
+                        // Nobody will drain the queue while we wait, so waiting would
+                        // deadlock. Let the queue grow beyond the capacity instead.
+                        if (count == msgs.length) {
+                            grow(Math.max(msgs.length * 2, count + 1));
+                        }
+                        break;
+                    }
+                    if (policy == OutputQueuePolicy.DROP_OLDEST) {
+                        log.warning("Output queue full, dropping " + msgs[head]);
+                        msgs[head] = null;
+                        senders[head] = null;
+                        head = (head + 1) % msgs.length;
+                        count--;
+                        dropCount++;
+                    } else if (policy == OutputQueuePolicy.FAIL) {
+                        dropCount++;
+                        throw new IllegalStateException("Output queue full (" + capacity
+                                + " messages), cannot send " + msg);
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropCount++;
+                            log.warning("Interrupted while waiting for output queue, dropping "
+                                    + msg);
+                            return;
+                        }
+                    }
+                }
+                int tail = (head + count) % msgs.length;
+                msgs[tail] = msg;
+                senders[tail] = sender;
+                count++;
+                if (count == 1) notifyAll();
+            }
+        }
+
+        // Called with the lock held.
+        private void grow(int newSize) {
+            Message[] nm = new Message[newSize];
+            Connection[] ns = new Connection[newSize];
+            for (int i = 0; i < count; i++) {
+                nm[i] = msgs[(head + i) % msgs.length];
+                ns[i] = senders[(head + i) % msgs.length];
             }
-            outputQueue.add(new QEntry(msg, sender));
+            msgs = nm;
+            senders = ns;
+            head = 0;
+        }
+
+        synchronized void setPolicy(OutputQueuePolicy policy, int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Output queue capacity must be positive");
+            }
+            this.policy = policy;
+            this.capacity = capacity;
+            if (msgs.length < capacity) {
+                grow(capacity);
+            }
+            notifyAll();
+        }
+
+        synchronized long getDropCount() {
+            return dropCount;
         }
 
         @Override
@@ -407,13 +1027,13 @@ public class OlcbInterface {
             internalOutputConnection.registerStartNotification(c);
         }
 
-        public void waitForSendQueue() {
-            while(true) {
-                synchronized (this) {
-                    if (pendingCount == 0) return;
-                }
+        /**
+         * Blocks until every message that was enqueued has been sent.
+         */
+        public synchronized void waitForSendQueue() {
+            while (count > 0 || inFlight > 0) {
                 try {
-                    Thread.sleep(10);
+                    wait();
                 } catch (InterruptedException e) {
                     return;
                 }
@@ -424,31 +1044,35 @@ public class OlcbInterface {
          * Never returns.
          */
         private void run() {
-            final ArrayList<QEntry> l = new ArrayList<>(150);
+            outputThread = Thread.currentThread();
             while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    QEntry m = outputQueue.take();
-                    l.clear();
-                    l.add(m);
-                    outputQueue.drainTo(l, 149);
-                    runCallbackOrAbandon(new Runnable() {
-                        @Override
-                        public void run() {
-                            for (QEntry m : l) {
-                                try {
-                                    realOutput.put(m.message, m.connection);
-                                } catch (RejectedExecutionException ex) {
-                                    throw ex; // re-throw so the outer try will handle these.
-                                } catch (Throwable e) {
-                                    log.warning("Exception while sending message: " + e.toString());
-                                    e.printStackTrace();
-                                }
-                                synchronized(QueuedOutputConnection.this) {
-                                    pendingCount--;
-                                }
-                            }
+                    synchronized (this) {
+                        while (count == 0) {
+                            wait();
+                        }
+                        batchCount = Math.min(count, BATCH_SIZE);
+                        for (int i = 0; i < batchCount; i++) {
+                            batchMsgs[i] = msgs[head];
+                            batchSenders[i] = senders[head];
+                            msgs[head] = null;
+                            senders[head] = null;
+                            head = (head + 1) % msgs.length;
+                        }
+                        count -= batchCount;
+                        inFlight = batchCount;
+                        // Wakes up blocked senders.
+                        notifyAll();
+                    }
+                    try {
+                        runCallbackOrAbandon(sendBatch);
+                    } finally {
+                        synchronized (this) {
+                            inFlight = 0;
+                            // Wakes up flushSendQueue.
+                            notifyAll();
                         }
-                    });
+                    }
                 } catch (InterruptedException|RejectedExecutionException e) {
                     // thread must exit when interrupted or rejected.
                     return;
@@ -456,12 +1080,33 @@ public class OlcbInterface {
             }
         }
 
-        private class QEntry {
-            Message message;
-            Connection connection;
-            QEntry(Message m, Connection c) {
-                message = m;
-                connection = c;
+        private void sendCurrentBatch() {
+            try {
+                if (realOutput instanceof BatchConnection) {
+                    try {
+                        ((BatchConnection) realOutput).putBatch(batchMsgs, batchSenders,
+                                batchCount);
+                    } catch (RejectedExecutionException ex) {
+                        throw ex; // re-throw so the outer try will handle these.
+                    } catch (Throwable e) {
+                        log.warning("Exception while sending messages: " + e.toString());
+                        e.printStackTrace();
+                    }
+                } else {
+                    for (int i = 0; i < batchCount; i++) {
+                        try {
+                            realOutput.put(batchMsgs[i], batchSenders[i]);
+                        } catch (RejectedExecutionException ex) {
+                            throw ex; // re-throw so the outer try will handle these.
+                        } catch (Throwable e) {
+                            log.warning("Exception while sending message: " + e.toString());
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } finally {
+                Arrays.fill(batchMsgs, 0, batchCount, null);
+                Arrays.fill(batchSenders, 0, batchCount, null);
             }
         }
     }
@@ -80,6 +80,13 @@ public class ProtocolIdentification {
         value = 0;
     }
 
+    /// Creates the identification from a value learned earlier.
+    ProtocolIdentification(NodeID source, NodeID dest, long value) {
+        this.source = source;
+        this.dest = dest;
+        this.value = value;
+    }
+
     void start(Connection connection) {
         if (dest == null) {
             throw new AssertionError("PIP dest==null");
@@ -3,6 +3,7 @@
 package org.openlcb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import java.nio.charset.Charset;
@@ -30,6 +31,21 @@ public class SimpleNodeIdent {
         this.dest = dest;
     }
 
+    /**
+     * Creates the ident from the payload of earlier replies, e.g. one stored by the
+     * {@link NodeIdentityCache}.
+     */
+    SimpleNodeIdent(NodeID source, NodeID dest, byte[] data) {
+        this(source, dest);
+        next = Math.min(data.length, MAX_REPLY_LENGTH);
+        System.arraycopy(data, 0, bytes, 0, next);
+    }
+
+    /// @return the payload of the replies received so far.
+    byte[] getRawData() {
+        return Arrays.copyOf(bytes, next);
+    }
+
     NodeID source;
     NodeID dest;
     
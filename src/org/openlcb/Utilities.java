@@ -79,6 +79,25 @@ public class Utilities {
         return retval;
     }
 
+    /**
+     * Formats the low bytes of a number like {@link #toHexDotsString(byte[])}.
+     * @param value     the number, most significant byte first
+     * @param byteCount how many of the low bytes to print
+     * @return e.g. "05.01.01.01.14.39"
+     */
+    @CheckReturnValue
+    @NonNull
+    static public String toHexDotsString(long value, int byteCount) {
+        char[] buff = new char[byteCount * 3 - 1];
+        for (int i = 0; i < byteCount; i++) {
+            int b = (int) (value >>> (8 * (byteCount - 1 - i))) & 0xff;
+            if (i > 0) buff[i * 3 - 1] = '.';
+            buff[i * 3] = Character.toUpperCase(Character.forDigit(b >> 4, 16));
+            buff[i * 3 + 1] = Character.toUpperCase(Character.forDigit(b & 0xf, 16));
+        }
+        return new String(buff);
+    }
+
     /**
      * Create a byte[] from a String containing hexadecimal values.
      *
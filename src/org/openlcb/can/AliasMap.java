@@ -1,12 +1,22 @@
 package org.openlcb.can;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.openlcb.NodeID;
 
 /**
  * Maintains a 2-way map between nodes and CAN node ID aliases.
  *<p>
  * Input is CAN frames, looking for VerifyNodeID frames.
- * 
+ *<p>
+ * The map is written by the frame input thread and read by the message builders on both the
+ * input and the output thread. Writers are serialized on the map's monitor; lookups in both
+ * directions take no locks and do not allocate. Aliases are 12 bits, so alias to node lookup
+ * is a direct index into a 4096-entry array. Node to alias lookup is an open-addressing hash
+ * table keyed on the 48-bit node ID, with each entry packed into a single long so that a
+ * reader always sees a consistent (node, alias) pair.
+ *
  * @author  Bob Jacobsen   Copyright 2010
  * @version $Revision$
  */
@@ -14,41 +24,200 @@ public class AliasMap {
 
     public AliasMap() {
     }
-    java.util.HashMap<NodeID, Integer> iMap = new java.util.HashMap<NodeID, Integer>();
-    java.util.HashMap<Integer, NodeID> nMap = new java.util.HashMap<Integer, NodeID>();
-    
+
+    private static final int ALIAS_COUNT = 0x1000;
+    /// Returned for unknown aliases. NodeIDs are immutable, so one instance does for everyone.
+    private static final NodeID UNKNOWN_NODE = new NodeID();
+
+    private static final long EMPTY = 0;
+    /// A removed entry. Probing continues past it; insertion may reuse it.
+    private static final long TOMBSTONE = -1L;
+    private static final long OCCUPIED = 1L << 62;
+    private static final long NODE_MASK = 0xFFFFFFFFFFFFL;
+
+    /// alias -> node
+    private final AtomicReferenceArray<NodeID> nMap = new AtomicReferenceArray<>(ALIAS_COUNT);
+    /// node -> alias, entries are OCCUPIED | node << 12 | alias. Replaced (never resized in
+    /// place) when it fills up, so readers holding the old table still see valid data.
+    private volatile AtomicLongArray iMap = new AtomicLongArray(64);
+    /// Number of live entries in iMap; guarded by this.
+    private int iMapSize;
+    /// Number of tombstones in iMap; guarded by this.
+    private int iMapTombstones;
+
+    private volatile long collisionCount;
+    private volatile long resetCount;
+
     public void processFrame(OpenLcbCanFrame f) {
         // check type
         if (f.isInitializationComplete() || f.isVerifiedNID() || f.isAliasMapDefinition()) {
-            Integer alias = Integer.valueOf(f.getSourceAlias());
+            int alias = f.getSourceAlias();
             NodeID nid = f.getNodeID();
             insert(alias, nid);
         } else if (f.isAliasMapReset()) {
-            Integer alias = Integer.valueOf(f.getSourceAlias());
+            int alias = f.getSourceAlias();
             remove(alias);
         }
     }
-    
-    public void insert(int alias, NodeID nid) {
-        nMap.put(alias, nid);
-        iMap.put(nid, alias);
+
+    /**
+     * Records that a node uses an alias. Any earlier binding of this alias to another node, or
+     * of this node to another alias, is dropped; such changes are counted as collisions.
+     * @param alias 12-bit alias
+     * @param nid   node using the alias
+     */
+    public synchronized void insert(int alias, NodeID nid) {
+        if (alias < 0 || alias >= ALIAS_COUNT) return;
+        long key = nid.toLong();
+        NodeID oldNode = nMap.get(alias);
+        if (oldNode != null && oldNode.toLong() != key) {
+            // The alias was reassigned to a different node.
+            collisionCount++;
+            removeAlias(oldNode.toLong());
+        }
+        int oldAlias = getAlias(key);
+        if (oldAlias >= 0 && oldAlias != alias) {
+            // The node has picked a new alias.
+            collisionCount++;
+            nMap.set(oldAlias, null);
+        }
+        nMap.set(alias, nid);
+        putAlias(key, alias);
     }
-    
-    public void remove(int alias) {
-        NodeID nid = getNodeID(alias);
+
+    /**
+     * Drops an alias, e.g. when the node sent an Alias Map Reset.
+     * @param alias 12-bit alias
+     */
+    public synchronized void remove(int alias) {
+        if (alias < 0 || alias >= ALIAS_COUNT) return;
+        NodeID nid = nMap.get(alias);
         if (nid == null) return;
-        nMap.remove(alias);
-        iMap.remove(nid);
+        resetCount++;
+        nMap.set(alias, null);
+        removeAlias(nid.toLong());
     }
-    
+
+    /**
+     * @param alias 12-bit alias
+     * @return the node using this alias, or an all-zero NodeID if the alias is not known.
+     */
     public NodeID getNodeID(int alias) {
-        NodeID retVal = nMap.get(Integer.valueOf(alias));
+        NodeID retVal = null;
+        if (alias >= 0 && alias < ALIAS_COUNT) {
+            retVal = nMap.get(alias);
+        }
         if (retVal != null) return retVal;
-        else return new NodeID();
+        else return UNKNOWN_NODE;
     }
+
+    /**
+     * @param nid node to look up
+     * @return the alias of the node, or -1 if not known.
+     */
     public int getAlias(NodeID nid) {
-        Integer r = iMap.get(nid);
-        if (r == null) return -1;
-        else return r.intValue();
+        if (nid == null) return -1;
+        return getAlias(nid.toLong());
+    }
+
+    private int getAlias(long key) {
+        AtomicLongArray table = iMap;
+        int mask = table.length() - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long e = table.get(i);
+            if (e == EMPTY) return -1;
+            if (e != TOMBSTONE && ((e >>> 12) & NODE_MASK) == key) {
+                return (int) (e & 0xFFF);
+            }
+        }
+    }
+
+    /**
+     * @return how many times an alias was found bound to a different node, or a node to a
+     * different alias, than what a newly seen frame announced. A steadily growing count means
+     * alias churn on the bus.
+     */
+    public long getCollisionCount() {
+        return collisionCount;
+    }
+
+    /**
+     * @return how many known aliases were released by Alias Map Reset frames.
+     */
+    public long getResetCount() {
+        return resetCount;
+    }
+
+    /**
+     * @return the number of nodes with a known alias.
+     */
+    public synchronized int size() {
+        return iMapSize;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    // Called with the lock held.
+    private void putAlias(long key, int alias) {
+        long entry = OCCUPIED | (key << 12) | alias;
+        AtomicLongArray table = iMap;
+        int mask = table.length() - 1;
+        int free = -1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long e = table.get(i);
+            if (e == EMPTY) {
+                if (free < 0) free = i;
+                break;
+            }
+            if (e == TOMBSTONE) {
+                if (free < 0) free = i;
+            } else if (((e >>> 12) & NODE_MASK) == key) {
+                table.set(i, entry);
+                return;
+            }
+        }
+        if (table.get(free) == TOMBSTONE) iMapTombstones--;
+        table.set(free, entry);
+        iMapSize++;
+        if ((iMapSize + iMapTombstones) * 2 > table.length()) {
+            rehash();
+        }
+    }
+
+    // Called with the lock held.
+    private void removeAlias(long key) {
+        AtomicLongArray table = iMap;
+        int mask = table.length() - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long e = table.get(i);
+            if (e == EMPTY) return;
+            if (e != TOMBSTONE && ((e >>> 12) & NODE_MASK) == key) {
+                table.set(i, TOMBSTONE);
+                iMapSize--;
+                iMapTombstones++;
+                return;
+            }
+        }
+    }
+
+    // Called with the lock held.
+    private void rehash() {
+        AtomicLongArray old = iMap;
+        int capacity = old.length();
+        while (iMapSize * 4 > capacity) capacity *= 2;
+        AtomicLongArray table = new AtomicLongArray(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            long e = old.get(j);
+            if (e == EMPTY || e == TOMBSTONE) continue;
+            int i = slot((e >>> 12) & NODE_MASK, mask);
+            while (table.get(i) != EMPTY) i = (i + 1) & mask;
+            table.set(i, e);
+        }
+        iMapTombstones = 0;
+        iMap = table;
     }
- }
+}
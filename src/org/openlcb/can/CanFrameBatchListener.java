@@ -0,0 +1,15 @@
+package org.openlcb.can;
+
+import java.util.List;
+
+/**
+ * A CanFrameListener that can take a sequence of frames in one call, e.g. to write them to the
+ * underlying stream with a single flush.
+ */
+public interface CanFrameBatchListener extends CanFrameListener {
+    /**
+     * Sends a number of frames, in order.
+     * @param frames frames to send. Owned by the caller; do not keep a reference.
+     */
+    void send(List<? extends CanFrame> frames);
+}
@@ -5,8 +5,10 @@ import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import org.openlcb.BatchConnection;
 import org.openlcb.Connection;
 import org.openlcb.Connection.ConnectionListener;
 import org.openlcb.Message;
@@ -149,15 +151,11 @@ public class CanInterface {
         public void send(CanFrame frame) {
             aliasWatcher.send(frame);
             aliasMap.processFrame(new OpenLcbCanFrame(frame));
-            List<Message> l = messageBuilder.processFrame(frame);
-            if (l == null) return;
-            for (Message m : l) {
-                olcbInterface.getInputConnection().put(m, null);
-            }
+            messageBuilder.processFrame(frame, olcbInterface.getInputConnection());
         }
     }
 
-    class FrameRenderer implements Connection {
+    class FrameRenderer implements BatchConnection {
         @Override
         public void put(Message msg, Connection sender) {
             List<OpenLcbCanFrame> l = messageBuilder.processMessage(msg);
@@ -166,6 +164,39 @@ public class CanInterface {
             }
         }
 
+        @Override
+        public void putBatch(Message[] msgs, Connection[] senders, int count) {
+            // A message that fails to render or send is dropped alone, not with its batch.
+            if (!(frameOutput instanceof CanFrameBatchListener)) {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        put(msgs[i], senders[i]);
+                    } catch (RejectedExecutionException ex) {
+                        throw ex;
+                    } catch (Throwable e) {
+                        logSendError(msgs[i], e);
+                    }
+                }
+                return;
+            }
+            List<OpenLcbCanFrame> frames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                try {
+                    frames.addAll(messageBuilder.processMessage(msgs[i]));
+                } catch (RejectedExecutionException ex) {
+                    throw ex;
+                } catch (Throwable e) {
+                    logSendError(msgs[i], e);
+                }
+            }
+            ((CanFrameBatchListener) frameOutput).send(frames);
+        }
+
+        private void logSendError(Message msg, Throwable e) {
+            logger.warning("Exception while sending message " + msg + ": " + e.toString());
+            e.printStackTrace();
+        }
+
         @Override
         public void registerStartNotification(ConnectionListener c) {
             addStartListener(c);
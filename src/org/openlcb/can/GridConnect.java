@@ -1,5 +1,6 @@
 package org.openlcb.can;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -11,27 +12,54 @@ import org.openlcb.implementations.DatagramUtils;
 public class GridConnect {
     private final static Logger logger = Logger.getLogger(GridConnect.class.getName());
 
+    /// Longest possible encoded frame: ":X" + 8 header digits + "N" + 16 data digits + ";".
+    public static final int MAX_ENCODED_LENGTH = 28;
+
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'A', 'B', 'C', 'D', 'E', 'F'};
+
     public static String format(CanFrame frame) {
-        StringBuilder b = new StringBuilder();
+        byte[] b = new byte[MAX_ENCODED_LENGTH];
+        int len = encode(frame, b, 0);
+        return new String(b, 0, len, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Renders a frame in GridConnect format into a byte array, without allocating anything.
+     * Frames with more than 8 data bytes are truncated to 8.
+     * @param frame  frame to render
+     * @param out    output array; needs to have MAX_ENCODED_LENGTH bytes of space at offset
+     * @param offset where to start writing
+     * @return the number of bytes written.
+     */
+    public static int encode(CanFrame frame, byte[] out, int offset) {
+        int p = offset;
+        out[p++] = ':';
+        int header = frame.getHeader();
+        int digits;
         if (frame.isExtended()) {
-            b.append(String.format(":X%08X", frame.getHeader()));
+            out[p++] = 'X';
+            digits = 8;
         } else {
-            b.append(String.format(":S%03X", frame.getHeader()));
+            out[p++] = 'S';
+            digits = 3;
         }
-        if (frame.isRtr()) {
-            b.append('R');
-        } else {
-            b.append('N');
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            out[p++] = HEX_DIGITS[(header >>> shift) & 0xf];
         }
-        if (frame.getNumDataElements() > 8) {
-            logger.warning("Output frame with too many data elements: " + Integer.toString(frame
-                    .getNumDataElements()));
+        out[p++] = (byte) (frame.isRtr() ? 'R' : 'N');
+        int count = frame.getNumDataElements();
+        if (count > 8) {
+            logger.warning("Output frame with too many data elements: " + Integer.toString(count));
+            count = 8;
         }
-        for (int i = 0; i < frame.getNumDataElements(); ++i) {
-            b.append(String.format("%02X", frame.getElement(i) & 0xff));
+        for (int i = 0; i < count; ++i) {
+            int v = frame.getElement(i);
+            out[p++] = HEX_DIGITS[(v >> 4) & 0xf];
+            out[p++] = HEX_DIGITS[v & 0xf];
         }
-        b.append(';');
-        return b.toString();
+        out[p++] = ';';
+        return p - offset;
     }
 
     public static List<CanFrame> parse(String data) {
@@ -1,6 +1,7 @@
 package org.openlcb.can;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Level;
@@ -78,13 +79,308 @@ public class MessageBuilder {
         }
     }
     
+    /**
+     * Accept a frame, and hand the messages decoded from it to a sink.
+     * <p>
+     * This is the low-garbage counterpart of {@link #processFrame(CanFrame)}. The frame
+     * payload is read into per-thread scratch storage instead of being copied via
+     * getData(), partially received addressed messages and datagrams are kept in a table
+     * keyed on the primitive frame header (respectively source alias) whose entries are
+     * recycled, and no result list is built. Apart from the decoded messages themselves,
+     * nothing is allocated per frame once the alias map is warm.
+     * <p>
+     * The two processFrame variants keep separate reassembly state; a given
+     * MessageBuilder should be fed through only one of them.
+     *
+     * @param f    frame that came
+     * @param sink every message completed by this frame is passed to sink.put(msg, null),
+     *             in order
+     */
+    public void processFrame(CanFrame f, Connection sink) {
+        int header = f.getHeader();
+        if ((header & 0x08000000) != 0x08000000) return;  // not OpenLCB frame
+        byte[] data = frameScratch.get();
+        int len = Math.min(f.getNumDataElements(), data.length);
+        for (int i = 0; i < len; i++) {
+            data[i] = (byte) f.getElement(i);
+        }
+        Message m;
+        switch ((header & 0x07000000) >> 24) {
+            case 1:
+                m = decodeFormat1(f, header, data, len);
+                break;
+            case 2:
+                m = decodeDatagram(header, data, len, true, true);
+                break;
+            case 3:
+                m = decodeDatagram(header, data, len, true, false);
+                break;
+            case 4:
+                m = decodeDatagram(header, data, len, false, false);
+                break;
+            case 5:
+                m = decodeDatagram(header, data, len, false, true);
+                break;
+            case 7:
+                m = decodeStreamData(header, data, len);
+                break;
+            default:
+                // Reserved formats.
+                m = null;
+                break;
+        }
+        if (m != null) {
+            sink.put(m, null);
+        }
+    }
+
+    /// Frame payload buffer for the sink-based decoder; CAN frames carry at most 8 bytes.
+    private static final ThreadLocal<byte[]> frameScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8];
+        }
+    };
+
+    /// Partial messages of the sink-based decoder. Addressed messages are keyed on the frame
+    /// header, datagrams on DATAGRAM_KEY | source alias.
+    final PartialTable partials = new PartialTable();
+    /// Outside of the 29-bit CAN header space, so it can not collide with a frame header.
+    static final int DATAGRAM_KEY = 0x20000000;
+
+    private Message decodeFormat1(CanFrame f, int header, byte[] data, int len) {
+        NodeID source = map.getNodeID(header & 0x00000FFF);
+        int mti = (header & 0x00FFF000) >> 12;
+        NodeID dest = null;
+        byte[] content = null;
+        Partial done = null;
+        if (((mti & 0x008) != 0) && (len >= 2)) {
+            // addressed message
+            dest = map.getNodeID(((data[0] << 8) + (data[1] & 0xff)) & 0xFFF);
+            boolean last = (data[0] & 0x10) == 0;
+            Partial p = partials.get(header);
+            if (p == null && last) {
+                // single frame, no need to go through the table
+                content = Arrays.copyOfRange(data, 2, len);
+            } else {
+                if (p == null) {
+                    p = partials.start(header);
+                    p.append(data, 0, len);
+                } else {
+                    p.append(data, 2, len);  // skip address
+                }
+                if (!last) return null;
+                data = p.data;
+                len = p.length;
+                content = Arrays.copyOfRange(data, 2, len);
+                done = p;
+            }
+        }
+        MessageTypeIdentifier value = MessageTypeIdentifier.get(mti);
+        Message m = null;
+        if (value == null) {
+            logUnknownMti(mti);
+        } else {
+            m = decodeFormat1(f, value, mti, source, dest, data, len, content);
+        }
+        if (done != null) partials.remove(header);
+        return m;
+    }
+
+    /// Stream data frames are passed on one by one, as in processFormat7.
+    private Message decodeStreamData(int header, byte[] data, int len) {
+        if (len < 1) return null;
+        NodeID source = map.getNodeID(header & 0x00000FFF);
+        NodeID dest = map.getNodeID((header & 0x00FFF000) >> 12);
+        int[] payload = new int[len - 1];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = data[i + 1] & 0xff;
+        }
+        return new StreamDataSendMessage(source, dest, data[0], payload);
+    }
+
+    private Message decodeDatagram(int header, byte[] data, int len, boolean first,
+                                   boolean last) {
+        int key = DATAGRAM_KEY | (header & 0x00000FFF);
+        if (first && last) {
+            return newDatagram(header, data, len);
+        }
+        // A first frame restarts any half-received datagram from the same source.
+        Partial p = first ? partials.restart(key) : partials.get(key);
+        if (!last) {
+            if (p == null) {
+                // missed the first frame; keep what we have, as processFormat4 does
+                p = partials.start(key);
+            }
+            p.append(data, 0, len);
+            return null;
+        }
+        if (p == null) {
+            return newDatagram(header, data, len);
+        }
+        p.append(data, 0, len);
+        Message m = newDatagram(header, p.data, p.length);
+        partials.remove(key);
+        return m;
+    }
+
+    private Message newDatagram(int header, byte[] data, int len) {
+        int[] payload = new int[len];
+        for (int i = 0; i < len; i++) {
+            payload[i] = data[i] & 0xff;
+        }
+        NodeID source = map.getNodeID(header & 0x00000FFF);
+        NodeID dest = map.getNodeID((header & 0x00FFF000) >> 12);
+        return new DatagramMessage(source, dest, payload);
+    }
+
+    /**
+     * A message being assembled from multiple frames. Instances are recycled by the
+     * PartialTable.
+     */
+    static final class Partial {
+        /// Large enough for a maximum-size datagram; grows for longer addressed messages.
+        byte[] data = new byte[72];
+        int length;
+        Partial nextFree;
+
+        void append(byte[] src, int from, int to) {
+            int n = to - from;
+            if (n <= 0) return;
+            if (length + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+            }
+            System.arraycopy(src, from, data, length, n);
+            length += n;
+        }
+    }
+
+    /**
+     * Open-addressing hash table from a nonzero int key to a Partial, with linear probing.
+     * Removed entries go to a free list and are handed out again by start(), so
+     * reassembly does not allocate once the table has warmed up. Not thread-safe; it is
+     * owned by the input thread, like the rest of the reassembly state.
+     */
+    static final class PartialTable {
+        private int[] keys = new int[16];
+        private Partial[] values = new Partial[16];
+        private int size;
+        private Partial free;
+
+        int size() {
+            return size;
+        }
+
+        private int slot(int key) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (keys.length - 1);
+        }
+
+        /**
+         * @param key nonzero key
+         * @return the entry stored under key, or null
+         */
+        Partial get(int key) {
+            for (int i = slot(key); keys[i] != 0; i = (i + 1) & (keys.length - 1)) {
+                if (keys[i] == key) return values[i];
+            }
+            return null;
+        }
+
+        /**
+         * @param key nonzero key
+         * @return the entry stored under key; a new, empty entry if there was none
+         */
+        Partial start(int key) {
+            Partial p = get(key);
+            if (p != null) return p;
+            if ((size + 1) * 2 > keys.length) grow();
+            p = free;
+            if (p != null) {
+                free = p.nextFree;
+                p.nextFree = null;
+            } else {
+                p = new Partial();
+            }
+            p.length = 0;
+            insert(key, p);
+            size++;
+            return p;
+        }
+
+        /**
+         * @param key nonzero key
+         * @return an empty entry stored under key, discarding any earlier content
+         */
+        Partial restart(int key) {
+            Partial p = start(key);
+            p.length = 0;
+            return p;
+        }
+
+        void remove(int key) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            while (keys[i] != key) {
+                if (keys[i] == 0) return;
+                i = (i + 1) & mask;
+            }
+            Partial p = values[i];
+            p.nextFree = free;
+            free = p;
+            size--;
+            // Backward-shift deletion keeps probe chains intact without tombstones.
+            int hole = i;
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = slot(keys[j]);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = 0;
+            values[hole] = null;
+        }
+
+        private void insert(int key, Partial p) {
+            int i = slot(key);
+            while (keys[i] != 0) {
+                i = (i + 1) & (keys.length - 1);
+            }
+            keys[i] = key;
+            values[i] = p;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            Partial[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new Partial[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
     HashMap<NodeID, List<Integer>> datagramData = new HashMap<NodeID, List<Integer>>();
-    // dph
-    HashMap<NodeID, List<Integer>> streamData = new HashMap<NodeID, List<Integer>>();
     
     int getSourceID(CanFrame f) { return f.getHeader()&0x00000FFF; }
     int getMTI(CanFrame f) { return ( f.getHeader() & 0x00FFF000 ) >> 12; }
     EventID getEventID(CanFrame f) { return new EventID(f.getData()); }
+
+    static EventID eventID(byte[] data, int len) {
+        if (len != 8) {
+            // EventID validates the length.
+            return new EventID(Arrays.copyOf(data, len));
+        }
+        // Event reports repeat the same few IDs; this reuses their objects.
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[i] & 0xff);
+        }
+        return EventID.valueOf(value);
+    }
     
     List<Message> processFormat0(CanFrame f) {
         // reserved
@@ -166,136 +462,132 @@ public class MessageBuilder {
         MessageTypeIdentifier value = MessageTypeIdentifier.get(mti);
         if (value == null) {
             // something bad happened
-            String mtiString = "000"+Integer.toHexString(mti).toUpperCase();
-            mtiString = mtiString.substring(mtiString.length()-3);
-            logger.log(Level.SEVERE, " failed to parse MTI 0x{0}", mtiString);
+            logUnknownMti(mti);
             return retlist;  // nothing in it from this
         }
-        
+
+        Message m = decodeFormat1(f, value, mti, source, dest, data, data.length, content);
+        if (m == null) return null;
+        retlist.add(m);
+        return retlist;
+    }
+
+    private static void logUnknownMti(int mti) {
+        String mtiString = "000"+Integer.toHexString(mti).toUpperCase();
+        mtiString = mtiString.substring(mtiString.length()-3);
+        logger.log(Level.SEVERE, " failed to parse MTI 0x{0}", mtiString);
+    }
+
+    /**
+     * Creates the message for a completed format 1 (MTI) frame sequence.
+     *
+     * @param f       the last frame of the sequence
+     * @param value   the decoded MTI
+     * @param mti     the raw MTI
+     * @param source  source node
+     * @param dest    destination node for addressed messages, null otherwise
+     * @param data    the (accumulated) frame payload, including the address bytes if any
+     * @param len     number of valid bytes in data
+     * @param content the payload with the address bytes stripped; null for global messages
+     * @return the new message, or null if this MTI is not handled
+     */
+    private Message decodeFormat1(CanFrame f, MessageTypeIdentifier value, int mti,
+                                  NodeID source, NodeID dest, byte[] data, int len,
+                                  byte[] content) {
         switch (value) {
             case InitializationComplete: 
-                retlist.add(new InitializationCompleteMessage(source));
-                return retlist;
+                return new InitializationCompleteMessage(source);
             case VerifyNodeIdGlobal:
                 // check for content
-                if (data.length >= 6) {
+                if (len >= 6) {
                     NodeID node = new NodeID(data);
-                    retlist.add(new VerifyNodeIDNumberMessage(source, node));
+                    return new VerifyNodeIDNumberMessage(source, node);
                 } else {
-                    retlist.add(new VerifyNodeIDNumberMessage(source));
+                    return new VerifyNodeIDNumberMessage(source);
                 }
-                return retlist;
             case VerifiedNodeId: 
-                retlist.add(new VerifiedNodeIDNumberMessage(source));
-                return retlist;
+                return new VerifiedNodeIDNumberMessage(source);
 
             case OptionalInteractionRejected: {
-                    int d2 = data.length >= 3 ? f.getElement(2) : 0;
-                    int d3 = data.length >= 4 ? f.getElement(3) : 0;
-                    int d4 = data.length >= 5 ? f.getElement(4) : 0;
-                    int d5 = data.length >= 6 ? f.getElement(5) : 0;
+                    int d2 = len >= 3 ? f.getElement(2) : 0;
+                    int d3 = len >= 4 ? f.getElement(3) : 0;
+                    int d4 = len >= 5 ? f.getElement(4) : 0;
+                    int d5 = len >= 6 ? f.getElement(5) : 0;
                     int retmti = ((d2&0xff)<<8) | (d3&0xff);
                     int code = ((d4&0xff)<<8) | (d5&0xff);;
-                    retlist.add(new OptionalIntRejectedMessage(source, dest,retmti,code));
-                    return retlist;
+                    return new OptionalIntRejectedMessage(source, dest,retmti,code);
                 }
             case ProtocolSupportInquiry: 
-                retlist.add(new ProtocolIdentificationRequestMessage(source, dest));
-                return retlist;
+                return new ProtocolIdentificationRequestMessage(source, dest);
             case ProtocolSupportReply: 
-                retlist.add(new ProtocolIdentificationReplyMessage(source, dest, f.dataAsLong()));
-                return retlist;
+                return new ProtocolIdentificationReplyMessage(source, dest, f.dataAsLong());
             case TractionControlRequest:
-                retlist.add(new TractionControlRequestMessage(source, dest, content));
-                return retlist;
+                return new TractionControlRequestMessage(source, dest, content);
             case TractionControlReply:
-                retlist.add(new TractionControlReplyMessage(source, dest, content));
-                return retlist;
+                return new TractionControlReplyMessage(source, dest, content);
             case TractionProxyRequest:
-                retlist.add(new TractionProxyRequestMessage(source, dest, content));
-                return retlist;
+                return new TractionProxyRequestMessage(source, dest, content);
             case TractionProxyReply:
-                retlist.add(new TractionProxyReplyMessage(source, dest, content));
-                return retlist;
+                return new TractionProxyReplyMessage(source, dest, content);
             case IdentifyConsumer:
-                retlist.add(new IdentifyConsumersMessage(source, getEventID(f)));
-                return retlist;
+                return new IdentifyConsumersMessage(source, eventID(data, len));
             case ConsumerRangeIdentified:
-                retlist.add(new ConsumerRangeIdentifiedMessage(source, getEventID(f)));
-                return retlist;
+                return new ConsumerRangeIdentifiedMessage(source, eventID(data, len));
             case ConsumerIdentifiedUnknown:
-                retlist.add(new ConsumerIdentifiedMessage(source, getEventID(f), EventState.Unknown));
-                return retlist;
+                return new ConsumerIdentifiedMessage(source, eventID(data, len), EventState.Unknown);
             case ConsumerIdentifiedValid:
-                retlist.add(new ConsumerIdentifiedMessage(source, getEventID(f), EventState.Valid));
-                return retlist;
+                return new ConsumerIdentifiedMessage(source, eventID(data, len), EventState.Valid);
             case ConsumerIdentifiedInvalid:
-                retlist.add(new ConsumerIdentifiedMessage(source, getEventID(f), EventState.Invalid));
-                return retlist;
+                return new ConsumerIdentifiedMessage(source, eventID(data, len), EventState.Invalid);
             case IdentifyProducer: 
-                retlist.add(new IdentifyProducersMessage(source, getEventID(f)));
-                return retlist;
+                return new IdentifyProducersMessage(source, eventID(data, len));
             case ProducerRangeIdentified:
-                retlist.add(new ProducerRangeIdentifiedMessage(source, getEventID(f)));
-                return retlist;
+                return new ProducerRangeIdentifiedMessage(source, eventID(data, len));
             case ProducerIdentifiedUnknown:
-                retlist.add(new ProducerIdentifiedMessage(source, getEventID(f), EventState.Unknown));
-                return retlist;
+                return new ProducerIdentifiedMessage(source, eventID(data, len), EventState.Unknown);
             case ProducerIdentifiedValid:
-                retlist.add(new ProducerIdentifiedMessage(source, getEventID(f), EventState.Valid));
-                return retlist;
+                return new ProducerIdentifiedMessage(source, eventID(data, len), EventState.Valid);
             case ProducerIdentifiedInvalid:
-                retlist.add(new ProducerIdentifiedMessage(source, getEventID(f), EventState.Invalid));
-                return retlist;
+                return new ProducerIdentifiedMessage(source, eventID(data, len), EventState.Invalid);
             case ProducerConsumerEventReport: 
-                retlist.add(new ProducerConsumerEventReportMessage(source, getEventID(f)));
-                return retlist;
+                return new ProducerConsumerEventReportMessage(source, eventID(data, len));
             case IdentifyEventsAddressed:
-                retlist.add(new IdentifyEventsMessage(source, dest));
-                return retlist;
+                return new IdentifyEventsMessage(source, dest);
             case LearnEvent: 
-                retlist.add(new LearnEventMessage(source, getEventID(f)));
-                return retlist;
+                return new LearnEventMessage(source, eventID(data, len));
 
             case SimpleNodeIdentInfoRequest: 
-                retlist.add(new SimpleNodeIdentInfoRequestMessage(source, dest));
-                return retlist;
+                return new SimpleNodeIdentInfoRequestMessage(source, dest);
             case SimpleNodeIdentInfoReply:
-                retlist.add(new SimpleNodeIdentInfoReplyMessage(source, dest, content));
-                return retlist;
+                return new SimpleNodeIdentInfoReplyMessage(source, dest, content);
             case DatagramReceivedOK:
                 if (content != null && content.length > 0) {
-                    retlist.add(new DatagramAcknowledgedMessage(source, dest, DatagramUtils
-                            .byteToInt(content[0])));
+                    return new DatagramAcknowledgedMessage(source, dest, DatagramUtils
+                            .byteToInt(content[0]));
                 } else {
-                    retlist.add(new DatagramAcknowledgedMessage(source, dest));
+                    return new DatagramAcknowledgedMessage(source, dest);
                 }
-                return retlist;
             case DatagramRejected: 
-                retlist.add(new DatagramRejectedMessage(source,dest,(int)f.dataAsLong()));
-                return retlist;
+                return new DatagramRejectedMessage(source,dest,(int)f.dataAsLong());
          // dph: add all stream messages reply and proceed.
             case StreamInitiateRequest:
-                retlist.add(new StreamInitiateRequestMessage(source,dest,Utilities.NetworkToHostUint16(content, 2),content[4],
-                        (content.length > 5 ? content[5] : -1)));
-                return retlist;
+                return new StreamInitiateRequestMessage(source,dest,Utilities.NetworkToHostUint16(content, 0),content[4],
+                        (content.length > 5 ? content[5] : -1));
             case StreamInitiateReply:
-                retlist.add(new StreamInitiateReplyMessage(source,dest,Utilities.NetworkToHostUint16(content, 0),content[4], content[5]));
-                return retlist;
+                return new StreamInitiateReplyMessage(source,dest,Utilities.NetworkToHostUint16(content, 0),content[4], content[5]);
             // case StreamData is Format 7
             case StreamDataProceed:
-                retlist.add(new StreamDataProceedMessage(source,dest,content[2], content[3]));
-                return retlist;
+                return new StreamDataProceedMessage(source,dest,content[0], content[1]);
             case StreamDataComplete:
-                retlist.add(new StreamDataCompleteMessage(source,dest,content.length > 2 ?
-                        content[2] : -1, content.length > 3 ? content[3] : -1));
-                return retlist;
+                return new StreamDataCompleteMessage(source,dest,content.length > 0 ?
+                        content[0] : -1, content.length > 1 ? content[1] : -1);
                 
             default:
                 logger.warning(String.format(" received unhandled MTI 0x%03X: %s", mti, value.toString()));
                 return null;
         }
     }
+
     List<Message> processFormat2(CanFrame f) {
         // datagram only-segment
         NodeID source = map.getNodeID(getSourceID(f));
@@ -377,37 +669,19 @@ public class MessageBuilder {
         return null;
     }
     List<Message> processFormat7(CanFrame f) {
-        // stream data
+        // stream data. Every frame is forwarded as it arrives; the receiver does the flow
+        // control accounting, so there is no need to wait for a full buffer.
+        if (f.getNumDataElements() < 1) return null;
         NodeID source = map.getNodeID(getSourceID(f));
-        // @todo need to define this  !!!!!!!!!!!!!!!!!!!!!!!!!!
-        int bufSize = 64;
         int destID = f.getElement(0);
-        // @todo support more than one stream per destination, use destID as key.
-        List<Integer> list = streamData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
+        int[] data = new int[f.getNumDataElements() - 1];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = f.getElement(i + 1);
         }
-        int n = Math.min(bufSize, f.getNumDataElements());
-        if(n < bufSize) {
-            // won't fill buffer, so add all
-            for (int i = 1; i < f.getNumDataElements(); i++) list.add(f.getElement(i));
-            return null;
-        } else {
-            // got a full buffer, fill it and send it on
-            for (int i = 1; i < n; i++) list.add(f.getElement(i));
-            int[] data = new int[list.size()];
-            for(int i=0; i<bufSize; i++) data[i] = list.get(i);
-            List<Message> retlist = new java.util.ArrayList<Message>();
-            NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-            //retlist.add(new DatagramMessage(source, dest, data));
-            retlist.add(new StreamDataSendMessage(source, dest, (byte)destID, data));
-            // make a new List and fill it with the rest of received data
-            list = new ArrayList<Integer>();
-            for (int i=n; i<f.getNumDataElements(); i++) list.add(f.getElement(i));
-            return retlist;
-        }
-        // @todo the list variable needs to be saved into the streamData map, otherwise we lose
-        // the accumulated bytes.
+        List<Message> retlist = new java.util.ArrayList<Message>();
+        NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
+        retlist.add(new StreamDataSendMessage(source, dest, (byte)destID, data));
+        return retlist;
     }
         
 
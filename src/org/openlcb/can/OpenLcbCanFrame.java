@@ -189,13 +189,7 @@ public class OpenLcbCanFrame implements CanFrame {
     setFrameTypeCAN();
     setVariableField(AMR_VAR_FIELD);
     length=6;
-    byte[] val = nid.getContents();
-    data[0] = val[0];
-    data[1] = val[1];
-    data[2] = val[2];
-    data[3] = val[3];
-    data[4] = val[4];
-    data[5] = val[5];
+    nid.copyTo(data, 0);
   }
 
   void setAME(int alias, @Nullable NodeID nid) {
@@ -206,13 +200,7 @@ public class OpenLcbCanFrame implements CanFrame {
         length = 0;
     } else {
         length=6;
-        byte[] val = nid.getContents();
-        data[0] = val[0];
-        data[1] = val[1];
-        data[2] = val[2];
-        data[3] = val[3];
-        data[4] = val[4];
-        data[5] = val[5];
+        nid.copyTo(data, 0);
     }
   }
 
@@ -271,13 +259,7 @@ public class OpenLcbCanFrame implements CanFrame {
     init(nodeAlias);
     setOpenLcbMTI(MessageTypeIdentifier.InitializationComplete.mti());
     length=6;
-    byte[] val = nid.getContents();
-    data[0] = val[0];
-    data[1] = val[1];
-    data[2] = val[2];
-    data[3] = val[3];
-    data[4] = val[4];
-    data[5] = val[5];
+    nid.copyTo(data, 0);
   }
   
   boolean isInitializationComplete() {
@@ -310,13 +292,7 @@ public class OpenLcbCanFrame implements CanFrame {
     init(nodeAlias);
     setOpenLcbMTI(MessageTypeIdentifier.VerifiedNodeId.mti());
     length=6;
-    byte[] val = nid.getContents();
-    data[0] = val[0];
-    data[1] = val[1];
-    data[2] = val[2];
-    data[3] = val[3];
-    data[4] = val[4];
-    data[5] = val[5];
+    nid.copyTo(data, 0);
   }
 
   boolean isIdentifyConsumers() {
@@ -347,15 +323,7 @@ public class OpenLcbCanFrame implements CanFrame {
 
   void loadFromEid(EventID eid) {
     length = 8;
-    byte[] val = eid.getContents();
-    data[0] = val[0];
-    data[1] = val[1];
-    data[2] = val[2];
-    data[3] = val[3];
-    data[4] = val[4];
-    data[5] = val[5];
-    data[6] = val[6];
-    data[7] = val[7];
+    eid.copyTo(data, 0);
   }
   
   // general, but not efficient
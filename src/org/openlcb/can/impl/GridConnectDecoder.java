@@ -0,0 +1,369 @@
+package org.openlcb.can.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.logging.Logger;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+
+/**
+ * Incremental GridConnect parser working on bytes. Input can be pushed in arbitrary pieces
+ * (e.g. whatever a non-blocking socket read returned); a frame split across two pieces is
+ * completed when the second one arrives.
+ * <p>
+ * The decoder does not allocate anything per byte or per frame. By default, every frame is
+ * reported in the same frame object, which is only valid during the listener call; listeners
+ * that need to keep the frame have to copy it. A decoder created with reuseFrames = false
+ * hands out a new frame every time instead.
+ * <p>
+ * The decoder is not thread-safe, but it does not own a thread either. It can be driven from a
+ * dedicated reader thread, from a shared selector thread via {@link #readFrom}, or by passing
+ * a memory-mapped capture file to {@link #decode(ByteBuffer)}.
+ */
+public class GridConnectDecoder {
+    private final static Logger logger = Logger.getLogger(GridConnectDecoder.class.getName());
+
+    /// Value of each hex digit, -1 for other characters.
+    private static final byte[] HEX_VALUE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_VALUE[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUE['A' + i] = (byte) (10 + i);
+            HEX_VALUE['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    // Parser states.
+    private static final int NOPACKET = 0;
+    private static final int EXTENDED = 1;
+    private static final int HEADER = 2;
+    private static final int REMOTE = 3;
+    private static final int BODYHI_OR_END = 4;
+    private static final int BODYLO = 5;
+
+    private final CanFrameListener listener;
+    private final boolean reuseFrames;
+    private Frame frame = new Frame();
+    private int state = NOPACKET;
+    private ByteBuffer readBuffer = null;
+    private byte[] scratch = null;
+    private long frameCount = 0;
+    private long errorCount = 0;
+
+    /**
+     * @param listener will be called with every parsed frame.
+     */
+    public GridConnectDecoder(CanFrameListener listener) {
+        this(listener, true);
+    }
+
+    /**
+     * @param listener    will be called with every parsed frame.
+     * @param reuseFrames if true, the same frame object is passed to the listener every time.
+     */
+    public GridConnectDecoder(CanFrameListener listener, boolean reuseFrames) {
+        this.listener = listener;
+        this.reuseFrames = reuseFrames;
+    }
+
+    /**
+     * Parses all remaining bytes in a buffer. Advances the buffer position to the limit.
+     * @param buf data to parse.
+     */
+    public void decode(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            int pos = buf.position();
+            decode(buf.array(), buf.arrayOffset() + pos, buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        // Direct or mapped buffer: copy through a scratch array in chunks.
+        if (scratch == null) {
+            scratch = new byte[8192];
+        }
+        while (buf.hasRemaining()) {
+            int n = Math.min(buf.remaining(), scratch.length);
+            buf.get(scratch, 0, n);
+            decode(scratch, 0, n);
+        }
+    }
+
+    /**
+     * Parses bytes from an array.
+     * @param data   input data
+     * @param offset first byte to parse
+     * @param len    number of bytes to parse
+     */
+    public void decode(byte[] data, int offset, int len) {
+        int end = offset + len;
+        int i = offset;
+        while (i < end) {
+            if (state == NOPACKET) {
+                if (data[i] != ':') {
+                    i++;
+                    continue;
+                }
+                int next = decodeFrame(data, i, end);
+                if (next > 0) {
+                    i = next;
+                    continue;
+                }
+            }
+            // Partial or malformed frame: go through the state machine.
+            decode(data[i++]);
+        }
+    }
+
+    /**
+     * Fast path for a complete, well-formed frame in the input array.
+     * @param d     input data
+     * @param i     position of the ':' starting the frame
+     * @param end   end of the input data
+     * @return the position after the frame, or -1 if the frame is incomplete or malformed.
+     */
+    private int decodeFrame(byte[] d, int i, int end) {
+        int p = i + 1;
+        if (p >= end) return -1;
+        boolean ext;
+        byte t = d[p++];
+        if (t == 'X') {
+            ext = true;
+        } else if (t == 'S') {
+            ext = false;
+        } else {
+            return -1;
+        }
+        int header = 0;
+        int v;
+        while (p < end && (v = HEX_VALUE[d[p] & 0xff]) >= 0) {
+            header = (header << 4) | v;
+            p++;
+        }
+        if (p >= end) return -1;
+        boolean rtr;
+        byte r = d[p++];
+        if (r == 'N') {
+            rtr = false;
+        } else if (r == 'R') {
+            rtr = true;
+        } else {
+            return -1;
+        }
+        byte[] fdata = frame.data;
+        int len = 0;
+        while (true) {
+            if (p >= end) return -1;
+            if (d[p] == ';') break;
+            if (len >= 8 || p + 1 >= end) return -1;
+            int hi = HEX_VALUE[d[p] & 0xff];
+            int lo = HEX_VALUE[d[p + 1] & 0xff];
+            if (hi < 0 || lo < 0) return -1;
+            fdata[len++] = (byte) ((hi << 4) | lo);
+            p += 2;
+        }
+        frame.isExtended = ext;
+        frame.isRtr = rtr;
+        frame.header = header;
+        frame.len = len;
+        deliver();
+        return p + 1;
+    }
+
+    /**
+     * Reads whatever is available from a channel and parses it. For a non-blocking channel
+     * this is what a selector thread calls when the channel becomes readable.
+     * @param channel channel to read from
+     * @return false if the channel reached end of stream.
+     * @throws IOException on read errors.
+     */
+    public boolean readFrom(ReadableByteChannel channel) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(8192);
+        }
+        while (true) {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) return false;
+            if (n == 0) return true;
+            readBuffer.flip();
+            decode(readBuffer);
+            if (n < readBuffer.capacity()) return true;
+        }
+    }
+
+    /**
+     * Parses a single input byte.
+     * @param b input byte (a character of the GridConnect text)
+     */
+    public void decode(byte b) {
+        int c = b & 0xff;
+        while (true) {
+            switch (state) {
+                case NOPACKET: {
+                    if (c == ':') {
+                        state = EXTENDED;
+                    }
+                    return;
+                }
+                case EXTENDED: {
+                    if (c == 'X') {
+                        frame.isExtended = true;
+                    } else if (c == 'S') {
+                        frame.isExtended = false;
+                    } else {
+                        logger.fine("Unknown gridconnect type character: " + c);
+                        errorCount++;
+                        state = NOPACKET;
+                        return;
+                    }
+                    frame.header = 0;
+                    frame.len = 0;
+                    state = HEADER;
+                    return;
+                }
+                case HEADER: {
+                    int dvalue = HEX_VALUE[c];
+                    if (dvalue >= 0) {
+                        frame.header = (frame.header << 4) | dvalue;
+                        return;
+                    }
+                    state = REMOTE;
+                    continue;
+                }
+                case REMOTE: {
+                    if (c == 'N') {
+                        frame.isRtr = false;
+                    } else if (c == 'R') {
+                        frame.isRtr = true;
+                    } else {
+                        logger.fine("Unknown gridconnect remote character: " + c);
+                        errorCount++;
+                        state = NOPACKET;
+                        continue;
+                    }
+                    state = BODYHI_OR_END;
+                    return;
+                }
+                case BODYHI_OR_END: {
+                    if (c == ';') {
+                        state = NOPACKET;
+                        deliver();
+                        return;
+                    }
+                    int dvalue = HEX_VALUE[c];
+                    if (dvalue < 0 || frame.len >= 8) {
+                        logger.fine("Unexpected gridconnect data character: " + c);
+                        errorCount++;
+                        state = NOPACKET;
+                        continue;
+                    }
+                    frame.data[frame.len] = (byte) (dvalue << 4);
+                    state = BODYLO;
+                    return;
+                }
+                case BODYLO: {
+                    int dvalue = HEX_VALUE[c];
+                    if (dvalue < 0) {
+                        logger.fine("Unexpected gridconnect data character: " + c);
+                        errorCount++;
+                        state = NOPACKET;
+                        continue;
+                    }
+                    frame.data[frame.len++] |= dvalue;
+                    state = BODYHI_OR_END;
+                    return;
+                }
+                default:
+                    state = NOPACKET;
+                    return;
+            }
+        }
+    }
+
+    private void deliver() {
+        frameCount++;
+        Frame f = frame;
+        if (!reuseFrames) {
+            frame = new Frame();
+        }
+        listener.send(f);
+    }
+
+    /// @return the number of frames parsed so far.
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /// @return the number of malformed frames skipped so far.
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * The frame object filled in by the decoder.
+     */
+    static final class Frame implements CanFrame {
+        boolean isExtended;
+        boolean isRtr;
+        int header;
+        int len;
+        final byte[] data = new byte[8];
+
+        @Override
+        public int getHeader() {
+            return header;
+        }
+
+        @Override
+        public boolean isExtended() {
+            return isExtended;
+        }
+
+        @Override
+        public boolean isRtr() {
+            return isRtr;
+        }
+
+        @Override
+        public int getNumDataElements() {
+            return len;
+        }
+
+        @Override
+        public int getElement(int n) {
+            return data[n] & 0xff;
+        }
+
+        @Override
+        public long bodyAsLong() {
+            long retval = 0;
+            for (int i = 0; i < len; i++) {
+                retval = retval << 8 | (data[i] & 0xFF);
+            }
+            return retval;
+        }
+
+        @Override
+        public long dataAsLong() {
+            long retval = 0;
+            for (int i = 2; i < len; i++) {
+                retval = retval << 8 | (data[i] & 0xFF);
+            }
+            return retval;
+        }
+
+        @Override
+        public byte[] getData() {
+            byte[] b = new byte[len];
+            System.arraycopy(data, 0, b, 0, len);
+            return b;
+        }
+    }
+}
@@ -2,25 +2,22 @@ package org.openlcb.can.impl;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.Reader;
+import java.nio.channels.ReadableByteChannel;
 import java.util.logging.Logger;
-import org.openlcb.can.CanFrame;
 import org.openlcb.can.CanFrameListener;
-import org.openlcb.implementations.DatagramUtils;
 
 /**
  * Parses an input stream according to the GridConnect protocol and forwards a set of CAN frames.
  * <p>
+ * The parsing itself is done by a {@link GridConnectDecoder}; this class only donates a thread
+ * that reads the input. Each forwarded frame is a new object, so listeners may keep them.
+ * <p>
  * Created by bracz on 12/23/15.
  */
 public class GridConnectInput {
     private final static Logger logger = Logger.getLogger(GridConnectInput.class.getName());
-    private boolean isExtended;
-    private int header;
-    private boolean isRtr;
-    private ArrayList<Byte> data = new ArrayList<>();
-    private BufferedReader input;
-    private CanFrameListener listener;
+    private final GridConnectDecoder decoder;
     private final Runnable onError;
 
     /**
@@ -30,81 +27,46 @@ public class GridConnectInput {
      * @param listener the parsed CAN frames will be forwarded to this listener
      * @param onError will be called when an IO error happens on the input thread. May be null.
      */
-    public GridConnectInput(BufferedReader input, CanFrameListener listener, Runnable onError) {
-        this.input = input;
-        this.listener = listener;
+    public GridConnectInput(final BufferedReader input, CanFrameListener listener, Runnable
+            onError) {
+        this.decoder = new GridConnectDecoder(listener, false);
         this.onError = onError;
         new Thread("openlcb-gc-input") {
             public void run() {
-                threadBody();
+                readerThreadBody(input);
             }
         }.start();
     }
 
-    private void threadBody() {
+    /**
+     * Creates the gridconnect input parser reading from a (blocking) channel. Starts the
+     * parsing thread.
+     *
+     * @param input the channel to read from
+     * @param listener the parsed CAN frames will be forwarded to this listener
+     * @param onError will be called when an IO error happens on the input thread. May be null.
+     */
+    public GridConnectInput(final ReadableByteChannel input, CanFrameListener listener,
+                            Runnable onError) {
+        this.decoder = new GridConnectDecoder(listener, false);
+        this.onError = onError;
+        new Thread("openlcb-gc-input") {
+            public void run() {
+                channelThreadBody(input);
+            }
+        }.start();
+    }
+
+    private void readerThreadBody(Reader input) {
+        char[] cbuf = new char[4096];
         try {
             while (true) {
-                // assumption: we are at the end of a frame now.
-                while (input.read() != ':') {
-                }
-                int typeChar = input.read();
-                if (typeChar == 'X') {
-                    isExtended = true;
-                } else if (typeChar == 'S') {
-                    isExtended = false;
-                } else {
-                    // Unknown message type character.
-                    logger.fine("Unknown gridconnect type character: " + typeChar);
-                }
-                header = 0;
-                int c;
-                while (true) {
-                    input.mark(2);
-                    c = input.read();
-                    int dvalue = Character.digit(c, 16);
-                    if (dvalue >= 0) {
-                        header <<= 4;
-                        header |= dvalue;
-                    } else {
-                        break;
-                    }
-                }
-                if (c == 'N') {
-                    isRtr = false;
-                } else if (c == 'R') {
-                    isRtr = true;
-                } else {
-                    // Unknown message format.
-                    logger.fine("Unknown gridconnect remote character: " + c);
-                    input.reset();
-                    continue;
-                }
-                data.clear();
-                while (true) {
-                    input.mark(2);
-                    byte value = 0;
-                    c = input.read();
-                    int dvalue = Character.digit(c, 16);
-                    if (dvalue < 0) {
-                        break;
-                    }
-                    value = (byte) (dvalue << 4);
-                    input.mark(2);
-                    c = input.read();
-                    dvalue = Character.digit(c, 16);
-                    if (dvalue < 0) {
-                        break;
-                    }
-                    value |= (dvalue & 0xf);
-                    data.add(value);
-                }
-                if (c == ';') {
-                    CanFrame f = new RawCanFrame(isExtended, header, isRtr, data);
-                    listener.send(f);
-                } else {
-                    logger.fine("unexpected gridconnect payload character: " + c);
-                    input.reset();
-                    continue;
+                int n = input.read(cbuf);
+                if (n < 0) throw new IOException("end of stream");
+                for (int i = 0; i < n; i++) {
+                    char c = cbuf[i];
+                    // Anything outside ISO-8859-1 is garbage for the parser anyway.
+                    decoder.decode(c < 256 ? (byte) c : 0);
                 }
             }
         } catch (IOException e) {
@@ -120,73 +82,21 @@ public class GridConnectInput {
         }
     }
 
-    class RawCanFrame implements CanFrame {
-
-        private boolean isExtended;
-        private boolean isRtr;
-        private int header;
-        private int len;
-        private byte[] data;
-
-        public RawCanFrame(boolean isExtended, int header, boolean isRtr, ArrayList<Byte> data) {
-            this.isExtended = isExtended;
-            this.header = header;
-            this.isRtr = isRtr;
-            this.len = data.size();
-            this.data = new byte[this.len];
-            for (int i = 0; i < len; ++i) {
-                this.data[i] = data.get(i);
+    private void channelThreadBody(ReadableByteChannel input) {
+        try {
+            while (decoder.readFrom(input)) {
             }
-        }
-
-        @Override
-        public int getHeader() {
-            return header;
-        }
-
-        @Override
-        public boolean isExtended() {
-            return this.isExtended;
-        }
-
-        @Override
-        public boolean isRtr() {
-            return this.isRtr;
-        }
-
-        @Override
-        public int getNumDataElements() {
-            return len;
-        }
-
-        @Override
-        public int getElement(int n) {
-            return DatagramUtils.byteToInt(data[n]);
-        }
-
-        @Override
-        public long bodyAsLong() {
-            long retval = 0;
-            for (int i = 0; i < data.length; i++) {
-                retval = retval << 8 | (data[i] & 0xFF);
+            throw new IOException("end of stream");
+        } catch (IOException e) {
+            logger.info("Error reading from gridconnect port " + e.toString());
+            try {
+                input.close();
+            } catch (IOException e1) {
+                logger.fine("Error closing from gridconnect port " + e1.toString());
             }
-            return retval;
-        }
-
-        @Override
-        public long dataAsLong() {
-            long retval = 0;
-            for (int i = 2; i < data.length; i++) {
-                retval = retval << 8 | (data[i] & 0xFF);
+            if (onError != null) {
+                onError.run();
             }
-            return retval;
-        }
-
-        @Override
-        public byte[] getData() {
-            byte[] b = new byte[len];
-            System.arraycopy(data, 0, b, 0, len);
-            return b;
         }
     }
 }
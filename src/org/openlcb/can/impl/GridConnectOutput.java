@@ -1,23 +1,43 @@
 package org.openlcb.can.impl;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.Logger;
 import org.openlcb.can.CanFrame;
-import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.CanFrameBatchListener;
+import org.openlcb.can.GridConnect;
 
 /**
  * Converts the sent CAN framesto gridconnect protocol and writes them ot an output stream.
  * Performs internal buffering.
  * <p>
+ * Frames are rendered straight into a reusable byte buffer. By default the buffer is written out
+ * after every frame, or after every batch for the frames arriving through
+ * {@link #send(List)}. In write-coalescing mode (see {@link #setWriteCoalescing}) single frames
+ * are held back for a short time so that a burst of frames goes out in one write.
+ * <p>
  * Created by bracz on 12/23/15.
  */
-public class GridConnectOutput implements CanFrameListener {
+public class GridConnectOutput implements CanFrameBatchListener {
     private final static Logger logger = Logger.getLogger(GridConnectOutput.class.getName());
+    private static final int BUFFER_SIZE = 4096;
 
-    private BufferedOutputStream output;
+    private final OutputStream output;
     private final Runnable onError;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferLength = 0;
+    private boolean failed = false;
+
+    /// Write coalescing delay in milliseconds; 0 if every frame is flushed right away.
+    private long coalescingDelay = 0;
+    private Timer flushTimer = null;
+    private TimerTask pendingFlush = null;
+
+    private long frameCount = 0;
+    private long flushCount = 0;
 
     /**
      * Creates the object ussed for rendering CAN frames to GridConnect format.
@@ -25,49 +45,127 @@ public class GridConnectOutput implements CanFrameListener {
      * @param onError will be called when the output experiences an IO error. May be null.
      */
     public GridConnectOutput(OutputStream output, Runnable onError) {
-        this.output = new BufferedOutputStream(output);
+        this.output = output;
         this.onError = onError;
     }
 
     public static String format(CanFrame frame) {
-        StringBuilder b = new StringBuilder();
-        if (frame.isExtended()) {
-            b.append(String.format(":X%08X", frame.getHeader()));
-        } else {
-            b.append(String.format(":S%03X", frame.getHeader()));
+        return GridConnect.format(frame);
+    }
+
+    /**
+     * Turns write coalescing on or off. When on, a frame sent with {@link #send(CanFrame)} is
+     * kept in the buffer for at most delayMillis, or until a batch is sent, or until the buffer
+     * is full, whichever comes first.
+     * @param delayMillis latency budget in milliseconds; 0 turns coalescing off.
+     */
+    public synchronized void setWriteCoalescing(long delayMillis) {
+        coalescingDelay = delayMillis;
+        if (delayMillis <= 0) {
+            flush();
+            if (flushTimer != null) {
+                flushTimer.cancel();
+                flushTimer = null;
+            }
         }
-        if (frame.isRtr()) {
-            b.append('R');
-        } else {
-            b.append('N');
+    }
+
+    @Override
+    public synchronized void send(CanFrame frame) {
+        append(frame);
+        if (coalescingDelay <= 0) {
+            flush();
+        } else if (pendingFlush == null && bufferLength > 0) {
+            if (flushTimer == null) {
+                flushTimer = new Timer("openlcb-gc-output-flush", true);
+            }
+            pendingFlush = new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (GridConnectOutput.this) {
+                        if (pendingFlush == this) {
+                            flush();
+                        }
+                    }
+                }
+            };
+            flushTimer.schedule(pendingFlush, coalescingDelay);
         }
-        if (frame.getNumDataElements() > 8) {
-            logger.warning("Output frame with too many data elements: " + Integer.toString(frame
-                    .getNumDataElements()));
+    }
+
+    /**
+     * Writes a sequence of frames with a single flush at the end. The end of a batch means the
+     * output queue went idle, so this also flushes frames held back by write coalescing.
+     * @param frames frames to send.
+     */
+    @Override
+    public synchronized void send(List<? extends CanFrame> frames) {
+        for (CanFrame frame : frames) {
+            append(frame);
         }
-        for (int i = 0; i < frame.getNumDataElements(); ++i) {
-            b.append(String.format("%02X", frame.getElement(i) & 0xff));
+        flush();
+    }
+
+    /// @return the number of frames sent.
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /// @return the number of times the buffered data was written to the output stream.
+    public synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+    /// @return average number of frames written together.
+    public synchronized double getFramesPerFlush() {
+        if (flushCount == 0) return 0;
+        return (double) frameCount / flushCount;
+    }
+
+    // Called with the lock held.
+    private void append(CanFrame frame) {
+        if (bufferLength + GridConnect.MAX_ENCODED_LENGTH + 1 > buffer.length) {
+            flush();
         }
-        b.append(';');
-        return b.toString();
+        bufferLength += GridConnect.encode(frame, buffer, bufferLength);
+        buffer[bufferLength++] = '\n';
+        frameCount++;
     }
 
-    @Override
-    public synchronized void send(CanFrame frame) {
+    // Called with the lock held.
+    private void flush() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel();
+            pendingFlush = null;
+        }
+        if (bufferLength == 0 || failed) {
+            bufferLength = 0;
+            return;
+        }
         try {
-            output.write(format(frame).getBytes("ISO-8859-1"));
-            output.write('\n');
+            output.write(buffer, 0, bufferLength);
             output.flush();
+            flushCount++;
         } catch (IOException e) {
-            logger.warning("Error writing to gridconnect output: " + e.toString());
-            try {
-                output.close();
-            } catch (IOException e1) {
-                logger.fine("Error closing gridconnect output: " + e1.toString());
-            }
-            if (onError != null) {
-                onError.run();
-            }
+            onWriteError(e);
+        }
+        bufferLength = 0;
+    }
+
+    private void onWriteError(IOException e) {
+        logger.warning("Error writing to gridconnect output: " + e.toString());
+        failed = true;
+        if (flushTimer != null) {
+            flushTimer.cancel();
+            flushTimer = null;
+        }
+        try {
+            output.close();
+        } catch (IOException e1) {
+            logger.fine("Error closing gridconnect output: " + e1.toString());
+        }
+        if (onError != null) {
+            onError.run();
         }
     }
 
@@ -1,11 +1,11 @@
 package org.openlcb.can.impl;
 
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -14,6 +14,7 @@ import org.openlcb.Connection;
 import org.openlcb.NodeID;
 import org.openlcb.OlcbInterface;
 import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameBatchListener;
 import org.openlcb.can.CanFrameListener;
 import org.openlcb.can.CanInterface;
 import org.openlcb.cdi.impl.ConfigRepresentation;
@@ -74,20 +75,19 @@ public class OlcbConnection {
         this.outputHub = new CanFrameHub();
         listenerProxy.onConnectionPending();
         listenerProxy.onStatusChange("Connecting...");
-        BufferedReader reader;
+        ReadableByteChannel inputChannel;
         OutputStream outputStream;
         try {
             socket = new Socket(hostName, portNumber);
             socket.setTcpNoDelay(true);
-            reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream(),"ISO-8859-1"));
+            inputChannel = Channels.newChannel(socket.getInputStream());
             outputStream = socket.getOutputStream();
         } catch (IOException e) {
             listenerProxy.onStatusChange("Connection failed: " + e.toString());
             listenerProxy.onDisconnect();
             return;
         }
-        input = new GridConnectInput(reader, inputHub, mOnError);
+        input = new GridConnectInput(inputChannel, inputHub, mOnError);
         output = new GridConnectOutput(outputStream, mOnError);
         outputHub.addEntry(output);
 
@@ -240,7 +240,7 @@ public class OlcbConnection {
         }
     }
 
-    public class CanFrameHub implements CanFrameListener {
+    public class CanFrameHub implements CanFrameBatchListener {
         private List<CanFrameListener> entries = new ArrayList<>();
 
         public void addEntry(CanFrameListener l) {
@@ -269,6 +269,19 @@ public class OlcbConnection {
                 l.send(frame);
             }
         }
+
+        @Override
+        public void send(List<? extends CanFrame> frames) {
+            for (CanFrameListener l : entries) {
+                if (l instanceof CanFrameBatchListener) {
+                    ((CanFrameBatchListener) l).send(frames);
+                } else {
+                    for (CanFrame f : frames) {
+                        l.send(f);
+                    }
+                }
+            }
+        }
     }
 
     public void dispose(){
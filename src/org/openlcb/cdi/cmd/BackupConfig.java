@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
 
 /**
  * Created by bracz on 4/9/16.
@@ -59,7 +60,7 @@ public class BackupConfig {
 
     // Main entry point
     static public void main(String[] args) {
-        if (args.length != 5) {
+        if (args.length != 5 && args.length != 8) {
             usage();
             return;
         }
@@ -71,6 +72,25 @@ public class BackupConfig {
         final String dstFile = args[4];
 
         final OlcbConnection connection = Util.connect(localNode, host, port);
+        IncrementalBackup backup = null;
+        byte[] probe = null;
+        if (Files.isDirectory(Paths.get(dstFile))) {
+            try {
+                backup = new IncrementalBackup(Paths.get(dstFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            if (args.length == 8) {
+                backup.setChangeProbe(new ChangeProbe.MemoryRange(Integer.decode(args[5]),
+                        Long.decode(args[6]), Integer.decode(args[7])));
+            }
+            probe = backup.probe(connection.getInterface(), remoteNode);
+            if (backup.isUpToDate(remoteNode, probe)) {
+                System.out.println("Configuration unchanged.");
+                System.exit(0);
+            }
+        }
         System.out.println("Fetching CDI.");
         ConfigRepresentation repr = connection.getConfigForNode(remoteNode);
         Util.waitForPropertyChange(repr, ConfigRepresentation.UPDATE_REP);
@@ -79,7 +99,12 @@ public class BackupConfig {
         System.out.println("Caches complete. Writing variables.");
 
         try {
-            writeConfigToFile(dstFile, repr);
+            if (backup != null) {
+                List<String> changed = backup.store(repr, probe);
+                System.out.println(changed.size() + " variables changed.");
+            } else {
+                writeConfigToFile(dstFile, repr);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -90,7 +115,9 @@ public class BackupConfig {
 
     private static void usage() {
         String usageString = "usage: saveconfig local_node_id hub_host hub_port dst_node_id " +
-                "dst_filename\n";
+                "dst_filename\n" +
+                "   or: saveconfig local_node_id hub_host hub_port dst_node_id dst_directory " +
+                "[probe_space probe_address probe_length]\n";
         System.err.print(usageString);
     }
 
@@ -0,0 +1,81 @@
+package org.openlcb.cdi.cmd;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.implementations.MemoryConfigurationService;
+
+/**
+ * Cheap check whether the configuration of a node may have changed since the last backup.
+ * <p>
+ * A probe reads a small value from the node that changes whenever the configuration changes,
+ * such as a checksum or a change counter kept by the node's firmware. When the value is the
+ * same as at the last backup, {@link IncrementalBackup} keeps the previous backup instead of
+ * reading the whole configuration again.
+ */
+public interface ChangeProbe {
+    /**
+     * Reads the probe value from a node. Blocks until the value arrives.
+     * @param iface the interface to the network
+     * @param node  the node to probe
+     * @return the value, or null if the node does not support the probe or did not respond.
+     */
+    @Nullable byte[] probe(OlcbInterface iface, NodeID node);
+
+    /**
+     * Probe that reads a fixed range of a memory space, for nodes that keep a checksum or
+     * change counter of their configuration at a known address.
+     */
+    class MemoryRange implements ChangeProbe {
+        private static final Logger logger = Logger.getLogger(MemoryRange.class.getName());
+        /// How long to wait for the node to respond.
+        public static final long TIMEOUT_MSEC = 5000;
+
+        private final int space;
+        private final long address;
+        private final int length;
+
+        /**
+         * @param space   memory space of the value
+         * @param address address of the value
+         * @param length  length of the value in bytes (at most 64)
+         */
+        public MemoryRange(int space, long address, int length) {
+            this.space = space;
+            this.address = address;
+            this.length = length;
+        }
+
+        @Override
+        public @Nullable byte[] probe(OlcbInterface iface, final NodeID node) {
+            final byte[][] result = new byte[1][];
+            final CountDownLatch latch = new CountDownLatch(1);
+            iface.getMemoryConfigurationService().requestRead(node, space, address, length, new
+                    MemoryConfigurationService.McsReadHandler() {
+                @Override
+                public void handleReadData(NodeID dest, int space, long address, byte[] data) {
+                    result[0] = data;
+                    latch.countDown();
+                }
+
+                @Override
+                public void handleFailure(int errorCode) {
+                    logger.fine("Change probe of " + node + " failed: 0x" + Integer
+                            .toHexString(errorCode));
+                    latch.countDown();
+                }
+            });
+            try {
+                if (!latch.await(TIMEOUT_MSEC, TimeUnit.MILLISECONDS)) {
+                    logger.fine("Change probe of " + node + " timed out");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return result[0];
+        }
+    }
+}
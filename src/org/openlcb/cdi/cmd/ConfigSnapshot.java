@@ -0,0 +1,232 @@
+package org.openlcb.cdi.cmd;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.openlcb.NodeID;
+import org.openlcb.cdi.impl.ConfigRepresentation;
+
+/**
+ * Binary snapshot of the configuration of a node: the raw bytes of every variable, keyed by
+ * the variable's key.
+ * <p>
+ * Snapshots are written next to the text backups by {@link IncrementalBackup}, and compared to
+ * each other to find out which variables changed between two backups.
+ */
+public class ConfigSnapshot {
+    private static final int MAGIC = 0x4F43534E; // "OCSN"
+    private static final int VERSION = 1;
+    /// Sanity limit for the length of a single value in a snapshot file.
+    private static final int MAX_DATA_SIZE = 1 << 20;
+
+    /// The bytes of one variable.
+    public static class Entry {
+        public final String key;
+        public final int space;
+        public final long address;
+        public final byte[] data;
+
+        public Entry(String key, int space, long address, byte[] data) {
+            this.key = key;
+            this.space = space;
+            this.address = address;
+            this.data = data;
+        }
+
+        private boolean sameAs(Entry o) {
+            return space == o.space && address == o.address && Arrays.equals(data, o.data);
+        }
+    }
+
+    private final NodeID node;
+    private final long timestamp;
+    private final @Nullable byte[] probe;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param node      the node the configuration belongs to
+     * @param timestamp when the configuration was read, in milliseconds since the epoch
+     * @param probe     the value returned by the change probe before the configuration was
+     *                  read, or null if there was no probe
+     */
+    public ConfigSnapshot(NodeID node, long timestamp, @Nullable byte[] probe) {
+        this.node = node;
+        this.timestamp = timestamp;
+        this.probe = probe;
+    }
+
+    /**
+     * Takes a snapshot of a fully loaded configuration.
+     * @param repr  the loaded configuration
+     * @param probe the value of the change probe, or null
+     * @return the snapshot
+     */
+    public static ConfigSnapshot capture(ConfigRepresentation repr, @Nullable byte[] probe) {
+        final ConfigSnapshot s = new ConfigSnapshot(repr.getRemoteNodeID(), System
+                .currentTimeMillis(), probe);
+        repr.visit(new ConfigRepresentation.Visitor() {
+            @Override
+            public void visitLeaf(ConfigRepresentation.CdiEntry e) {
+                byte[] data = e.getCachedBytes();
+                if (data == null) return;
+                if (e.isNullTerminated()) {
+                    // The bytes after the terminating null are not loaded.
+                    int len = 0;
+                    while (len < data.length && data[len] != 0) ++len;
+                    data = Arrays.copyOf(data, len);
+                }
+                s.add(new Entry(e.key, e.space, e.origin, data));
+            }
+        });
+        return s;
+    }
+
+    public void add(Entry e) {
+        entries.put(e.key, e);
+    }
+
+    public NodeID getNode() {
+        return node;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public @Nullable byte[] getProbe() {
+        return probe;
+    }
+
+    /// @return the entry for a key, or null.
+    public @Nullable Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /// @return all entries, in the order they were added.
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Compares this snapshot to an earlier one.
+     * @param previous the earlier snapshot, or null
+     * @return the keys of the variables that were changed or added, followed by the keys of
+     * the variables that were removed. Empty if the two snapshots are equal.
+     */
+    public List<String> diff(@Nullable ConfigSnapshot previous) {
+        List<String> changed = new ArrayList<>();
+        if (previous == null) {
+            changed.addAll(entries.keySet());
+            return changed;
+        }
+        for (Entry e : entries.values()) {
+            Entry o = previous.entries.get(e.key);
+            if (o == null || !e.sameAs(o)) {
+                changed.add(e.key);
+            }
+        }
+        for (String key : previous.entries.keySet()) {
+            if (!entries.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Reads a snapshot file.
+     * @param file the file written by {@link #write}
+     * @return the snapshot, or null if the file does not exist.
+     * @throws IOException if the file cannot be read or is damaged.
+     */
+    public static @Nullable ConfigSnapshot read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files
+                .newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a config snapshot: " + file);
+            }
+            byte[] id = new byte[6];
+            in.readFully(id);
+            long timestamp = in.readLong();
+            byte[] probe = readBytes(in);
+            ConfigSnapshot s = new ConfigSnapshot(new NodeID(id), timestamp, probe);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int space = in.readInt();
+                long address = in.readLong();
+                byte[] data = readBytes(in);
+                if (data == null) throw new IOException("Damaged config snapshot: " + file);
+                s.add(new Entry(key, space, address, data));
+            }
+            return s;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot to a file. The file is replaced atomically.
+     * @param file where to write
+     * @throws IOException on write errors.
+     */
+    public void write(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, "snapshot", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files
+                    .newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(node.getContents());
+                out.writeLong(timestamp);
+                writeBytes(out, probe);
+                out.writeInt(entries.size());
+                for (Entry e : entries.values()) {
+                    out.writeUTF(e.key);
+                    out.writeInt(e.space);
+                    out.writeLong(e.address);
+                    writeBytes(out, e.data);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption
+                    .ATOMIC_MOVE);
+            tmp = null;
+        } finally {
+            if (tmp != null) Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, @Nullable byte[] data) throws
+            IOException {
+        if (data == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static @Nullable byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        if (len > MAX_DATA_SIZE) throw new IOException("Damaged config snapshot");
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return data;
+    }
+}
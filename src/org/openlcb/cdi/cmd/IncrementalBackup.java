@@ -0,0 +1,126 @@
+package org.openlcb.cdi.cmd;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.cdi.impl.ConfigRepresentation;
+
+/**
+ * Keeps the configuration backups of many nodes in one directory, and avoids work for the nodes
+ * whose configuration did not change.
+ * <p>
+ * Every node has a text backup in the format of {@link BackupConfig} (NODEID.txt) and a binary
+ * {@link ConfigSnapshot} (NODEID.snap). A new backup is compared to the snapshot of the previous
+ * one; the files are only rewritten when something changed.
+ * <p>
+ * When a {@link ChangeProbe} is set and the node returns the same probe value as at the
+ * previous backup, {@link #isUpToDate} is true and the configuration does not need to be read
+ * from the node at all. Without a probe every backup reads the whole configuration.
+ * <p>
+ * Typical use:
+ * <pre>
+ * byte[] probe = backup.probe(iface, node);
+ * if (!backup.isUpToDate(node, probe)) {
+ *     // load the ConfigRepresentation of node, then
+ *     backup.store(repr, probe);
+ * }
+ * </pre>
+ */
+public class IncrementalBackup {
+    private static final Logger logger = Logger.getLogger(IncrementalBackup.class.getName());
+    public static final String TEXT_SUFFIX = ".txt";
+    public static final String SNAPSHOT_SUFFIX = ".snap";
+
+    private final Path directory;
+    private @Nullable ChangeProbe changeProbe = null;
+
+    /**
+     * @param directory where to keep the backups. Created if it does not exist.
+     * @throws IOException if the directory cannot be created.
+     */
+    public IncrementalBackup(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /// Sets the probe that tells whether a node needs to be read; null to always read.
+    public void setChangeProbe(@Nullable ChangeProbe probe) {
+        changeProbe = probe;
+    }
+
+    public Path getTextFile(NodeID node) {
+        return directory.resolve(fileName(node) + TEXT_SUFFIX);
+    }
+
+    public Path getSnapshotFile(NodeID node) {
+        return directory.resolve(fileName(node) + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Runs the change probe on a node. Call this before loading the node's configuration, so
+     * that changes made during the load are seen by the next backup.
+     * @return the probe value, or null if there is no probe or the node does not support it.
+     */
+    public @Nullable byte[] probe(OlcbInterface iface, NodeID node) {
+        if (changeProbe == null) return null;
+        return changeProbe.probe(iface, node);
+    }
+
+    /**
+     * @param node  the node to check
+     * @param probe the value returned by {@link #probe}
+     * @return true if the stored backup of the node is still valid.
+     */
+    public boolean isUpToDate(NodeID node, @Nullable byte[] probe) {
+        if (probe == null || !Files.exists(getTextFile(node))) return false;
+        ConfigSnapshot previous = readSnapshot(node);
+        return previous != null && Arrays.equals(probe, previous.getProbe());
+    }
+
+    /**
+     * Stores the backup of a fully loaded configuration.
+     * @param repr  the configuration
+     * @param probe the value returned by {@link #probe} before the configuration was loaded
+     * @return the keys of the variables that changed since the previous backup (all keys if
+     * there was none). Empty if nothing changed.
+     * @throws IOException on write errors.
+     */
+    public List<String> store(ConfigRepresentation repr, @Nullable byte[] probe) throws
+            IOException {
+        NodeID node = repr.getRemoteNodeID();
+        ConfigSnapshot previous = readSnapshot(node);
+        ConfigSnapshot current = ConfigSnapshot.capture(repr, probe);
+        List<String> changed = current.diff(previous);
+        Path text = getTextFile(node);
+        boolean writeText = !changed.isEmpty() || !Files.exists(text);
+        if (writeText) {
+            BackupConfig.writeConfigToFile(text.toString(), repr);
+        }
+        // The snapshot goes last; a crash in between leaves a stale snapshot, which only
+        // causes a rewrite the next time.
+        if (writeText || previous == null || !Arrays.equals(probe, previous.getProbe())) {
+            current.write(getSnapshotFile(node));
+        }
+        return changed;
+    }
+
+    private @Nullable ConfigSnapshot readSnapshot(NodeID node) {
+        Path p = getSnapshotFile(node);
+        try {
+            return ConfigSnapshot.read(p);
+        } catch (IOException e) {
+            logger.info("Ignoring damaged config snapshot " + p + ": " + e.toString());
+            return null;
+        }
+    }
+
+    private static String fileName(NodeID node) {
+        return node.toString().replace('.', '_');
+    }
+}
@@ -0,0 +1,672 @@
+package org.openlcb.cdi.impl;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.openlcb.cdi.CdiRep;
+
+/**
+ * Compact binary snapshot of a parsed CDI.
+ * <p>
+ * {@link #write} serializes any CdiRep (typically one coming from the XML parser); the
+ * resulting bytes can be turned back into a CdiRep without an XML parser. Strings are stored
+ * once in a string table, numbers as variable-length integers. The items of every group are
+ * stored as a length-prefixed block, so a group's children are only decoded when
+ * {@link CdiRep.Group#getItems()} is first called, and the decoded list is shared by all
+ * replicas of the group.
+ * <p>
+ * The loaded representation is immutable and thread-safe.
+ */
+public class BinaryCdiRep implements CdiRep {
+    private static final int MAGIC = 0x4F434452; // "OCDR"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Item types.
+    private static final int TYPE_GROUP = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_EVENTID = 3;
+    private static final int TYPE_STRING = 4;
+    private static final int TYPE_BIT = 5;
+
+    private final byte[] data;
+    private final String[] strings;
+    private final Identification identification;
+    private final List<CdiRep.Segment> segments;
+
+    /**
+     * Loads a snapshot.
+     * @param data bytes produced by {@link #write}. Not copied; must not be modified later.
+     * @throws IOException if the data is not a valid snapshot.
+     */
+    public BinaryCdiRep(byte[] data) throws IOException {
+        this.data = data;
+        try {
+            Decoder d = new Decoder(0);
+            if (d.readFixed() != MAGIC) throw new IOException("Not a CDI snapshot");
+            int version = d.readFixed();
+            if (version != VERSION) {
+                throw new IOException("Unsupported CDI snapshot version " + version);
+            }
+            strings = new String[d.readUnsigned()];
+            for (int i = 0; i < strings.length; i++) {
+                int len = d.readUnsigned();
+                strings[i] = new String(data, d.pos, len, UTF8);
+                d.skip(len);
+            }
+            if (d.readUnsigned() != 0) {
+                identification = new Identification(d.readString(), d.readString(), d
+                        .readString(), d.readString(), d.readMap());
+            } else {
+                identification = null;
+            }
+            int count = d.readUnsigned();
+            List<CdiRep.Segment> segs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                segs.add(new Segment(d));
+            }
+            segments = Collections.unmodifiableList(segs);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated CDI snapshot", e);
+        }
+    }
+
+    /**
+     * Serializes a CDI representation.
+     * @param rep the representation to serialize. All group contents are visited.
+     * @return the snapshot bytes; see {@link #BinaryCdiRep(byte[])}.
+     */
+    public static byte[] write(CdiRep rep) {
+        Encoder body = new Encoder();
+        CdiRep.Identification id = rep.getIdentification();
+        if (id != null) {
+            body.writeUnsigned(1);
+            body.writeString(id.getManufacturer());
+            body.writeString(id.getModel());
+            body.writeString(id.getHardwareVersion());
+            body.writeString(id.getSoftwareVersion());
+            body.writeMap(id.getMap());
+        } else {
+            body.writeUnsigned(0);
+        }
+        List<CdiRep.Segment> segs = rep.getSegments();
+        body.writeUnsigned(segs.size());
+        for (CdiRep.Segment s : segs) {
+            body.writeString(s.getName());
+            body.writeString(s.getDescription());
+            body.writeMap(s.getMap());
+            body.writeSigned(s.getSpace());
+            body.writeSigned(s.getOrigin());
+            body.writeSigned(s.getIndexInParent());
+            body.writeItems(s.getItems());
+        }
+
+        Encoder out = new Encoder();
+        out.writeFixed(MAGIC);
+        out.writeFixed(VERSION);
+        out.writeUnsigned(body.stringList.size());
+        for (String s : body.stringList) {
+            byte[] b = s.getBytes(UTF8);
+            out.writeUnsigned(b.length);
+            out.write(b, 0, b.length);
+        }
+        out.append(body);
+        return out.toByteArray();
+    }
+
+    @Override
+    public CdiRep.Identification getIdentification() {
+        return identification;
+    }
+
+    @Override
+    public List<CdiRep.Segment> getSegments() {
+        return segments;
+    }
+
+    /// Writes the snapshot format. Strings go to a table that is emitted before the body.
+    private static class Encoder extends ByteArrayOutputStream {
+        final List<String> stringList;
+        final java.util.Map<String, Integer> stringIndex;
+
+        Encoder() {
+            this(new ArrayList<String>(), new HashMap<String, Integer>());
+        }
+
+        /// Creates an encoder sharing the string table of another one.
+        Encoder(List<String> stringList, java.util.Map<String, Integer> stringIndex) {
+            this.stringList = stringList;
+            this.stringIndex = stringIndex;
+        }
+
+        void append(Encoder other) {
+            write(other.buf, 0, other.count);
+        }
+
+        void writeFixed(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        void writeUnsigned(int v) {
+            while ((v & ~0x7F) != 0) {
+                write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+        }
+
+        void writeSigned(int v) {
+            writeUnsigned((v << 1) ^ (v >> 31));
+        }
+
+        /// Writes a string table reference; 0 is null.
+        void writeString(@Nullable String s) {
+            if (s == null) {
+                writeUnsigned(0);
+                return;
+            }
+            Integer idx = stringIndex.get(s);
+            if (idx == null) {
+                idx = stringList.size();
+                stringList.add(s);
+                stringIndex.put(s, idx);
+            }
+            writeUnsigned(idx + 1);
+        }
+
+        void writeMap(@Nullable CdiRep.Map map) {
+            List<String> keys = map == null ? Collections.<String>emptyList() : map.getKeys();
+            List<String> values = map == null ? Collections.<String>emptyList() : map
+                    .getValues();
+            writeUnsigned(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                writeString(keys.get(i));
+                writeString(values.get(i));
+            }
+        }
+
+        /// Writes a list of items as a count and a length-prefixed block.
+        void writeItems(@Nullable List<CdiRep.Item> items) {
+            if (items == null) items = Collections.emptyList();
+            Encoder block = new Encoder(stringList, stringIndex);
+            int count = 0;
+            for (CdiRep.Item it : items) {
+                if (block.writeItem(it)) count++;
+            }
+            writeUnsigned(count);
+            writeUnsigned(block.size());
+            append(block);
+        }
+
+        /// @return false if the item is of an unknown type and was not written.
+        boolean writeItem(CdiRep.Item it) {
+            int type;
+            if (it instanceof CdiRep.Group) {
+                type = TYPE_GROUP;
+            } else if (it instanceof CdiRep.IntegerRep) {
+                type = TYPE_INT;
+            } else if (it instanceof CdiRep.EventID) {
+                type = TYPE_EVENTID;
+            } else if (it instanceof CdiRep.StringRep) {
+                type = TYPE_STRING;
+            } else if (it instanceof CdiRep.BitRep) {
+                type = TYPE_BIT;
+            } else {
+                return false;
+            }
+            writeUnsigned(type);
+            writeString(it.getName());
+            writeString(it.getDescription());
+            writeMap(it.getMap());
+            writeSigned(it.getOffset());
+            writeSigned(it.getIndexInParent());
+            switch (type) {
+                case TYPE_GROUP: {
+                    CdiRep.Group g = (CdiRep.Group) it;
+                    writeSigned(g.getReplication());
+                    writeString(g.getRepName());
+                    writeItems(g.getItems());
+                    break;
+                }
+                case TYPE_INT: {
+                    CdiRep.IntegerRep r = (CdiRep.IntegerRep) it;
+                    writeSigned(r.getSize());
+                    writeSigned(r.getDefault());
+                    writeSigned(r.getMin());
+                    writeSigned(r.getMax());
+                    break;
+                }
+                case TYPE_STRING:
+                    writeSigned(((CdiRep.StringRep) it).getSize());
+                    break;
+                case TYPE_BIT: {
+                    CdiRep.BitRep r = (CdiRep.BitRep) it;
+                    writeSigned(r.getSize());
+                    writeUnsigned(r.getDefault() ? 1 : 0);
+                    break;
+                }
+                default:
+                    break;
+            }
+            return true;
+        }
+    }
+
+    /// Reads the snapshot format from a given position in the data.
+    private class Decoder {
+        int pos;
+
+        Decoder(int pos) {
+            this.pos = pos;
+        }
+
+        int readFixed() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (data[pos++] & 0xff);
+            }
+            return v;
+        }
+
+        int readUnsigned() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = data[pos++];
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Bad number in CDI snapshot");
+        }
+
+        int readSigned() throws IOException {
+            int v = readUnsigned();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        void skip(int len) throws IOException {
+            if (len < 0 || pos + len > data.length) {
+                throw new IOException("Truncated CDI snapshot");
+            }
+            pos += len;
+        }
+
+        @Nullable
+        String readString() throws IOException {
+            int idx = readUnsigned();
+            if (idx == 0) return null;
+            if (idx > strings.length) throw new IOException("Bad string in CDI snapshot");
+            return strings[idx - 1];
+        }
+
+        Map readMap() throws IOException {
+            int count = readUnsigned();
+            String[] keys = new String[count];
+            String[] values = new String[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = readString();
+                values[i] = readString();
+            }
+            return new Map(keys, values);
+        }
+
+        /// Reads an item list header and skips the block. @return the lazy item list.
+        Items readItems() throws IOException {
+            int count = readUnsigned();
+            int len = readUnsigned();
+            Items items = new Items(pos, count);
+            skip(len);
+            return items;
+        }
+
+        CdiRep.Item readItem() throws IOException {
+            int type = readUnsigned();
+            String name = readString();
+            String description = readString();
+            Map map = readMap();
+            int offset = readSigned();
+            int index = readSigned();
+            switch (type) {
+                case TYPE_GROUP: {
+                    int replication = readSigned();
+                    String repName = readString();
+                    return new Group(name, description, map, offset, index, replication,
+                            repName, readItems());
+                }
+                case TYPE_INT:
+                    return new IntRep(name, description, map, offset, index, readSigned(),
+                            readSigned(), readSigned(), readSigned());
+                case TYPE_EVENTID:
+                    return new EventID(name, description, map, offset, index);
+                case TYPE_STRING:
+                    return new StringRep(name, description, map, offset, index, readSigned());
+                case TYPE_BIT:
+                    return new BitRep(name, description, map, offset, index, readSigned(),
+                            readUnsigned() != 0);
+                default:
+                    throw new IOException("Unknown item type in CDI snapshot: " + type);
+            }
+        }
+    }
+
+    /// A not yet decoded list of items.
+    private class Items {
+        private final int start;
+        private final int count;
+        private List<CdiRep.Item> items = null;
+
+        Items(int start, int count) {
+            this.start = start;
+            this.count = count;
+        }
+
+        synchronized List<CdiRep.Item> get() {
+            if (items == null) {
+                List<CdiRep.Item> list = new ArrayList<>(count);
+                Decoder d = new Decoder(start);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        list.add(d.readItem());
+                    }
+                } catch (IOException | IndexOutOfBoundsException e) {
+                    throw new IllegalStateException("Damaged CDI snapshot", e);
+                }
+                items = Collections.unmodifiableList(list);
+            }
+            return items;
+        }
+    }
+
+    public static class Map implements CdiRep.Map {
+        private final String[] keys;
+        private final String[] values;
+
+        Map(String[] keys, String[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public String getEntry(String key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (key.equals(keys[i])) return values[i];
+            }
+            return null;
+        }
+
+        @Override
+        public String getKey(String entry) {
+            for (int i = 0; i < values.length; i++) {
+                if (entry.equals(values[i])) return keys[i];
+            }
+            return null;
+        }
+
+        @Override
+        public List<String> getKeys() {
+            List<String> list = new ArrayList<>(keys.length);
+            Collections.addAll(list, keys);
+            return list;
+        }
+
+        @Override
+        public List<String> getValues() {
+            List<String> list = new ArrayList<>(values.length);
+            Collections.addAll(list, values);
+            return list;
+        }
+    }
+
+    public static class Identification implements CdiRep.Identification {
+        private final String manufacturer;
+        private final String model;
+        private final String hardwareVersion;
+        private final String softwareVersion;
+        private final Map map;
+
+        Identification(String manufacturer, String model, String hardwareVersion, String
+                softwareVersion, Map map) {
+            this.manufacturer = manufacturer;
+            this.model = model;
+            this.hardwareVersion = hardwareVersion;
+            this.softwareVersion = softwareVersion;
+            this.map = map;
+        }
+
+        @Override
+        public String getManufacturer() {
+            return manufacturer;
+        }
+
+        @Override
+        public String getModel() {
+            return model;
+        }
+
+        @Override
+        public String getHardwareVersion() {
+            return hardwareVersion;
+        }
+
+        @Override
+        public String getSoftwareVersion() {
+            return softwareVersion;
+        }
+
+        @Override
+        public Map getMap() {
+            return map;
+        }
+    }
+
+    public class Segment implements CdiRep.Segment {
+        private final String name;
+        private final String description;
+        private final Map map;
+        private final int space;
+        private final int origin;
+        private final int indexInParent;
+        private final Items items;
+
+        Segment(Decoder d) throws IOException {
+            name = d.readString();
+            description = d.readString();
+            map = d.readMap();
+            space = d.readSigned();
+            origin = d.readSigned();
+            indexInParent = d.readSigned();
+            items = d.readItems();
+        }
+
+        @Override
+        public int getSpace() {
+            return space;
+        }
+
+        @Override
+        public int getOrigin() {
+            return origin;
+        }
+
+        @Override
+        public List<CdiRep.Item> getItems() {
+            return items.get();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public Map getMap() {
+            return map;
+        }
+
+        @Override
+        public int getIndexInParent() {
+            return indexInParent;
+        }
+    }
+
+    public static class Item implements CdiRep.Item {
+        private final String name;
+        private final String description;
+        private final Map map;
+        private final int offset;
+        private final int indexInParent;
+
+        Item(String name, String description, Map map, int offset, int indexInParent) {
+            this.name = name;
+            this.description = description;
+            this.map = map;
+            this.offset = offset;
+            this.indexInParent = indexInParent;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public Map getMap() {
+            return map;
+        }
+
+        @Override
+        public int getOffset() {
+            return offset;
+        }
+
+        @Override
+        public int getIndexInParent() {
+            return indexInParent;
+        }
+    }
+
+    public class Group extends Item implements CdiRep.Group {
+        private final int replication;
+        private final String repName;
+        private final Items items;
+
+        Group(String name, String description, Map map, int offset, int indexInParent, int
+                replication, String repName, Items items) {
+            super(name, description, map, offset, indexInParent);
+            this.replication = replication;
+            this.repName = repName;
+            this.items = items;
+        }
+
+        @Override
+        public List<CdiRep.Item> getItems() {
+            return items.get();
+        }
+
+        @Override
+        public int getReplication() {
+            return replication;
+        }
+
+        @Override
+        public String getRepName() {
+            return repName;
+        }
+    }
+
+    public static class EventID extends Item implements CdiRep.EventID {
+        EventID(String name, String description, Map map, int offset, int indexInParent) {
+            super(name, description, map, offset, indexInParent);
+        }
+    }
+
+    public static class IntRep extends Item implements CdiRep.IntegerRep {
+        private final int size;
+        private final int defaultValue;
+        private final int min;
+        private final int max;
+
+        IntRep(String name, String description, Map map, int offset, int indexInParent, int
+                size, int defaultValue, int min, int max) {
+            super(name, description, map, offset, indexInParent);
+            this.size = size;
+            this.defaultValue = defaultValue;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public int getDefault() {
+            return defaultValue;
+        }
+
+        @Override
+        public int getMin() {
+            return min;
+        }
+
+        @Override
+        public int getMax() {
+            return max;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+    }
+
+    public static class BitRep extends Item implements CdiRep.BitRep {
+        private final int size;
+        private final boolean defaultValue;
+
+        BitRep(String name, String description, Map map, int offset, int indexInParent, int
+                size, boolean defaultValue) {
+            super(name, description, map, offset, indexInParent);
+            this.size = size;
+            this.defaultValue = defaultValue;
+        }
+
+        @Override
+        public boolean getDefault() {
+            return defaultValue;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+    }
+
+    public static class StringRep extends Item implements CdiRep.StringRep {
+        private final int size;
+
+        StringRep(String name, String description, Map map, int offset, int indexInParent,
+                  int size) {
+            super(name, description, map, offset, indexInParent);
+            this.size = size;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+    }
+}
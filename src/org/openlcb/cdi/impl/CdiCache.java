@@ -0,0 +1,363 @@
+package org.openlcb.cdi.impl;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.openlcb.SimpleNodeIdent;
+import org.openlcb.cdi.CdiRep;
+
+/**
+ * Persistent cache of CDI documents on the local disk.
+ * <p>
+ * Nodes of the same type running the same firmware have the same CDI, so the documents are keyed
+ * by the manufacturer, model, hardware and software version from the node's Simple Node Ident
+ * Info. Each document is stored gzipped in its own file, together with its key and a SHA-256
+ * hash of the content. A file that does not match its key or hash is deleted and treated as a
+ * miss.
+ * <p>
+ * Next to the XML, a file may hold a {@link BinaryCdiRep} snapshot of the parsed document, which
+ * {@link #loadRep} returns without decompressing or parsing the XML.
+ * <p>
+ * The total size of the files is capped; when a store goes over the cap, the least recently
+ * used files are deleted. Several processes may share the directory; files are replaced
+ * atomically.
+ */
+public class CdiCache {
+    private static final Logger logger = Logger.getLogger(CdiCache.class.getName());
+    /// Default cap for the total size of the cache files.
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int MAGIC = 0x4F434449; // "OCDI"
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".cdi";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Path directory;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * @param directory where to keep the cache files. Created if it does not exist.
+     * @throws IOException if the directory cannot be created.
+     */
+    public CdiCache(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Computes the cache key of a node.
+     * @param ident the node's identification info
+     * @return the key, or null if the identification is not complete or does not name a
+     * manufacturer and model (such nodes should not be cached).
+     */
+    public static @Nullable String getKey(@Nullable SimpleNodeIdent ident) {
+        if (ident == null || !ident.contentComplete()) return null;
+        if (ident.getMfgName().isEmpty() || ident.getModelName().isEmpty()) return null;
+        return ident.getMfgName() + '\0' + ident.getModelName() + '\0' + ident
+                .getHardwareVersion() + '\0' + ident.getSoftwareVersion();
+    }
+
+    /// Sets the cap on the total size of the cache files, and evicts files if needed.
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    /// @return how many lookups found a valid document.
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /// @return how many lookups did not find a valid document.
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Looks up a CDI document.
+     * @param key as returned by {@link #getKey}
+     * @return the document, or null if it is not in the cache or the cached file is damaged.
+     */
+    public synchronized @Nullable String load(String key) {
+        byte[] data = loadEntry(key, false);
+        return data == null ? null : new String(data, UTF8);
+    }
+
+    /**
+     * Looks up the parsed representation of a CDI document.
+     * @param key as returned by {@link #getKey}
+     * @return the representation, or null if it is not in the cache, was stored without a
+     * snapshot, or the cached file is damaged.
+     */
+    public synchronized @Nullable CdiRep loadRep(String key) {
+        byte[] data = loadEntry(key, true);
+        if (data == null) return null;
+        try {
+            return new BinaryCdiRep(data);
+        } catch (IOException e) {
+            logger.info("Dropping unreadable CDI snapshot for " + key + ": " + e.toString());
+            delete(pathFor(key));
+            hitCount--;
+            missCount++;
+            return null;
+        }
+    }
+
+    /**
+     * Adds or replaces a CDI document. Errors are logged and otherwise ignored; the cache is
+     * only an optimization.
+     * @param key     as returned by {@link #getKey}
+     * @param content the CDI document
+     */
+    public void store(String key, String content) {
+        store(key, content, null);
+    }
+
+    /**
+     * Adds or replaces a CDI document together with its parsed representation.
+     * @param key     as returned by {@link #getKey}
+     * @param content the CDI document
+     * @param rep     the parsed content, or null to store the XML only
+     */
+    public synchronized void store(String key, String content, @Nullable CdiRep rep) {
+        byte[] snapshot = rep == null ? new byte[0] : BinaryCdiRep.write(rep);
+        Path p = pathFor(key);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(directory, "store", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                writeEntry(out, key, snapshot, content.getBytes(UTF8));
+            }
+            Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption
+                    .ATOMIC_MOVE);
+            tmp = null;
+        } catch (IOException e) {
+            logger.warning("Error writing CDI cache file " + p + ": " + e.toString());
+        } finally {
+            if (tmp != null) delete(tmp);
+        }
+        evict(p);
+    }
+
+    /**
+     * Reads and validates one part of a cache file, and updates the statistics.
+     * @param key      cache key
+     * @param snapshot true to read the snapshot, false to read the XML
+     * @return the part's content, or null on a miss.
+     */
+    private @Nullable byte[] loadEntry(String key, boolean snapshot) {
+        Path p = pathFor(key);
+        if (!Files.exists(p)) {
+            missCount++;
+            return null;
+        }
+        byte[] content = null;
+        boolean damaged = true;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(p))) {
+            content = readEntry(in, key, snapshot);
+            damaged = content == null;
+        } catch (IOException e) {
+            logger.fine("Error reading CDI cache file " + p + ": " + e.toString());
+        }
+        if (damaged) {
+            logger.info("Dropping damaged CDI cache file " + p);
+            delete(p);
+            missCount++;
+            return null;
+        }
+        if (content.length == 0 && snapshot) {
+            // Stored without a snapshot.
+            missCount++;
+            return null;
+        }
+        try {
+            // Marks the file as recently used.
+            Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.fine("Error touching CDI cache file " + p + ": " + e.toString());
+        }
+        hitCount++;
+        return content;
+    }
+
+    /// Deletes all cached documents.
+    public synchronized void clear() {
+        for (Path p : listFiles()) {
+            delete(p);
+        }
+    }
+
+    /// @return the total size of the cache files in bytes.
+    public synchronized long getSize() {
+        long total = 0;
+        for (Path p : listFiles()) {
+            try {
+                total += Files.size(p);
+            } catch (IOException e) {
+                // deleted concurrently
+            }
+        }
+        return total;
+    }
+
+    private Path pathFor(String key) {
+        byte[] h = sha256(key.getBytes(UTF8));
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            b.append(String.format("%02x", h[i] & 0xff));
+        }
+        b.append(SUFFIX);
+        return directory.resolve(b.toString());
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, byte[] snapshot, byte[]
+            data) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(key);
+        out.write(sha256(snapshot));
+        out.writeInt(snapshot.length);
+        out.write(snapshot);
+        out.write(sha256(data));
+        out.writeInt(data.length);
+        GZIPOutputStream z = new GZIPOutputStream(out);
+        z.write(data);
+        // The caller closes the file.
+        z.finish();
+    }
+
+    /**
+     * @param snapshot true to return the snapshot, false to return the XML.
+     * @return the content, or null if the entry is damaged or belongs to a different key.
+     */
+    private static @Nullable byte[] readEntry(DataInputStream in, String key, boolean
+            snapshot) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+        if (!key.equals(in.readUTF())) return null;
+        byte[] hash = new byte[32];
+        in.readFully(hash);
+        int length = in.readInt();
+        if (length < 0) return null;
+        if (snapshot) {
+            byte[] data = new byte[length];
+            in.readFully(data);
+            if (!Arrays.equals(hash, sha256(data))) return null;
+            return data;
+        }
+        if (in.skipBytes(length) != length) return null;
+        in.readFully(hash);
+        length = in.readInt();
+        if (length < 0) return null;
+        byte[] data = readAll(new GZIPInputStream(in), length);
+        if (data == null || !Arrays.equals(hash, sha256(data))) return null;
+        return data;
+    }
+
+    private static @Nullable byte[] readAll(InputStream in, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+            if (out.size() > length) return null;
+        }
+        if (out.size() != length) return null;
+        return out.toByteArray();
+    }
+
+    /**
+     * Deletes the least recently used files until the total size is below the cap.
+     * @param keep file to keep even if it is the oldest, or null
+     */
+    private void evict(@Nullable Path keep) {
+        List<Path> files = listFiles();
+        final List<FileTime> times = new ArrayList<>();
+        long total = 0;
+        for (Path p : files) {
+            try {
+                total += Files.size(p);
+            } catch (IOException e) {
+                // deleted concurrently
+            }
+        }
+        if (total <= maxBytes) return;
+        for (Path p : files) {
+            try {
+                times.add(Files.getLastModifiedTime(p));
+            } catch (IOException e) {
+                times.add(FileTime.fromMillis(0));
+            }
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return times.get(a).compareTo(times.get(b));
+            }
+        });
+        for (int i : order) {
+            if (total <= maxBytes) break;
+            Path p = files.get(i);
+            if (p.equals(keep)) continue;
+            try {
+                long size = Files.size(p);
+                Files.delete(p);
+                total -= size;
+            } catch (IOException e) {
+                logger.fine("Error evicting CDI cache file " + p + ": " + e.toString());
+            }
+        }
+    }
+
+    private List<Path> listFiles() {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path p : ds) {
+                files.add(p);
+            }
+        } catch (IOException e) {
+            logger.warning("Error listing CDI cache directory " + directory + ": " + e.toString());
+        }
+        return files;
+    }
+
+    private static void delete(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            logger.fine("Error deleting CDI cache file " + p + ": " + e.toString());
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new AssertionError(e);
+        }
+    }
+}
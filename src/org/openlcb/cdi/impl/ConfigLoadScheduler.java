@@ -0,0 +1,186 @@
+package org.openlcb.cdi.impl;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import org.openlcb.DefaultPropertyListenerSupport;
+import org.openlcb.NodeID;
+import org.openlcb.implementations.DatagramMeteringBuffer;
+
+/**
+ * Schedules the reads that fill the memory space caches of many nodes.
+ * <p>
+ * Every node has a queue of reads. A limited number of reads is outstanding at any time, and
+ * the free slots are given to the nodes in round-robin order, so that a node with a large
+ * configuration does not hold up the others. The priority node (typically the one whose
+ * configuration the user is looking at) is served before all others.
+ * <p>
+ * The scheduler also adds up the bytes to load and loaded over all nodes, and fires
+ * UPDATE_PROGRESS when they change.
+ */
+public class ConfigLoadScheduler extends DefaultPropertyListenerSupport {
+    /// Fired when the aggregate progress changes.
+    public static final String UPDATE_PROGRESS = "UPDATE_PROGRESS";
+    /// Default number of reads outstanding at the same time: as many as the datagram layer lets
+    /// wait for a reply.
+    public static final int DEFAULT_MAX_CONCURRENT = DatagramMeteringBuffer.DEFAULT_MAX_IN_FLIGHT;
+
+    private int maxConcurrent;
+    private int active = 0;
+    private final Map<NodeID, ArrayDeque<Runnable>> queues = new HashMap<>();
+    /// Nodes with queued reads, in the order they will be served.
+    private final ArrayDeque<NodeID> rotation = new ArrayDeque<>();
+    private NodeID priorityNode = null;
+    private long totalBytes = 0;
+    private long loadedBytes = 0;
+
+    public ConfigLoadScheduler() {
+        this(DEFAULT_MAX_CONCURRENT);
+    }
+
+    /// @param maxConcurrent how many reads may be outstanding at the same time.
+    public ConfigLoadScheduler(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Queues a read. The read is started when it gets a slot; it has to call {@link #done} when
+     * it completes (successfully or not).
+     * @param node the node to read from
+     * @param read starts the read
+     */
+    public void submit(NodeID node, Runnable read) {
+        synchronized (this) {
+            ArrayDeque<Runnable> q = queues.get(node);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                queues.put(node, q);
+            }
+            if (q.isEmpty()) {
+                rotation.add(node);
+            }
+            q.add(read);
+        }
+        dispatch();
+    }
+
+    /// Marks a read as complete, and starts the next one.
+    public void done() {
+        synchronized (this) {
+            active--;
+        }
+        dispatch();
+    }
+
+    /**
+     * Sets the node whose reads go first.
+     * @param node the node, or null to serve all nodes equally.
+     */
+    public synchronized void setPriorityNode(@Nullable NodeID node) {
+        priorityNode = node;
+    }
+
+    /**
+     * Stops prioritizing a node, if it is still the priority node. Call this when the view that
+     * set the priority goes away; a later view of another node keeps its priority.
+     * @param node the node that was prioritized.
+     */
+    public synchronized void clearPriorityNode(NodeID node) {
+        if (node.equals(priorityNode)) {
+            priorityNode = null;
+        }
+    }
+
+    /// @return the node whose reads go first, or null.
+    public synchronized @Nullable NodeID getPriorityNode() {
+        return priorityNode;
+    }
+
+    /// Sets the number of reads outstanding at the same time.
+    public void setMaxConcurrent(int maxConcurrent) {
+        synchronized (this) {
+            this.maxConcurrent = maxConcurrent;
+        }
+        dispatch();
+    }
+
+    /// @return the number of reads started and not yet done.
+    public synchronized int getActiveCount() {
+        return active;
+    }
+
+    /// @return the number of reads waiting for a slot.
+    public synchronized int getQueuedCount() {
+        int count = 0;
+        for (ArrayDeque<Runnable> q : queues.values()) {
+            count += q.size();
+        }
+        return count;
+    }
+
+    /// Adds to the number of bytes to load.
+    public void addTotalBytes(long bytes) {
+        synchronized (this) {
+            totalBytes += bytes;
+        }
+        firePropertyChange(UPDATE_PROGRESS, null, null);
+    }
+
+    /// Adds to the number of bytes loaded.
+    public void addLoadedBytes(long bytes) {
+        synchronized (this) {
+            loadedBytes += bytes;
+        }
+        firePropertyChange(UPDATE_PROGRESS, null, null);
+    }
+
+    /// @return the number of bytes to load for all nodes.
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /// @return the number of bytes loaded for all nodes.
+    public synchronized long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+    /// @return the fraction of the bytes loaded, between 0 and 1.
+    public synchronized double getProgress() {
+        if (totalBytes == 0) return 1;
+        return Math.min(1.0, (double) loadedBytes / totalBytes);
+    }
+
+    /// Starts reads while there are free slots.
+    private void dispatch() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (active >= maxConcurrent) return;
+                next = pollNext();
+                if (next == null) return;
+                active++;
+            }
+            next.run();
+        }
+    }
+
+    /// @return the next read to start, or null. Called with the lock held.
+    private Runnable pollNext() {
+        NodeID node = null;
+        if (priorityNode != null && rotation.remove(priorityNode)) {
+            node = priorityNode;
+        } else {
+            node = rotation.poll();
+        }
+        if (node == null) return null;
+        ArrayDeque<Runnable> q = queues.get(node);
+        Runnable r = q.poll();
+        if (q.isEmpty()) {
+            queues.remove(node);
+        } else {
+            rotation.add(node);
+        }
+        return r;
+    }
+}
@@ -4,22 +4,30 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.nio.charset.Charset;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.openlcb.DefaultPropertyListenerSupport;
+import org.openlcb.DiscoveryCrawler;
 import org.openlcb.EventID;
+import org.openlcb.MimicNodeStore;
 import org.openlcb.NodeID;
 import org.openlcb.OlcbInterface;
 import org.openlcb.Utilities;
 import org.openlcb.cdi.CdiRep;
+import org.openlcb.cdi.impl.RangeCacheUtil.Range;
 import org.openlcb.cdi.jdom.CdiMemConfigReader;
 import org.openlcb.cdi.jdom.JdomCdiReader;
 import org.openlcb.cdi.jdom.XmlHelper;
@@ -45,6 +53,9 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
     // Fired on an CDI entry when the write method completes.
     public static final String UPDATE_WRITE_COMPLETE = "PENDING_WRITE_COMPLETE";
     private static final Logger logger = Logger.getLogger(ConfigRepresentation.class.getName());
+    /// How long to wait for the node's identification info before downloading the CDI without
+    /// looking at the cache.
+    private static final long SNIP_WAIT_MSEC = 3000;
     static final Charset UTF8 = Charset.forName("UTF8");
 
     private final OlcbInterface connection;
@@ -54,7 +65,11 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
     private String state = "Uninitialized";
     private CdiContainer root = null;
     private final Map<Integer, MemorySpaceCache> spaces = new TreeMap<>();
+    /// Index of the variables created so far, by key.
     private final Map<String, CdiEntry> variables = new HashMap<>();
+    /// Index of the replicated groups created so far, by key.
+    private final Map<String, GroupEntry> replicatedGroups = new HashMap<>();
+    private boolean writeBack = false;
     // Last time the progressbar was updated from the load.
     private long lastProgress;
 
@@ -83,12 +98,97 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
     public @Nullable NodeID getRemoteNodeID() { return remoteNodeID; }
 
     /**
-     * Retrieves the CDI from the remote node, and if successful, calls @link parseRep.
+     * Retrieves the CDI from the persistent cache or the remote node, and if successful, calls
+     * @link parseRep.
      */
     private void triggerFetchCdi() {
-        new CdiMemConfigReader(remoteNodeID, connection,
-                MemoryConfigurationService.SPACE_CDI).startLoadReader(new CdiMemConfigReader
-                .ReaderAccess() {
+        final CdiCache cache = connection.getCdiCache();
+        if (cache == null) {
+            fetchCdiFromNode(null, null);
+            return;
+        }
+        // The cache key comes from the node's identification info, which may still be on the
+        // way. Info loaded from the identity cache may be out of date, so we wait for the node
+        // to confirm it.
+        final MimicNodeStore.NodeMemo memo = connection.getNodeStore().addNode(remoteNodeID);
+        // The user is waiting for this node's identification.
+        connection.getNodeStore().getDiscoveryCrawler().setPriority(remoteNodeID,
+                DiscoveryCrawler.PRIORITY_URGENT);
+        memo.revalidate();
+        // Asks for the protocols too; the download uses a stream if the node supports it.
+        memo.getProtocolIdentification();
+        final AtomicBoolean started = new AtomicBoolean(false);
+        final Runnable lookup = new Runnable() {
+            @Override
+            public void run() {
+                if (started.getAndSet(true)) return;
+                String key = CdiCache.getKey(memo.getSimpleNodeIdent());
+                if (key == null) {
+                    fetchCdiFromNode(null, null);
+                    return;
+                }
+                CdiRep rep = cache.loadRep(key);
+                if (rep != null) {
+                    setState("Loaded CDI from cache.");
+                    cdiRep = rep;
+                    parseRep();
+                    return;
+                }
+                String xml = cache.load(key);
+                if (xml == null) {
+                    fetchCdiFromNode(cache, key);
+                    return;
+                }
+                setState("Loaded CDI from cache.");
+                if (parseXml(new StringReader(xml))) {
+                    // Adds the snapshot so that the next load skips the XML parsing.
+                    cache.store(key, xml, cdiRep);
+                }
+            }
+        };
+        final PropertyChangeListener identListener = new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent ev) {
+                if (MimicNodeStore.NodeMemo.UPDATE_PROP_SIMPLE_NODE_IDENT.equals(ev
+                        .getPropertyName()) && hasFreshIdent(memo)) {
+                    memo.removePropertyChangeListener(this);
+                    lookup.run();
+                }
+            }
+        };
+        memo.addPropertyChangeListener(identListener);
+        if (hasFreshIdent(memo)) {
+            memo.removePropertyChangeListener(identListener);
+            lookup.run();
+            return;
+        }
+        connection.getTimer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                memo.removePropertyChangeListener(identListener);
+                lookup.run();
+            }
+        }, SNIP_WAIT_MSEC);
+    }
+
+    /// @return true if the node's SNIP data is complete and not only loaded from a cache.
+    private static boolean hasFreshIdent(MimicNodeStore.NodeMemo memo) {
+        return memo.getSimpleNodeIdent().contentComplete() && memo.isVerified();
+    }
+
+    /**
+     * Downloads the CDI from the remote node.
+     * @param cache where to save the downloaded document, or null
+     * @param key   cache key, or null if the document should not be cached
+     */
+    private void fetchCdiFromNode(@Nullable final CdiCache cache, @Nullable final String key) {
+        CdiMemConfigReader reader = new CdiMemConfigReader(remoteNodeID, connection,
+                MemoryConfigurationService.SPACE_CDI);
+        reader.setReadWindow(connection.getCdiReadWindow());
+        // Nodes that support streams send the whole document in one stream.
+        reader.setUseStreams(connection.getMemoryConfigurationService().isStreamReadSupported(
+                remoteNodeID));
+        reader.startLoadReader(new CdiMemConfigReader.ReaderAccess() {
 
             @Override
             public void progressNotify(long bytesRead, long totalBytes) {
@@ -103,21 +203,58 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
 
             @Override
             public void provideReader(Reader r) {
+                if (cache == null || key == null) {
+                    parseXml(r);
+                    return;
+                }
+                String xml;
                 try {
-                    cdiRep = new JdomCdiReader().getRep(XmlHelper.parseXmlFromReader(r));
-                } catch (Exception e) {
-                    String error = "Failed to parse CDI output: " + e.toString();
+                    StringBuilder b = new StringBuilder();
+                    char[] buf = new char[4096];
+                    int n;
+                    while ((n = r.read(buf)) >= 0) {
+                        b.append(buf, 0, n);
+                    }
+                    xml = b.toString();
+                } catch (IOException e) {
+                    String error = "Failed to read CDI: " + e.toString();
                     logger.warning(error);
                     setState(error);
                     return;
                 }
-                parseRep();
+                // Only documents that parse are worth keeping.
+                if (parseXml(new StringReader(xml))) {
+                    cache.store(key, xml, cdiRep);
+                }
             }
         });
     }
 
+    /**
+     * Parses the CDI XML and calls @link parseRep.
+     * @param r the XML document
+     * @return false if parsing failed.
+     */
+    private boolean parseXml(Reader r) {
+        try {
+            cdiRep = new JdomCdiReader().getRep(XmlHelper.parseXmlFromReader(r));
+        } catch (Exception e) {
+            String error = "Failed to parse CDI output: " + e.toString();
+            logger.warning(error);
+            setState(error);
+            return false;
+        }
+        parseRep();
+        return true;
+    }
+
     private void parseRep() {
-        root = new Root(cdiRep);
+        synchronized (this) {
+            // The indexes are rebuilt along with the entries.
+            variables.clear();
+            replicatedGroups.clear();
+            root = new Root(cdiRep);
+        }
         setState("Representation complete.");
         prefillCaches();
         firePropertyChange(UPDATE_REP, null, root);
@@ -146,24 +283,16 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
     };
 
     private void prefillCaches() {
-        variables.clear();
-        visit(new Visitor() {
-                  @Override
-                  public void visitLeaf(final CdiEntry e) {
-                      variables.put(e.key, e);
-                      boolean nullTerminated = e.isNullTerminated();
-                      MemorySpaceCache cache = getCacheForSpace(e.space);
-                      cache.addRangeToCache(e.origin, e.origin + e.size, nullTerminated);
-                      cache.addRangeListener(e.origin, e.origin + e.size, nullTerminated, new
-                              PropertyChangeListener() {
-                                  @Override
-                                  public void propertyChange(PropertyChangeEvent event) {
-                                      e.fireUpdate();
-                                  }
-                              });
-                  }
-              }
-        );
+        // The cached ranges are computed from the CDI layout, so that replicated groups do not
+        // need to be expanded into entries.
+        for (CdiRep.Segment segment : cdiRep.getSegments()) {
+            List<Range> ranges = new ArrayList<>();
+            layoutItems(segment.getItems(), segment.getOrigin(), ranges);
+            MemorySpaceCache cache = getCacheForSpace(segment.getSpace());
+            for (Range r : ranges) {
+                cache.addRangeToCache(r.start, r.end, r.nullTerminated);
+            }
+        }
         pendingCacheFills = spaces.size();
         for (MemorySpaceCache sp : spaces.values()) {
             sp.addPropertyChangeListener(prefillListener);
@@ -174,9 +303,96 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
 
     public synchronized void reloadAll() {
         spaces.clear();  // destroys all the caches
+        for (CdiEntry e : variables.values()) {
+            addLeafListener(e);
+        }
         prefillCaches();
     }
 
+    /**
+     * Registers a newly created leaf entry: makes it findable by key and connects it to the
+     * memory space cache.
+     * @param e the new variable entry
+     */
+    private synchronized void registerLeaf(final CdiEntry e) {
+        variables.put(e.key, e);
+        addLeafListener(e);
+        if (getCacheForSpace(e.space).read(e.origin, e.size) != null) {
+            // The data has arrived before the entry was created.
+            e.updateVisibleValue();
+        }
+    }
+
+    private void addLeafListener(final CdiEntry e) {
+        getCacheForSpace(e.space).addRangeListener(e.origin, e.origin + e.size, e
+                .isNullTerminated(), new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                e.fireUpdate();
+            }
+        });
+    }
+
+    /// @return true if a string variable of the given size is loaded up to its first null.
+    private static boolean isNullTerminatedString(int size) {
+        return size > 64;
+    }
+
+    /**
+     * Computes the address layout of a list of CDI items without creating entries. This has to
+     * match what processGroup does.
+     *
+     * @param items  the CDI entries
+     * @param origin address of the first item
+     * @param ranges if not null, the address ranges of all variables are appended here
+     * @return the number of bytes the items cover in the address space
+     */
+    private static long layoutItems(List<CdiRep.Item> items, long origin, @Nullable List<Range>
+            ranges) {
+        if (items == null) return 0;
+        long base = origin;
+        for (CdiRep.Item it : items) {
+            origin += it.getOffset();
+            if (it instanceof CdiRep.Group) {
+                CdiRep.Group g = (CdiRep.Group) it;
+                int replication = Math.max(1, g.getReplication());
+                if (ranges == null || replication == 1) {
+                    origin += replication * layoutItems(g.getItems(), origin, replication == 1
+                            ? ranges : null);
+                } else {
+                    // All repeats look the same; lay out the first one and shift it.
+                    List<Range> repeat = new ArrayList<>();
+                    long stride = layoutItems(g.getItems(), 0, repeat);
+                    for (int i = 0; i < replication; ++i) {
+                        for (Range r : repeat) {
+                            ranges.add(new Range(origin + r.start, origin + r.end, r
+                                    .nullTerminated));
+                        }
+                        origin += stride;
+                    }
+                }
+            } else {
+                int size;
+                boolean nullTerminated = false;
+                if (it instanceof CdiRep.IntegerRep) {
+                    size = ((CdiRep.IntegerRep) it).getSize();
+                } else if (it instanceof CdiRep.EventID) {
+                    size = EventEntry.SIZE;
+                } else if (it instanceof CdiRep.StringRep) {
+                    size = ((CdiRep.StringRep) it).getSize();
+                    nullTerminated = isNullTerminatedString(size);
+                } else {
+                    continue;
+                }
+                if (ranges != null) {
+                    ranges.add(new Range(origin, origin + size, nullTerminated));
+                }
+                origin += size;
+            }
+        }
+        return origin - base;
+    }
+
     /**
      * @return the internal representation of the root entry. The root entry contains all
      * segments as children.
@@ -193,8 +409,39 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
         }
     }
 
-    public @Nullable CdiEntry getVariableForKey(@NonNull String key) {
-        return variables.get(key);
+    /**
+     * Looks up a variable by its key. Replicated groups along the way are expanded as needed.
+     * Takes time proportional to the key length, regardless of the size of the CDI.
+     * @param key the key of a variable, as in {@link CdiEntry#key}.
+     * @return the variable entry, or null if there is no such variable.
+     */
+    public synchronized @Nullable CdiEntry getVariableForKey(@NonNull String key) {
+        while (true) {
+            CdiEntry e = variables.get(key);
+            if (e != null || root == null) return e;
+            // The variable is not created yet. It may be inside a repeat of a replicated group,
+            // with a key like "seg.group(3).var". Finds the innermost replicated group that
+            // already exists, and expands the repeat the key points into.
+            boolean expanded = false;
+            for (int i = key.lastIndexOf('('); i > 0; i = key.lastIndexOf('(', i - 1)) {
+                GroupEntry g = replicatedGroups.get(key.substring(0, i));
+                if (g == null) continue;
+                int end = key.indexOf(')', i);
+                if (end < 0) return null;
+                int index;
+                try {
+                    index = Integer.parseInt(key.substring(i + 1, end));
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+                ReplicaList reps = (ReplicaList) g.items;
+                if (index < 0 || index >= reps.size() || reps.isExpanded(index)) return null;
+                reps.get(index);
+                expanded = true;
+                break;
+            }
+            if (!expanded) return null;
+        }
     }
 
     private synchronized MemorySpaceCache getCacheForSpace(int space) {
@@ -204,14 +451,65 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
             MemorySpaceCache s;
             if (connection != null) {
                 s = new MemorySpaceCache(connection, remoteNodeID, space);
+                s.setScheduler(connection.getConfigLoadScheduler(), remoteNodeID);
             } else {
                 s = new MemorySpaceCache(mockAccess, space);
             }
+            s.setWriteBack(writeBack);
             spaces.put(space, s);
             return s;
         }
     }
 
+    /**
+     * Lets the reads of this node go before the reads of other nodes that are loading their
+     * configuration at the same time. Call this for the node the user is looking at.
+     */
+    public void prioritizeLoading() {
+        if (connection == null) return;
+        connection.getConfigLoadScheduler().setPriorityNode(remoteNodeID);
+    }
+
+    /**
+     * Undoes {@link #prioritizeLoading}, unless another node was prioritized since. Call this
+     * when the user stops looking at this node.
+     */
+    public void unprioritizeLoading() {
+        if (connection == null) return;
+        connection.getConfigLoadScheduler().clearPriorityNode(remoteNodeID);
+    }
+
+    /**
+     * Turns write-back mode on or off for all memory spaces. In write-back mode the values set
+     * on the entries are collected, and sent to the node in merged write requests by
+     * {@link #flushWrites}. Turning write-back mode off flushes the collected writes.
+     * @param writeBack true to collect writes.
+     */
+    public void setWriteBack(boolean writeBack) {
+        List<MemorySpaceCache> caches;
+        synchronized (this) {
+            this.writeBack = writeBack;
+            caches = new ArrayList<>(spaces.values());
+        }
+        for (MemorySpaceCache c : caches) {
+            c.setWriteBack(writeBack);
+        }
+    }
+
+    /**
+     * Sends all writes collected in write-back mode to the node. The entries get their
+     * UPDATE_WRITE_COMPLETE events when their data is written.
+     */
+    public void flushWrites() {
+        List<MemorySpaceCache> caches;
+        synchronized (this) {
+            caches = new ArrayList<>(spaces.values());
+        }
+        for (MemorySpaceCache c : caches) {
+            c.flushWrites();
+        }
+    }
+
     /**
      * Performs a visitation of the entire tree (starting at the root node).
      * @param v is an implementation of a tree Visitor.
@@ -259,6 +557,9 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
             if (entry != null) {
                 origin = entry.origin + entry.size;
                 output.add(entry);
+                if (!(entry instanceof CdiContainer)) {
+                    registerLeaf(entry);
+                }
             }
         }
         return origin - base;
@@ -381,6 +682,11 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
             firePropertyChange(UPDATE_WRITE_COMPLETE, null, null);
         }
 
+        /// @return the raw bytes of this entry, or null if they are not loaded yet.
+        public @Nullable byte[] getCachedBytes() {
+            return getCacheForSpace(space).read(origin, size);
+        }
+
         /// Reads the values again from the original source.
         public void reload() {
             MemorySpaceCache cache = getCacheForSpace(space);
@@ -479,11 +785,16 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
         public final List<CdiEntry> items;
 
         public GroupBase(String name, CdiRep.Group group, int segment, long origin) {
+            this(name, group, segment, origin, new ArrayList<CdiEntry>());
+        }
+
+        GroupBase(String name, CdiRep.Group group, int segment, long origin, List<CdiEntry>
+                items) {
             this.key = name;
             this.space = segment;
             this.origin = origin;
             this.group = group;
-            this.items = new ArrayList<>();
+            this.items = items;
         }
 
         @Override
@@ -519,10 +830,54 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
         public int index;
     }
 
+    /**
+     * The repeats of a replicated group. Each repeat is created when it is first accessed; the
+     * addresses are computed from the size of one repeat.
+     */
+    private class ReplicaList extends AbstractList<CdiEntry> {
+        final String baseName;
+        final CdiRep.Group group;
+        final int segment;
+        final long origin;
+        final long stride;
+        final GroupRep[] replicas;
+
+        ReplicaList(String baseName, CdiRep.Group group, int segment, long origin) {
+            this.baseName = baseName;
+            this.group = group;
+            this.segment = segment;
+            this.origin = origin;
+            this.stride = layoutItems(group.getItems(), 0, null);
+            this.replicas = new GroupRep[group.getReplication()];
+        }
+
+        @Override
+        public CdiEntry get(int i) {
+            synchronized (ConfigRepresentation.this) {
+                if (replicas[i] == null) {
+                    replicas[i] = new GroupRep(baseName + "(" + i + ")", group, segment, origin +
+                            i * stride, i + 1);
+                }
+                return replicas[i];
+            }
+        }
+
+        @Override
+        public int size() {
+            return replicas.length;
+        }
+
+        boolean isExpanded(int i) {
+            synchronized (ConfigRepresentation.this) {
+                return replicas[i] != null;
+            }
+        }
+    }
+
     /**
      * Represents the root entry of a group. If the group is repeated, the children will be the
-     * individual repeats. If the group is not repeated, the children will be the members in this
-     * group.
+     * individual repeats, which are created on demand. If the group is not repeated, the
+     * children will be the members in this group.
      */
     public class GroupEntry extends GroupBase {
         /**
@@ -533,18 +888,15 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
          *               already performed)
          */
         GroupEntry(String baseName, CdiRep.Group group, int segment, long origin) {
-            super(baseName, group, segment, origin);
+            super(baseName, group, segment, origin, group.getReplication() <= 1 ? new
+                    ArrayList<CdiEntry>() : new ReplicaList(baseName, group, segment, origin));
             if (group.getReplication() <= 1) {
                 size = (int) processGroup(baseName, segment, group.getItems(), this.items, this
                         .origin);
             } else {
-                size = 0;
-                for (int i = 0; i < group.getReplication(); ++i) {
-                    CdiEntry e = new GroupRep(baseName + "(" + i + ")", group, segment, origin,
-                            i + 1);
-                    items.add(e);
-                    origin += e.size;
-                    size += e.size;
+                size = (int) (((ReplicaList) items).stride * group.getReplication());
+                synchronized (ConfigRepresentation.this) {
+                    replicatedGroups.put(baseName, this);
                 }
             }
         }
@@ -608,6 +960,8 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
      * Represents an event variable.
      */
     public class EventEntry extends CdiEntry {
+        /// Number of bytes in an event ID.
+        static final int SIZE = 8;
         public CdiRep.EventID rep;
 
         EventEntry(String name, CdiRep.EventID rep, int segment, long origin) {
@@ -615,7 +969,7 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
             this.space = segment;
             this.origin = origin;
             this.rep = rep;
-            this.size = 8;
+            this.size = SIZE;
         }
 
         @Override
@@ -674,7 +1028,7 @@ public class ConfigRepresentation extends DefaultPropertyListenerSupport {
 
         @Override
         public boolean isNullTerminated() {
-            return size > 64;
+            return isNullTerminatedString(size);
         }
 
         public String getValue() {
@@ -3,12 +3,17 @@ package org.openlcb.cdi.impl;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import org.openlcb.NodeID;
 import org.openlcb.OlcbInterface;
@@ -19,6 +24,10 @@ import org.openlcb.implementations.MemoryConfigurationService;
  * Maintains the connection to a specific remote node's specific memory space, and maintains a
  * cache of the information retrieved from there.
  * <p>
+ * By default every write is sent to the node right away. In write-back mode (see
+ * {@link #setWriteBack}) the written bytes are collected instead, and {@link #flushWrites}
+ * sends them merged into as few maximum-size write requests as possible.
+ * <p>
  * Created by bracz on 4/2/16.
  */
 public class MemorySpaceCache {
@@ -36,9 +45,25 @@ public class MemorySpaceCache {
     private Range nextRangeToLoad = null;
     private long currentRangeNextOffset;
     private byte[] currentRangeData;
+    /// Address of currentRangeData[0].
+    private long currentRangeDataStart;
     private Queue<Range> rangesToLoad = new LinkedList<>();
     private final ReadWriteAccess access;
     private final String remoteNodeString; // used for error printouts
+    private ConfigLoadScheduler scheduler = null;
+    private NodeID schedulerNode = null;
+    /// Bytes of the initial fill not yet reported to the scheduler as loaded.
+    private long unreportedBytes = 0;
+    /// Largest payload of a single write request.
+    static final int MAX_WRITE_SIZE = 64;
+    private boolean writeBack = false;
+    /// True if a bulk read of the range being loaded failed; it is then read in small pieces.
+    private boolean bulkReadFailed = false;
+    /// Written bytes not yet sent, by start address. The ranges neither overlap nor touch.
+    private final TreeMap<Long, DirtyRange> dirtyRanges = new TreeMap<>();
+    /// Write requests of flushed data waiting to be sent.
+    private final Queue<WriteChunk> writeQueue = new LinkedList<>();
+    private boolean writeInFlight = false;
 
 
     public MemorySpaceCache(OlcbInterface connection, final NodeID remoteNode, int space) {
@@ -56,6 +81,17 @@ public class MemorySpaceCache {
                     .McsReadHandler handler) {
                 mcs.requestRead(remoteNode, space, address, length, handler);
             }
+
+            @Override
+            public boolean supportsBulkRead() {
+                return mcs.isStreamReadSupported(remoteNode);
+            }
+
+            @Override
+            public MemoryConfigurationService.McsStreamRead doBulkRead(long address, int space,
+                    int length, MemoryConfigurationService.McsPipelinedReadHandler handler) {
+                return mcs.requestBulkRead(remoteNode, space, address, length, 1, handler);
+            }
         };
         this.space = space;
     }
@@ -66,6 +102,17 @@ public class MemorySpaceCache {
         this.remoteNodeString = "(mock)";
     }
 
+    /**
+     * Sends the reads of this cache through a scheduler that is shared with the caches of other
+     * nodes. Has to be called before {@link #fillCache}.
+     * @param scheduler the scheduler
+     * @param node      the node this cache belongs to
+     */
+    public void setScheduler(ConfigLoadScheduler scheduler, NodeID node) {
+        this.scheduler = scheduler;
+        this.schedulerNode = node;
+    }
+
     public synchronized void addPropertyChangeListener(java.beans.PropertyChangeListener l) {
         pcs.addPropertyChangeListener(l);
     }
@@ -117,18 +164,20 @@ public class MemorySpaceCache {
      * Sends an data updated event to all listeners that are registered to be interested in
      * a given range. Skips those listeners that extend beyond 'end', given the assumption that
      * the data is read from the beginning of the range.
-     *  @param start offset (inclusive)
+     * @param start offset (inclusive)
      * @param end   offset (exclusive)
-     * @param hasZero true if the data payload loaded has a zero byte.
+     * @param data  the bytes loaded for [start, end)
      */
-    private void notifyPartialRead(long start, long end, boolean hasZero) {
+    private void notifyPartialRead(long start, long end, byte[] data) {
         PropertyChangeEvent ev = null;
         for (Map.Entry<Range, ChangeEntry> e : dataChangeListeners.entrySet()) {
             if (e.getKey().start < end && e.getKey().end > start) {
                 // There is overlap
                 boolean needNotify = false;
                 if (e.getKey().end <= end) needNotify = true; // Data is fully available
-                if ((start >= e.getKey().start) && e.getKey().nullTerminated && hasZero) {
+                if (e.getKey().nullTerminated && hasZero(data, start, Math.max(start, e.getKey()
+                        .start), end)) {
+                    // The string is complete up to its terminating null.
                     needNotify = true;
                 }
                 if (needNotify) {
@@ -141,6 +190,20 @@ public class MemorySpaceCache {
         }
     }
 
+    /**
+     * @param data      bytes loaded from address dataStart
+     * @param dataStart address of data[0]
+     * @param from      first address to check
+     * @param to        address after the last one to check
+     * @return true if there is a null byte in [from, to).
+     */
+    private static boolean hasZero(byte[] data, long dataStart, long from, long to) {
+        for (long a = from; a < to; ++a) {
+            if (data[(int) (a - dataStart)] == 0) return true;
+        }
+        return false;
+    }
+
     /**
      * Sends an data updated event to all listeners that are registered to be interested in
      * a given range.
@@ -173,6 +236,10 @@ public class MemorySpaceCache {
         for (Range r : rlist) {
             dataCache.put(r, null);
             rangesToLoad.add(r);
+            unreportedBytes += r.end - r.start;
+        }
+        if (scheduler != null) {
+            scheduler.addTotalBytes(unreportedBytes);
         }
         continueLoading();
     }
@@ -203,29 +270,30 @@ public class MemorySpaceCache {
             if (cachedRange == null) {
                 currentRangeData = new byte[len];
                 dataCache.put(nextRangeToLoad, currentRangeData);
-                currentRangeNextOffset = nextRangeToLoad.start;
+                currentRangeDataStart = nextRangeToLoad.start;
             } else {
+                // Reloads into the existing cache entry, which may start earlier.
                 currentRangeData = cachedRange.getValue();
-                currentRangeNextOffset = nextRangeToLoad.start;
-                if (!nextRangeToLoad.equals(cachedRange.getKey())) {
-                    // We must make sure that the start offset is the same as the cached range,
-                    // otherwise the bytes will be copied to the wrong place inside the data array.
-                    // When finding an overlapping range, we always disable null termination.
-                    nextRangeToLoad = new Range(cachedRange.getKey().start, nextRangeToLoad.end,
-                            false);
-                }
+                currentRangeDataStart = cachedRange.getKey().start;
             }
+            currentRangeNextOffset = nextRangeToLoad.start;
+            bulkReadFailed = false;
         }
         int count = (int)(nextRangeToLoad.end - currentRangeNextOffset);
         if (count <= 0) {
             continueLoading();
             return;
         }
-        if (count > 64) {
-            count = 64;
+        if (count > RangeCacheUtil.MAX_REQUEST_SIZE && !bulkReadFailed && access
+                .supportsBulkRead()) {
+            loadRangeBulk(count);
+            return;
+        }
+        if (count > RangeCacheUtil.MAX_REQUEST_SIZE) {
+            count = RangeCacheUtil.MAX_REQUEST_SIZE;
         }
         final int fcount = count;
-        access.doRead(currentRangeNextOffset, space, count,
+        startRead(currentRangeNextOffset, count,
                 new MemoryConfigurationService.McsReadHandler() {
                     @Override
                     public void handleFailure(int code) {
@@ -233,6 +301,7 @@ public class MemorySpaceCache {
                                 "space" + space + " offset " + currentRangeNextOffset + " error " +
                                 "0x" + Integer.toHexString(code));
                         // ignore and continue reading other stuff.
+                        reportLoaded(fcount);
                         currentRangeNextOffset += fcount;
                         loadRange();
                     }
@@ -244,7 +313,7 @@ public class MemorySpaceCache {
                             throw new RuntimeException("spurious return data for address=" +
                                     address + " length " + data.length);
                         }
-                        if (data.length + currentRangeNextOffset - nextRangeToLoad.start >
+                        if (data.length + currentRangeNextOffset - currentRangeDataStart >
                                 currentRangeData.length) {
                             throw new RuntimeException("return data won't fit, space=" + space +
                                     " address= " + address + " length=" + data.length + " " +
@@ -260,20 +329,12 @@ public class MemorySpaceCache {
                                     space, address));
                             currentRangeNextOffset += fcount;
                         } else {
-                            System.arraycopy(data, 0, currentRangeData, (int)
-                                    (currentRangeNextOffset -
-                                            nextRangeToLoad.start), data.length);
-                            for (int i = 0; i < data.length; ++i) {
-                                if (data[i] == 0) {
-                                    hasZero = true;
-                                    break;
-                                }
-                            }
-                            notifyPartialRead(currentRangeNextOffset, currentRangeNextOffset + data
-                                    .length, hasZero);
-                            currentRangeNextOffset += data.length;
+                            hasZero = storeRangeData(data);
                         }
+                        reportLoaded(data.length);
                         if (hasZero && nextRangeToLoad.nullTerminated) {
+                            // The rest of the range is not needed.
+                            reportLoaded(nextRangeToLoad.end - currentRangeNextOffset);
                             continueLoading();
                         } else {
                             loadRange();
@@ -282,6 +343,145 @@ public class MemorySpaceCache {
                 });
     }
 
+    /**
+     * Stores data read for the range being loaded, and advances the load position.
+     * @param data the bytes read at currentRangeNextOffset.
+     * @return true if the data contains the null that ends the range's string.
+     */
+    private boolean storeRangeData(byte[] data) {
+        System.arraycopy(data, 0, currentRangeData, (int) (currentRangeNextOffset -
+                currentRangeDataStart), data.length);
+        long end = currentRangeNextOffset + data.length;
+        // Null bytes before the string do not end the load.
+        boolean hasZero = hasZero(data, currentRangeNextOffset, Math.max
+                (currentRangeNextOffset, nextRangeToLoad.stringStart), end);
+        notifyPartialRead(currentRangeNextOffset, end, data);
+        currentRangeNextOffset += data.length;
+        return hasZero;
+    }
+
+    /**
+     * Loads the rest of nextRangeToLoad with one bulk read (a stream, if the node supports it)
+     * instead of a request per 64 bytes. If the bulk read fails or brings no data, the rest of
+     * the range is loaded with normal reads.
+     * @param count number of bytes left in the range.
+     */
+    private void loadRangeBulk(final int count) {
+        final long startOffset = currentRangeNextOffset;
+        final Range range = nextRangeToLoad;
+        final MemoryConfigurationService.McsStreamRead[] read = new MemoryConfigurationService
+                .McsStreamRead[1];
+        final ConfigLoadScheduler s = scheduler;
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final MemoryConfigurationService.McsPipelinedReadHandler handler = new
+                MemoryConfigurationService.McsPipelinedReadHandler() {
+            /// @return false if the read was already finished.
+            private boolean finish() {
+                if (finished.getAndSet(true)) return false;
+                if (s != null) s.done();
+                return true;
+            }
+
+            @Override
+            public void handleFailure(int code) {
+                if (!finish()) return;
+                logger.warning("Error in bulk read of memory space cache: dest " +
+                        remoteNodeString + " space " + space + " offset " +
+                        currentRangeNextOffset + " error 0x" + Integer.toHexString(code));
+                bulkReadFailed = true;
+                loadRange();
+            }
+
+            @Override
+            public void handleReadData(NodeID dest, int space, long address, byte[] data) {
+                if (finished.get()) return;
+                if (address != currentRangeNextOffset || data.length + currentRangeNextOffset
+                        - currentRangeDataStart > currentRangeData.length) {
+                    logger.warning("Unexpected bulk read data for space " + space + " address "
+                            + address + " length " + data.length + " from " + remoteNodeString);
+                    if (read[0] != null) read[0].cancel();
+                    handleFailure(0);
+                    return;
+                }
+                boolean hasZero = storeRangeData(data);
+                reportLoaded(data.length);
+                if (hasZero && range.nullTerminated) {
+                    if (read[0] != null) read[0].cancel();
+                    if (!finish()) return;
+                    // The rest of the range is not needed.
+                    reportLoaded(range.end - currentRangeNextOffset);
+                    continueLoading();
+                }
+            }
+
+            @Override
+            public void handleReadComplete() {
+                if (!finish()) return;
+                if (currentRangeNextOffset == startOffset) {
+                    // Nothing came; do not try again for this range.
+                    bulkReadFailed = true;
+                }
+                loadRange();
+            }
+        };
+        Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                MemoryConfigurationService.McsStreamRead r = access.doBulkRead(startOffset,
+                        space, count, handler);
+                read[0] = r;
+                // The read may have ended while it was being started.
+                if (r != null && finished.get()) r.cancel();
+            }
+        };
+        if (s == null) {
+            start.run();
+        } else {
+            s.submit(schedulerNode, start);
+        }
+    }
+
+    /**
+     * Sends a read request, through the scheduler if there is one.
+     */
+    private void startRead(final long address, final int count, final MemoryConfigurationService
+            .McsReadHandler handler) {
+        if (scheduler == null) {
+            access.doRead(address, space, count, handler);
+            return;
+        }
+        final ConfigLoadScheduler s = scheduler;
+        s.submit(schedulerNode, new Runnable() {
+            @Override
+            public void run() {
+                access.doRead(address, space, count, new MemoryConfigurationService
+                        .McsReadHandler() {
+                    @Override
+                    public void handleFailure(int code) {
+                        s.done();
+                        handler.handleFailure(code);
+                    }
+
+                    @Override
+                    public void handleReadData(NodeID dest, int space, long address, byte[]
+                            data) {
+                        s.done();
+                        handler.handleReadData(dest, space, address, data);
+                    }
+                });
+            }
+        });
+    }
+
+    /// Reports progress of the initial fill to the scheduler.
+    private void reportLoaded(long bytes) {
+        if (scheduler == null) return;
+        bytes = Math.min(bytes, unreportedBytes);
+        if (bytes <= 0) return;
+        unreportedBytes -= bytes;
+        scheduler.addLoadedBytes(bytes);
+    }
+
     private Map.Entry<Range, byte[]> getCacheForRange(long offset, int len) {
         Range r = new Range(offset, Integer.MAX_VALUE, true);
         Map.Entry<Range, byte[]> entry = dataCache.floorEntry(r);
@@ -295,12 +495,34 @@ public class MemorySpaceCache {
 
     public byte[] read(long offset, int len) {
         Map.Entry<Range, byte[]> entry = getCacheForRange(offset, len);
-        if (entry == null) return null;
+        if (entry == null) return readSpanning(offset, len);
         byte[] ret = new byte[len];
         System.arraycopy(entry.getValue(), (int) (offset - entry.getKey().start), ret, 0, len);
         return ret;
     }
 
+    /**
+     * Reads data that is cached in several adjacent ranges.
+     * @return the data, or null if some of it is not cached.
+     */
+    private byte[] readSpanning(long offset, int len) {
+        byte[] ret = new byte[len];
+        long pos = offset;
+        long end = offset + len;
+        while (pos < end) {
+            Map.Entry<Range, byte[]> entry = dataCache.floorEntry(new Range(pos, Integer
+                    .MAX_VALUE, true));
+            if (entry == null || entry.getValue() == null || entry.getKey().end <= pos) {
+                return null;
+            }
+            int count = (int) (Math.min(end, entry.getKey().end) - pos);
+            System.arraycopy(entry.getValue(), (int) (pos - entry.getKey().start), ret, (int)
+                    (pos - offset), count);
+            pos += count;
+        }
+        return ret;
+    }
+
     public void write(final long offset, final byte[] data, final ConfigRepresentation.CdiEntry
             cdiEntry) {
         int len = data.length;
@@ -308,6 +530,10 @@ public class MemorySpaceCache {
         if (entry != null && entry.getValue() != null) {
             System.arraycopy(data, 0, entry.getValue(), (int) (offset - entry.getKey().start), data.length);
         }
+        if (addDirtyRange(offset, data, cdiEntry)) {
+            notifyAfterWrite(offset, offset + data.length);
+            return;
+        }
         logger.finer("Writing to space " + space + " offset 0x" + Long.toHexString(offset) +
                 " payload length " + data.length);
 
@@ -351,6 +577,152 @@ public class MemorySpaceCache {
         notifyAfterWrite(offset, offset + data.length);
     }
 
+    /**
+     * Turns write-back mode on or off. Turning it off flushes the collected writes.
+     * @param writeBack true to collect writes until {@link #flushWrites} is called.
+     */
+    public void setWriteBack(boolean writeBack) {
+        synchronized (this) {
+            this.writeBack = writeBack;
+        }
+        if (!writeBack) {
+            flushWrites();
+        }
+    }
+
+    /// @return true if there are written bytes that were not yet sent to the node.
+    public synchronized boolean hasPendingWrites() {
+        return !dirtyRanges.isEmpty() || !writeQueue.isEmpty() || writeInFlight;
+    }
+
+    /**
+     * Records a write in write-back mode.
+     * @return false if not in write-back mode; the write has to be sent right away.
+     */
+    private synchronized boolean addDirtyRange(long offset, byte[] data, ConfigRepresentation
+            .CdiEntry cdiEntry) {
+        if (!writeBack) return false;
+        long start = offset;
+        long end = offset + data.length;
+        // Collects the ranges that overlap or touch the new one.
+        List<DirtyRange> merged = new ArrayList<>();
+        Map.Entry<Long, DirtyRange> before = dirtyRanges.floorEntry(offset);
+        if (before != null && before.getValue().end() >= offset) {
+            merged.add(before.getValue());
+        }
+        merged.addAll(dirtyRanges.subMap(offset, false, end, true).values());
+        DirtyRange r = new DirtyRange();
+        for (DirtyRange m : merged) {
+            start = Math.min(start, m.start);
+            end = Math.max(end, m.end());
+        }
+        r.start = start;
+        r.data = new byte[(int) (end - start)];
+        for (DirtyRange m : merged) {
+            dirtyRanges.remove(m.start);
+            System.arraycopy(m.data, 0, r.data, (int) (m.start - start), m.data.length);
+            r.addOwners(m.owners);
+        }
+        // The newest data wins.
+        System.arraycopy(data, 0, r.data, (int) (offset - start), data.length);
+        r.addOwners(Collections.singletonList(cdiEntry));
+        dirtyRanges.put(start, r);
+        return true;
+    }
+
+    /**
+     * Sends the writes collected in write-back mode. Ranges that are close to each other are
+     * merged if the bytes between them are known from the cache; then the merged ranges are
+     * sent in writes of {@link #MAX_WRITE_SIZE} bytes. Every written entry gets its
+     * fireWriteComplete callback when all of its bytes are written.
+     */
+    public void flushWrites() {
+        synchronized (this) {
+            DirtyRange current = null;
+            for (DirtyRange next : dirtyRanges.values()) {
+                if (current != null) {
+                    Range m = RangeCacheUtil.mergeRange(new Range(current.start, current.end(),
+                            false), new Range(next.start, next.end(), false));
+                    byte[] gap = m == null ? null : read(current.end(), (int) (next.start -
+                            current.end()));
+                    if (gap != null) {
+                        byte[] d = new byte[(int) (next.end() - current.start)];
+                        System.arraycopy(current.data, 0, d, 0, current.data.length);
+                        System.arraycopy(gap, 0, d, current.data.length, gap.length);
+                        System.arraycopy(next.data, 0, d, (int) (next.start - current.start),
+                                next.data.length);
+                        current.data = d;
+                        current.addOwners(next.owners);
+                        continue;
+                    }
+                    queueChunks(current);
+                }
+                current = next;
+            }
+            if (current != null) {
+                queueChunks(current);
+            }
+            dirtyRanges.clear();
+        }
+        sendNextWrite();
+    }
+
+    /// Splits a dirty range into write requests. Called with the lock held.
+    private void queueChunks(DirtyRange r) {
+        for (int ofs = 0; ofs < r.data.length; ofs += MAX_WRITE_SIZE) {
+            int len = Math.min(MAX_WRITE_SIZE, r.data.length - ofs);
+            WriteChunk c = new WriteChunk();
+            c.address = r.start + ofs;
+            c.data = new byte[len];
+            System.arraycopy(r.data, ofs, c.data, 0, len);
+            c.range = r;
+            r.pendingChunks++;
+            writeQueue.add(c);
+        }
+    }
+
+    /// Sends the next queued write request, unless one is already outstanding.
+    private void sendNextWrite() {
+        final WriteChunk c;
+        synchronized (this) {
+            if (writeInFlight) return;
+            c = writeQueue.poll();
+            if (c == null) return;
+            writeInFlight = true;
+        }
+        logger.finer("Writing to space " + space + " offset 0x" + Long.toHexString(c.address) +
+                " payload length " + c.data.length);
+        access.doWrite(c.address, space, c.data, new MemoryConfigurationService.McsWriteHandler() {
+            @Override
+            public void handleFailure(int errorCode) {
+                logger.warning(String.format("Write failed (space %d address %d): 0x" +
+                        "%04x", space, c.address, errorCode));
+                chunkDone(c);
+            }
+
+            @Override
+            public void handleSuccess() {
+                chunkDone(c);
+            }
+        });
+    }
+
+    private void chunkDone(WriteChunk c) {
+        List<ConfigRepresentation.CdiEntry> done = null;
+        synchronized (this) {
+            writeInFlight = false;
+            if (--c.range.pendingChunks == 0) {
+                done = new ArrayList<>(c.range.owners);
+            }
+        }
+        if (done != null) {
+            for (ConfigRepresentation.CdiEntry e : done) {
+                e.fireWriteComplete();
+            }
+        }
+        sendNextWrite();
+    }
+
     /**
      * Performs a refresh of some data. Calls the data update listeners when done.
      * @param origin address of first byte in memory space to reload
@@ -362,6 +734,34 @@ public class MemorySpaceCache {
         continueLoading();
     }
 
+    /**
+     * Bytes written in write-back mode, and the entries that wrote them.
+     */
+    private static class DirtyRange {
+        long start;
+        byte[] data;
+        Set<ConfigRepresentation.CdiEntry> owners = new LinkedHashSet<>();
+        /// Write requests not yet completed after the flush.
+        int pendingChunks = 0;
+
+        long end() {
+            return start + data.length;
+        }
+
+        void addOwners(Collection<ConfigRepresentation.CdiEntry> entries) {
+            owners.addAll(entries);
+        }
+    }
+
+    /**
+     * One write request of a flushed dirty range.
+     */
+    private static class WriteChunk {
+        long address;
+        byte[] data;
+        DirtyRange range;
+    }
+
     /**
      * Represents the registered listeners of a given range.
      */
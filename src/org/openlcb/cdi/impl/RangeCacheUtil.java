@@ -9,13 +9,28 @@ import java.util.List;
  * Helper class to get a sequence of ranges and merges them into larger chunks to read from the
  * config space so that fewer reads suffice.
  * <p>
+ * The merging is planned by cost: every read request costs a fixed overhead plus a cost per
+ * byte, and a request reads at most {@link #MAX_REQUEST_SIZE} bytes. Ranges are merged across a
+ * gap when the saved requests are worth more than the extra bytes. A null-terminated range may
+ * end a merged range; loading then stops at the first null byte of the string, so the string
+ * is read speculatively together with the data before it.
+ * <p>
  * Created by bracz on 4/2/16.
  */
 public class RangeCacheUtil {
     /**
-     * Merge ranges that have less than this many bytes of gap between them.
+     * Merge ranges that have less than this many bytes of gap between them. Used for merging
+     * writes.
      */
-    private static final int RANGE_MERGE_THRESHOLD = 8;
+    static final int RANGE_MERGE_THRESHOLD = 8;
+    /// Largest number of bytes a single read request returns.
+    public static final int MAX_REQUEST_SIZE = 64;
+    /// Default cost of a read request, in units of the cost of one byte.
+    public static final int DEFAULT_REQUEST_COST = 64;
+    /// Default cost of reading one byte.
+    public static final int DEFAULT_BYTE_COST = 1;
+    /// Longest sequence of ranges considered for merging into one.
+    private static final int MAX_MERGE_COUNT = 64;
     /**
      * Compares two range, sorting primary by start (smaller first), and then by end (smaller
      * first).
@@ -23,6 +38,8 @@ public class RangeCacheUtil {
 
     private ArrayList<Range> addedRanges = new ArrayList<>();
     private boolean isSimplified = true;
+    private long requestCost = DEFAULT_REQUEST_COST;
+    private long byteCost = DEFAULT_BYTE_COST;
 
     /**
      * Merges two ranges. Assumption: range 'next' &gt; range 'current'. The ranges will be merged
@@ -33,7 +50,7 @@ public class RangeCacheUtil {
      * @param next    newer range
      * @return null if the ranges cannot be merged; otherwise a merged range.
      */
-    private static
+    static
     @Nullable
     Range mergeRange(Range current, Range next) {
         if (next.start > current.end + RANGE_MERGE_THRESHOLD || current.nullTerminated || next.nullTerminated) {
@@ -52,21 +69,118 @@ public class RangeCacheUtil {
         addRange(start, end, false);
     }
 
+    /**
+     * Sets the cost model of the read planner.
+     * @param requestCost fixed cost of each read request
+     * @param byteCost    cost of each byte read
+     */
+    public synchronized void setCosts(long requestCost, long byteCost) {
+        this.requestCost = requestCost;
+        this.byteCost = byteCost;
+        isSimplified = false;
+    }
+
+    /// @return the estimated cost of loading the ranges returned by {@link #getRanges}.
+    public synchronized long getPlanCost() {
+        long cost = 0;
+        for (Range r : getRanges()) {
+            cost += rangeCost(r.start, r);
+        }
+        return cost;
+    }
+
+    /// @return the estimated number of read requests for loading the ranges.
+    public synchronized int getPlanRequestCount() {
+        int count = 0;
+        for (Range r : getRanges()) {
+            count += requestCount(estimatedLength(r.start, r));
+        }
+        return count;
+    }
+
+    /**
+     * Estimates the number of bytes read for a merged range.
+     * @param start start of the merged range
+     * @param last  the last range in the merged range
+     */
+    private static long estimatedLength(long start, Range last) {
+        if (!last.nullTerminated) return last.end - start;
+        // Assumes that the string ends in the request which reads its first byte.
+        long prefix = last.stringStart - start;
+        return Math.min(last.end - start, (prefix / MAX_REQUEST_SIZE + 1) * MAX_REQUEST_SIZE);
+    }
+
+    private static long requestCount(long length) {
+        return (length + MAX_REQUEST_SIZE - 1) / MAX_REQUEST_SIZE;
+    }
+
+    private long rangeCost(long start, Range last) {
+        long len = estimatedLength(start, last);
+        return requestCount(len) * requestCost + len * byteCost;
+    }
+
+    /**
+     * Merges overlapping and touching ranges; this never makes loading more expensive. A
+     * null-terminated range overlapping anything else becomes a regular range.
+     */
+    private static ArrayList<Range> mergeTouching(List<Range> sorted) {
+        ArrayList<Range> out = new ArrayList<>(sorted.size());
+        for (Range r : sorted) {
+            if (out.isEmpty()) {
+                out.add(r);
+                continue;
+            }
+            Range last = out.get(out.size() - 1);
+            if (last.equals(r)) continue;
+            boolean overlap = r.start < last.end;
+            boolean touch = r.start == last.end && !last.nullTerminated && !r.nullTerminated;
+            if (overlap || touch) {
+                out.set(out.size() - 1, new Range(last.start, Math.max(last.end, r.end), false));
+            } else {
+                out.add(r);
+            }
+        }
+        return out;
+    }
+
     private void simplifyRanges() {
         if (addedRanges.isEmpty()) return;
         Collections.sort(addedRanges);
-        ArrayList<Range> newRanges = new ArrayList<>(addedRanges.size());
-        Range current = addedRanges.get(0);
-        for (int i = 1; i < addedRanges.size(); ++i) {
-            Range mergedRange = mergeRange(current, addedRanges.get(i));
-            if (mergedRange == null) {
-                newRanges.add(current);
-                current = addedRanges.get(i);
+        ArrayList<Range> ranges = mergeTouching(addedRanges);
+        int n = ranges.size();
+        // best[j] is the cost of the cheapest plan for the first j ranges; the last merged range
+        // of that plan starts at range from[j].
+        long[] best = new long[n + 1];
+        int[] from = new int[n + 1];
+        // A gap this large costs more than a request; merging across it never pays off.
+        long maxGap = byteCost > 0 ? requestCost / byteCost : Long.MAX_VALUE;
+        for (int j = 1; j <= n; ++j) {
+            Range last = ranges.get(j - 1);
+            best[j] = Long.MAX_VALUE;
+            for (int i = j; i >= 1 && i > j - MAX_MERGE_COUNT; --i) {
+                Range first = ranges.get(i - 1);
+                // Null-terminated ranges before the last one are read in full, because the
+                // load only stops at a null byte in the last one.
+                if (i < j && ranges.get(i).start - first.end >= maxGap) break;
+                long c = best[i - 1] + rangeCost(first.start, last);
+                if (c < best[j]) {
+                    best[j] = c;
+                    from[j] = i;
+                }
+            }
+        }
+        ArrayList<Range> newRanges = new ArrayList<>();
+        for (int j = n; j >= 1; j = from[j] - 1) {
+            Range first = ranges.get(from[j] - 1);
+            Range last = ranges.get(j - 1);
+            if (first == last) {
+                newRanges.add(last);
             } else {
-                current = mergedRange;
+                newRanges.add(new Range(first.start, last.end, last.nullTerminated, last
+                        .stringStart));
             }
         }
-        newRanges.add(current);
+        Collections.reverse(newRanges);
         addedRanges = newRanges;
         isSimplified = true;
     }
@@ -91,11 +205,19 @@ public class RangeCacheUtil {
         public final long end;
         /// If true, loading this range can be stopped at the first null byte encountered.
         public boolean nullTerminated;
+        /// For null-terminated ranges, the address where the string starts. Null bytes before
+        /// this address do not stop the load. Not part of equality.
+        public final long stringStart;
 
         public Range(long s, long e, boolean nullTerminated) {
+            this(s, e, nullTerminated, s);
+        }
+
+        public Range(long s, long e, boolean nullTerminated, long stringStart) {
             start = s;
             end = e;
             this.nullTerminated = nullTerminated;
+            this.stringStart = stringStart;
         }
 
         @Override
@@ -20,4 +20,21 @@ public class ReadWriteAccess {
             .McsReadHandler handler) {
         logger.log(Level.FINE, "Read from {0} in space {1}", new Object[]{address, space});
     }
+
+    /**
+     * @return true if {@link #doBulkRead} is faster than a series of doRead calls, for example
+     * because the node supports streams.
+     */
+    public boolean supportsBulkRead() {
+        return false;
+    }
+
+    /**
+     * Reads a longer range in one go. Only called if {@link #supportsBulkRead} returned true.
+     * @return the read in progress, to cancel it; may be null.
+     */
+    public MemoryConfigurationService.McsStreamRead doBulkRead(long address, int space, int
+            length, final MemoryConfigurationService.McsPipelinedReadHandler handler) {
+        throw new UnsupportedOperationException("Bulk read is not supported");
+    }
 }
@@ -13,6 +13,11 @@ import org.openlcb.implementations.*;
  *
  * This first implementation reads the entire data before providing the Reader
  * by call back.
+ * <p>
+ * By default one read request is outstanding at a time. For nodes that accept it,
+ * {@link #setReadWindow} allows several read requests in flight, which cuts the load time on a
+ * busy bus. With {@link #setUseStreams} the data is read in a single stream from nodes that
+ * support it.
  *
  * @author	Bob Jacobsen   Copyright (C) 2012
  * @version	$Revision$
@@ -44,14 +49,90 @@ public class CdiMemConfigReader  {
 
     long nextAddress = 0;
     StringBuffer buf;
+    int readWindow = 1;
+
+    /**
+     * Sets how many read requests may be in flight at the same time. The actual number adapts
+     * to the node's behavior, this is the upper limit.
+     * @param readWindow maximum number of outstanding reads; 1 reads one chunk at a time.
+     */
+    public void setReadWindow(int readWindow) {
+        this.readWindow = Math.max(1, readWindow);
+    }
+
+    boolean useStreams = false;
+
+    /**
+     * Reads the data with the Read Stream command from nodes that advertise stream support,
+     * using datagrams otherwise.
+     * @param useStreams true to try streams.
+     */
+    public void setUseStreams(boolean useStreams) {
+        this.useStreams = useStreams;
+    }
     
     ReaderAccess retval;
     public void startLoadReader(ReaderAccess retval) {
         this.retval = retval;
         nextAddress = 0;
         buf = new StringBuffer();
+        if (readWindow > 1 || useStreams) {
+            startPipelinedRead();
+            return;
+        }
         nextRequest();
     }
+
+    void startPipelinedRead() {
+        if (retval != null) {
+            retval.progressNotify(0, -1);
+        }
+        MemoryConfigurationService.McsPipelinedReadHandler handler =
+            new MemoryConfigurationService.McsPipelinedReadHandler() {
+                // The reply with the terminating null may arrive before requestPipelinedRead
+                // returned, so we cannot always cancel the read; the rest is ignored instead.
+                boolean complete = false;
+
+                @Override
+                public void handleFailure(int code) {
+                    logger.warning("Error reading CDI: " + Integer.toHexString(code));
+                    handleReadComplete();
+                }
+
+                @Override
+                public void handleReadData(NodeID dest, int space, long address, byte[] data) {
+                    if (complete) return;
+                    for (int i = 0; i<data.length; i++) {
+                        if (data[i] == 0) {
+                            if (pipelinedRead != null) pipelinedRead.cancel();
+                            if (streamRead != null) streamRead.cancel();
+                            handleReadComplete();
+                            return;
+                        }
+                        buf.append((char)data[i]);
+                    }
+                    if (retval != null) {
+                        retval.progressNotify(buf.length(), -1);
+                    }
+                }
+
+                @Override
+                public void handleReadComplete() {
+                    if (complete) return;
+                    complete = true;
+                    done();
+                }
+            };
+        if (useStreams) {
+            streamRead = service.requestBulkRead(node, space, 0, -1, readWindow, handler);
+        } else {
+            pipelinedRead = service.requestPipelinedRead(node, space, 0, -1, LENGTH,
+                    readWindow, handler);
+        }
+    }
+
+    private volatile MemoryConfigurationService.McsPipelinedRead pipelinedRead;
+    private volatile MemoryConfigurationService.McsStreamRead streamRead;
     
     void nextRequest() {
         if (retval != null) {
@@ -129,6 +129,9 @@ public class CdiPanel extends JPanel {
             task.run();
         }
         cleanupTasks.clear();
+        if (rep != null) {
+            rep.unprioritizeLoading();
+        }
         tabColorTimer.cancel(); 
     }
 
@@ -152,6 +155,8 @@ public class CdiPanel extends JPanel {
         setAlignmentX(Component.LEFT_ALIGNMENT);
         this.rep = rep;
         this.factory = factory;
+        // The displayed node loads before other nodes' configurations.
+        rep.prioritizeLoading();
 
         contentPanel = new JPanel();
         contentPanel.setLayout(new BoxLayout(contentPanel, BoxLayout.Y_AXIS));
@@ -315,10 +320,16 @@ public class CdiPanel extends JPanel {
     }
 
     public void saveChanged() {
-        for (EntryPane entry : allEntries) {
-            if (entry.isDirty()) {
-                entry.writeDisplayTextToNode();
+        // Collects all changes first, so that neighboring fields go out in the same write.
+        rep.setWriteBack(true);
+        try {
+            for (EntryPane entry : allEntries) {
+                if (entry.isDirty()) {
+                    entry.writeDisplayTextToNode();
+                }
             }
+        } finally {
+            rep.setWriteBack(false);
         }
     }
 
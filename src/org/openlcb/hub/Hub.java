@@ -2,10 +2,17 @@ package org.openlcb.hub;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.impl.GridConnectDecoder;
 
 /**
  * Simple multi-threaded OpenLCB hub implementation.
@@ -16,10 +23,17 @@ import java.util.logging.Logger;
  * <P>
  * main() directly invokes an object of the class.
  * <p>
- * Current threading model does all the sending from a
- * a single thread.  If this is observed to back up &amp;
- * halt all flow, individual transmit queues and threads
- * may be needed.
+ * All network connections are served by a single selector thread (the one calling start()).
+ * Lines arriving from clients are put on a queue, and a single output thread hands them to
+ * every Forwarding object. For network clients this only appends the line to the client's
+ * own bounded output queue, which the selector thread writes out as the socket accepts data.
+ * A client that does not keep up therefore only delays itself; when its queue is full, the
+ * {@link SlowClientPolicy} decides what happens.
+ * <p>
+ * In frame mode (see {@link #setFrameMode}) the hub understands GridConnect. Incoming data is
+ * parsed once, straight from the socket buffer, into CAN frames. In-process listeners added
+ * with {@link #addFrameListener} get these frame objects directly; text is only rendered
+ * for network clients and for Forwarding objects, once per frame.
  *
  * @author  Bob Jacobsen   Copyright 2012
  * @version $Revision: 17977 $
@@ -29,11 +43,25 @@ public class Hub {
     private final static Logger logger = Logger.getLogger(Hub.class.getName());
     public final static int DEFAULT_PORT = 12021;
     final static int CAPACITY = 20;  // not too long, to reduce delay
-    
+    /// Number of lines a client may have waiting before the slow client policy applies.
+    public final static int DEFAULT_CLIENT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * What to do with a client whose output queue is full.
+     */
+    public enum SlowClientPolicy {
+        /// The new line is not sent to this client.
+        DROP_NEWEST,
+        /// The oldest line waiting for this client is discarded.
+        DROP_OLDEST,
+        /// The client is disconnected.
+        DISCONNECT
+    }
+
     public Hub() {
         this(Hub.DEFAULT_PORT);
     }
-    
+
     public Hub(int port) {
         this.port = port;
         // create array server thread
@@ -43,6 +71,14 @@ public class Hub {
                     try {
                         // as items arrive in queue, forward to every available connection
                         Memo m = queue.take();
+                        if (m.frame != null) {
+                            for (CanFrameListener l : frameListeners) {
+                                l.send(m.frame);
+                            }
+                            if (m.line == null && hasTextForwarders) {
+                                m.line = GridConnect.format(m.frame);
+                            }
+                        }
                         for ( Forwarding e : threads) {
                             e.forward(m);
                         }
@@ -57,39 +93,183 @@ public class Hub {
         t.setDaemon(true);
         t.start();
     }
-    
+
     BlockingQueue<Memo> queue = new LinkedBlockingQueue<Memo>();
-    ArrayList<Forwarding> threads = new ArrayList<Forwarding>();
+    List<Forwarding> threads = new CopyOnWriteArrayList<Forwarding>();
+    List<CanFrameListener> frameListeners = new CopyOnWriteArrayList<CanFrameListener>();
+    /// True if any Forwarding other than network clients is registered. These read Memo.line.
+    private volatile boolean hasTextForwarders = false;
+    private volatile boolean frameMode = false;
     int port;
-    
-    ServerSocket service;
 
+    ServerSocketChannel service;
+    Selector selector;
+    /// Clients that have new output; the selector thread starts writing to them.
+    private final Queue<Client> writeReady = new ConcurrentLinkedQueue<>();
+    private volatile int clientQueueCapacity = DEFAULT_CLIENT_QUEUE_CAPACITY;
+    private volatile SlowClientPolicy slowClientPolicy = SlowClientPolicy.DROP_OLDEST;
+
+    /**
+     * Accepts connections and serves them. Does not return until the hub is stopped.
+     */
     public void start() {
         try {
-            service = new ServerSocket(port);
-            while (true) {
-                Socket clientSocket = service.accept();
-                ReaderThread r = new ReaderThread(clientSocket);
-                addForwarder(r);
-                r.start();
-                // not setting Daemon, so program will wait for thread to end before terminating
-                notifyOwner("Connection started with "+getRemoteSocketAddress(clientSocket));
+            synchronized (this) {
+                selector = Selector.open();
+                service = ServerSocketChannel.open();
+                service.socket().setReuseAddress(true);
+                service.socket().bind(new InetSocketAddress(port));
+                port = service.socket().getLocalPort();
+                service.configureBlocking(false);
+                service.register(selector, SelectionKey.OP_ACCEPT);
+                notifyAll();
             }
+            runSelector();
         } catch (IOException e) {
             logger.severe("Hub: Exception in main loop");
             logger.log(Level.SEVERE, "", e);
+        } catch (ClosedSelectorException e) {
+            // stopped.
+        }
+    }
+
+    /**
+     * Stops serving the network. Closes the listening socket and all client connections.
+     */
+    public void stop() {
+        Selector s;
+        synchronized (this) {
+            s = selector;
+        }
+        if (s == null) return;
+        for (Client c : getClients()) {
+            c.close();
+        }
+        try {
+            service.close();
+            s.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Hub: Error while stopping", e);
+        }
+    }
+
+    /**
+     * Blocks until start() is listening on the port.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized void waitForStart() throws InterruptedException {
+        while (selector == null) {
+            wait();
+        }
+    }
+
+    private void runSelector() throws IOException {
+        while (selector.isOpen()) {
+            selector.select();
+            Client ready;
+            while ((ready = writeReady.poll()) != null) {
+                ready.write();
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Client c = (Client) key.attachment();
+                if (key.isReadable()) {
+                    c.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    c.write();
+                }
+            }
         }
     }
-    
+
+    private void accept() throws IOException {
+        SocketChannel ch = service.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Client c = new Client(ch);
+        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+        addForwarder(c);
+        notifyOwner("Connection started with " + c.getRemoteAddress());
+    }
+
     public int getPort() { return port; }
     public void addForwarder(Forwarding f) {
+        if (!(f instanceof Client)) {
+            hasTextForwarders = true;
+        }
         threads.add(f);
     }
-    
+
+    /**
+     * Switches the hub to parse the incoming GridConnect data into frames. Data that is not a
+     * GridConnect frame is discarded in this mode. Has to be called before start().
+     * @param frameMode true to parse frames.
+     */
+    public void setFrameMode(boolean frameMode) {
+        this.frameMode = frameMode;
+    }
+
+    /**
+     * Registers an in-process listener for all frames passing through the hub. Only works in
+     * frame mode. The frames are shared between all listeners and must not be modified.
+     * @param l listener to call on the hub output thread.
+     */
+    public void addFrameListener(CanFrameListener l) {
+        frameListeners.add(l);
+    }
+
+    public void removeFrameListener(CanFrameListener l) {
+        frameListeners.remove(l);
+    }
+
+    /**
+     * Sends a frame to all clients and frame listeners.
+     * @param frame frame to send; must not be modified afterwards.
+     */
+    public void putFrame(CanFrame frame) {
+        queue.add(new Memo(frame, null));
+    }
+
     public void notifyOwner(String line) {
         logger.info(line);
     }
-    
+
+    /**
+     * Sets how many lines may be waiting for a single client. Applies to existing clients too.
+     * @param capacity number of lines.
+     */
+    public void setClientQueueCapacity(int capacity) {
+        clientQueueCapacity = capacity;
+    }
+
+    /**
+     * Sets what happens to a client that does not read its data fast enough.
+     * @param policy what to do when a client's output queue is full.
+     */
+    public void setSlowClientPolicy(SlowClientPolicy policy) {
+        slowClientPolicy = policy;
+    }
+
+    /**
+     * @return the currently connected network clients, with their statistics.
+     */
+    public List<Client> getClients() {
+        List<Client> l = new ArrayList<>();
+        for (Forwarding f : threads) {
+            if (f instanceof Client) l.add((Client) f);
+        }
+        return l;
+    }
+
     // from jmri.util.SocketUtil
     String getRemoteSocketAddress(Socket socket) {
         try {
@@ -100,7 +280,7 @@ public class Hub {
         }
         return "<unknown>";
     }
-    
+
     public void putLine(String line) {
         try {
             queue.put(new Memo(line, null));
@@ -108,71 +288,246 @@ public class Hub {
             logger.log(Level.SEVERE, "", e);
         }
     }
-    
+
     public interface Forwarding {
         public void forward(Memo m);
     }
-    
-    class ReaderThread extends Thread implements Forwarding {
-    
-        ReaderThread(Socket clientSocket) {
-            this.clientSocket = clientSocket;
-        }
-        
-        Socket clientSocket;
-        DataInputStream input;
-        PrintStream output;
-        
-        public void run() {
+
+    /**
+     * A network client of the hub. Reading and writing the socket happens on the selector
+     * thread; forward() only queues the line.
+     */
+    public class Client implements Forwarding {
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        SelectionKey key;
+
+        // Input side; only used by the selector thread.
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        private boolean lastWasCr = false;
+        /// Parser for frame mode, null otherwise.
+        private final GridConnectDecoder decoder;
+
+        // Output side; guarded by this.
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        /// Data being written, in read mode (position..limit is still to be written).
+        private ByteBuffer out = ByteBuffer.allocate(8192);
+        /// True if the client is in writeReady or waiting for the socket to become writable.
+        private boolean scheduled = false;
+        private boolean closed = false;
+        private long lineCount = 0;
+        private long dropCount = 0;
+        private int maxQueueLength = 0;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+            this.remoteAddress = getRemoteSocketAddress(channel.socket());
+            out.flip();
+            if (frameMode) {
+                decoder = new GridConnectDecoder(new CanFrameListener() {
+                    @Override
+                    public void send(CanFrame frame) {
+                        queue.add(new Memo(frame, Client.this));
+                    }
+                }, false);
+            } else {
+                decoder = null;
+            }
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        /// @return the number of lines waiting to be sent to this client.
+        public synchronized int getQueueLength() {
+            return pending.size();
+        }
+
+        /// @return the longest the queue of this client has been.
+        public synchronized int getMaxQueueLength() {
+            return maxQueueLength;
+        }
+
+        /// @return the number of lines this client did not get because it was too slow.
+        public synchronized long getDropCount() {
+            return dropCount;
+        }
+
+        /// @return the number of lines sent to this client.
+        public synchronized long getLineCount() {
+            return lineCount;
+        }
+
+        @Override
+        public void forward(Memo m) {
+            if (this.equals(m.source)) return;
+            synchronized (this) {
+                if (closed) return;
+                if (pending.size() >= clientQueueCapacity) {
+                    switch (slowClientPolicy) {
+                        case DROP_NEWEST:
+                            dropCount++;
+                            return;
+                        case DROP_OLDEST:
+                            pending.poll();
+                            dropCount++;
+                            break;
+                        case DISCONNECT:
+                            dropCount++;
+                            notifyOwner("Disconnecting slow client " + remoteAddress);
+                            close();
+                            return;
+                    }
+                }
+                pending.add(m.getBytes());
+                if (pending.size() > maxQueueLength) {
+                    maxQueueLength = pending.size();
+                }
+                if (scheduled) return;
+                scheduled = true;
+            }
+            writeReady.add(this);
+            selector.wakeup();
+        }
+
+        // Called on the selector thread.
+        void read() {
             try {
-                input = new DataInputStream(clientSocket.getInputStream());
-                output = new PrintStream(clientSocket.getOutputStream(),true,"ISO-8859-1");
-        
-                while (true) {
-                    String line = input.readLine();
-                    if (line == null) break;  // socket ended
-                    queue.put(new Memo(line, this));
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                byte[] data = readBuffer.array();
+                if (decoder != null) {
+                    decoder.decode(data, 0, n);
+                    return;
+                }
+                for (int i = 0; i < n; i++) {
+                    byte c = data[i];
+                    if (c == '\n' && lastWasCr) {
+                        lastWasCr = false;
+                        continue;
+                    }
+                    lastWasCr = c == '\r';
+                    if (c == '\n' || c == '\r') {
+                        queue.add(new Memo(new String(line, 0, lineLength,
+                                StandardCharsets.ISO_8859_1), this));
+                        lineLength = 0;
+                        continue;
+                    }
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = c;
                 }
-     
             } catch (IOException e) {
-                logger.log(Level.SEVERE, "Hub: Error while handling input from {0}", getRemoteSocketAddress(clientSocket));
-                logger.log(Level.SEVERE, "", e);
-            } catch (InterruptedException e) {
-                logger.log(Level.SEVERE, "Hub: Interrupted while handling input from {0}", getRemoteSocketAddress(clientSocket));
+                logger.log(Level.SEVERE, "Hub: Error while handling input from {0}",
+                        remoteAddress);
                 logger.log(Level.SEVERE, "", e);
+                close();
+            }
+        }
+
+        // Called on the selector thread.
+        void write() {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        if (closed) return;
+                        out.compact();
+                        byte[] b;
+                        while ((b = pending.peek()) != null) {
+                            if (b.length > out.remaining()) {
+                                if (out.position() > 0) break;
+                                out = ByteBuffer.allocate(b.length);
+                            }
+                            out.put(b);
+                            pending.poll();
+                            lineCount++;
+                        }
+                        out.flip();
+                        if (!out.hasRemaining()) {
+                            scheduled = false;
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                    }
+                    channel.write(out);
+                    if (out.hasRemaining()) {
+                        // Socket is full; continue when it becomes writable.
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException|CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                pending.clear();
             }
             threads.remove(this);
-            notifyOwner("Connection ended with "+getRemoteSocketAddress(clientSocket));
+            notifyOwner("Connection ended with " + remoteAddress);
+            if (key != null) key.cancel();
             try {
-                clientSocket.close();
+                channel.close();
             } catch (IOException e) {
                 logger.severe("Hub: Error while closing socket at end of connection");
                 logger.log(Level.SEVERE, "", e);
             }
         }
-        
-        public void forward(Memo m) {
-            if (! this.equals(m.source)) {
-                output.println(m.line); 
-            }
-        }
-        
     }
-    
+
     public class Memo {
+        /// The text line. In frame mode this is only filled in if there are Forwarding
+        /// objects other than the network clients.
         public String line;
         public Forwarding source;
-        
+        /// The parsed frame in frame mode, null otherwise.
+        public final CanFrame frame;
+        /// The line as sent on the network, rendered once for all clients.
+        private byte[] bytes;
+
         Memo(String line, Forwarding source) {
             this.line = line;
             this.source = source;
+            this.frame = null;
+        }
+
+        Memo(CanFrame frame, Forwarding source) {
+            this.frame = frame;
+            this.source = source;
+        }
+
+        /// @return the line with a newline appended, in ISO-8859-1.
+        synchronized byte[] getBytes() {
+            if (bytes == null) {
+                if (line == null) {
+                    byte[] b = new byte[GridConnect.MAX_ENCODED_LENGTH + 1];
+                    int len = GridConnect.encode(frame, b, 0);
+                    b[len++] = '\n';
+                    bytes = Arrays.copyOf(b, len);
+                } else {
+                    bytes = (line + "\n").getBytes(StandardCharsets.ISO_8859_1);
+                }
+            }
+            return bytes;
         }
     }
-    
+
     static public void main(String[] args) {
         Hub h = new Hub();
-        
+
         h.start();
-        
+
     }
 }
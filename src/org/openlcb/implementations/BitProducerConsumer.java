@@ -73,7 +73,11 @@ public class BitProducerConsumer extends MessageDecoder {
                         .getNodeId(), id));
             }
         };
-        iface.registerMessageListener(this);
+        // Only the messages about our two events and the Identify Events requests are
+        // delivered to us, so that a large number of these objects is cheap to have around.
+        iface.registerMessageListener(this, IdentifyEventsMessage.class);
+        if (!eventOn.equals(nullEvent)) iface.registerEventListener(this, eventOn);
+        if (!eventOff.equals(nullEvent)) iface.registerEventListener(this, eventOff);
         iface.getOutputConnection().registerStartNotification(new ConnectionListener() {
             @Override
             public void connectionActive(Connection c) {
@@ -1,9 +1,14 @@
 package org.openlcb.implementations;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -13,7 +18,7 @@ import org.openlcb.*;
 
 /**
  * Accepts Datagrams over a Connection from "upstream", and meters them out
- * to "downstream" nodes (e.g. on a CAN network), one at a time.
+ * to "downstream" nodes (e.g. on a CAN network), one at a time per destination node.
  * This is to ensure that e.g. simple CAN nodes that can't accept more
  * than one datagram at a time get a chance to reply before the next one
  * arrives.
@@ -21,7 +26,8 @@ import org.openlcb.*;
  * Datagram negative replies cause a local retransmission. Positive
  * replies are reflected upstream to original source of the datagram.
  *<ul>
- *<li>Does not parallelize Datagrams to separate nodes
+ *<li>Datagrams to separate nodes are in flight in parallel, up to a global limit (see
+ * {@link #setMaxInFlight}). A node that does not reply only holds up datagrams to itself.
  *<li>Needs to timeout and resume operation if no reply received
  *</ul>
  *<p>
@@ -33,6 +39,8 @@ public class DatagramMeteringBuffer extends MessageDecoder {
 
     //final static int TIMEOUT = 700;
     final static int TIMEOUT = 3000;
+    /// Default limit of datagrams waiting for a reply at the same time (to different nodes).
+    public final static int DEFAULT_MAX_IN_FLIGHT = 8;
     private final static Logger logger = Logger.getLogger(DatagramMeteringBuffer.class.getName());
     private ThreadPoolExecutor threadPool = null;
     final static int minThreads = 10;
@@ -63,14 +71,12 @@ public class DatagramMeteringBuffer extends MessageDecoder {
            timer = new Timer("OpenLCB-datagram-timer");
         }
         this.toDownstream = toDownstream;
-        datagramComplete();
         
         fromDownstream = new ReplyHandler();
     }
     
     Connection toDownstream;
     Connection fromDownstream;
-    MessageMemo currentMemo;
     private Timer timer = null;
     int timeoutMillis = TIMEOUT;
 
@@ -83,30 +89,67 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         return fromDownstream;
     }
     
-    BlockingQueue<MessageMemo> queue = new LinkedBlockingQueue<MessageMemo>();
-    int pendingEntries = 0;
-    int threadPending = 0;
+    // All of the following are guarded by this.
+    /// Per destination node the datagram in flight and the ones waiting behind it.
+    private final Map<NodeID, Destination> destinations = new HashMap<>();
+    /// Destinations that have waiting datagrams but nothing in flight, because the global
+    /// limit was reached. Served in order.
+    private final ArrayDeque<Destination> ready = new ArrayDeque<>();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int inFlight = 0;
+    /// Datagrams queued to the thread pool but not yet handed to downstream.
+    private int sendsPending = 0;
+    /// Datagrams accepted but not yet completed.
+    private int pendingEntries = 0;
 
     public void setTimeout(int timeoutMillis) {
         this.timeoutMillis = timeoutMillis;
     }
 
+    /**
+     * Sets how many datagrams may be waiting for a reply at the same time. There is never more
+     * than one outstanding datagram per destination node.
+     * @param maxInFlight limit; 1 sends only one datagram at a time to the whole network.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        List<MessageMemo> toSend;
+        synchronized (this) {
+            this.maxInFlight = maxInFlight;
+            toSend = startReady();
+        }
+        sendAll(toSend);
+    }
+
+    /**
+     * @return how many datagrams may be waiting for a reply at the same time.
+     */
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return the number of datagrams currently waiting for a reply.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
     /**
      * Waits until all pending entries are sent or we are blocked on sending multiple requests to
      * the same target node.
      */
     public void waitForSendQueue() {
-        while(true) {
-            synchronized (this) {
-                if (pendingEntries == 0 || threadPending == 0) {
-                    break;
+        synchronized (this) {
+            while (sendsPending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
                 }
             }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                return;
-            }
         }
         waitForTimer();
     }
@@ -116,16 +159,9 @@ public class DatagramMeteringBuffer extends MessageDecoder {
      * @throws java.lang.InterruptedException when interrupted.
      */
     public void waitForSendCallbacks() throws InterruptedException {
-        while(true) {
-            synchronized (this) {
-                if (pendingEntries == 0 && threadPending == 1) {
-                    break;
-                }
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                throw e;
+        synchronized (this) {
+            while (pendingEntries > 0 || sendsPending > 0) {
+                wait();
             }
         }
         waitForTimer();
@@ -152,21 +188,117 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     @Override
     public void put(Message msg, Connection toUpstream) {
         if (msg instanceof DatagramMessage) {
+            MessageMemo memo = new MessageMemo((DatagramMessage) msg, toUpstream, toDownstream);
             synchronized (this) {
                 ++pendingEntries;
+                Destination d = destinations.get(memo.message.getDestNodeID());
+                if (d == null) {
+                    d = new Destination();
+                    destinations.put(memo.message.getDestNodeID(), d);
+                }
+                d.waiting.add(memo);
+                if (d.current != null || d.isReady) return;
+                if (inFlight >= maxInFlight) {
+                    d.isReady = true;
+                    ready.add(d);
+                    return;
+                }
+                startNext(d);
             }
-            queue.add(new MessageMemo((DatagramMessage) msg, toUpstream, toDownstream));
+            send(memo);
         } else {
             toDownstream.put(msg, fromDownstream);
         }
     }
 
-    private void datagramComplete() {
-        currentMemo = null;
+    /**
+     * The datagram in flight to a destination is done (acked, rejected or timed out). Starts
+     * the next ones.
+     */
+    private void datagramComplete(MessageMemo memo) {
+        List<MessageMemo> toSend;
         synchronized (this) {
-            threadPending++;
+            Destination d = destinations.get(memo.message.getDestNodeID());
+            if (d == null || d.current != memo) return;
+            d.current = null;
+            inFlight--;
+            pendingEntries--;
+            if (!d.waiting.isEmpty()) {
+                d.isReady = true;
+                ready.add(d);
+            } else if (!d.isReady) {
+                destinations.remove(memo.message.getDestNodeID());
+            }
+            toSend = startReady();
+            notifyAll();
+        }
+        sendAll(toSend);
+    }
+
+    // Called with the lock held.
+    private void startNext(Destination d) {
+        d.current = d.waiting.poll();
+        inFlight++;
+        sendsPending++;
+    }
+
+    // Called with the lock held.
+    private List<MessageMemo> startReady() {
+        List<MessageMemo> l = new ArrayList<>();
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            Destination d = ready.poll();
+            d.isReady = false;
+            if (d.current != null || d.waiting.isEmpty()) continue;
+            startNext(d);
+            l.add(d.current);
+        }
+        return l;
+    }
+
+    private void sendAll(List<MessageMemo> l) {
+        for (MessageMemo m : l) {
+            send(m);
+        }
+    }
+
+    /// Hands the datagram to downstream on the thread pool.
+    private void send(final MessageMemo memo) {
+        ThreadPoolExecutor pool = threadPool;
+        if (pool == null || pool.isShutdown()) {
+            // the buffer has been disposed of.
+            sendDone();
+            return;
+        }
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        memo.sendIt();
+                    } finally {
+                        sendDone();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sendDone();
         }
-        threadPool.execute(new Consumer(queue));
+    }
+
+    private synchronized void sendDone() {
+        sendsPending--;
+        notifyAll();
+    }
+
+    /**
+     * Datagrams to one destination node.
+     */
+    private static class Destination {
+        /// Datagram waiting for the reply, or null.
+        MessageMemo current;
+        final ArrayDeque<MessageMemo> waiting = new ArrayDeque<>();
+        /// True if this is in the ready queue.
+        boolean isReady;
     }
 
     class ReplyHandler extends AbstractConnection {
@@ -175,10 +307,16 @@ public class DatagramMeteringBuffer extends MessageDecoder {
          */
         @Override
         public void put(Message msg, Connection sender) {
-            if (currentMemo == null) {
-                return;
+            // All replies we care about come from the datagram's destination node.
+            MessageMemo memo;
+            synchronized (DatagramMeteringBuffer.this) {
+                Destination d = destinations.get(msg.getSourceNodeID());
+                if (d == null || d.current == null) {
+                    return;
+                }
+                memo = d.current;
             }
-            currentMemo.put(msg, sender);
+            memo.put(msg, sender);
         }
     }
         
@@ -195,7 +333,6 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         }
         
         public void sendIt() {
-            currentMemo = this;
             forwardDownstream();
         }
 
@@ -265,7 +402,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
             }
             endTimeout();
             // allow sending another
-            datagramComplete();
+            datagramComplete(this);
         }
         
         /**
@@ -284,7 +421,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
                 forwardDownstream();
             } else {
                 // allow sending another
-                datagramComplete();
+                datagramComplete(this);
             }
         }
     }
@@ -318,30 +455,4 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         timer = null;
     }    
 
-
-    class Consumer implements Runnable {
-        private final BlockingQueue<MessageMemo> queue;
-        Consumer(BlockingQueue<MessageMemo> q) { queue = q; }
-        @Override
-        public void run() {
-            if(threadPool == null || threadPool.isShutdown()) {
-               // the buffer has been disposed of, so just return
-               return;
-            }
-            try {
-                consume(queue.take());
-                synchronized (DatagramMeteringBuffer.this) {
-                    pendingEntries--;
-                }
-            } catch (InterruptedException ex) {
-                // interrupted while processing, but not in a loop.
-            } finally {
-                synchronized (DatagramMeteringBuffer.this) {
-                    threadPending--;
-                }
-            }
-            // and exits. Another has to be started with this item is done.
-        }
-        void consume(MessageMemo x) { x.sendIt(); }
-    }    
 }
@@ -1,5 +1,8 @@
 package org.openlcb.implementations;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.jcip.annotations.Immutable;
@@ -20,9 +23,9 @@ import org.openlcb.*;
  * <p>
  * Multiple copies of this can exist.  
  * <ul>
- * <li>Replies to sent datagrams are processed one-by-one here. This object
- *      can send to multiple destination nodes, but it cannot overlap sent messages:
- *      each send&amp;reply must be complete before the next is started.
+ * <li>Replies to sent datagrams are processed one-by-one here. Several datagrams may be
+ *      sent before the replies arrive, also to the same node; replies from a node are
+ *      matched to the datagrams sent to it in order.
  * <li>Incoming datagrams for this node are forwarded to the receiving
  *      code, regardless of whether the sending node was ever a destination.
  * </ul>
@@ -54,10 +57,7 @@ public class DatagramService extends MessageDecoder {
      * @param memo    datagram to send
      */
     public void sendData(DatagramServiceTransmitMemo memo){
-        if (xmtMemo != null) {
-            logger.log(Level.SEVERE, "Overriding datagram transmit memo. old {0} new {1}", new Object[]{xmtMemo, memo}); //log
-        }
-        xmtMemo = memo;
+        addTransmitMemo(memo);
         Message m = new DatagramMessage(here, memo.dest, memo.data);
         downstream.put(m, this);
     }
@@ -75,7 +75,7 @@ public class DatagramService extends MessageDecoder {
             @Override
             public void handleFailure(int errorCode) {}
         };
-        xmtMemo = memo;
+        addTransmitMemo(memo);
         Message m = new DatagramMessage(here, memo.dest, memo.data);
         downstream.put(m, this);
     }
@@ -114,10 +114,9 @@ public class DatagramService extends MessageDecoder {
      */
     @Override
     public void handleDatagramRejected(DatagramRejectedMessage msg, Connection sender){
-        if (xmtMemo != null && msg.getDestNodeID().equals(here) && xmtMemo.dest.equals(msg.getSourceNodeID()) ) {
-            if (msg.canResend()) return;
-            DatagramServiceTransmitMemo temp = xmtMemo;
-            xmtMemo = null;
+        if (!msg.getDestNodeID().equals(here) || msg.canResend()) return;
+        DatagramServiceTransmitMemo temp = pollTransmitMemo(msg.getSourceNodeID());
+        if (temp != null) {
             temp.handleFailure(msg.getCode());
         }
     }
@@ -127,15 +126,35 @@ public class DatagramService extends MessageDecoder {
      */
     @Override
     public void handleDatagramAcknowledged(DatagramAcknowledgedMessage msg, Connection sender){
-        if (xmtMemo != null && msg.getDestNodeID().equals(here) && xmtMemo.dest.equals(msg.getSourceNodeID()) ) {
-            DatagramServiceTransmitMemo temp = xmtMemo;
-            xmtMemo = null;
+        if (!msg.getDestNodeID().equals(here)) return;
+        DatagramServiceTransmitMemo temp = pollTransmitMemo(msg.getSourceNodeID());
+        if (temp != null) {
             temp.handleSuccess(msg.getFlags());
         }
     }
 
     DatagramServiceReceiveMemo rcvMemo;
-    DatagramServiceTransmitMemo xmtMemo;
+    /// Datagrams sent and waiting for the reply, per destination node. The metering buffer
+    /// sends only one datagram at a time to each node, so replies come back in this order.
+    private final Map<NodeID, ArrayDeque<DatagramServiceTransmitMemo>> xmtMemos = new
+            HashMap<>();
+
+    private synchronized void addTransmitMemo(DatagramServiceTransmitMemo memo) {
+        ArrayDeque<DatagramServiceTransmitMemo> q = xmtMemos.get(memo.dest);
+        if (q == null) {
+            q = new ArrayDeque<>();
+            xmtMemos.put(memo.dest, q);
+        }
+        q.add(memo);
+    }
+
+    private synchronized DatagramServiceTransmitMemo pollTransmitMemo(NodeID src) {
+        ArrayDeque<DatagramServiceTransmitMemo> q = xmtMemos.get(src);
+        if (q == null) return null;
+        DatagramServiceTransmitMemo memo = q.poll();
+        if (q.isEmpty()) xmtMemos.remove(src);
+        return memo;
+    }
     
     /**
      * Accept request to notify for a particular
@@ -5,10 +5,16 @@ import org.openlcb.DefaultPropertyListenerSupport;
 import org.openlcb.EventID;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import net.jcip.annotations.ThreadSafe;
 
 /**
@@ -17,7 +23,9 @@ import net.jcip.annotations.ThreadSafe;
  * entries in EventTable are owned by live Java objects using reference holders and disappear
  * when requested.
  * <p>
- * EventTable is thread-safe.
+ * EventTable is thread-safe. Searches do not take any lock: every entry is kept in a
+ * concurrent index keyed by the letters and digits of its description and by the pairs of
+ * adjacent ones, which is updated as entries are added, changed and released.
  * <p>
  * Created by bracz on 4/6/17.
  */
@@ -25,6 +33,14 @@ import net.jcip.annotations.ThreadSafe;
 @ThreadSafe
 public class EventTable {
     private final HashMap<Long, EventInfo> entries = new HashMap<>();
+    /// All live entries, for queries that have no letters or digits.
+    private final Set<EventTableEntry> allEntries = ConcurrentHashMap.newKeySet();
+    /// For each (lowercase) letter or digit, and each pair of adjacent ones, the live entries
+    /// whose description contains it.
+    private final ConcurrentHashMap<String, Set<EventTableEntry>> postings = new
+            ConcurrentHashMap<>();
+    /// Number of descriptions scored by searches.
+    private final AtomicLong scoredCount = new AtomicLong();
 
     /// This property change notification is produced when the list of descriptions registered
     /// for a given event ID has changed (due to addition, removal or description change).
@@ -75,32 +91,69 @@ public class EventTable {
         class SearchEntryHelper implements Comparable<SearchEntryHelper> {
             final EventTableEntry entry;
             final float score;
+            /// Description at scoring time; the entry may be changed during the search.
+            final String description;
 
-            SearchEntryHelper(EventTableEntry e, float s) {
+            SearchEntryHelper(EventTableEntry e, float s, String d) {
                 entry = e;
                 score = s;
+                description = d;
             }
 
             @Override
             public int compareTo(@NonNull SearchEntryHelper o) {
                 int scc = Float.compare(score,o.score);
                 if (scc != 0) return scc;
-                return -entry.description.compareTo(o.entry.description);
+                return -description.compareTo(o.description);
             }
         }
         PriorityQueue<SearchEntryHelper> heap = new PriorityQueue<SearchEntryHelper>(maxResults +
                 1);
-        synchronized (entries) {
-            for (EventInfo ev : entries.values()) {
-                for (EventTableEntry entry : ev.entries) {
-                    float sc = match(entry.description, query);
+        // Every letter and digit of the query has to appear in a matching description.
+        Set<String> charKeys = new HashSet<>();
+        Set<String> pairKeys = new HashSet<>();
+        collectKeys(query.toLowerCase(), charKeys, pairKeys);
+        List<Set<EventTableEntry>> charSets = findPostings(charKeys);
+        if (charSets == null) return new LinkedList<>();
+        Set<EventTableEntry> scored = Collections.emptySet();
+        if (!pairKeys.isEmpty()) {
+            // A word prefix match also contains every adjacent pair of the query words. Those
+            // entries are scored first; the others can only be subsequence matches.
+            scored = new HashSet<>();
+            List<Set<EventTableEntry>> pairSets = findPostings(pairKeys);
+            if (pairSets != null) {
+                for (EventTableEntry entry : pairSets.get(0)) {
+                    if (!inAll(pairSets, entry)) continue;
+                    scored.add(entry);
+                    String description = entry.description;
+                    float sc = match(description, query);
+                    scoredCount.incrementAndGet();
                     if (sc <= 0) continue; // no match
-                    heap.add(new SearchEntryHelper(entry, sc));
+                    heap.add(new SearchEntryHelper(entry, sc, description));
                     if (heap.size() > maxResults) {
                         heap.poll();
                     }
                 }
             }
+            if (!heap.isEmpty() && heap.size() >= maxResults && heap.peek().score >
+                    SUBSTRING_SCORE + SUBSTRINGIC_SCORE) {
+                // No subsequence match could make it into the results.
+                charSets = null;
+            }
+        }
+        if (charSets != null) {
+            Set<EventTableEntry> candidates = charSets.isEmpty() ? allEntries : charSets.get(0);
+            for (EventTableEntry entry : candidates) {
+                if (!inAll(charSets, entry) || scored.contains(entry)) continue;
+                String description = entry.description;
+                float sc = match(description, query);
+                scoredCount.incrementAndGet();
+                if (sc <= 0) continue; // no match
+                heap.add(new SearchEntryHelper(entry, sc, description));
+                if (heap.size() > maxResults) {
+                    heap.poll();
+                }
+            }
         }
         LinkedList<EventTableEntry> results = new LinkedList<>();
         while (!heap.isEmpty()) {
@@ -176,6 +229,103 @@ public class EventTable {
         }
     }
 
+    /// @return how many descriptions the searches scored so far. Shows how well the search
+    /// index narrows down the candidates.
+    public long getScoredCount() {
+        return scoredCount.get();
+    }
+
+    /**
+     * Collects the index keys of a (lowercase) string: its letters and digits, and the pairs
+     * of adjacent letters and digits.
+     *
+     * @param lower    string to index.
+     * @param chars    receives the single-character keys.
+     * @param pairs    receives the two-character keys.
+     */
+    private static void collectKeys(String lower, Set<String> chars, Set<String> pairs) {
+        for (int i = 0; i < lower.length(); ++i) {
+            char c = lower.charAt(i);
+            if (!Character.isLetterOrDigit(c)) continue;
+            chars.add(String.valueOf(c));
+            if (i > 0 && Character.isLetterOrDigit(lower.charAt(i - 1))) {
+                pairs.add(lower.substring(i - 1, i + 1));
+            }
+        }
+    }
+
+    /**
+     * Looks up the posting sets of some index keys.
+     *
+     * @param keys index keys.
+     * @return the posting sets, smallest first, or null if some key has no entries.
+     */
+    private List<Set<EventTableEntry>> findPostings(Set<String> keys) {
+        List<Set<EventTableEntry>> sets = new ArrayList<>(keys.size());
+        for (String k : keys) {
+            Set<EventTableEntry> p = postings.get(k);
+            if (p == null || p.isEmpty()) return null;
+            sets.add(p);
+        }
+        Collections.sort(sets, new Comparator<Set<EventTableEntry>>() {
+            @Override
+            public int compare(Set<EventTableEntry> a, Set<EventTableEntry> b) {
+                return Integer.compare(a.size(), b.size());
+            }
+        });
+        return sets;
+    }
+
+    /// @return true if the entry is in all but the first of the posting sets.
+    private static boolean inAll(List<Set<EventTableEntry>> sets, EventTableEntry entry) {
+        for (int i = 1; i < sets.size(); ++i) {
+            if (!sets.get(i).contains(entry)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds an entry to the search index, or updates it after its description changed. Callers
+     * hold the lock of the entry's EventInfo, which serializes the changes to one entry.
+     *
+     * @param entry the entry with its current description.
+     */
+    private void indexEntry(EventTableEntry entry) {
+        Set<String> keys = new HashSet<>();
+        collectKeys(entry.description.toLowerCase(), keys, keys);
+        // Adds the new keys before dropping the old ones, so that concurrent searches find the
+        // entry under either description.
+        for (String c : keys) {
+            Set<EventTableEntry> p = postings.get(c);
+            if (p == null) {
+                Set<EventTableEntry> np = ConcurrentHashMap.newKeySet();
+                p = postings.putIfAbsent(c, np);
+                if (p == null) p = np;
+            }
+            p.add(entry);
+        }
+        for (String c : entry.indexKeys) {
+            if (!keys.contains(c)) removePosting(c, entry);
+        }
+        entry.indexKeys = keys;
+        allEntries.add(entry);
+    }
+
+    /// Removes an entry from the search index. Callers hold the lock of the entry's EventInfo.
+    private void unindexEntry(EventTableEntry entry) {
+        allEntries.remove(entry);
+        for (String c : entry.indexKeys) {
+            removePosting(c, entry);
+        }
+        entry.indexKeys = Collections.emptySet();
+    }
+
+    private void removePosting(String c, EventTableEntry entry) {
+        Set<EventTableEntry> p = postings.get(c);
+        if (p != null) p.remove(entry);
+        // Empty sets are left in place; there are only as many as distinct keys.
+    }
+
     private static float SUBSTRING_SCORE = 10;
     private static float SUBSTRINGIC_SCORE = 5;
     private static float WORDPREF_SCORE = 20;
@@ -229,6 +379,7 @@ public class EventTable {
             newEntry.h = h;
             synchronized (entries) {
                 entries.add(newEntry);
+                indexEntry(newEntry);
             }
             notifyUpdated();
             return h;
@@ -244,6 +395,7 @@ public class EventTable {
             synchronized (entries) {
                 for (int i = 0; i < entries.size(); ++i) {
                     if (entries.get(i).h == h) {
+                        unindexEntry(entries.get(i));
                         entries.remove(i);
                         --i;
                     }
@@ -277,8 +429,10 @@ public class EventTable {
      * Event Table.
      */
     public class EventTableEntry {
-        /// The client can mutate this value.
-        String description;
+        /// The client can mutate this value. Volatile because searches read it without locking.
+        volatile String description;
+        /// Keys under which this entry is in the search index. Guarded by the EventInfo.
+        Set<String> indexKeys = Collections.emptySet();
         /// This is the holder object that the client has a reference to.
         EventTableEntryHolder h;
 
@@ -319,6 +473,7 @@ public class EventTable {
             synchronized (h.event.entries) {
                 if (description.equals(newDescription)) return;
                 description = newDescription;
+                if (allEntries.contains(this)) indexEntry(this);
             }
             h.event.notifyUpdated();
         }
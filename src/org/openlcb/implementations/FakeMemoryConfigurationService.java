@@ -64,9 +64,13 @@ public class FakeMemoryConfigurationService extends MemoryConfigurationService {
         public int space;
         public long address;
         public int size;
+        /// Largest number of reads in flight, for pipelined reads.
+        public int window;
     }
     /// Records every read that happened through this fake.
     public List<ActualRead> actualReadList = new ArrayList<>();
+    /// Records every pipelined read that happened through this fake.
+    public List<ActualRead> actualPipelinedReadList = new ArrayList<>();
 
     public void addSpace(NodeID remoteNode, int space, byte[] payload, boolean writeEnabled) {
         SpaceKey k = new SpaceKey();
@@ -142,6 +146,83 @@ public class FakeMemoryConfigurationService extends MemoryConfigurationService {
         cb.handleReadData(dest, space, address, ret);
     }
 
+    @Override
+    public McsPipelinedRead requestPipelinedRead(NodeID dest, int space, long address, long
+            length, int chunkSize, int maxWindow, McsPipelinedReadHandler handler) {
+        ActualRead ar = new ActualRead();
+        ar.space = space;
+        ar.address = address;
+        ar.size = (int) length;
+        ar.window = maxWindow;
+        actualPipelinedReadList.add(ar);
+
+        McsPipelinedRead r = new McsPipelinedRead(dest, space, address, length < 0 ? -1 :
+                address + length, chunkSize, maxWindow, handler);
+        SpaceData d = findSpace(dest, space);
+        if (d == null || d.payload == null) {
+            handler.handleFailure(0x1000);
+            return r;
+        }
+        // Serves the chunks inline, one after the other, so they show up in actualReadList.
+        long end = d.payload.length;
+        if (length >= 0) end = Math.min(end, address + length);
+        for (long a = address; a < end; a += chunkSize) {
+            requestRead(dest, space, a, (int) Math.min(chunkSize, end - a), handler);
+        }
+        handler.handleReadComplete();
+        return r;
+    }
+
+    private boolean streamSupport = false;
+    /// Records every bulk read that happened through this fake while streams are supported.
+    public List<ActualRead> actualBulkReadList = new ArrayList<>();
+
+    /**
+     * Makes the fake nodes support (or not) stream reads. When they do, requestBulkRead
+     * returns the data inline, in pieces of {@link #STREAM_CHUNK} bytes.
+     * @param streamSupport true to support streams.
+     */
+    public void setStreamSupport(boolean streamSupport) {
+        this.streamSupport = streamSupport;
+    }
+
+    /// Size of the pieces bulk reads return data in.
+    public static final int STREAM_CHUNK = 256;
+
+    @Override
+    public boolean isStreamReadSupported(NodeID dest) {
+        return streamSupport;
+    }
+
+    @Override
+    public McsStreamRead requestBulkRead(NodeID dest, int space, long address, long length, int
+            maxWindow, McsPipelinedReadHandler handler) {
+        if (!streamSupport) {
+            return super.requestBulkRead(dest, space, address, length, maxWindow, handler);
+        }
+        ActualRead ar = new ActualRead();
+        ar.space = space;
+        ar.address = address;
+        ar.size = (int) length;
+        actualBulkReadList.add(ar);
+
+        SpaceData d = findSpace(dest, space);
+        if (d == null || d.payload == null) {
+            handler.handleFailure(0x1000);
+            return null;
+        }
+        long end = d.payload.length;
+        if (length >= 0) end = Math.min(end, address + length);
+        for (long a = address; a < end; a += STREAM_CHUNK) {
+            int count = (int) Math.min(STREAM_CHUNK, end - a);
+            byte[] ret = new byte[count];
+            System.arraycopy(d.payload, (int) a, ret, 0, count);
+            handler.handleReadData(dest, space, a, ret);
+        }
+        handler.handleReadComplete();
+        return null;
+    }
+
     private static final Logger logger = Logger.getLogger(FakeMemoryConfigurationService.class.getName());
 
 }
@@ -1,18 +1,32 @@
 package org.openlcb.implementations;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
+import org.openlcb.Connection;
 import org.openlcb.FailureCallback;
+import org.openlcb.MessageDecoder;
+import org.openlcb.MimicNodeStore;
 import org.openlcb.NoReturnCallback;
 import org.openlcb.NodeID;
+import org.openlcb.ProtocolIdentification;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataProceedMessage;
+import org.openlcb.StreamDataSendMessage;
+import org.openlcb.StreamInitiateReplyMessage;
+import org.openlcb.StreamInitiateRequestMessage;
 import org.openlcb.Utilities;
 
 /**
@@ -74,6 +88,9 @@ public class MemoryConfigurationService {
                     service) {
                 //log System.out.println("OLCB: handleData");
                 service.acceptData(0);
+                if (handlePipelinedReadResponse(dest, data)) {
+                    return;
+                }
                 if (addrSpaceMemo != null) {
                     // doesn't handle decode of desc string, but should
                     int space = data[2] & 0xFF;
@@ -642,6 +659,674 @@ public class MemoryConfigurationService {
         request(new McsReadMemo(dest, space, address, len, cb));
     }
 
+    /**
+     * Handler for {@link #requestPipelinedRead}. The data is reported in address order via
+     * handleReadData, in pieces of at most chunkSize bytes.
+     */
+    public interface McsPipelinedReadHandler extends McsReadHandler {
+        /**
+         * Called after the last piece of data if the read finished: the requested length was
+         * reached, or the node returned a short read (end of the space). Not called if the
+         * read failed or was cancelled.
+         */
+        void handleReadComplete();
+    }
+
+    /**
+     * Reads a range of memory with several read requests in flight at the same time. Replies
+     * may arrive in any order; they are handed to the handler in address order. The number of
+     * outstanding requests starts at one, grows by one after every window's worth of good
+     * replies up to maxWindow, and is halved on every timeout or temporary error.
+     * <p>
+     * Only use a maxWindow above 1 for nodes that are known to accept multiple outstanding
+     * read requests.
+     *
+     * @param dest      node to read from
+     * @param space     memory space
+     * @param address   first address to read
+     * @param length    number of bytes to read, or -1 to read until the handler cancels the
+     *                  read, the node returns a short reply or an error.
+     * @param chunkSize number of bytes per read request (at most 64)
+     * @param maxWindow largest number of read requests in flight
+     * @param handler   gets the data
+     * @return the read in progress; can be used to cancel it.
+     */
+    public McsPipelinedRead requestPipelinedRead(NodeID dest, int space, long address, long
+            length, int chunkSize, int maxWindow, McsPipelinedReadHandler handler) {
+        if (chunkSize < 1 || chunkSize > 64 || maxWindow < 1) {
+            throw new IllegalArgumentException("Invalid chunk size or window");
+        }
+        McsPipelinedRead r = new McsPipelinedRead(dest, space, address, length < 0 ? -1 :
+                address + length, chunkSize, maxWindow, handler);
+        synchronized (this) {
+            pipelinedReads.add(r);
+        }
+        r.fill();
+        return r;
+    }
+
+    // Pipelined reads in progress. Must be synchronized(this) for all accesses.
+    private final List<McsPipelinedRead> pipelinedReads = new ArrayList<>();
+
+    /**
+     * Checks if a response datagram belongs to a pipelined read, and if so, processes it.
+     * @param src  node that sent the datagram
+     * @param data datagram payload
+     * @return true if the datagram was consumed.
+     */
+    private boolean handlePipelinedReadResponse(NodeID src, int[] data) {
+        if (data.length < 6 || getRequestTypeFromResponseType(data[1]) != SUBCMD_READ ||
+                (data[1] & SUBCMD_REPLY) == 0) {
+            return false;
+        }
+        McsPipelinedRead.Chunk chunk = null;
+        synchronized (this) {
+            if (pipelinedReads.isEmpty()) return false;
+            for (McsPipelinedRead r : pipelinedReads) {
+                if (!r.dest.equals(src)) continue;
+                chunk = r.findChunk(data);
+                if (chunk != null) break;
+            }
+        }
+        if (chunk == null) return false;
+        chunk.memo.handleResponseDatagram(data);
+        return true;
+    }
+
+    /**
+     * A read of a memory range with several read requests in flight.
+     */
+    public class McsPipelinedRead {
+        final NodeID dest;
+        final int space;
+        /// End of the range to read, or -1 if unknown.
+        final long end;
+        final int chunkSize;
+        final int maxWindow;
+        final McsPipelinedReadHandler handler;
+
+        // The following are guarded by this.
+        /// Requested chunks that were not handed to the handler yet, by address.
+        private final TreeMap<Long, Chunk> outstanding = new TreeMap<>();
+        private long nextAddress;
+        private int window = 1;
+        private int goodReplies = 0;
+        private boolean finished = false;
+        private boolean delivering = false;
+
+        McsPipelinedRead(NodeID dest, int space, long address, long end, int chunkSize, int
+                maxWindow, McsPipelinedReadHandler handler) {
+            this.dest = dest;
+            this.space = space;
+            this.nextAddress = address;
+            this.end = end;
+            this.chunkSize = chunkSize;
+            this.maxWindow = maxWindow;
+            this.handler = handler;
+        }
+
+        /**
+         * Stops the read. No more handler calls are made after this returns, except for one
+         * that is already in progress on a different thread.
+         */
+        public void cancel() {
+            finish();
+        }
+
+        /// @return the current number of read requests allowed in flight.
+        public synchronized int getWindow() {
+            return window;
+        }
+
+        private synchronized Chunk findChunk(int[] data) {
+            Chunk c = outstanding.get(DatagramUtils.parseLong(data, 2));
+            if (c == null || c.data != null || !c.memo.compareResponse(data)) return null;
+            return c;
+        }
+
+        /// Sends new requests until the window is full.
+        private void fill() {
+            List<Chunk> toSend = new ArrayList<>();
+            synchronized (this) {
+                while (!finished && outstanding.size() < window && (end < 0 || nextAddress <
+                        end)) {
+                    int len = chunkSize;
+                    if (end >= 0 && end - nextAddress < len) {
+                        len = (int) (end - nextAddress);
+                    }
+                    Chunk c = new Chunk(nextAddress, len);
+                    outstanding.put(nextAddress, c);
+                    nextAddress += len;
+                    toSend.add(c);
+                }
+            }
+            for (Chunk c : toSend) {
+                c.send();
+            }
+        }
+
+        /// Called on timeouts and temporary errors.
+        private synchronized void backOff() {
+            window = Math.max(1, window / 2);
+            goodReplies = 0;
+        }
+
+        private synchronized void goodReply() {
+            if (++goodReplies >= window && window < maxWindow) {
+                window++;
+                goodReplies = 0;
+            }
+        }
+
+        /**
+         * Hands the data at the front of the range to the handler. Only one thread at a time
+         * does this, so that the handler sees the data in order.
+         */
+        private void deliver() {
+            while (true) {
+                Chunk c;
+                boolean last;
+                synchronized (this) {
+                    if (finished || delivering || outstanding.isEmpty()) return;
+                    c = outstanding.firstEntry().getValue();
+                    if (c.data == null && c.errorCode == 0) return;
+                    outstanding.remove(c.address);
+                    last = c.errorCode != 0 || c.data.length < c.len || (end >= 0 && c.address
+                            + c.len >= end);
+                    delivering = true;
+                }
+                try {
+                    if (last) finish();
+                    if (c.errorCode != 0) {
+                        handler.handleFailure(c.errorCode);
+                        return;
+                    }
+                    if (c.data.length > 0) {
+                        handler.handleReadData(dest, space, c.address, c.data);
+                    }
+                    if (last) {
+                        handler.handleReadComplete();
+                        return;
+                    }
+                } finally {
+                    synchronized (this) {
+                        delivering = false;
+                    }
+                }
+            }
+        }
+
+        private void finish() {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+                for (Chunk c : outstanding.values()) {
+                    c.cancelTimeout();
+                }
+            }
+            synchronized (MemoryConfigurationService.this) {
+                pipelinedReads.remove(this);
+            }
+        }
+
+        /**
+         * One read request of the pipelined read.
+         */
+        class Chunk implements McsReadHandler {
+            final long address;
+            final int len;
+            final McsReadMemo memo;
+            // The following are guarded by the McsPipelinedRead.
+            byte[] data = null;
+            int errorCode = 0;
+            int numTries = 0;
+            TimerTask timeout = null;
+
+            Chunk(long address, int len) {
+                this.address = address;
+                this.len = len;
+                this.memo = new McsReadMemo(dest, space, address, len, this);
+            }
+
+            void send() {
+                synchronized (McsPipelinedRead.this) {
+                    if (finished) return;
+                    ++numTries;
+                    timeout = new TimerTask() {
+                        @Override
+                        public void run() {
+                            retry(0x1000);
+                        }
+                    };
+                    retryTimer.schedule(timeout, timeoutMillis);
+                }
+                downstream.sendData(new DatagramService.DatagramServiceTransmitMemo(dest, memo
+                        .renderTransmitDatagram()) {
+                    @Override
+                    public void handleSuccess(int flags) {
+                        // Wait for the reply datagram.
+                    }
+
+                    @Override
+                    public void handleFailure(int errorCode) {
+                        Chunk.this.handleFailure(errorCode);
+                    }
+                });
+            }
+
+            void cancelTimeout() {
+                if (timeout != null) {
+                    timeout.cancel();
+                    timeout = null;
+                }
+            }
+
+            /// Sends the request again, or fails the chunk if it was tried too many times.
+            void retry(int code) {
+                backOff();
+                boolean failed;
+                synchronized (McsPipelinedRead.this) {
+                    if (finished || data != null || errorCode != 0) return;
+                    cancelTimeout();
+                    failed = numTries >= MAX_TRIES;
+                    if (failed) {
+                        errorCode = code;
+                    }
+                }
+                if (failed) {
+                    deliver();
+                } else {
+                    send();
+                }
+            }
+
+            @Override
+            public void handleReadData(NodeID dest, int space, long address, byte[] data) {
+                synchronized (McsPipelinedRead.this) {
+                    if (finished || this.data != null) return;
+                    cancelTimeout();
+                    this.data = data;
+                }
+                goodReply();
+                deliver();
+                fill();
+            }
+
+            @Override
+            public void handleFailure(int code) {
+                if ((code & 0x2000) != 0) {
+                    // Temporary error.
+                    retry(code);
+                    return;
+                }
+                synchronized (McsPipelinedRead.this) {
+                    if (finished || data != null || errorCode != 0) return;
+                    cancelTimeout();
+                    errorCode = code == 0 ? 0x1000 : code;
+                }
+                deliver();
+            }
+        }
+    }
+
+
+    /**
+     * Memo for the Read Stream command. The reply datagram only tells whether the node accepted
+     * the command; the data arrives in a stream.
+     */
+    static class McsReadStreamMemo extends McsAddressedRequestMemo {
+        McsReadStreamMemo(NodeID dest, int space, long address, int dstStreamId, long len,
+                          FailureCallback cb) {
+            super(dest, SUBCMD_READ_STREAM, space, address, cb);
+            this.dstStreamId = dstStreamId;
+            this.len = len;
+        }
+
+        final int dstStreamId;
+        /// Number of bytes to read, 0xFFFFFFFF for the whole space.
+        final long len;
+
+        @Override
+        protected int getPayloadLength() {
+            return 6;
+        }
+
+        @Override
+        protected void fillPayload(int[] data) {
+            int ofs = getPayloadOffset();
+            data[ofs] = 0xFF; // source stream ID, assigned by the node.
+            data[ofs + 1] = dstStreamId;
+            DatagramUtils.renderLong(data, ofs + 2, len);
+        }
+
+        @Override
+        protected void handleSuccessResponse(int[] data) {
+            // The data comes in the stream.
+        }
+    }
+
+    /// Largest stream buffer we offer when receiving a stream.
+    private static final int MAX_STREAM_BUFFER = 2048;
+    private Connection streamOutput = null;
+    private MimicNodeStore nodeStore = null;
+    private int lastStreamId = 0;
+    // Stream reads in progress. Must be synchronized(this) for all accesses.
+    private final List<McsStreamRead> streamReads = new ArrayList<>();
+
+    /**
+     * Enables reading via streams. Without this {@link #requestBulkRead} always uses datagrams.
+     * @param output    connection to send stream control messages to
+     * @param nodeStore used to check whether the remote node supports streams
+     */
+    public void enableStreamRead(Connection output, MimicNodeStore nodeStore) {
+        this.streamOutput = output;
+        this.nodeStore = nodeStore;
+    }
+
+    /**
+     * Tells whether {@link #requestBulkRead} can read from a node with a stream right away:
+     * stream reads are enabled and the node's protocol identification is known and shows
+     * stream support. Does not wait for the protocol identification.
+     * @param dest the node to read from
+     * @return true if the node is known to support streams.
+     */
+    public boolean isStreamReadSupported(NodeID dest) {
+        if (streamOutput == null || nodeStore == null) return false;
+        MimicNodeStore.NodeMemo memo = nodeStore.findNode(dest);
+        if (memo == null) return false;
+        ProtocolIdentification pip = memo.getProtocolIdentification();
+        return pip != null && pip.getProtocols().contains(ProtocolIdentification.Protocol.Stream);
+    }
+
+    /**
+     * @return the connection that stream messages arriving to this node have to be forwarded
+     * to.
+     */
+    public Connection getStreamConnection() {
+        return streamInput;
+    }
+
+    private final MessageDecoder streamInput = new MessageDecoder() {
+        @Override
+        public void handleStreamInitiateRequest(StreamInitiateRequestMessage msg, Connection
+                sender) {
+            McsStreamRead r = findStreamRead(msg.getSourceNodeID(), msg
+                    .getDestinationStreamID());
+            if (r != null) r.handleInitiate(msg);
+        }
+
+        @Override
+        public void handleStreamDataSend(StreamDataSendMessage msg, Connection sender) {
+            McsStreamRead r = findStreamRead(msg.getSourceNodeID(), msg
+                    .getDestinationStreamID());
+            if (r != null) r.handleData(msg.getData());
+        }
+
+        @Override
+        public void handleStreamDataComplete(StreamDataCompleteMessage msg, Connection sender) {
+            McsStreamRead r = findStreamRead(msg.getSourceNodeID(), msg
+                    .getDestinationStreamID());
+            if (r != null) r.handleComplete();
+        }
+    };
+
+    private synchronized McsStreamRead findStreamRead(NodeID src, byte dstStreamId) {
+        if (src == null) return null;
+        for (McsStreamRead r : streamReads) {
+            if (r.dest.equals(src) && (byte) r.dstStreamId == dstStreamId) return r;
+        }
+        return null;
+    }
+
+    private synchronized int allocateStreamId() {
+        // 0 and 0xFF are reserved.
+        lastStreamId = lastStreamId % 0xFE + 1;
+        return lastStreamId;
+    }
+
+    /**
+     * Reads a range of memory as fast as the node allows. If the node's protocol
+     * identification shows stream support, the data is requested with the Read Stream command
+     * and received in a single stream. Otherwise, or if the node rejects the command or the
+     * stream stalls, the (rest of the) data is read with datagrams via
+     * {@link #requestPipelinedRead}.
+     *
+     * @param dest      node to read from
+     * @param space     memory space
+     * @param address   first address to read
+     * @param length    number of bytes to read, or -1 for everything until the end of the space
+     * @param maxWindow window for the datagram fallback, see {@link #requestPipelinedRead}
+     * @param handler   gets the data, in address order
+     * @return the read in progress; can be used to cancel it.
+     */
+    public McsStreamRead requestBulkRead(NodeID dest, int space, long address, long length, int
+            maxWindow, McsPipelinedReadHandler handler) {
+        McsStreamRead r = new McsStreamRead(dest, space, address, length < 0 ? -1 : address +
+                length, maxWindow, handler);
+        r.start();
+        return r;
+    }
+
+    /**
+     * A read of a memory range via a stream, with datagram fallback.
+     */
+    public class McsStreamRead implements PropertyChangeListener {
+        final NodeID dest;
+        final int space;
+        final long start;
+        /// End of the range to read, or -1 if unknown.
+        final long end;
+        final int maxWindow;
+        final McsPipelinedReadHandler handler;
+        final int dstStreamId;
+
+        // The following are guarded by this.
+        private MimicNodeStore.NodeMemo nodeMemo = null;
+        private boolean decided = false;
+        private boolean finished = false;
+        private long nextAddress;
+        private byte srcStreamId = 0;
+        private int bufferSize = 0;
+        private int sinceProceed = 0;
+        private TimerTask watchdog = null;
+        private McsPipelinedRead fallback = null;
+
+        McsStreamRead(NodeID dest, int space, long address, long end, int maxWindow,
+                      McsPipelinedReadHandler handler) {
+            this.dest = dest;
+            this.space = space;
+            this.start = address;
+            this.nextAddress = address;
+            this.end = end;
+            this.maxWindow = maxWindow;
+            this.handler = handler;
+            this.dstStreamId = allocateStreamId();
+        }
+
+        /**
+         * Stops the read. No more handler calls are made after this returns, except for one
+         * that is already in progress on a different thread.
+         */
+        public void cancel() {
+            McsPipelinedRead f;
+            synchronized (this) {
+                f = fallback;
+            }
+            stop(true);
+            if (f != null) f.cancel();
+        }
+
+        /// @return true if the data is coming in a stream (so far).
+        public synchronized boolean isStreaming() {
+            return decided && fallback == null && !finished;
+        }
+
+        private void start() {
+            if (streamOutput == null || nodeStore == null) {
+                fallBack();
+                return;
+            }
+            MimicNodeStore.NodeMemo memo = nodeStore.addNode(dest);
+            synchronized (this) {
+                nodeMemo = memo;
+                memo.addPropertyChangeListener(this);
+                armWatchdog();
+            }
+            // Sends the PIP request if we don't know the answer yet.
+            ProtocolIdentification pip = memo.getProtocolIdentification();
+            if (pip != null && pip.getValue() != 0) {
+                decide(pip);
+            }
+        }
+
+        @Override
+        public void propertyChange(PropertyChangeEvent ev) {
+            if (MimicNodeStore.NodeMemo.UPDATE_PROP_PROTOCOL.equals(ev.getPropertyName()) && ev
+                    .getNewValue() instanceof ProtocolIdentification) {
+                decide((ProtocolIdentification) ev.getNewValue());
+            }
+        }
+
+        private void decide(ProtocolIdentification pip) {
+            synchronized (this) {
+                if (decided || finished) return;
+                decided = true;
+                if (nodeMemo != null) nodeMemo.removePropertyChangeListener(this);
+            }
+            if (!pip.getProtocols().contains(ProtocolIdentification.Protocol.Stream)) {
+                fallBack();
+                return;
+            }
+            synchronized (MemoryConfigurationService.this) {
+                streamReads.add(this);
+            }
+            synchronized (this) {
+                armWatchdog();
+            }
+            request(new McsReadStreamMemo(dest, space, start, dstStreamId, end < 0 ?
+                    0xFFFFFFFFL : end - start, new FailureCallback() {
+                @Override
+                public void handleFailure(int code) {
+                    logger.fine("Read stream rejected by " + dest + " code 0x" + Integer
+                            .toHexString(code) + ", reading with datagrams.");
+                    fallBack();
+                }
+            }));
+        }
+
+        // Called with the lock held.
+        private void armWatchdog() {
+            if (watchdog != null) watchdog.cancel();
+            watchdog = new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (McsStreamRead.this) {
+                        if (watchdog != this) return;
+                    }
+                    logger.fine("Stream read from " + dest + " stalled, reading with " +
+                            "datagrams.");
+                    fallBack();
+                }
+            };
+            retryTimer.schedule(watchdog, timeoutMillis);
+        }
+
+        /// Stops the stream and reads the rest of the range with datagrams.
+        private void fallBack() {
+            long address;
+            synchronized (this) {
+                if (finished || fallback != null) return;
+                decided = true;
+                if (nodeMemo != null) nodeMemo.removePropertyChangeListener(this);
+                address = nextAddress;
+            }
+            stop(false);
+            McsPipelinedRead f = requestPipelinedRead(dest, space, address, end < 0 ? -1 :
+                    end - address, 64, maxWindow, handler);
+            synchronized (this) {
+                fallback = f;
+            }
+        }
+
+        private void stop(boolean cancel) {
+            synchronized (this) {
+                if (cancel) finished = true;
+                if (watchdog != null) {
+                    watchdog.cancel();
+                    watchdog = null;
+                }
+                if (nodeMemo != null) nodeMemo.removePropertyChangeListener(this);
+            }
+            synchronized (MemoryConfigurationService.this) {
+                streamReads.remove(this);
+            }
+        }
+
+        private void handleInitiate(StreamInitiateRequestMessage msg) {
+            int size;
+            synchronized (this) {
+                if (finished) return;
+                srcStreamId = msg.getSourceStreamID();
+                size = msg.getBufferSize();
+                if (size <= 0 || size > MAX_STREAM_BUFFER) size = MAX_STREAM_BUFFER;
+                bufferSize = size;
+                sinceProceed = 0;
+                armWatchdog();
+            }
+            streamOutput.put(new StreamInitiateReplyMessage(here, dest, size, msg
+                    .getSourceStreamID(), (byte) dstStreamId), streamInput);
+        }
+
+        private void handleData(int[] data) {
+            byte[] payload;
+            long address;
+            boolean proceed = false;
+            boolean last = false;
+            synchronized (this) {
+                if (finished || bufferSize == 0) return;
+                int len = data.length;
+                if (end >= 0 && nextAddress + len > end) {
+                    len = (int) Math.max(0, end - nextAddress);
+                }
+                payload = new byte[len];
+                for (int i = 0; i < len; i++) {
+                    payload[i] = (byte) data[i];
+                }
+                address = nextAddress;
+                nextAddress += len;
+                sinceProceed += data.length;
+                if (sinceProceed >= bufferSize) {
+                    sinceProceed -= bufferSize;
+                    proceed = true;
+                }
+                if (end >= 0 && nextAddress >= end) {
+                    last = true;
+                    finished = true;
+                } else {
+                    armWatchdog();
+                }
+            }
+            if (last) stop(false);
+            if (payload.length > 0) {
+                handler.handleReadData(dest, space, address, payload);
+            }
+            if (proceed && !last) {
+                streamOutput.put(new StreamDataProceedMessage(here, dest, srcStreamId, (byte)
+                        dstStreamId), streamInput);
+            }
+            if (last) handler.handleReadComplete();
+        }
+
+        private void handleComplete() {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+            }
+            stop(false);
+            handler.handleReadComplete();
+        }
+    }
+
 
 /*    McsReadMemo readMemo;
     Stack<McsReadMemo> pendingReads = new Stack<>();
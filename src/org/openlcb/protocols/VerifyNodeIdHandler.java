@@ -26,7 +26,7 @@ public class VerifyNodeIdHandler extends MessageDecoder {
     public VerifyNodeIdHandler(NodeID id, OlcbInterface iface) {
         this.iface = iface;
         this.id = id;
-        iface.registerMessageListener(this);
+        iface.registerMessageListener(this, VerifyNodeIDNumberMessage.class);
     }
 
     @Override
@@ -27,6 +27,12 @@ import javax.swing.text.BadLocationException;
 import org.openlcb.AbstractConnection;
 import org.openlcb.Connection;
 import org.openlcb.Message;
+import org.openlcb.can.AliasMap;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.MessageBuilder;
+import org.openlcb.can.OpenLcbCanFrame;
 
 /**
  * Pane for monitoring communications.
@@ -332,6 +338,37 @@ public class MonPane extends JPanel  {
 	    return new InputLink();
 	}
 	
+	/**
+	 * @return a listener that displays CAN frames, e.g. from a Hub in frame mode. The frames
+	 * are decoded into messages directly, without going through GridConnect text.
+	 */
+	public CanFrameListener getFrameListener() {
+	    return new FrameLink();
+	}
+
+	/**
+	 * Captive class to capture CAN frames. Keeps its own alias map to decode the frames.
+	 */
+	class FrameLink implements CanFrameListener {
+	    private final AliasMap aliasMap = new AliasMap();
+	    private final MessageBuilder builder = new MessageBuilder(aliasMap);
+	    private CanFrame current;
+	    private final Connection sink = new AbstractConnection() {
+	        @Override
+	        public void put(Message msg, Connection sender) {
+	            nextLine(msg.toString() + "\n",
+	                    rawCheckBox.isSelected() ? GridConnect.format(current) : "");
+	        }
+	    };
+
+	    @Override
+	    public synchronized void send(CanFrame frame) {
+	        aliasMap.processFrame(new OpenLcbCanFrame(frame));
+	        current = frame;
+	        builder.processFrame(frame, sink);
+	    }
+	}
+
 	/**
 	 * Captive class to capture data.
 	 * <p>
@@ -4,6 +4,7 @@ package org.openlcb.swing;
 
 import static org.openlcb.MimicNodeStore.ADD_PROP_NODE;
 import static org.openlcb.MimicNodeStore.CLEAR_ALL_NODES;
+import static org.openlcb.MimicNodeStore.REMOVE_PROP_NODE;
 import static org.openlcb.MimicNodeStore.NodeMemo.UPDATE_PROP_SIMPLE_NODE_IDENT;
 
 import java.awt.event.HierarchyEvent;
@@ -59,6 +60,10 @@ public class NodeSelector extends JPanel  {
                     MimicNodeStore.NodeMemo memo = (MimicNodeStore.NodeMemo) e
                             .getNewValue();
                     newNodeInList(memo);
+                } else if (e.getPropertyName().equals(REMOVE_PROP_NODE)) {
+                    MimicNodeStore.NodeMemo memo = (MimicNodeStore.NodeMemo) e
+                            .getOldValue();
+                    removeFromList(memo);
                 } else if (e.getPropertyName().equals(CLEAR_ALL_NODES)) {
                     clearList();
                 }
@@ -227,6 +232,16 @@ public class NodeSelector extends JPanel  {
         model.insertElementAt(e, i);
     }
 
+    // Removes the entry of a departed node from the model list.
+    private void removeFromList(MimicNodeStore.NodeMemo memo) {
+        int idx = model.getIndexOf(memo.getNodeID());
+        if (idx < 0) {
+            return;
+        }
+        model.getElementAt(idx).dispose();
+        model.removeElementAt(idx);
+    }
+
     // Removes all entries from the model list, disposing them in the process.
     private void clearList() {
         for (int i = 0; i < model.getSize(); ++i) {
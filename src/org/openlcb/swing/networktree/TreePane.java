@@ -4,6 +4,7 @@ package org.openlcb.swing.networktree;
 
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.Rectangle;
 import java.awt.Window;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -13,6 +14,7 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -25,6 +27,8 @@ import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JTree;
 import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -117,6 +121,13 @@ public class TreePane extends JPanel  {
         tree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);  
         JScrollPane treeView = new JScrollPane(tree);
         add(treeView);
+        // Nodes scrolled into view get their identification fetched first.
+        treeView.getViewport().addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                updateVisibleNodes();
+            }
+        });
 
         JPanel bottomPanel = new JPanel();
         bottomPanel.setLayout(new FlowLayout());
@@ -162,6 +173,10 @@ public class TreePane extends JPanel  {
                         n.initConnections();
                         memo.addPropertyChangeListener(resortListener);
                     }
+                } else if (e.getPropertyName().equals(MimicNodeStore.REMOVE_PROP_NODE)) {
+                    MimicNodeStore.NodeMemo memo = (MimicNodeStore.NodeMemo) e.getOldValue();
+                    memo.removePropertyChangeListener(resortListener);
+                    removeHardwareNode(memo);
                 } else if (e.getPropertyName().equals(MimicNodeStore.CLEAR_ALL_NODES)) {
                     synchronized (nodes) {
                         nodes.removeAllChildren();
@@ -261,6 +276,49 @@ public class TreePane extends JPanel  {
         }
     }
 
+    /**
+     * Tells the node store which nodes are on the screen.
+     */
+    private void updateVisibleNodes() {
+        Rectangle r = tree.getVisibleRect();
+        if (r.isEmpty()) {
+            return;
+        }
+        int first = tree.getClosestRowForLocation(r.x, r.y);
+        int last = tree.getClosestRowForLocation(r.x, r.y + r.height);
+        List<NodeID> visible = new ArrayList<>();
+        for (int row = first; row >= 0 && row <= last; ++row) {
+            TreePath path = tree.getPathForRow(row);
+            if (path == null) {
+                continue;
+            }
+            for (Object o : path.getPath()) {
+                if (o instanceof NodeTreeRep) {
+                    visible.add(((NodeTreeRep) o).memo.getNodeID());
+                    break;
+                }
+            }
+        }
+        store.getDiscoveryCrawler().setVisibleNodes(visible);
+    }
+
+    /**
+     * Removes an OpenLCB node from the tree of nodes shown.
+     *
+     * @param memo the node that has departed
+     */
+    private void removeHardwareNode(MimicNodeStore.NodeMemo memo) {
+        synchronized (nodes) {
+            for (int i = 0; i < nodes.getChildCount(); ++i) {
+                NodeTreeRep n = (NodeTreeRep) nodes.getChildAt(i);
+                if (n.memo == memo) {
+                    treeModel.removeNodeFromParent(n);
+                    return;
+                }
+            }
+        }
+    }
+
     /**
      * Sets the sort order to be used in the tree;
      *
@@ -0,0 +1,160 @@
+package org.openlcb;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.*;
+
+/**
+ * Tests the pacing of SNIP and PIP requests to the nodes.
+ */
+public class DiscoveryCrawlerTest {
+    private final NodeID src = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+    private final List<Message> sent = new ArrayList<>();
+    private final Connection connection = new AbstractConnection() {
+        @Override
+        public void put(Message msg, Connection sender) {
+            synchronized (sent) {
+                sent.add(msg);
+            }
+        }
+    };
+    private MimicNodeStore store;
+    private DiscoveryCrawler crawler;
+
+    private static NodeID node(int i) {
+        return new NodeID(new byte[]{5, 1, 1, 1, 0, (byte) i});
+    }
+
+    private List<NodeID> snipDestinations() {
+        List<NodeID> ret = new ArrayList<>();
+        synchronized (sent) {
+            for (Message m : sent) {
+                if (m instanceof SimpleNodeIdentInfoRequestMessage) {
+                    ret.add(((SimpleNodeIdentInfoRequestMessage) m).getDestNodeID());
+                }
+            }
+        }
+        return ret;
+    }
+
+    private void reply(int i) {
+        store.put(new SimpleNodeIdentInfoReplyMessage(node(i), src, new byte[]{1, 'a', 0, 'b',
+                0, 'c', 0, 'd', 0, 1, 'e', 0, 'f', 0}), null);
+    }
+
+    private void waitForSnipCount(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && snipDestinations().size() < count; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, snipDestinations().size());
+    }
+
+    @Test
+    public void testInFlightLimit() throws Exception {
+        crawler.setBusShare(0);
+        crawler.setMaxInFlight(2);
+        for (int i = 1; i <= 5; i++) {
+            store.addNode(node(i)).getSimpleNodeIdent();
+        }
+        Assert.assertEquals(2, snipDestinations().size());
+        Assert.assertEquals(2, crawler.getInFlightCount());
+        Assert.assertEquals(3, crawler.getQueuedCount());
+
+        reply(1);
+        waitForSnipCount(3);
+        Assert.assertEquals(node(3), snipDestinations().get(2));
+        Assert.assertEquals(2, crawler.getInFlightCount());
+        Assert.assertEquals(2, crawler.getQueuedCount());
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        crawler.setBusShare(0);
+        crawler.setMaxInFlight(1);
+        for (int i = 1; i <= 5; i++) {
+            store.addNode(node(i)).getSimpleNodeIdent();
+        }
+        List<NodeID> visible = new ArrayList<>();
+        visible.add(node(4));
+        visible.add(node(5));
+        crawler.setVisibleNodes(visible);
+        crawler.setPriority(node(5), DiscoveryCrawler.PRIORITY_URGENT);
+        Assert.assertEquals(DiscoveryCrawler.PRIORITY_VISIBLE, crawler.getPriority(node(4)));
+        Assert.assertEquals(0, crawler.getPriority(node(2)));
+
+        reply(1);
+        waitForSnipCount(2);
+        reply(5);
+        waitForSnipCount(3);
+        reply(4);
+        waitForSnipCount(4);
+        Assert.assertEquals(node(5), snipDestinations().get(1));
+        Assert.assertEquals(node(4), snipDestinations().get(2));
+        Assert.assertEquals(node(2), snipDestinations().get(3));
+    }
+
+    @Test
+    public void testDuplicates() {
+        crawler.setBusShare(0);
+        crawler.setMaxInFlight(1);
+        MimicNodeStore.NodeMemo memo = store.addNode(node(1));
+        Interaction i = new Interaction() {
+            @Override
+            void sendRequest(Connection downstream) {
+            }
+
+            @Override
+            NodeID dstNode() {
+                return node(1);
+            }
+
+            @Override
+            void onTimeout() {
+            }
+        };
+        memo.getSimpleNodeIdent();
+        crawler.submit(memo, i);
+        crawler.submit(memo, i);
+        Assert.assertEquals(1, crawler.getQueuedCount());
+        memo.getSimpleNodeIdent();
+        Assert.assertEquals(1, snipDestinations().size());
+    }
+
+    @Test
+    public void testPacing() {
+        // One SNIP every 1.2 seconds.
+        crawler.setBusShare(0.01);
+        for (int i = 1; i <= 3; i++) {
+            store.addNode(node(i)).getSimpleNodeIdent();
+        }
+        Assert.assertEquals(1, snipDestinations().size());
+        Assert.assertEquals(2, crawler.getQueuedCount());
+
+        // Without pacing the others go out right away.
+        crawler.setBusShare(0);
+        Assert.assertEquals(3, snipDestinations().size());
+    }
+
+    @Test
+    public void testRemovedNodeIsDropped() {
+        crawler.setBusShare(0);
+        crawler.setMaxInFlight(1);
+        store.addNode(node(1)).getSimpleNodeIdent();
+        store.addNode(node(2)).getSimpleNodeIdent();
+        Assert.assertEquals(1, crawler.getQueuedCount());
+        store.findNode(node(2)).lastSeen = 1000;
+        store.setMaxNodes(1);
+        Assert.assertEquals(0, crawler.getQueuedCount());
+    }
+
+    @Before
+    public void setUp() {
+        store = new MimicNodeStore(connection, src);
+        crawler = store.getDiscoveryCrawler();
+    }
+
+    @After
+    public void tearDown() {
+        store.dispose();
+    }
+}
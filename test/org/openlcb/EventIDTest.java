@@ -146,4 +146,28 @@ public class EventIDTest {
         Assert.assertEquals(-2L, new EventID(new byte[]{(byte)0xff,(byte)0xff,(byte)0xff,(byte)0xff,
                 (byte)0xff,(byte)0xff,(byte)0xff,(byte)0xfe}).toLong());
     }
+
+    @Test
+    public void testLongValue() {
+        EventID e1 = new EventID(0x0102030405060708L);
+        Assert.assertEquals(new EventID(new byte[]{1,2,3,4,5,6,7,8}), e1);
+        Assert.assertEquals(new EventID(new NodeID(new byte[]{1,2,3,4,5,6}), 7, 8), e1);
+        Assert.assertEquals("EventID:01.02.03.04.05.06.07.08", e1.toString());
+        EventID e2 = new EventID(0xFFFEFDFCFBFAF9F8L);
+        Assert.assertEquals(0xFFFEFDFCFBFAF9F8L, e2.toLong());
+        Assert.assertTrue(e2.startsWith(new NodeID("FF.FE.FD.FC.FB.FA")));
+        Assert.assertFalse(e2.startsWith(new NodeID("FF.FE.FD.FC.FB.FB")));
+        byte[] b = new byte[10];
+        e2.copyTo(b, 2);
+        Assert.assertArrayEquals(new byte[]{0,0,(byte)0xFF,(byte)0xFE,(byte)0xFD,(byte)0xFC,
+                (byte)0xFB,(byte)0xFA,(byte)0xF9,(byte)0xF8}, b);
+    }
+
+    @Test
+    public void testValueOf() {
+        EventID e1 = EventID.valueOf(0x0501010114390001L);
+        Assert.assertSame(e1, EventID.valueOf(0x0501010114390001L));
+        Assert.assertEquals(new EventID("05.01.01.01.14.39.00.01"), e1);
+        Assert.assertEquals(new EventID("05.01.01.01.14.39.00.01").hashCode(), e1.hashCode());
+    }
 }
@@ -260,4 +260,69 @@ public class MimicNodeStoreTest {
         Assert.assertNull(store.findNode(nid2));
     }
 
+    @Test
+    public void testVerifyNodesKeepsTree() {
+        store.put(pim1,null);
+        store.put(pim2,null);
+        store.addPropertyChangeListener(listener);
+        store.verifyNodes();
+
+        // A verify message goes out, but the nodes stay.
+        Assert.assertTrue(lastMessage instanceof VerifyNodeIDNumberMessage);
+        Assert.assertFalse(listenerFired);
+        Assert.assertEquals(2, store.getNodeMemos().size());
+    }
+
+    @Test
+    public void testRemoveSilentNodes() throws Exception {
+        store.put(pim1,null);
+        store.put(pim2,null);
+        MimicNodeStore.NodeMemo memo1 = store.findNode(nid1);
+        memo1.lastSeen = 1000;
+        class MyListener implements PropertyChangeListener {
+            public PropertyChangeEvent lastEvent;
+
+            @Override
+            public void propertyChange(PropertyChangeEvent propertyChangeEvent) {
+                lastEvent = propertyChangeEvent;
+            }
+        };
+        MyListener l = new MyListener();
+        store.addPropertyChangeListener(l);
+        store.removeNodesNotSeenSince(2000);
+
+        Assert.assertEquals(MimicNodeStore.REMOVE_PROP_NODE, l.lastEvent.getPropertyName());
+        Assert.assertSame(memo1, l.lastEvent.getOldValue());
+        Assert.assertEquals(1, store.getNodeMemos().size());
+        Assert.assertNull(store.findNode(nid1));
+        Assert.assertNotNull(store.findNode(nid2));
+
+        // A message from the node brings it back.
+        store.put(pim1,null);
+        Assert.assertNotNull(store.findNode(nid1));
+        Assert.assertTrue(store.findNode(nid1).getLastSeen() > 2000);
+    }
+
+    @Test
+    public void testMaxNodes() {
+        store.put(pim1,null);
+        store.put(pim2,null);
+        store.findNode(nid1).lastSeen = 1000;
+        store.findNode(nid2).lastSeen = 2000;
+        NodeID nid3 = new NodeID(new byte[]{3,3,3,4,5,6});
+        store.setMaxNodes(2);
+        Assert.assertEquals(2, store.getNodeMemos().size());
+
+        // The least recently seen node goes.
+        store.addNode(nid3);
+        Assert.assertEquals(2, store.getNodeMemos().size());
+        Assert.assertNull(store.findNode(nid1));
+        Assert.assertNotNull(store.findNode(nid2));
+        Assert.assertNotNull(store.findNode(nid3));
+
+        store.setMaxNodes(1);
+        Assert.assertEquals(1, store.getNodeMemos().size());
+        Assert.assertNotNull(store.findNode(nid3));
+    }
+
 }
@@ -175,4 +175,29 @@ public class NodeIDTest {
         NodeID e1 = new NodeID(new byte[]{1,0x10,0x13,0x0D,(byte)0xD0,(byte)0xAB});
         Assert.assertEquals("01.10.13.0D.D0.AB", e1.toString());
     }
+
+    @Test
+    public void testLongValue() {
+        NodeID e1 = new NodeID(0x0110130DD0ABL);
+        Assert.assertEquals(new NodeID(new byte[]{1,0x10,0x13,0x0D,(byte)0xD0,(byte)0xAB}), e1);
+        Assert.assertEquals(0x0110130DD0ABL, e1.toLong());
+        Assert.assertEquals("01.10.13.0D.D0.AB", e1.toString());
+        byte[] b = new byte[8];
+        e1.copyTo(b, 1);
+        Assert.assertArrayEquals(new byte[]{0,1,0x10,0x13,0x0D,(byte)0xD0,(byte)0xAB,0}, b);
+        try {
+            new NodeID(0x1000000000000L);
+            Assert.fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testValueOf() {
+        NodeID e1 = NodeID.valueOf(0x050101011439L);
+        Assert.assertSame(e1, NodeID.valueOf(0x050101011439L));
+        Assert.assertEquals(new NodeID("05.01.01.01.14.39"), e1);
+        Assert.assertEquals(new NodeID("05.01.01.01.14.39").hashCode(), e1.hashCode());
+    }
 }
@@ -0,0 +1,155 @@
+package org.openlcb;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the persistent cache of node identification.
+ */
+public class NodeIdentityCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final NodeID src = new NodeID(new byte[]{1, 2, 3, 4, 5, 6});
+    private final NodeID nid1 = new NodeID(new byte[]{5, 1, 1, 1, 0, 1});
+    private final NodeID nid2 = new NodeID(new byte[]{5, 1, 1, 1, 0, 2});
+    private final byte[] snip = new byte[]{4, 'M', 'f', 'g', 0, 'M', 'o', 'd', 0, '1', 0, '2',
+            0, 2, 'N', 'a', 'm', 'e', 0, 'D', 0};
+    private final List<Message> sent = new ArrayList<>();
+    private final Connection connection = new AbstractConnection() {
+        @Override
+        public void put(Message msg, Connection sender) {
+            synchronized (sent) {
+                sent.add(msg);
+            }
+        }
+    };
+
+    private int countSnipRequests() {
+        int count = 0;
+        synchronized (sent) {
+            for (Message m : sent) {
+                if (m instanceof SimpleNodeIdentInfoRequestMessage) count++;
+            }
+        }
+        return count;
+    }
+
+    private int countPipRequests() {
+        int count = 0;
+        synchronized (sent) {
+            for (Message m : sent) {
+                if (m instanceof ProtocolIdentificationRequestMessage) count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("sub").resolve("nodes.cache");
+        NodeIdentityCache cache = new NodeIdentityCache(file);
+        Assert.assertTrue(cache.getNodes().isEmpty());
+        cache.putSimpleNodeIdent(nid1, snip);
+        cache.putProtocols(nid1, 0x123456L);
+        cache.putProtocols(nid2, 0x800000000000L);
+        Assert.assertTrue(cache.isDirty());
+        cache.save();
+        Assert.assertFalse(cache.isDirty());
+
+        NodeIdentityCache loaded = new NodeIdentityCache(file);
+        Assert.assertEquals(2, loaded.getNodes().size());
+        Assert.assertArrayEquals(snip, loaded.getSimpleNodeIdent(nid1));
+        Assert.assertEquals(Long.valueOf(0x123456L), loaded.getProtocols(nid1));
+        Assert.assertNull(loaded.getSimpleNodeIdent(nid2));
+        Assert.assertEquals(Long.valueOf(0x800000000000L), loaded.getProtocols(nid2));
+
+        loaded.remove(nid2);
+        loaded.save();
+        Assert.assertEquals(1, new NodeIdentityCache(file).getNodes().size());
+    }
+
+    @Test
+    public void testDamagedFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("nodes.cache");
+        Files.write(file, new byte[]{1, 2, 3});
+        NodeIdentityCache cache = new NodeIdentityCache(file);
+        Assert.assertTrue(cache.getNodes().isEmpty());
+    }
+
+    @Test
+    public void testWarmStart() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("nodes.cache");
+        MimicNodeStore store = new MimicNodeStore(connection, src);
+        store.setIdentityCache(new NodeIdentityCache(file));
+        store.addNode(nid1).getSimpleNodeIdent();
+        store.put(new SimpleNodeIdentInfoReplyMessage(nid1, src, snip), null);
+        store.put(new ProtocolIdentificationReplyMessage(nid1, src, 0x123456L), null);
+        store.dispose();
+
+        sent.clear();
+        store = new MimicNodeStore(connection, src);
+        store.setIdentityCache(new NodeIdentityCache(file));
+        try {
+            MimicNodeStore.NodeMemo memo = store.findNode(nid1);
+            Assert.assertNotNull(memo);
+            Assert.assertEquals(0, memo.getLastSeen());
+            Assert.assertEquals("Name", memo.getSimpleNodeIdent().getUserName());
+            Assert.assertEquals(0x123456L, memo.getProtocolIdentification().getValue());
+            // Nothing went out on the bus.
+            Assert.assertTrue(sent.isEmpty());
+
+            // A reinitialized node is asked again.
+            store.put(new InitializationCompleteMessage(nid1), null);
+            for (int i = 0; i < 100 && countSnipRequests() == 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, countSnipRequests());
+        } finally {
+            store.dispose();
+        }
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("nodes.cache");
+        NodeIdentityCache cache = new NodeIdentityCache(file);
+        cache.putSimpleNodeIdent(nid1, snip);
+        cache.putProtocols(nid1, 0x123456L);
+        MimicNodeStore store = new MimicNodeStore(connection, src);
+        store.setIdentityCache(cache);
+        try {
+            MimicNodeStore.NodeMemo memo = store.findNode(nid1);
+            Assert.assertFalse(memo.isVerified());
+            Assert.assertTrue(sent.isEmpty());
+
+            // The first message from the node in this session triggers the revalidation.
+            store.put(new VerifiedNodeIDNumberMessage(nid1), null);
+            store.put(new VerifiedNodeIDNumberMessage(nid1), null);
+            for (int i = 0; i < 100 && (countSnipRequests() == 0 || countPipRequests() == 0);
+                    i++) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            Assert.assertEquals(1, countSnipRequests());
+            Assert.assertEquals(1, countPipRequests());
+            // The cached data stays until the reply arrives.
+            Assert.assertFalse(memo.isVerified());
+            Assert.assertEquals("Name", memo.getSimpleNodeIdent().getUserName());
+
+            byte[] fresh = new byte[]{4, 'M', 'f', 'g', 0, 'M', 'o', 'd', 0, '1', 0, '3', 0,
+                    2, 'N', 'e', 'w', 0, 'D', 0};
+            store.put(new SimpleNodeIdentInfoReplyMessage(nid1, src, fresh), null);
+            Assert.assertTrue(memo.isVerified());
+            Assert.assertEquals("3", memo.getSimpleNodeIdent().getSoftwareVersion());
+            Assert.assertEquals("New", memo.getSimpleNodeIdent().getUserName());
+            Assert.assertArrayEquals(fresh, cache.getSimpleNodeIdent(nid1));
+        } finally {
+            store.dispose();
+        }
+    }
+}
@@ -8,6 +8,12 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.openlcb.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  *
  * @author Paul Bender Copyright (C) 2017	
@@ -26,6 +32,397 @@ public class OlcbInterfaceTest {
         t.dispose();
     }
 
+    class RecordingListener extends AbstractConnection {
+        final String name;
+        final List<String> log;
+        RecordingListener(String name, List<String> log) {
+            this.name = name;
+            this.log = log;
+        }
+        @Override
+        public void put(Message msg, Connection sender) {
+            log.add(name + ":" + msg.getClass().getSimpleName());
+        }
+    }
+
+    @Test
+    public void testTypedListeners() {
+        FakeOlcbInterface iface = new FakeOlcbInterface();
+        int base = iface.numMessageListeners();
+        List<String> log = new ArrayList<>();
+        iface.registerMessageListener(new RecordingListener("all", log));
+        iface.registerMessageListener(new RecordingListener("events", log),
+                ProducerConsumerEventReportMessage.class);
+        iface.registerMessageListener(new RecordingListener("addressed", log),
+                AddressedMessage.class);
+        Assert.assertEquals(base + 3, iface.numMessageListeners());
+
+        NodeID src = new NodeID(new byte[]{1,1,1,1,1,1});
+        iface.getInputConnection().put(new ProducerConsumerEventReportMessage(src,
+                new EventID(new byte[]{1,2,3,4,5,6,7,8})), null);
+        iface.getInputConnection().put(new DatagramMessage(src,
+                new NodeID(new byte[]{2,2,2,2,2,2}), new int[]{0x20}), null);
+        iface.getInputConnection().put(new VerifiedNodeIDNumberMessage(src), null);
+
+        Assert.assertEquals("[all:ProducerConsumerEventReportMessage, "
+                + "events:ProducerConsumerEventReportMessage, "
+                + "all:DatagramMessage, addressed:DatagramMessage, "
+                + "all:VerifiedNodeIDNumberMessage]", log.toString());
+        iface.dispose();
+    }
+
+    @Test
+    public void testRegisterDuringDispatch() {
+        FakeOlcbInterface iface = new FakeOlcbInterface();
+        final List<String> log = new ArrayList<>();
+        final RecordingListener late = new RecordingListener("late", log);
+        final RecordingListener first = new RecordingListener("first", log) {
+            @Override
+            public void put(Message msg, Connection sender) {
+                super.put(msg, sender);
+                // Takes effect from the next message on.
+                iface.registerMessageListener(late);
+                iface.unRegisterMessageListener(this);
+            }
+        };
+        iface.registerMessageListener(first);
+        NodeID src = new NodeID(new byte[]{1,1,1,1,1,1});
+        iface.getInputConnection().put(new VerifiedNodeIDNumberMessage(src), null);
+        iface.getInputConnection().put(new VerifiedNodeIDNumberMessage(src), null);
+
+        Assert.assertEquals("[first:VerifiedNodeIDNumberMessage, "
+                + "late:VerifiedNodeIDNumberMessage]", log.toString());
+        iface.unRegisterMessageListener(late);
+        iface.getInputConnection().put(new VerifiedNodeIDNumberMessage(src), null);
+        Assert.assertEquals(2, log.size());
+        iface.dispose();
+    }
+
+    @Test
+    public void testListenerRegisteredTwiceCalledOnce() {
+        FakeOlcbInterface iface = new FakeOlcbInterface();
+        List<String> log = new ArrayList<>();
+        RecordingListener l = new RecordingListener("l", log);
+        iface.registerMessageListener(l, ProducerConsumerEventReportMessage.class);
+        iface.registerMessageListener(l, Message.class);
+        NodeID src = new NodeID(new byte[]{1,1,1,1,1,1});
+        iface.getInputConnection().put(new ProducerConsumerEventReportMessage(src,
+                new EventID(new byte[]{1,2,3,4,5,6,7,8})), null);
+        Assert.assertEquals(1, log.size());
+        iface.dispose();
+    }
+
+    @Test
+    public void testEventListeners() {
+        FakeOlcbInterface iface = new FakeOlcbInterface();
+        List<String> log = new ArrayList<>();
+        RecordingListener single = new RecordingListener("single", log);
+        RecordingListener range = new RecordingListener("range", log);
+        RecordingListener typed = new RecordingListener("typed", log);
+        iface.registerEventListener(single, new EventID("05.01.01.01.14.FF.00.10"));
+        iface.registerEventRangeListener(range, new EventID("05.01.01.01.14.FF.00.00"),
+                new EventID("05.01.01.01.14.FF.00.FF"));
+        // Registered both by type and by event: called only once.
+        iface.registerMessageListener(typed, ProducerConsumerEventReportMessage.class);
+        iface.registerEventListener(typed, new EventID("05.01.01.01.14.FF.00.10"));
+
+        NodeID src = new NodeID(new byte[]{1,1,1,1,1,1});
+        iface.getInputConnection().put(new ProducerConsumerEventReportMessage(src,
+                new EventID("05.01.01.01.14.FF.00.10")), null);
+        Assert.assertEquals("[typed:ProducerConsumerEventReportMessage, "
+                + "single:ProducerConsumerEventReportMessage, "
+                + "range:ProducerConsumerEventReportMessage]", log.toString());
+        log.clear();
+
+        iface.getInputConnection().put(new IdentifyConsumersMessage(src,
+                new EventID("05.01.01.01.14.FF.00.20")), null);
+        Assert.assertEquals("[range:IdentifyConsumersMessage]", log.toString());
+        log.clear();
+
+        iface.getInputConnection().put(new IdentifyProducersMessage(src,
+                new EventID("05.01.01.01.14.FF.01.10")), null);
+        Assert.assertEquals("[]", log.toString());
+
+        // Range 05.01.01.01.14.FF.00.00 - 05.01.01.01.14.FF.00.0F overlaps only the range.
+        iface.getInputConnection().put(new ConsumerRangeIdentifiedMessage(src,
+                new EventID("05.01.01.01.14.FF.00.0F")), null);
+        Assert.assertEquals("[range:ConsumerRangeIdentifiedMessage]", log.toString());
+        log.clear();
+
+        iface.unRegisterMessageListener(range);
+        iface.getInputConnection().put(new ProducerConsumerEventReportMessage(src,
+                new EventID("05.01.01.01.14.FF.00.20")), null);
+        Assert.assertEquals("[typed:ProducerConsumerEventReportMessage]", log.toString());
+        iface.dispose();
+    }
+
+    @Test(timeout = 10000)
+    public void testManyEventListeners() {
+        // Registration has to stay linear; this took minutes when every registration rebuilt
+        // the routes from scratch.
+        FakeOlcbInterface iface = new FakeOlcbInterface();
+        List<String> log = new ArrayList<>();
+        final int count = 5000;
+        long base = new EventID("05.01.01.01.14.FF.00.00").toLong();
+        RecordingListener range = new RecordingListener("range", log);
+        RecordingListener late = new RecordingListener("late", log);
+        RecordingListener[] singles = new RecordingListener[count];
+        for (int i = 0; i < count; i++) {
+            singles[i] = new RecordingListener("s" + i, log);
+            iface.registerEventListener(singles[i], new EventID(base + i));
+            if (i == count / 2) {
+                iface.registerEventRangeListener(range, new EventID(base), new EventID(base +
+                        count - 1));
+            }
+        }
+        iface.registerEventListener(late, new EventID(base + 7));
+
+        NodeID src = new NodeID(new byte[]{1,1,1,1,1,1});
+        iface.getInputConnection().put(new ProducerConsumerEventReportMessage(src,
+                new EventID(base + 7)), null);
+        Assert.assertEquals("[s7:ProducerConsumerEventReportMessage, "
+                + "range:ProducerConsumerEventReportMessage, "
+                + "late:ProducerConsumerEventReportMessage]", log.toString());
+        log.clear();
+        iface.getInputConnection().put(new ProducerConsumerEventReportMessage(src,
+                new EventID(base + count - 1)), null);
+        Assert.assertEquals("[range:ProducerConsumerEventReportMessage, "
+                + "s" + (count - 1) + ":ProducerConsumerEventReportMessage]", log.toString());
+        log.clear();
+
+        for (int i = 0; i < 100; i++) {
+            iface.unRegisterMessageListener(singles[i]);
+        }
+        iface.unRegisterMessageListener(range);
+        iface.getInputConnection().put(new ProducerConsumerEventReportMessage(src,
+                new EventID(base + 7)), null);
+        Assert.assertEquals("[late:ProducerConsumerEventReportMessage]", log.toString());
+        log.clear();
+        iface.getInputConnection().put(new ProducerConsumerEventReportMessage(src,
+                new EventID(base + 100)), null);
+        Assert.assertEquals("[s100:ProducerConsumerEventReportMessage]", log.toString());
+        iface.dispose();
+    }
+
+    /// Output that records the batches it gets and blocks until released.
+    static class BlockingOutput extends AbstractConnection implements BatchConnection {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> batches = new ArrayList<>();
+        final List<Message> messages = new ArrayList<>();
+
+        @Override
+        public void put(Message msg, Connection sender) {
+            putBatch(new Message[]{msg}, new Connection[]{sender}, 1);
+        }
+
+        @Override
+        public void putBatch(Message[] msgs, Connection[] senders, int count) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                batches.add(count);
+                messages.addAll(Arrays.asList(msgs).subList(0, count));
+            }
+        }
+    }
+
+    NodeID localNode = new NodeID(new byte[]{1,2,0,0,1,1});
+
+    ProducerConsumerEventReportMessage event(int n) {
+        return new ProducerConsumerEventReportMessage(localNode,
+                new EventID(new byte[]{5,1,1,1,0x14,0,0,(byte)n}));
+    }
+
+    @Test
+    public void testOutputQueueBatchesAndFlush() throws Exception {
+        BlockingOutput out = new BlockingOutput();
+        OlcbInterface iface = new OlcbInterface(localNode, out);
+        // The initialization complete message is stuck in the output.
+        Assert.assertTrue(out.entered.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            iface.getOutputConnection().put(event(i), null);
+        }
+        out.release.countDown();
+        iface.flushSendQueue();
+        synchronized (out) {
+            Assert.assertEquals(Arrays.asList(1, 5), out.batches);
+            Assert.assertEquals(event(4), out.messages.get(5));
+        }
+        Assert.assertEquals(0, iface.getOutputQueueDropCount());
+        iface.dispose();
+    }
+
+    @Test
+    public void testOutputQueueDropOldest() throws Exception {
+        BlockingOutput out = new BlockingOutput();
+        OlcbInterface iface = new OlcbInterface(localNode, out);
+        iface.setOutputQueuePolicy(OlcbInterface.OutputQueuePolicy.DROP_OLDEST, 2);
+        Assert.assertTrue(out.entered.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            iface.getOutputConnection().put(event(i), null);
+        }
+        Assert.assertEquals(1, iface.getOutputQueueDropCount());
+        out.release.countDown();
+        iface.flushSendQueue();
+        synchronized (out) {
+            Assert.assertEquals(3, out.messages.size());
+            Assert.assertEquals(event(1), out.messages.get(1));
+            Assert.assertEquals(event(2), out.messages.get(2));
+        }
+        iface.dispose();
+    }
+
+    @Test
+    public void testOutputQueueFail() throws Exception {
+        BlockingOutput out = new BlockingOutput();
+        OlcbInterface iface = new OlcbInterface(localNode, out);
+        iface.setOutputQueuePolicy(OlcbInterface.OutputQueuePolicy.FAIL, 2);
+        Assert.assertTrue(out.entered.await(1, TimeUnit.SECONDS));
+        iface.getOutputConnection().put(event(0), null);
+        iface.getOutputConnection().put(event(1), null);
+        try {
+            iface.getOutputConnection().put(event(2), null);
+            Assert.fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(1, iface.getOutputQueueDropCount());
+        out.release.countDown();
+        iface.flushSendQueue();
+        synchronized (out) {
+            Assert.assertEquals(3, out.messages.size());
+        }
+        iface.dispose();
+    }
+
+    @Test
+    public void testOutputQueueBlock() throws Exception {
+        final BlockingOutput out = new BlockingOutput();
+        final OlcbInterface iface = new OlcbInterface(localNode, out);
+        iface.setOutputQueuePolicy(OlcbInterface.OutputQueuePolicy.BLOCK, 1);
+        Assert.assertTrue(out.entered.await(1, TimeUnit.SECONDS));
+        iface.getOutputConnection().put(event(0), null);
+        final CountDownLatch sent = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                iface.getOutputConnection().put(event(1), null);
+                sent.countDown();
+            }
+        };
+        t.start();
+        Assert.assertFalse(sent.await(50, TimeUnit.MILLISECONDS));
+        out.release.countDown();
+        Assert.assertTrue(sent.await(1, TimeUnit.SECONDS));
+        iface.flushSendQueue();
+        synchronized (out) {
+            Assert.assertEquals(3, out.messages.size());
+        }
+        Assert.assertEquals(0, iface.getOutputQueueDropCount());
+        iface.dispose();
+    }
+
+    /// Output that records what it gets, and starts only when the test says so.
+    static class DeferredOutput extends AbstractConnection implements BatchConnection {
+        final List<String> log;
+        ConnectionListener starter;
+
+        DeferredOutput(List<String> log) {
+            this.log = log;
+        }
+
+        @Override
+        public void put(Message msg, Connection sender) {
+            putBatch(new Message[]{msg}, new Connection[]{sender}, 1);
+        }
+
+        @Override
+        public void putBatch(Message[] msgs, Connection[] senders, int count) {
+            synchronized (log) {
+                for (int i = 0; i < count; i++) {
+                    if (msgs[i] instanceof ProducerConsumerEventReportMessage) {
+                        log.add("remote " + eventNumber(msgs[i]));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void registerStartNotification(ConnectionListener c) {
+            starter = c;
+        }
+    }
+
+    static int eventNumber(Message m) {
+        byte[] b = ((ProducerConsumerEventReportMessage) m).getEventID().getContents();
+        return ((b[6] & 0xff) << 8) | (b[7] & 0xff);
+    }
+
+    ProducerConsumerEventReportMessage event16(int n) {
+        return new ProducerConsumerEventReportMessage(localNode,
+                new EventID(new byte[]{5,1,1,1,0x14,0,(byte)(n >> 8),(byte)n}));
+    }
+
+    @Test(timeout = 10000)
+    public void testOutputQueueGrowsBeforeStart() {
+        List<String> log = new ArrayList<>();
+        DeferredOutput out = new DeferredOutput(log);
+        OlcbInterface iface = new OlcbInterface(localNode, out);
+        // Nothing drains the queue yet, so it has to grow past twice its capacity.
+        int count = OlcbInterface.DEFAULT_OUTPUT_QUEUE_CAPACITY * 2 + 50;
+        for (int i = 0; i < count; i++) {
+            iface.getOutputConnection().put(event16(i), null);
+        }
+        out.starter.connectionActive(out);
+        iface.flushSendQueue();
+        synchronized (log) {
+            Assert.assertEquals(count, log.size());
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals("remote " + i, log.get(i));
+            }
+        }
+        Assert.assertEquals(0, iface.getOutputQueueDropCount());
+        iface.dispose();
+    }
+
+    @Test
+    public void testOutputBatchLocalDelivery() {
+        final List<String> log = new ArrayList<>();
+        DeferredOutput out = new DeferredOutput(log);
+        OlcbInterface iface = new OlcbInterface(localNode, out);
+        iface.registerMessageListener(new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                synchronized (log) {
+                    log.add("local " + eventNumber(msg));
+                }
+            }
+        }, ProducerConsumerEventReportMessage.class);
+        iface.registerMessageListener(new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                if (eventNumber(msg) == 1) throw new IllegalStateException("bad listener");
+            }
+        }, ProducerConsumerEventReportMessage.class);
+        for (int i = 0; i < 3; i++) {
+            iface.getOutputConnection().put(event16(i), null);
+        }
+        out.starter.connectionActive(out);
+        iface.flushSendQueue();
+        // The whole batch is delivered locally before it is sent. A message whose local
+        // delivery threw is not sent.
+        synchronized (log) {
+            Assert.assertEquals(Arrays.asList("local 0", "local 1", "local 2", "remote 0",
+                    "remote 2"), log);
+        }
+        iface.dispose();
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
@@ -52,4 +52,99 @@ public class AliasMapTest  {
         Assert.assertEquals("get NodeID", new NodeID(), map.getNodeID(0));
     }
     
+    @Test
+    public void testUnknownNodeDoesNotAllocate() {
+        AliasMap map = new AliasMap();
+        Assert.assertSame(map.getNodeID(0x555), map.getNodeID(0x556));
+        Assert.assertEquals("out of range", new NodeID(), map.getNodeID(0x1234));
+    }
+
+    @Test
+    public void testAliasReassigned() {
+        AliasMap map = new AliasMap();
+        NodeID a = new NodeID(new byte[]{0,1,2,3,4,5});
+        NodeID b = new NodeID(new byte[]{0,1,2,3,4,6});
+
+        map.insert(0x123, a);
+        map.insert(0x123, a);
+        Assert.assertEquals("same binding again", 0, map.getCollisionCount());
+
+        // another node grabs the alias
+        map.insert(0x123, b);
+        Assert.assertEquals(1, map.getCollisionCount());
+        Assert.assertEquals(b, map.getNodeID(0x123));
+        Assert.assertEquals(0x123, map.getAlias(b));
+        Assert.assertEquals("stale reverse entry dropped", -1, map.getAlias(a));
+
+        // and the node moves to a new alias
+        map.insert(0x456, b);
+        Assert.assertEquals(2, map.getCollisionCount());
+        Assert.assertEquals(0x456, map.getAlias(b));
+        Assert.assertEquals(new NodeID(), map.getNodeID(0x123));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testResetCount() {
+        AliasMap map = new AliasMap();
+        map.insert(0x123, new NodeID(new byte[]{0,1,2,3,4,5}));
+        map.remove(0x123);
+        map.remove(0x123);
+        map.remove(0x321);
+        Assert.assertEquals(1, map.getResetCount());
+        Assert.assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testManyNodes() {
+        AliasMap map = new AliasMap();
+        // Enough to grow the table several times, with churn to leave tombstones behind.
+        for (int round = 0; round < 3; round++) {
+            for (int i = 1; i < 0x1000; i++) {
+                map.insert(i, new NodeID(new byte[]{5,1,1,1,(byte)(i >> 8),(byte)i}));
+            }
+            for (int i = 1; i < 0x1000; i += 3) {
+                map.remove(i);
+            }
+        }
+        for (int i = 1; i < 0x1000; i++) {
+            NodeID nid = new NodeID(new byte[]{5,1,1,1,(byte)(i >> 8),(byte)i});
+            if (i % 3 == 1) {
+                Assert.assertEquals(-1, map.getAlias(nid));
+                Assert.assertEquals(new NodeID(), map.getNodeID(i));
+            } else {
+                Assert.assertEquals(i, map.getAlias(nid));
+                Assert.assertEquals(nid, map.getNodeID(i));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final AliasMap map = new AliasMap();
+        final NodeID fixed = new NodeID(new byte[]{9,9,9,9,9,9});
+        map.insert(0x001, fixed);
+        final boolean[] failed = new boolean[1];
+        final java.util.concurrent.atomic.AtomicBoolean done =
+                new java.util.concurrent.atomic.AtomicBoolean();
+        Thread reader = new Thread() {
+            public void run() {
+                while (!done.get()) {
+                    if (map.getAlias(fixed) != 0x001 || !fixed.equals(map.getNodeID(0x001))) {
+                        failed[0] = true;
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 2; i < 0x1000; i++) {
+                map.insert(i, new NodeID(new byte[]{5,1,1,(byte)round,(byte)(i >> 8),(byte)i}));
+            }
+        }
+        done.set(true);
+        reader.join();
+        Assert.assertFalse("reader saw an inconsistent table", failed[0]);
+    }
+
 }
@@ -8,6 +8,12 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.openlcb.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openlcb.implementations.MemoryConfigurationService;
+
 /**
  *
  * @author Paul Bender Copyright (C) 2017	
@@ -22,6 +28,149 @@ public class CanInterfaceTest {
         t.dispose();
     }
 
+    /// A message that fails when MessageBuilder renders it.
+    private static Message badMessage(NodeID src) {
+        return new Message(src) {
+            @Override
+            public void applyTo(MessageDecoder decoder, Connection sender) {
+                throw new IllegalStateException("cannot render");
+            }
+
+            @Override
+            public int getMTI() {
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public void testBadMessageInBatch() {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        // Only the frames rendered on this thread; alias allocation runs in the background.
+        final Thread testThread = Thread.currentThread();
+        final List<CanFrame> sent = new ArrayList<>();
+        class BatchOutput extends CanFrameListenerScaffold implements CanFrameBatchListener {
+            @Override
+            public synchronized void send(CanFrame frame) {
+                if (Thread.currentThread() == testThread) sent.add(frame);
+            }
+
+            @Override
+            public synchronized void send(List<? extends CanFrame> frames) {
+                if (Thread.currentThread() == testThread) sent.addAll(frames);
+            }
+        }
+        Message good = new InitializationCompleteMessage(nodeID);
+        Message[] msgs = new Message[]{good, badMessage(nodeID), good};
+        Connection[] senders = new Connection[3];
+
+        // Batched output: the good messages still go out.
+        CanInterface t = new CanInterface(nodeID, new BatchOutput());
+        t.new FrameRenderer().putBatch(msgs, senders, 3);
+        Assert.assertEquals(2, sent.size());
+        t.dispose();
+
+        // Frame-by-frame output.
+        sent.clear();
+        t = new CanInterface(nodeID, new CanFrameListenerScaffold() {
+            @Override
+            public synchronized void send(CanFrame frame) {
+                if (Thread.currentThread() == testThread) sent.add(frame);
+            }
+        });
+        t.new FrameRenderer().putBatch(msgs, senders, 3);
+        Assert.assertEquals(2, sent.size());
+        t.dispose();
+    }
+
+    @Test
+    public void testStreamReadOverCan() throws Exception {
+        NodeID local = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{5,1,1,1,0x22,1});
+        final int remoteAlias = 0x555;
+        final List<CanFrame> out = new ArrayList<>();
+        CanInterface t = new CanInterface(local, new CanFrameListenerScaffold() {
+            @Override
+            public void send(CanFrame frame) {
+                synchronized (out) {
+                    out.add(frame);
+                }
+            }
+        });
+        final CountDownLatch started = new CountDownLatch(1);
+        t.addStartListener(new Connection.ConnectionListener() {
+            @Override
+            public void connectionActive(Connection c) {
+                started.countDown();
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        t.getInterface().flushSendQueue();
+        int localAlias = -1;
+        synchronized (out) {
+            for (CanFrame f : out) {
+                OpenLcbCanFrame of = new OpenLcbCanFrame(f);
+                if (of.isInitializationComplete()) localAlias = of.getSourceAlias();
+            }
+        }
+        Assert.assertNotEquals(-1, localAlias);
+
+        // Renders the remote node's messages into CAN frames.
+        AliasMap remoteMap = new AliasMap();
+        remoteMap.insert(remoteAlias, remote);
+        remoteMap.insert(localAlias, local);
+        MessageBuilder remoteBuilder = new MessageBuilder(remoteMap);
+        List<Message> remoteMsgs = new ArrayList<>();
+        remoteMsgs.add(new InitializationCompleteMessage(remote));
+        // Datagram and stream support.
+        remoteMsgs.add(new ProtocolIdentificationReplyMessage(remote, local, 0x600000000000L));
+        for (Message m : remoteMsgs) {
+            for (CanFrame f : remoteBuilder.processMessage(m)) {
+                t.frameInput().send(f);
+            }
+        }
+
+        final List<Byte> data = new ArrayList<>();
+        final boolean[] complete = new boolean[1];
+        t.getInterface().getMemoryConfigurationService().requestBulkRead(remote, 0xFD, 0, 20, 1,
+                new MemoryConfigurationService.McsPipelinedReadHandler() {
+            @Override
+            public void handleReadComplete() {
+                complete[0] = true;
+            }
+
+            @Override
+            public void handleFailure(int code) {
+                Assert.fail("read failed: " + code);
+            }
+
+            @Override
+            public void handleReadData(NodeID dest, int space, long address, byte[] d) {
+                for (byte b : d) data.add(b);
+            }
+        });
+        Assert.assertTrue(t.getInterface().getMemoryConfigurationService()
+                .isStreamReadSupported(remote));
+
+        // The first stream of a new interface gets destination stream ID 1.
+        int[] payload = new int[20];
+        for (int i = 0; i < payload.length; i++) payload[i] = i + 1;
+        remoteMsgs.clear();
+        remoteMsgs.add(new StreamInitiateRequestMessage(remote, local, 64, (byte) 0x22, (byte) 1));
+        remoteMsgs.add(new StreamDataSendMessage(remote, local, (byte) 1, payload));
+        for (Message m : remoteMsgs) {
+            for (CanFrame f : remoteBuilder.processMessage(m)) {
+                t.frameInput().send(f);
+            }
+        }
+        Assert.assertEquals(20, data.size());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(i + 1, (int) data.get(i));
+        }
+        Assert.assertTrue(complete[0]);
+        t.dispose();
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
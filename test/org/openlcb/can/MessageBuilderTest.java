@@ -1,5 +1,6 @@
 package org.openlcb.can;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.After;
@@ -8,7 +9,9 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openlcb.AddressedMessage;
+import org.openlcb.AbstractConnection;
 import org.openlcb.AddressedPayloadMessage;
+import org.openlcb.Connection;
 import org.openlcb.DatagramAcknowledgedMessage;
 import org.openlcb.DatagramMessage;
 import org.openlcb.EventID;
@@ -703,6 +706,8 @@ public class MessageBuilderTest  {
         Assert.assertEquals("max buffer ",6,(f.getElement(2)<<8)+f.getElement(3));
         Assert.assertEquals("flags ",0,(f.getElement(4)<<8)+f.getElement(5));
         Assert.assertEquals("sourceStreamID ",4,f.getElement(6));
+        Assert.assertEquals("parsed max buffer", 6, ((StreamInitiateRequestMessage)msg).getBufferSize());
+        Assert.assertEquals("parsed sourceStreamID", 4, ((StreamInitiateRequestMessage)msg).getSourceStreamID());
     }
     
     @Test	
@@ -788,6 +793,8 @@ public class MessageBuilderTest  {
         Assert.assertEquals("destination", high, ((StreamDataProceedMessage)msg).getDestNodeID());
         Assert.assertEquals("sourceStreamID ",frame.getElement(2),4);
         Assert.assertEquals("destinationStreamID ",frame.getElement(3),6);
+        Assert.assertEquals("parsed sourceStreamID", 4, ((StreamDataProceedMessage)msg).getSourceStreamID());
+        Assert.assertEquals("parsed destinationStreamID", 6, ((StreamDataProceedMessage)msg).getDestinationStreamID());
         Assert.assertEquals("flags ",(frame.getElement(4)<<8)+frame.getElement(5),0);
     }
     
@@ -812,9 +819,157 @@ public class MessageBuilderTest  {
         Assert.assertEquals("destination", high, ((StreamDataCompleteMessage)msg).getDestNodeID());
         Assert.assertEquals("sourceStreamID ",frame.getElement(2),4);
         Assert.assertEquals("destinationStreamID ",frame.getElement(3),6);
+        Assert.assertEquals("parsed sourceStreamID", 4, ((StreamDataCompleteMessage)msg).getSourceStreamID());
+        Assert.assertEquals("parsed destinationStreamID", 6, ((StreamDataCompleteMessage)msg).getDestinationStreamID());
         Assert.assertEquals("flags ",(frame.getElement(4)<<8)+frame.getElement(5),0);
     }
     
+    /** ****************************************************
+     * Tests of the sink-based frame decoder
+     ***************************************************** */
+
+    class CollectingSink extends AbstractConnection {
+        List<Message> messages = new ArrayList<>();
+        @Override
+        public void put(Message msg, Connection sender) {
+            messages.add(msg);
+        }
+    }
+
+    @Test
+    public void testSinkEventReport() {
+        OpenLcbCanFrame frame = new OpenLcbCanFrame(0x123);
+        frame.setHeader(0x195B4123);
+        frame.setData(new byte[]{11,12,13,14,15,16,17,18});
+
+        MessageBuilder b = new MessageBuilder(map);
+        CollectingSink sink = new CollectingSink();
+        b.processFrame(frame, sink);
+
+        Assert.assertEquals("count", 1, sink.messages.size());
+        Assert.assertEquals(new ProducerConsumerEventReportMessage(source, event),
+                sink.messages.get(0));
+    }
+
+    @Test
+    public void testSinkNonOpenLcbFrame() {
+        OpenLcbCanFrame frame = new OpenLcbCanFrame(0x123);
+        frame.setHeader(0x10000123);
+
+        MessageBuilder b = new MessageBuilder(map);
+        CollectingSink sink = new CollectingSink();
+        b.processFrame(frame, sink);
+
+        Assert.assertEquals("count", 0, sink.messages.size());
+    }
+
+    @Test
+    public void testSinkMultiFrameAddressed() {
+        OpenLcbCanFrame frame = new OpenLcbCanFrame(0x123);
+        frame.setHeader(0x191E8123);
+        MessageBuilder b = new MessageBuilder(map);
+        CollectingSink sink = new CollectingSink();
+
+        frame.setData(new byte[]{0x13, 0x21, 0x12, 0x34, 3, 4, 5, 6});
+        b.processFrame(frame, sink);
+        frame.setData(new byte[]{0x33, 0x21, 0x5, 0x4, 13, 14, 15, 16});
+        b.processFrame(frame, sink);
+        Assert.assertEquals("count", 0, sink.messages.size());
+        Assert.assertEquals("pending", 1, b.partials.size());
+
+        frame.setData(new byte[]{0x23, 0x21, 17, 18});
+        b.processFrame(frame, sink);
+
+        Assert.assertEquals("count", 1, sink.messages.size());
+        Assert.assertEquals("pending", 0, b.partials.size());
+        Message msg = sink.messages.get(0);
+        Assert.assertTrue(msg instanceof TractionProxyReplyMessage);
+        Assert.assertEquals("payload", "12 34 03 04 05 06 05 04 0D 0E 0F 10 11 12", Utilities
+                .toHexSpaceString(((AddressedPayloadMessage) msg).getPayload()));
+        Assert.assertEquals("srcnode", source, msg.getSourceNodeID());
+        Assert.assertEquals("dstnode", destination, ((AddressedPayloadMessage) msg).getDestNodeID());
+    }
+
+    @Test
+    public void testSinkMultiFrameDatagram() {
+        MessageBuilder b = new MessageBuilder(map);
+        CollectingSink sink = new CollectingSink();
+
+        OpenLcbCanFrame frame = new OpenLcbCanFrame(0x123);
+        frame.setHeader(0x1B321123);
+        frame.setData(new byte[]{1,2,3,4,5,6,7,8});
+        b.processFrame(frame, sink);
+        frame.setHeader(0x1C321123);
+        frame.setData(new byte[]{9,10});
+        b.processFrame(frame, sink);
+        Assert.assertEquals("count", 0, sink.messages.size());
+        frame.setHeader(0x1D321123);
+        frame.setData(new byte[]{11,12,13});
+        b.processFrame(frame, sink);
+
+        Assert.assertEquals("count", 1, sink.messages.size());
+        Assert.assertEquals("pending", 0, b.partials.size());
+        Assert.assertEquals(new DatagramMessage(source, destination,
+                new int[]{1,2,3,4,5,6,7,8,9,10,11,12,13}), sink.messages.get(0));
+    }
+
+    @Test
+    public void testSinkMatchesListDecoder() {
+        // A mix of global, addressed multi-frame and datagram traffic, interleaved.
+        String trace = ":X195B4123N0B0C0D0E0F101112;"
+                + ":X19A08123N1321414243444546;"
+                + ":X1B321123N2040000000004041;"
+                + ":X19A08123N3321474849505152;"
+                + ":X1D321123N4243;"
+                + ":X19A08123N23215354;"
+                + ":X19100123N010203040506;"
+                + ":X19A28123N03210020;"
+                + ":X195B4123N0B0C0D0E0F101113;";
+        MessageBuilder listBuilder = new MessageBuilder(map);
+        List<Message> expected = new ArrayList<>();
+        for (CanFrame f : GridConnect.parse(trace)) {
+            List<Message> l = listBuilder.processFrame(f);
+            if (l != null) expected.addAll(l);
+        }
+        MessageBuilder sinkBuilder = new MessageBuilder(map);
+        CollectingSink sink = new CollectingSink();
+        for (CanFrame f : GridConnect.parse(trace)) {
+            sinkBuilder.processFrame(f, sink);
+        }
+        Assert.assertEquals("count", 6, expected.size());
+        Assert.assertEquals(expected, sink.messages);
+    }
+
+    @Test
+    public void testPartialTable() {
+        MessageBuilder.PartialTable t = new MessageBuilder.PartialTable();
+        // Enough entries to force growth and long probe chains.
+        for (int i = 1; i <= 100; i++) {
+            t.start(i).append(new byte[]{(byte) i}, 0, 1);
+        }
+        Assert.assertEquals(100, t.size());
+        for (int i = 1; i <= 100; i += 2) {
+            t.remove(i);
+        }
+        Assert.assertEquals(50, t.size());
+        for (int i = 1; i <= 100; i++) {
+            MessageBuilder.Partial p = t.get(i);
+            if (i % 2 == 1) {
+                Assert.assertNull(p);
+            } else {
+                Assert.assertNotNull(p);
+                Assert.assertEquals(1, p.length);
+                Assert.assertEquals(i, p.data[0]);
+            }
+        }
+        // Removed entries are recycled empty.
+        MessageBuilder.Partial p = t.start(1);
+        Assert.assertEquals(0, p.length);
+        p.append(new byte[100], 0, 100);
+        Assert.assertEquals(100, p.length);
+        Assert.assertEquals(0, t.restart(1).length);
+    }
+
     String toHexString(int n) {
         return Integer.toHexString(n);
     }
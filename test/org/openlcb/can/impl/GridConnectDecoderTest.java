@@ -0,0 +1,96 @@
+package org.openlcb.can.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the ByteBuffer based GridConnect parser.
+ */
+public class GridConnectDecoderTest {
+    /// Renders every frame right away, since the decoder reuses the frame object.
+    static class Collector implements CanFrameListener {
+        List<String> frames = new ArrayList<>();
+        List<CanFrame> objects = new ArrayList<>();
+
+        @Override
+        public void send(CanFrame frame) {
+            frames.add(GridConnect.format(frame));
+            objects.add(frame);
+        }
+    }
+
+    static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testParse() {
+        Collector c = new Collector();
+        GridConnectDecoder d = new GridConnectDecoder(c);
+        d.decode(bytes(":X195B4123N01020304;\n:S121Nffffff;:X123R;"));
+        Assert.assertEquals("[:X195B4123N01020304;, :S121NFFFFFF;, :X00000123R;]",
+                c.frames.toString());
+        Assert.assertEquals(3, d.getFrameCount());
+        Assert.assertEquals(0, d.getErrorCount());
+        // Same object every time.
+        Assert.assertSame(c.objects.get(0), c.objects.get(2));
+    }
+
+    @Test
+    public void testSplitInput() {
+        Collector c = new Collector();
+        GridConnectDecoder d = new GridConnectDecoder(c);
+        String s = ":X195B4123N0102030405060708;:X195B4456N;";
+        for (int i = 0; i < s.length(); i++) {
+            d.decode(bytes(s.substring(i, i + 1)));
+        }
+        Assert.assertEquals("[:X195B4123N0102030405060708;, :X195B4456N;]",
+                c.frames.toString());
+    }
+
+    @Test
+    public void testGarbage() {
+        Collector c = new Collector();
+        GridConnectDecoder d = new GridConnectDecoder(c);
+        // Bad type, bad data, too long, then a good one.
+        d.decode(bytes(":Q123N;:X123N0G;:X123N010203040506070809;garbage:X123N01;"));
+        Assert.assertEquals("[:X00000123N01;]", c.frames.toString());
+        Assert.assertEquals(3, d.getErrorCount());
+    }
+
+    @Test
+    public void testNewFrames() throws Exception {
+        Collector c = new Collector();
+        GridConnectDecoder d = new GridConnectDecoder(c, false);
+        d.decode(bytes(":X195B4123N01;:X195B4123N02;"));
+        Assert.assertNotSame(c.objects.get(0), c.objects.get(1));
+        Assert.assertEquals(1, c.objects.get(0).getElement(0));
+        Assert.assertEquals(2, c.objects.get(1).getElement(0));
+    }
+
+    @Test
+    public void testReadFromChannel() throws Exception {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            b.append(":X195B4123N0102030405060708;\n");
+        }
+        Collector c = new Collector();
+        GridConnectDecoder d = new GridConnectDecoder(c);
+        java.nio.channels.ReadableByteChannel ch = Channels.newChannel(new ByteArrayInputStream(
+                b.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        while (d.readFrom(ch)) {
+        }
+        Assert.assertEquals(1000, c.frames.size());
+        Assert.assertEquals(0x0102030405060708L, c.objects.get(0).bodyAsLong());
+    }
+}
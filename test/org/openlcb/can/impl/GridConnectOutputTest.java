@@ -7,6 +7,7 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openlcb.*;
+import org.openlcb.can.GridConnect;
 
 /**
  *
@@ -23,6 +24,69 @@ public class GridConnectOutputTest {
         Assert.assertNotNull("exists",t);
     }
 
+    /// Records what was written at each flush.
+    static class RecordingStream extends java.io.ByteArrayOutputStream {
+        final java.util.List<String> flushes = new java.util.ArrayList<>();
+        int flushed = 0;
+
+        @Override
+        public synchronized void flush() {
+            flushes.add(new String(buf, flushed, count - flushed,
+                    java.nio.charset.StandardCharsets.ISO_8859_1));
+            flushed = count;
+        }
+    }
+
+    @Test
+    public void testSendFlushesEachFrame() {
+        RecordingStream s = new RecordingStream();
+        GridConnectOutput t = new GridConnectOutput(s, null);
+        t.send(GridConnect.parse(":X195B4123N01020304;").get(0));
+        t.send(GridConnect.parse(":S123R;").get(0));
+        Assert.assertEquals("[:X195B4123N01020304;\n, :S123R;\n]", s.flushes.toString());
+        Assert.assertEquals(2, t.getFrameCount());
+        Assert.assertEquals(2, t.getFlushCount());
+    }
+
+    @Test
+    public void testBatchIsOneFlush() {
+        RecordingStream s = new RecordingStream();
+        GridConnectOutput t = new GridConnectOutput(s, null);
+        t.send(GridConnect.parse(":X195B4123N01;:X195B4123N02;:X195B4123N03;"));
+        Assert.assertEquals("[:X195B4123N01;\n:X195B4123N02;\n:X195B4123N03;\n]",
+                s.flushes.toString());
+        Assert.assertEquals(3.0, t.getFramesPerFlush(), 0.001);
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        RecordingStream s = new RecordingStream();
+        GridConnectOutput t = new GridConnectOutput(s, null);
+        t.setWriteCoalescing(200);
+        t.send(GridConnect.parse(":X195B4123N01;").get(0));
+        t.send(GridConnect.parse(":X195B4123N02;").get(0));
+        synchronized (s) {
+            Assert.assertEquals(0, s.flushes.size());
+        }
+        for (int i = 0; i < 100; i++) {
+            synchronized (s) {
+                if (!s.flushes.isEmpty()) break;
+            }
+            Thread.sleep(10);
+        }
+        synchronized (s) {
+            Assert.assertEquals("[:X195B4123N01;\n:X195B4123N02;\n]", s.flushes.toString());
+        }
+        // A batch flushes everything held back.
+        t.send(GridConnect.parse(":X195B4123N03;").get(0));
+        t.send(GridConnect.parse(":X195B4123N04;"));
+        synchronized (s) {
+            Assert.assertEquals(2, s.flushes.size());
+            Assert.assertEquals(":X195B4123N03;\n:X195B4123N04;\n", s.flushes.get(1));
+        }
+        t.setWriteCoalescing(0);
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
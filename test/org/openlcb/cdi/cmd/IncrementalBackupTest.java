@@ -0,0 +1,121 @@
+package org.openlcb.cdi.cmd;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import org.jdom2.Document;
+import org.jdom2.output.XMLOutputter;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.openlcb.FakeOlcbInterface;
+import org.openlcb.NodeID;
+import org.openlcb.cdi.impl.ConfigRepresentation;
+import org.openlcb.cdi.jdom.SampleFactory;
+import org.openlcb.implementations.FakeMemoryConfigurationService;
+
+/**
+ * Tests the incremental backup of node configurations.
+ */
+public class IncrementalBackupTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeOlcbInterface iface;
+    private FakeMemoryConfigurationService mcs;
+    private final NodeID remoteNode = new NodeID("05.01.01.01.14.39");
+    private final byte[] config = new byte[1000];
+
+    private ConfigRepresentation load() {
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        // The fake memory config service runs inline, so the config is loaded here.
+        Assert.assertEquals("Representation complete.", rep.getStatus());
+        return rep;
+    }
+
+    @Test
+    public void testStoreOnlyChanges() throws Exception {
+        IncrementalBackup backup = new IncrementalBackup(folder.getRoot().toPath());
+        List<String> changed = backup.store(load(), null);
+        Assert.assertEquals(13, changed.size());
+        Path text = backup.getTextFile(remoteNode);
+        Path snap = backup.getSnapshotFile(remoteNode);
+        Assert.assertTrue(Files.exists(text));
+        Assert.assertTrue(Files.exists(snap));
+        Assert.assertEquals("05_01_01_01_14_39.txt", text.getFileName().toString());
+
+        FileTime old = FileTime.fromMillis(1000000);
+        Files.setLastModifiedTime(text, old);
+        Files.setLastModifiedTime(snap, old);
+        changed = backup.store(load(), null);
+        Assert.assertTrue(changed.isEmpty());
+        Assert.assertEquals(old, Files.getLastModifiedTime(text));
+        Assert.assertEquals(old, Files.getLastModifiedTime(snap));
+
+        // Changes one variable.
+        config[158] = 7;
+        ConfigRepresentation rep = load();
+        changed = backup.store(rep, null);
+        Assert.assertEquals(1, changed.size());
+        ConfigSnapshot s = ConfigSnapshot.read(snap);
+        ConfigSnapshot.Entry e = s.get(changed.get(0));
+        Assert.assertEquals(13, e.space);
+        Assert.assertEquals(158, e.address);
+        Assert.assertEquals(7, e.data[0]);
+        Assert.assertNotEquals(old, Files.getLastModifiedTime(text));
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        IncrementalBackup backup = new IncrementalBackup(folder.getRoot().toPath());
+        backup.setChangeProbe(new ChangeProbe.MemoryRange(13, 996, 4));
+        config[996] = 1;
+        byte[] probe = backup.probe(iface, remoteNode);
+        Assert.assertArrayEquals(new byte[]{1, 0, 0, 0}, probe);
+        Assert.assertFalse(backup.isUpToDate(remoteNode, probe));
+        backup.store(load(), probe);
+
+        mcs.actualReadList.clear();
+        probe = backup.probe(iface, remoteNode);
+        Assert.assertTrue(backup.isUpToDate(remoteNode, probe));
+        // Only the probe was read.
+        Assert.assertEquals(1, mcs.actualReadList.size());
+
+        config[996] = 2;
+        probe = backup.probe(iface, remoteNode);
+        Assert.assertFalse(backup.isUpToDate(remoteNode, probe));
+        Assert.assertTrue(backup.store(load(), probe).isEmpty());
+        // The new probe value is remembered even though no variable changed.
+        Assert.assertTrue(backup.isUpToDate(remoteNode, probe));
+
+        // Nodes without the probe are always read.
+        Assert.assertFalse(backup.isUpToDate(remoteNode, null));
+    }
+
+    @Test
+    public void testDamagedSnapshot() throws Exception {
+        IncrementalBackup backup = new IncrementalBackup(folder.getRoot().toPath());
+        backup.store(load(), null);
+        Files.write(backup.getSnapshotFile(remoteNode), new byte[]{1, 2, 3});
+        // Treated as if there was no previous backup.
+        Assert.assertEquals(13, backup.store(load(), null).size());
+        Assert.assertNotNull(ConfigSnapshot.read(backup.getSnapshotFile(remoteNode)));
+    }
+
+    @Before
+    public void setUp() {
+        iface = new FakeOlcbInterface();
+        mcs = new FakeMemoryConfigurationService(iface);
+        byte[] cdi = (new XMLOutputter().outputString(new Document(SampleFactory
+                .getOffsetSample())) + "\0").getBytes();
+        mcs.addSpace(remoteNode, FakeMemoryConfigurationService.SPACE_CDI, cdi, false);
+        mcs.addSpace(remoteNode, 13, config, true);
+        mcs.addSpace(remoteNode, 14, config, true);
+    }
+
+    @After
+    public void tearDown() {
+        iface.dispose();
+        mcs.dispose();
+    }
+}
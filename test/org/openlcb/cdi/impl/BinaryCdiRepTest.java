@@ -0,0 +1,134 @@
+package org.openlcb.cdi.impl;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.List;
+import org.openlcb.cdi.CdiRep;
+import org.openlcb.cdi.jdom.JdomCdiRep;
+import org.openlcb.cdi.jdom.SampleFactory;
+
+/**
+ * Tests the binary CDI snapshot against the JDOM representation it was made from.
+ */
+public class BinaryCdiRepTest {
+
+    private static void assertMapEquals(CdiRep.Map expected, CdiRep.Map actual) {
+        Assert.assertEquals(expected.getKeys(), actual.getKeys());
+        Assert.assertEquals(expected.getValues(), actual.getValues());
+        for (String k : expected.getKeys()) {
+            Assert.assertEquals(expected.getEntry(k), actual.getEntry(k));
+        }
+    }
+
+    private static void assertItemsEqual(List<CdiRep.Item> expected, List<CdiRep.Item> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CdiRep.Item e = expected.get(i);
+            CdiRep.Item a = actual.get(i);
+            Assert.assertEquals(e.getName(), a.getName());
+            Assert.assertEquals(e.getDescription(), a.getDescription());
+            Assert.assertEquals(e.getOffset(), a.getOffset());
+            Assert.assertEquals(e.getIndexInParent(), a.getIndexInParent());
+            assertMapEquals(e.getMap(), a.getMap());
+            if (e instanceof CdiRep.Group) {
+                Assert.assertTrue(a instanceof CdiRep.Group);
+                CdiRep.Group eg = (CdiRep.Group) e;
+                CdiRep.Group ag = (CdiRep.Group) a;
+                Assert.assertEquals(eg.getReplication(), ag.getReplication());
+                Assert.assertEquals(eg.getRepName(), ag.getRepName());
+                assertItemsEqual(eg.getItems(), ag.getItems());
+            } else if (e instanceof CdiRep.IntegerRep) {
+                Assert.assertTrue(a instanceof CdiRep.IntegerRep);
+                Assert.assertEquals(((CdiRep.IntegerRep) e).getSize(), ((CdiRep.IntegerRep) a)
+                        .getSize());
+            } else if (e instanceof CdiRep.StringRep) {
+                Assert.assertTrue(a instanceof CdiRep.StringRep);
+                Assert.assertEquals(((CdiRep.StringRep) e).getSize(), ((CdiRep.StringRep) a)
+                        .getSize());
+            } else if (e instanceof CdiRep.EventID) {
+                Assert.assertTrue(a instanceof CdiRep.EventID);
+            } else if (e instanceof CdiRep.BitRep) {
+                Assert.assertTrue(a instanceof CdiRep.BitRep);
+                Assert.assertEquals(((CdiRep.BitRep) e).getSize(), ((CdiRep.BitRep) a)
+                        .getSize());
+            }
+        }
+    }
+
+    private static void assertRepEquals(CdiRep expected, CdiRep actual) {
+        CdiRep.Identification ei = expected.getIdentification();
+        CdiRep.Identification ai = actual.getIdentification();
+        if (ei == null) {
+            Assert.assertNull(ai);
+        } else {
+            Assert.assertEquals(ei.getManufacturer(), ai.getManufacturer());
+            Assert.assertEquals(ei.getModel(), ai.getModel());
+            Assert.assertEquals(ei.getHardwareVersion(), ai.getHardwareVersion());
+            Assert.assertEquals(ei.getSoftwareVersion(), ai.getSoftwareVersion());
+            assertMapEquals(ei.getMap(), ai.getMap());
+        }
+        Assert.assertEquals(expected.getSegments().size(), actual.getSegments().size());
+        for (int i = 0; i < expected.getSegments().size(); i++) {
+            CdiRep.Segment e = expected.getSegments().get(i);
+            CdiRep.Segment a = actual.getSegments().get(i);
+            Assert.assertEquals(e.getName(), a.getName());
+            Assert.assertEquals(e.getDescription(), a.getDescription());
+            Assert.assertEquals(e.getSpace(), a.getSpace());
+            Assert.assertEquals(e.getOrigin(), a.getOrigin());
+            Assert.assertEquals(e.getIndexInParent(), a.getIndexInParent());
+            assertMapEquals(e.getMap(), a.getMap());
+            assertItemsEqual(e.getItems(), a.getItems());
+        }
+    }
+
+    @Test
+    public void testBasicSample() throws Exception {
+        CdiRep jdom = new JdomCdiRep(SampleFactory.getBasicSample());
+        CdiRep bin = new BinaryCdiRep(BinaryCdiRep.write(jdom));
+        assertRepEquals(jdom, bin);
+        Assert.assertEquals("OpenLCB Prototype", bin.getIdentification().getManufacturer());
+    }
+
+    @Test
+    public void testOffsetSample() throws Exception {
+        CdiRep jdom = new JdomCdiRep(SampleFactory.getOffsetSample());
+        byte[] data = BinaryCdiRep.write(jdom);
+        CdiRep bin = new BinaryCdiRep(data);
+        assertRepEquals(jdom, bin);
+        // Rewriting the snapshot gives the same bytes.
+        Assert.assertArrayEquals(data, BinaryCdiRep.write(bin));
+    }
+
+    @Test
+    public void testGroupItemsDecodedOnce() throws Exception {
+        CdiRep bin = new BinaryCdiRep(BinaryCdiRep.write(new JdomCdiRep(SampleFactory
+                .getBasicSample())));
+        for (CdiRep.Segment s : bin.getSegments()) {
+            Assert.assertSame(s.getItems(), s.getItems());
+            for (CdiRep.Item it : s.getItems()) {
+                if (it instanceof CdiRep.Group) {
+                    CdiRep.Group g = (CdiRep.Group) it;
+                    Assert.assertSame(g.getItems(), g.getItems());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBadData() throws Exception {
+        byte[] data = BinaryCdiRep.write(new JdomCdiRep(SampleFactory.getBasicSample()));
+        try {
+            new BinaryCdiRep(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            new BinaryCdiRep(java.util.Arrays.copyOf(data, data.length / 2));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.openlcb.cdi.impl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.openlcb.NodeID;
+import org.openlcb.SimpleNodeIdent;
+import org.openlcb.SimpleNodeIdentInfoReplyMessage;
+import org.openlcb.cdi.CdiRep;
+import org.openlcb.cdi.jdom.JdomCdiRep;
+import org.openlcb.cdi.jdom.SampleFactory;
+
+/**
+ * Tests the persistent CDI cache.
+ */
+public class CdiCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String CDI = "<?xml version=\"1.0\"?><cdi><identification>" +
+            "<manufacturer>Árvíztűrő</manufacturer></identification></cdi>";
+
+    private static SimpleNodeIdent ident(String data) {
+        byte[] b = data.getBytes(Charset.forName("UTF-8"));
+        return new SimpleNodeIdent(new SimpleNodeIdentInfoReplyMessage(new NodeID(new
+                byte[]{1, 2, 3, 4, 5, 6}), new NodeID(new byte[]{1, 2, 3, 4, 5, 7}), b));
+    }
+
+    private Path onlyFile(Path dir) throws IOException {
+        Path found = null;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.cdi")) {
+            for (Path p : ds) {
+                Assert.assertNull(found);
+                found = p;
+            }
+        }
+        Assert.assertNotNull(found);
+        return found;
+    }
+
+    @Test
+    public void testGetKey() {
+        Assert.assertEquals("mfg\0model\0hw\0sw", CdiCache.getKey(ident(
+                "\001mfg\0model\0hw\0sw\0\002user\0desc\0")));
+        // user name does not matter
+        Assert.assertEquals(CdiCache.getKey(ident("\001mfg\0model\0hw\0sw\0\002\0\0")),
+                CdiCache.getKey(ident("\001mfg\0model\0hw\0sw\0\002other\0\0")));
+        // incomplete
+        Assert.assertNull(CdiCache.getKey(ident("\001mfg\0model\0hw")));
+        // no manufacturer
+        Assert.assertNull(CdiCache.getKey(ident("\001\0model\0hw\0sw\0\002\0\0")));
+        Assert.assertNull(CdiCache.getKey(null));
+    }
+
+    @Test
+    public void testStoreLoad() throws Exception {
+        Path dir = folder.getRoot().toPath().resolve("cache");
+        CdiCache cache = new CdiCache(dir);
+        Assert.assertNull(cache.load("a\0b\0c\0d"));
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.store("a\0b\0c\0d", CDI);
+        Assert.assertEquals(CDI, cache.load("a\0b\0c\0d"));
+        Assert.assertNull(cache.load("a\0b\0c\0e"));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+
+        // Survives a restart.
+        cache = new CdiCache(dir);
+        Assert.assertEquals(CDI, cache.load("a\0b\0c\0d"));
+
+        cache.store("a\0b\0c\0d", "<cdi/>");
+        Assert.assertEquals("<cdi/>", cache.load("a\0b\0c\0d"));
+        onlyFile(dir);
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertNull(cache.load("a\0b\0c\0d"));
+    }
+
+    @Test
+    public void testStoreLoadRep() throws Exception {
+        CdiCache cache = new CdiCache(folder.getRoot().toPath());
+        cache.store("k", CDI);
+        Assert.assertNull(cache.loadRep("k"));
+
+        CdiRep rep = new JdomCdiRep(SampleFactory.getBasicSample());
+        cache.store("k", CDI, rep);
+        CdiRep loaded = cache.loadRep("k");
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals("OpenLCB Prototype", loaded.getIdentification().getManufacturer());
+        Assert.assertEquals(rep.getSegments().size(), loaded.getSegments().size());
+        // The XML is still there.
+        Assert.assertEquals(CDI, cache.load("k"));
+    }
+
+    @Test
+    public void testDamagedFileDropped() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        CdiCache cache = new CdiCache(dir);
+        cache.store("k", CDI);
+        Path p = onlyFile(dir);
+        byte[] data = Files.readAllBytes(p);
+        data[data.length - 12] ^= 0x55;
+        Files.write(p, data);
+
+        Assert.assertNull(cache.load("k"));
+        Assert.assertFalse(Files.exists(p));
+        Assert.assertEquals(0, cache.getHitCount());
+
+        // Truncated file.
+        cache.store("k", CDI);
+        Files.write(p, new byte[]{1, 2, 3});
+        Assert.assertNull(cache.load("k"));
+        Assert.assertFalse(Files.exists(p));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        CdiCache cache = new CdiCache(dir);
+        cache.store("k1", CDI);
+        long size = cache.getSize();
+        cache.setMaxBytes(size * 2 + size / 2);
+        cache.store("k2", CDI);
+        // k1 is older than k2, but has been used more recently.
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.cdi")) {
+            for (Path p : ds) {
+                Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis() -
+                        100000));
+            }
+        }
+        Assert.assertEquals(CDI, cache.load("k1"));
+
+        cache.store("k3", CDI);
+        Assert.assertTrue(cache.getSize() <= size * 2 + size / 2);
+        Assert.assertEquals(CDI, cache.load("k1"));
+        Assert.assertEquals(CDI, cache.load("k3"));
+        Assert.assertNull(cache.load("k2"));
+    }
+}
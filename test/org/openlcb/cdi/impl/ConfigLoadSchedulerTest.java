@@ -0,0 +1,129 @@
+package org.openlcb.cdi.impl;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.*;
+import org.openlcb.FakeOlcbInterface;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+
+/**
+ * Tests the scheduler of config reads over multiple nodes.
+ */
+public class ConfigLoadSchedulerTest {
+    private final NodeID nodeA = new NodeID("01.02.03.04.05.0A");
+    private final NodeID nodeB = new NodeID("01.02.03.04.05.0B");
+    private final NodeID nodeC = new NodeID("01.02.03.04.05.0C");
+    private final List<String> started = new ArrayList<>();
+
+    private Runnable read(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testRoundRobin() {
+        ConfigLoadScheduler s = new ConfigLoadScheduler(1);
+        s.submit(nodeA, read("a1"));
+        s.submit(nodeA, read("a2"));
+        s.submit(nodeA, read("a3"));
+        s.submit(nodeB, read("b1"));
+        s.submit(nodeC, read("c1"));
+        s.submit(nodeC, read("c2"));
+        Assert.assertEquals("[a1]", started.toString());
+        Assert.assertEquals(1, s.getActiveCount());
+        Assert.assertEquals(5, s.getQueuedCount());
+        for (int i = 0; i < 5; i++) {
+            s.done();
+        }
+        Assert.assertEquals("[a1, a2, b1, c1, a3, c2]", started.toString());
+        s.done();
+        Assert.assertEquals(0, s.getActiveCount());
+        Assert.assertEquals(0, s.getQueuedCount());
+    }
+
+    @Test
+    public void testPriority() {
+        ConfigLoadScheduler s = new ConfigLoadScheduler(1);
+        s.submit(nodeA, read("a1"));
+        s.submit(nodeA, read("a2"));
+        s.submit(nodeB, read("b1"));
+        s.submit(nodeB, read("b2"));
+        s.submit(nodeB, read("b3"));
+        s.setPriorityNode(nodeB);
+        for (int i = 0; i < 4; i++) {
+            s.done();
+        }
+        Assert.assertEquals("[a1, b1, b2, b3, a2]", started.toString());
+    }
+
+    @Test
+    public void testClearPriority() {
+        ConfigLoadScheduler s = new ConfigLoadScheduler(1);
+        s.setPriorityNode(nodeA);
+        // Clearing another node's priority does nothing.
+        s.clearPriorityNode(nodeB);
+        Assert.assertEquals(nodeA, s.getPriorityNode());
+        s.clearPriorityNode(nodeA);
+        Assert.assertNull(s.getPriorityNode());
+    }
+
+    @Test
+    public void testInterfaceLimit() {
+        // The shared scheduler uses all the datagram slots of the interface.
+        OlcbInterface iface = new FakeOlcbInterface();
+        ConfigLoadScheduler s = iface.getConfigLoadScheduler();
+        int limit = iface.getDatagramMeteringBuffer().getMaxInFlight();
+        for (int i = 0; i < limit + 1; i++) {
+            s.submit(i % 2 == 0 ? nodeA : nodeB, read("r" + i));
+        }
+        Assert.assertEquals(limit, s.getActiveCount());
+        Assert.assertEquals(1, s.getQueuedCount());
+        iface.dispose();
+    }
+
+    @Test
+    public void testMaxConcurrent() {
+        ConfigLoadScheduler s = new ConfigLoadScheduler(2);
+        for (int i = 0; i < 3; i++) {
+            s.submit(nodeA, read("a" + i));
+            s.submit(nodeB, read("b" + i));
+        }
+        Assert.assertEquals("[a0, b0]", started.toString());
+        Assert.assertEquals(2, s.getActiveCount());
+        s.setMaxConcurrent(4);
+        Assert.assertEquals("[a0, b0, a1, b1]", started.toString());
+        Assert.assertEquals(4, s.getActiveCount());
+        s.done();
+        Assert.assertEquals(4, s.getActiveCount());
+        Assert.assertEquals(1, s.getQueuedCount());
+    }
+
+    @Test
+    public void testProgress() {
+        ConfigLoadScheduler s = new ConfigLoadScheduler();
+        final int[] events = new int[1];
+        s.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                if (event.getPropertyName().equals(ConfigLoadScheduler.UPDATE_PROGRESS)) {
+                    events[0]++;
+                }
+            }
+        });
+        Assert.assertEquals(1.0, s.getProgress(), 1e-9);
+        s.addTotalBytes(300);
+        s.addTotalBytes(100);
+        s.addLoadedBytes(100);
+        Assert.assertEquals(400, s.getTotalBytes());
+        Assert.assertEquals(100, s.getLoadedBytes());
+        Assert.assertEquals(0.25, s.getProgress(), 1e-9);
+        Assert.assertEquals(3, events[0]);
+    }
+}
@@ -1,15 +1,23 @@
 package org.openlcb.cdi.impl;
 
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
+import org.openlcb.EventID;
 import org.openlcb.FakeOlcbInterface;
 import org.openlcb.NodeID;
+import org.openlcb.NodeIdentityCache;
+import org.openlcb.SimpleNodeIdent;
+import org.openlcb.SimpleNodeIdentInfoReplyMessage;
 import org.openlcb.cdi.jdom.SampleFactory;
 import org.openlcb.implementations.FakeMemoryConfigurationService;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -21,14 +29,21 @@ public class ConfigRepresentationTest {
     protected FakeMemoryConfigurationService mcs;
     protected NodeID remoteNode = new NodeID("05.01.01.01.14.39");
 
-    protected void addCdiData(Element root) {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    protected static String renderCdi(Element root) {
         Document doc = new Document(root);
-        try {
-            org.jdom2.output.XMLOutputter fmt = new org.jdom2.output.XMLOutputter();
+        org.jdom2.output.XMLOutputter fmt = new org.jdom2.output.XMLOutputter();
 
-            fmt.setFormat(org.jdom2.output.Format.getPrettyFormat());
+        fmt.setFormat(org.jdom2.output.Format.getPrettyFormat());
 
-            String s = fmt.outputString(doc) + "\0";
+        return fmt.outputString(doc);
+    }
+
+    protected void addCdiData(Element root) {
+        try {
+            String s = renderCdi(root) + "\0";
             byte[] b = s.getBytes();
             mcs.addSpace(remoteNode, mcs.SPACE_CDI, b, false);
         } catch (Exception e) {
@@ -83,6 +98,97 @@ public class ConfigRepresentationTest {
         });
     }
 
+    @Test
+    public void testCdiReadWindow() throws Exception {
+        addCdiData(SampleFactory.getLargeStringSample());
+        byte[] config = new byte[1000];
+        mcs.addSpace(remoteNode, 13, config, true);
+        // By default the CDI is read one request at a time.
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        Assert.assertEquals("Representation complete.", rep.getStatus());
+        Assert.assertEquals(0, mcs.actualPipelinedReadList.size());
+
+        iface.setCdiReadWindow(6);
+        rep = new ConfigRepresentation(iface, remoteNode);
+        Assert.assertEquals("Representation complete.", rep.getStatus());
+        Assert.assertNotNull(rep.getRoot());
+        Assert.assertEquals(1, mcs.actualPipelinedReadList.size());
+        Assert.assertEquals(mcs.SPACE_CDI, mcs.actualPipelinedReadList.get(0).space);
+        Assert.assertEquals(6, mcs.actualPipelinedReadList.get(0).window);
+    }
+
+    private String cacheKey(byte[] snip) {
+        return CdiCache.getKey(new SimpleNodeIdent(new SimpleNodeIdentInfoReplyMessage(
+                remoteNode, iface.getNodeId(), snip)));
+    }
+
+    @Test
+    public void testCachedIdentRevalidated() throws Exception {
+        // The identity cache has the SNIP from before a firmware update, and the CDI cache has
+        // the CDI of the old firmware.
+        byte[] oldSnip = new byte[]{4, 'M', 'f', 'g', 0, 'M', 'o', 'd', 0, '1', 0, '1', 0, 2,
+                'N', 0, 0};
+        byte[] newSnip = new byte[]{4, 'M', 'f', 'g', 0, 'M', 'o', 'd', 0, '1', 0, '2', 0, 2,
+                'N', 0, 0};
+        NodeIdentityCache identities = new NodeIdentityCache(folder.getRoot().toPath().resolve(
+                "nodes.cache"));
+        identities.putSimpleNodeIdent(remoteNode, oldSnip);
+        iface.getNodeStore().setIdentityCache(identities);
+        CdiCache cdiCache = new CdiCache(folder.newFolder("cdi").toPath());
+        cdiCache.store(cacheKey(oldSnip), renderCdi(SampleFactory.getOffsetSample()));
+        iface.setCdiCache(cdiCache);
+
+        addCdiData(SampleFactory.getLargeStringSample());
+        byte[] config = new byte[1000];
+        config[0] = 'a';
+        mcs.addSpace(remoteNode, 13, config, true);
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        // Waits for the node to confirm its identification.
+        Assert.assertNotEquals("Representation complete.", rep.getStatus());
+        Assert.assertEquals(0, mcs.actualReadList.size());
+
+        iface.getNodeStore().put(new SimpleNodeIdentInfoReplyMessage(remoteNode, iface
+                .getNodeId(), newSnip), null);
+        Assert.assertEquals("Representation complete.", rep.getStatus());
+        Assert.assertEquals(0, cdiCache.getHitCount());
+        Assert.assertEquals(mcs.SPACE_CDI, mcs.actualReadList.get(0).space);
+        Assert.assertNotNull(cdiCache.load(cacheKey(newSnip)));
+        final List<String> values = new ArrayList<>();
+        rep.visit(new ConfigRepresentation.Visitor() {
+            @Override
+            public void visitString(ConfigRepresentation.StringEntry e) {
+                values.add(e.getValue());
+            }
+        });
+        Assert.assertEquals(Arrays.asList("a"), values);
+    }
+
+    @Test
+    public void testStreamLoad() throws Exception {
+        // Nodes that support streams send the CDI and the long ranges in streams.
+        mcs.setStreamSupport(true);
+        addCdiData(SampleFactory.getLargeStringSample());
+        byte[] config = new byte[1000];
+        config[0] = 'a';
+        mcs.addSpace(remoteNode, 13, config, true);
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        Assert.assertEquals("Representation complete.", rep.getStatus());
+        Assert.assertNotNull(rep.getRoot());
+        Assert.assertEquals(2, mcs.actualBulkReadList.size());
+        Assert.assertEquals(mcs.SPACE_CDI, mcs.actualBulkReadList.get(0).space);
+        Assert.assertEquals(13, mcs.actualBulkReadList.get(1).space);
+        Assert.assertEquals(0, mcs.actualReadList.size());
+
+        final List<String> values = new ArrayList<>();
+        rep.visit(new ConfigRepresentation.Visitor() {
+            @Override
+            public void visitString(ConfigRepresentation.StringEntry e) {
+                values.add(e.getValue());
+            }
+        });
+        Assert.assertEquals(Arrays.asList("a"), values);
+    }
+
     @Test
     public void testStringWrites() throws Exception {
         addCdiData(SampleFactory.getLargeStringSample());
@@ -203,16 +309,15 @@ public class ConfigRepresentationTest {
         ConfigRepresentation.CdiContainer cont = rep.getRoot();
         Assert.assertNotNull(cont);
 
-        List<FakeMemoryConfigurationService.ActualRead> trail = mcs.actualReadList.subList(mcs.actualReadList.size() - 3, mcs.actualReadList.size());
+        // The string is read together with the variable before it, and the load stops at its
+        // null byte.
+        List<FakeMemoryConfigurationService.ActualRead> trail = mcs.actualReadList.subList(mcs.actualReadList.size() - 2, mcs.actualReadList.size());
         Assert.assertEquals(trail.get(0).space, 13);
         Assert.assertEquals(trail.get(1).space, 13);
-        Assert.assertEquals(trail.get(2).space, 13);
-        Assert.assertEquals(trail.get(0).size, 2);
-        Assert.assertEquals(trail.get(1).size, 64);
-        Assert.assertEquals(trail.get(2).size, 2);
+        Assert.assertEquals(trail.get(0).size, 64);
+        Assert.assertEquals(trail.get(1).size, 2);
         Assert.assertEquals(trail.get(0).address, 0);
-        Assert.assertEquals(trail.get(1).address, 2);
-        Assert.assertEquals(trail.get(2).address, 202);
+        Assert.assertEquals(trail.get(1).address, 202);
 
         mcs.actualReadList.clear();
 
@@ -243,6 +348,195 @@ public class ConfigRepresentationTest {
         Assert.assertEquals(trail.get(2).size, 64);
     }
 
+    /// @return a CDI with 100 ports of 8 events each; 105 bytes per port.
+    private static Element getReplicatedSample() {
+        Element root = new Element("cdi");
+        root.addContent(new Element("segment").setAttribute("space", "13")
+                .addContent(new Element("name").addContent("seg"))
+                .addContent(new Element("group").setAttribute("replication", "100")
+                        .addContent(new Element("name").addContent("port"))
+                        .addContent(new Element("int").setAttribute("size", "1")
+                                .addContent(new Element("name").addContent("mode")))
+                        .addContent(new Element("group").setAttribute("replication", "8")
+                                .addContent(new Element("name").addContent("ev"))
+                                .addContent(new Element("eventid")
+                                        .addContent(new Element("name").addContent("on")))
+                                .addContent(new Element("string").setAttribute("size", "3")
+                                        .setAttribute("offset", "2")
+                                        .addContent(new Element("name").addContent("tag")))
+                        )
+                )
+        );
+        return root;
+    }
+
+    @Test
+    public void testReplicatedGroupsOnDemand() throws Exception {
+        addCdiData(getReplicatedSample());
+        // 1 + 8 * (8 + 2 + 3) bytes per port.
+        final int stride = 105;
+        byte[] config = new byte[stride * 100];
+        int address = 50 * stride + 1 + 3 * 13;
+        for (int i = 0; i < 8; i++) {
+            config[address + i] = (byte) (i + 1);
+        }
+        config[99 * stride] = 42;
+        mcs.addSpace(remoteNode, 13, config, true);
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        Assert.assertEquals("Representation complete.", rep.getStatus());
+
+        ConfigRepresentation.SegmentEntry seg = (ConfigRepresentation.SegmentEntry) rep
+                .getRoot().getEntries().get(0);
+        Assert.assertEquals(1, seg.getEntries().size());
+        ConfigRepresentation.GroupEntry port = (ConfigRepresentation.GroupEntry) seg
+                .getEntries().get(0);
+        Assert.assertEquals(stride * 100, port.size);
+        Assert.assertEquals(100, port.getEntries().size());
+
+        // The whole space was loaded, with the repeats never expanded.
+        FakeMemoryConfigurationService.ActualRead last = mcs.actualReadList.get(mcs
+                .actualReadList.size() - 1);
+        Assert.assertEquals(stride * 100, last.address + last.size);
+
+        ConfigRepresentation.CdiEntry e = rep.getVariableForKey("seg.port(50).ev(3).on");
+        Assert.assertTrue(e instanceof ConfigRepresentation.EventEntry);
+        Assert.assertEquals(address, e.origin);
+        Assert.assertEquals("01.02.03.04.05.06.07.08", e.lastVisibleValue);
+        Assert.assertSame(e, rep.getVariableForKey("seg.port(50).ev(3).on"));
+
+        e = rep.getVariableForKey("seg.port(99).mode");
+        Assert.assertTrue(e instanceof ConfigRepresentation.IntegerEntry);
+        Assert.assertEquals(99 * stride, e.origin);
+        Assert.assertEquals(42, ((ConfigRepresentation.IntegerEntry) e).getValue());
+
+        e = rep.getVariableForKey("seg.port(99).ev(7).tag");
+        Assert.assertTrue(e instanceof ConfigRepresentation.StringEntry);
+        Assert.assertEquals(99 * stride + 1 + 7 * 13 + 10, e.origin);
+
+        Assert.assertNull(rep.getVariableForKey("seg.port(100).mode"));
+        Assert.assertNull(rep.getVariableForKey("seg.port(x).mode"));
+        Assert.assertNull(rep.getVariableForKey("seg.port(5).nope"));
+        Assert.assertNull(rep.getVariableForKey("seg.port(5)"));
+
+        // Visiting expands everything.
+        class Counter {
+            int n = 0;
+        }
+        final Counter c = new Counter();
+        rep.visit(new ConfigRepresentation.Visitor() {
+            @Override
+            public void visitLeaf(ConfigRepresentation.CdiEntry e) {
+                c.n++;
+            }
+        });
+        Assert.assertEquals(100 * (1 + 8 * 2), c.n);
+    }
+
+    @Test
+    public void testVariableIndex() throws Exception {
+        addCdiData(getReplicatedSample());
+        mcs.addSpace(remoteNode, 13, new byte[105 * 100], true);
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+
+        // Looks up some variables before the tree is expanded, then checks that every variable
+        // is found by its key.
+        ConfigRepresentation.CdiEntry e1 = rep.getVariableForKey("seg.port(7).ev(5).tag");
+        ConfigRepresentation.CdiEntry e2 = rep.getVariableForKey("seg.port(7).mode");
+        Assert.assertNotNull(e1);
+        Assert.assertNotNull(e2);
+        class Counter {
+            int n = 0;
+        }
+        final Counter c = new Counter();
+        final ConfigRepresentation frep = rep;
+        rep.visit(new ConfigRepresentation.Visitor() {
+            @Override
+            public void visitLeaf(ConfigRepresentation.CdiEntry e) {
+                Assert.assertSame(e, frep.getVariableForKey(e.key));
+                c.n++;
+            }
+        });
+        Assert.assertEquals(100 * 17, c.n);
+        Assert.assertSame(e1, rep.getVariableForKey("seg.port(7).ev(5).tag"));
+        Assert.assertSame(e2, rep.getVariableForKey("seg.port(7).mode"));
+        Assert.assertNull(rep.getVariableForKey("seg.port(7).ev(8).tag"));
+        Assert.assertNull(rep.getVariableForKey("seg.port(7)"));
+    }
+
+    @Test
+    public void testWriteBack() throws Exception {
+        addCdiData(getReplicatedSample());
+        byte[] config = new byte[105 * 100];
+        for (int i = 0; i < config.length; i++) {
+            config[i] = (byte) 0x55;
+        }
+        mcs.addSpace(remoteNode, 13, config, true);
+        ConfigRepresentation rep = new ConfigRepresentation(iface, remoteNode);
+        mcs.actualWriteList.clear();
+        // The prefill went through the shared scheduler.
+        ConfigLoadScheduler scheduler = iface.getConfigLoadScheduler();
+        Assert.assertTrue(scheduler.getTotalBytes() > 0);
+        Assert.assertEquals(scheduler.getTotalBytes(), scheduler.getLoadedBytes());
+        Assert.assertEquals(0, scheduler.getActiveCount());
+
+        final List<ConfigRepresentation.CdiEntry> completed = new ArrayList<>();
+        PropertyChangeListener l = new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent ev) {
+                if (ev.getPropertyName().equals(ConfigRepresentation.UPDATE_WRITE_COMPLETE)) {
+                    completed.add((ConfigRepresentation.CdiEntry) ev.getSource());
+                }
+            }
+        };
+        rep.setWriteBack(true);
+        ConfigRepresentation.IntegerEntry mode = (ConfigRepresentation.IntegerEntry) rep
+                .getVariableForKey("seg.port(0).mode");
+        mode.addPropertyChangeListener(l);
+        mode.setValue(3);
+        for (int j = 0; j < 8; j++) {
+            ConfigRepresentation.EventEntry e = (ConfigRepresentation.EventEntry) rep
+                    .getVariableForKey("seg.port(0).ev(" + j + ").on");
+            e.addPropertyChangeListener(l);
+            e.setValue(new EventID(new byte[]{1, 2, 3, 4, 5, 6, 7, (byte) j}));
+        }
+        ConfigRepresentation.StringEntry tag = (ConfigRepresentation.StringEntry) rep
+                .getVariableForKey("seg.port(0).ev(7).tag");
+        tag.addPropertyChangeListener(l);
+        tag.setValue("ab");
+        // A second write to the same field replaces the first one.
+        mode.setValue(4);
+
+        Assert.assertEquals(0, mcs.actualWriteList.size());
+        Assert.assertEquals(0, completed.size());
+        // The cached values are already updated.
+        Assert.assertEquals(4, mode.getValue());
+
+        rep.flushWrites();
+        // The ten fields of the port go out in two writes; the gaps between the fields are
+        // filled from the cache where it has the bytes.
+        Assert.assertEquals(2, mcs.actualWriteList.size());
+        Assert.assertEquals(0, mcs.actualWriteList.get(0).address);
+        FakeMemoryConfigurationService.ActualWrite w = mcs.actualWriteList.get(1);
+        Assert.assertEquals(105, w.address + w.data.length);
+        Assert.assertEquals(10, completed.size());
+
+        Assert.assertEquals(4, config[0]);
+        for (int j = 0; j < 8; j++) {
+            Assert.assertEquals(j, config[1 + 13 * j + 7]);
+            Assert.assertEquals(0x55, config[1 + 13 * j + 8]);
+        }
+        Assert.assertEquals('a', config[102]);
+        Assert.assertEquals(0, config[104]);
+        Assert.assertEquals(0x55, config[105]);
+
+        // Without write-back, every value is written right away.
+        rep.setWriteBack(false);
+        mcs.actualWriteList.clear();
+        mode.setValue(5);
+        tag.setValue("cd");
+        Assert.assertEquals(2, mcs.actualWriteList.size());
+    }
+
     @Before
     public void setUp() {
         iface = new FakeOlcbInterface();
@@ -7,6 +7,10 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openlcb.*;
+import org.openlcb.implementations.MemoryConfigurationService;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -23,6 +27,72 @@ public class MemorySpaceCacheTest {
         Assert.assertNotNull("exists",t);
     }
 
+    /// Memory that counts the requests, and supports bulk reads unless told otherwise.
+    static class BulkAccess extends ReadWriteAccess {
+        final List<String> requests = new ArrayList<>();
+        boolean failBulk = false;
+
+        static byte[] data(long address, int length) {
+            byte[] d = new byte[length];
+            for (int i = 0; i < length; i++) {
+                d[i] = (byte) (address + i + 1);
+            }
+            return d;
+        }
+
+        @Override
+        public void doRead(long address, int space, int length, MemoryConfigurationService
+                .McsReadHandler handler) {
+            requests.add("read " + address + " " + length);
+            handler.handleReadData(null, space, address, data(address, length));
+        }
+
+        @Override
+        public boolean supportsBulkRead() {
+            return true;
+        }
+
+        @Override
+        public MemoryConfigurationService.McsStreamRead doBulkRead(long address, int space,
+                int length, MemoryConfigurationService.McsPipelinedReadHandler handler) {
+            requests.add("bulk " + address + " " + length);
+            if (failBulk) {
+                handler.handleFailure(0x1000);
+                return null;
+            }
+            // Arrives in stream-sized pieces.
+            for (int ofs = 0; ofs < length; ofs += 100) {
+                int n = Math.min(100, length - ofs);
+                handler.handleReadData(null, space, address + ofs, data(address + ofs, n));
+            }
+            handler.handleReadComplete();
+            return null;
+        }
+    }
+
+    @Test
+    public void testBulkRead() {
+        BulkAccess access = new BulkAccess();
+        MemorySpaceCache t = new MemorySpaceCache(access, 253);
+        t.addRangeToCache(0, 250, false);
+        t.addRangeToCache(1000, 1010, false);
+        t.fillCache();
+        // The long range is read in one go, the short one with a normal read.
+        Assert.assertEquals("[bulk 0 250, read 1000 10]", access.requests.toString());
+        Assert.assertArrayEquals(BulkAccess.data(120, 30), t.read(120, 30));
+    }
+
+    @Test
+    public void testBulkReadFallback() {
+        BulkAccess access = new BulkAccess();
+        access.failBulk = true;
+        MemorySpaceCache t = new MemorySpaceCache(access, 253);
+        t.addRangeToCache(0, 100, false);
+        t.fillCache();
+        Assert.assertEquals("[bulk 0 100, read 0 64, read 64 36]", access.requests.toString());
+        Assert.assertArrayEquals(BulkAccess.data(0, 100), t.read(0, 100));
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
@@ -40,6 +40,8 @@ public class RangeCacheUtilTest {
     @Test
     public void testGetRanges() throws Exception {
         RangeCacheUtil util = new RangeCacheUtil();
+        // A request is worth 8 bytes.
+        util.setCosts(8, 1);
         util.addRange(10, 12);
         util.addRange(23, 24);
         util.addRange(0, 4);
@@ -67,10 +69,64 @@ public class RangeCacheUtilTest {
         util.addRange(25, 26);
         util.addRange(2, 3);
         List<Range> rng = util.getRanges();
+        // The short string is cheapest to read in full together with its neighbors.
+        Assert.assertEquals(1, rng.size());
+        Assert.assertEquals(new Range(1, 26, false), rng.get(0));
+
+        util = new RangeCacheUtil();
+        util.setCosts(8, 1);
+        util.addRange(3, 4);
+        util.addRange(1, 2);
+        util.addRange(15, 20, true);
+        util.addRange(20, 25);
+        rng = util.getRanges();
+        Assert.assertEquals(2, rng.size());
+        Assert.assertEquals(new Range(1, 4, false), rng.get(0));
+        Assert.assertEquals(new Range(15, 25, false), rng.get(1));
+    }
+
+    @Test
+    public void testSpeculativeString() throws Exception {
+        RangeCacheUtil util = new RangeCacheUtil();
+        util.addRange(0, 2);
+        util.addRange(2, 202, true);
+        util.addRange(202, 204);
+        List<Range> rng = util.getRanges();
+        Assert.assertEquals(2, rng.size());
+        // The string is loaded together with the variable before it, up to its null byte.
+        Assert.assertEquals(new Range(0, 202, true), rng.get(0));
+        Assert.assertEquals(2, rng.get(0).stringStart);
+        Assert.assertEquals(new Range(202, 204, false), rng.get(1));
+        Assert.assertEquals(2, util.getPlanRequestCount());
+    }
+
+    @Test
+    public void testLongGaps() throws Exception {
+        RangeCacheUtil util = new RangeCacheUtil();
+        util.addRange(0, 60);
+        util.addRange(70, 130);
+        util.addRange(1000, 1002);
+        List<Range> rng = util.getRanges();
+        // Merging the first two would need 3 requests of 64 bytes instead of 2.
         Assert.assertEquals(3, rng.size());
-        // First three get merged because the gap is small enough.
-        Assert.assertEquals(new Range(1, 15, false), rng.get(0));
-        Assert.assertEquals(new Range(15, 20, true), rng.get(1));
-        Assert.assertEquals(new Range(20, 26, false), rng.get(2));
+        Assert.assertEquals(3, util.getPlanRequestCount());
+    }
+
+    @Test
+    public void testFewerRequestsForSample() throws Exception {
+        // The variables of segment 13 of SampleFactory.getOffsetSample().
+        long[][] vars = {{153, 2}, {158, 8}, {167, 1}, {182, 2}, {179, 9}, {188, 9}, {197, 9},
+                {209, 2}, {206, 9}, {215, 9}, {224, 9}, {254, 2}};
+        RangeCacheUtil util = new RangeCacheUtil();
+        RangeCacheUtil fixedThreshold = new RangeCacheUtil();
+        fixedThreshold.setCosts(8, 1);
+        for (long[] v : vars) {
+            util.addRange(v[0], v[0] + v[1]);
+            fixedThreshold.addRange(v[0], v[0] + v[1]);
+        }
+        Assert.assertEquals(3, fixedThreshold.getPlanRequestCount());
+        Assert.assertEquals(2, util.getPlanRequestCount());
+        Assert.assertTrue(util.getPlanCost() < fixedThreshold.getPlanCost() || util
+                .getPlanRequestCount() < fixedThreshold.getPlanRequestCount());
     }
 }
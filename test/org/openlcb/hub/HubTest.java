@@ -7,6 +7,14 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
 import org.openlcb.*;
 
 /**
@@ -22,6 +30,145 @@ public class HubTest {
         Assert.assertNotNull("exists",t);
     }
 
+    Hub hub;
+    Thread hubThread;
+
+    void startHub() throws Exception {
+        hub = new Hub(0);
+        hubThread = new Thread("hub-test") {
+            public void run() {
+                hub.start();
+            }
+        };
+        hubThread.setDaemon(true);
+        hubThread.start();
+        hub.waitForStart();
+    }
+
+    Socket connect() throws Exception {
+        Socket s = new Socket("localhost", hub.getPort());
+        s.setSoTimeout(5000);
+        // The hub only forwards to clients it has registered.
+        int n = hub.getClients().size();
+        for (int i = 0; i < 500 && hub.getClients().size() == n; i++) {
+            Thread.sleep(10);
+        }
+        return s;
+    }
+
+    @Test
+    public void testForwardBetweenClients() throws Exception {
+        startHub();
+        Socket a = connect();
+        Socket b = connect();
+        Socket c = connect();
+        a.getOutputStream().write(":X195B4123N0102;\r\n:X195B4123N03;\n".getBytes("ISO-8859-1"));
+        BufferedReader rb = new BufferedReader(new InputStreamReader(b.getInputStream(),
+                "ISO-8859-1"));
+        BufferedReader rc = new BufferedReader(new InputStreamReader(c.getInputStream(),
+                "ISO-8859-1"));
+        Assert.assertEquals(":X195B4123N0102;", rb.readLine());
+        Assert.assertEquals(":X195B4123N03;", rb.readLine());
+        hub.putLine(":X195B4456N;");
+        Assert.assertEquals(":X195B4456N;", rb.readLine());
+        Assert.assertEquals(":X195B4123N0102;", rc.readLine());
+        Assert.assertEquals(":X195B4123N03;", rc.readLine());
+        Assert.assertEquals(":X195B4456N;", rc.readLine());
+        // The sender does not get its own lines back.
+        BufferedReader r = new BufferedReader(new InputStreamReader(a.getInputStream(),
+                "ISO-8859-1"));
+        Assert.assertEquals(":X195B4456N;", r.readLine());
+        Assert.assertEquals(3, hub.getClients().size());
+        a.close();
+        b.close();
+        c.close();
+    }
+
+    @Test
+    public void testSlowClientDropped() throws Exception {
+        startHub();
+        hub.setClientQueueCapacity(10);
+        hub.setSlowClientPolicy(Hub.SlowClientPolicy.DROP_NEWEST);
+        Socket slow = connect();
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1000; i++) b.append("0123456789");
+        String line = b.toString();
+        // Far more than what fits in the socket buffers.
+        for (int i = 0; i < 10000; i++) {
+            hub.putLine(line);
+        }
+        Hub.Client client = hub.getClients().get(0);
+        for (int i = 0; i < 500 && client.getDropCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(client.getDropCount() > 0);
+        Assert.assertEquals(10, client.getMaxQueueLength());
+        slow.close();
+    }
+
+    @Test
+    public void testSlowClientDisconnected() throws Exception {
+        startHub();
+        hub.setClientQueueCapacity(10);
+        hub.setSlowClientPolicy(Hub.SlowClientPolicy.DISCONNECT);
+        Socket slow = connect();
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1000; i++) b.append("0123456789");
+        String line = b.toString();
+        for (int i = 0; i < 10000; i++) {
+            hub.putLine(line);
+        }
+        for (int i = 0; i < 500 && !hub.getClients().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(hub.getClients().isEmpty());
+        slow.close();
+    }
+
+    @Test
+    public void testFrameMode() throws Exception {
+        hub = new Hub(0);
+        hub.setFrameMode(true);
+        final List<CanFrame> frames = new ArrayList<>();
+        hub.addFrameListener(new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                synchronized (frames) {
+                    frames.add(frame);
+                    frames.notifyAll();
+                }
+            }
+        });
+        hubThread = new Thread("hub-test") {
+            public void run() {
+                hub.start();
+            }
+        };
+        hubThread.setDaemon(true);
+        hubThread.start();
+        hub.waitForStart();
+        Socket a = connect();
+        Socket b = connect();
+        // Lower case and noise between the frames; b gets the canonical form.
+        a.getOutputStream().write(":X195b4123Nab02;\nnoise\n:X195B4123N03;".getBytes(
+                "ISO-8859-1"));
+        BufferedReader rb = new BufferedReader(new InputStreamReader(b.getInputStream(),
+                "ISO-8859-1"));
+        Assert.assertEquals(":X195B4123NAB02;", rb.readLine());
+        Assert.assertEquals(":X195B4123N03;", rb.readLine());
+        hub.putFrame(GridConnect.parse(":X19A28456N0123;").get(0));
+        Assert.assertEquals(":X19A28456N0123;", rb.readLine());
+        synchronized (frames) {
+            while (frames.size() < 3) {
+                frames.wait(5000);
+            }
+            Assert.assertEquals(0x195B4123, frames.get(1).getHeader());
+            Assert.assertEquals(3, frames.get(1).getElement(0));
+        }
+        a.close();
+        b.close();
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
@@ -29,6 +176,9 @@ public class HubTest {
 
     @After
     public void tearDown() {
+        if (hub != null) {
+            hub.stop();
+        }
     }
 
 }
@@ -215,6 +215,78 @@ public class DatagramMeteringBufferTest {
         Assert.assertTrue(messagesForwarded.get(1).equals(datagram2));        
     }
 
+    @Test
+    public void testSendTwoDestinationsInParallel() {
+        NodeID otherID = new NodeID(new byte[]{2,2,2,2,2,2});
+        DatagramMessage datagram3 = new DatagramMessage(hereID, otherID, data);
+        buffer.put(datagram1, replyConnection1);
+        buffer.put(datagram3, replyConnection1);
+        buffer.put(datagram2, replyConnection1);
+
+        buffer.waitForSendQueue();
+
+        // The other node does not wait for farID to reply.
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+        Assert.assertTrue(messagesForwarded.contains(datagram1));
+        Assert.assertTrue(messagesForwarded.contains(datagram3));
+        Assert.assertEquals(2, buffer.getInFlight());
+
+        // A reply from the other node does not release farID.
+        returnConnection.put(new DatagramAcknowledgedMessage(otherID, hereID), null);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+        Assert.assertEquals(1, buffer.getInFlight());
+
+        returnConnection.put(replyOK, null);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 3, messagesForwarded.size());
+        Assert.assertEquals(datagram2, messagesForwarded.get(2));
+    }
+
+    @Test
+    public void testMaxInFlight() {
+        buffer.setMaxInFlight(1);
+        NodeID otherID = new NodeID(new byte[]{2,2,2,2,2,2});
+        DatagramMessage datagram3 = new DatagramMessage(hereID, otherID, data);
+        buffer.put(datagram1, replyConnection1);
+        buffer.put(datagram3, replyConnection1);
+
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 1, messagesForwarded.size());
+        Assert.assertEquals(datagram1, messagesForwarded.get(0));
+
+        returnConnection.put(replyOK, null);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+        Assert.assertEquals(datagram3, messagesForwarded.get(1));
+
+        // Raising the limit releases waiting datagrams.
+        buffer.put(datagram1, replyConnection1);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+        buffer.setMaxInFlight(2);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 3, messagesForwarded.size());
+    }
+
+    @Test
+    public void testTimeoutOnlyBlocksOneDestination() throws InterruptedException {
+        buffer.setTimeout(50);
+        NodeID otherID = new NodeID(new byte[]{2,2,2,2,2,2});
+        DatagramMessage datagram3 = new DatagramMessage(hereID, otherID, data);
+        buffer.put(datagram1, replyConnection1);
+        buffer.put(datagram3, replyConnection1);
+        buffer.waitForSendQueue();
+        returnConnection.put(new DatagramAcknowledgedMessage(otherID, hereID), null);
+        Assert.assertEquals("reply messages", 0, repliesReturned1.size());
+
+        // farID never replies.
+        buffer.waitForSendCallbacks();
+        Assert.assertEquals("reply messages", 1, repliesReturned1.size());
+        Assert.assertTrue(repliesReturned1.get(0) instanceof DatagramRejectedMessage);
+        Assert.assertEquals(0, buffer.getInFlight());
+    }
+
     @After
     public void tearDown() {
         buffer.dispose(); 
@@ -249,4 +249,85 @@ public class EventTableTest {
 
         expectQueryResults(table2, "S2m-red", 4); // no results
     }
+
+    private static String[] descriptions(List<EventTable.EventTableEntry> l) {
+        String[] r = new String[l.size()];
+        for (int i = 0; i < r.length; ++i) {
+            r[i] = l.get(i).getDescription();
+        }
+        return r;
+    }
+
+    @Test
+    public void testSearchIndexUpdates() {
+        EventTable t = new EventTable();
+        EventTable.EventTableEntryHolder h1 = t.addEvent(e1, "Yard Lights On");
+        EventTable.EventTableEntryHolder h2 = t.addEvent(e2, "Yard Lights Off");
+        t.addEvent(e3, "Mainline Block 7");
+
+        assertThat(descriptions(t.searchForEvent("yard", 5)), equalTo(new String[]{
+                "Yard Lights Off", "Yard Lights On"}));
+        assertThat(descriptions(t.searchForEvent("7", 5)), equalTo(new String[]{
+                "Mainline Block 7"}));
+        // Subsequence matches are kept, not just contiguous ones.
+        assertThat(descriptions(t.searchForEvent("mlb", 5)), equalTo(new String[]{
+                "Mainline Block 7"}));
+        // Queries without letters or digits match every entry.
+        Assert.assertEquals(3, t.searchForEvent(" ", 5).size());
+        Assert.assertEquals(3, t.searchForEvent("", 5).size());
+
+        h1.getEntry().updateDescription("Station Lamp");
+        assertThat(descriptions(t.searchForEvent("yard", 5)), equalTo(new String[]{
+                "Yard Lights Off"}));
+        assertThat(descriptions(t.searchForEvent("stat", 5)), equalTo(new String[]{
+                "Station Lamp"}));
+
+        h2.release();
+        Assert.assertEquals(0, t.searchForEvent("yard", 5).size());
+        Assert.assertEquals(2, t.searchForEvent("", 5).size());
+
+        h1.release();
+        Assert.assertEquals(0, t.searchForEvent("stat", 5).size());
+        // A released entry is not indexed again when it is changed.
+        h1.getEntry().updateDescription("Station Lamp 2");
+        Assert.assertEquals(0, t.searchForEvent("stat", 5).size());
+    }
+
+    @Test
+    public void testSearchScoresFewEntries() {
+        EventTable t = new EventTable();
+        for (int i = 0; i < 10; ++i) {
+            t.addEvent(new EventID(new byte[]{5, 1, 1, 1, 0, 1, 0, (byte) i}), "Yard Lights " +
+                    i);
+        }
+        // These contain every letter of "yard", but not in a matching order.
+        for (int i = 0; i < 300; ++i) {
+            t.addEvent(new EventID(new byte[]{5, 1, 1, 1, 0, 2, (byte) (i >> 8), (byte) i}),
+                    "Daylight Relay " + i);
+        }
+        t.addEvent(new EventID(new byte[]{5, 1, 1, 1, 0, 3, 0, 0}), "Y a r d");
+
+        // Enough word prefix matches: only the entries containing "ya", "ar" and "rd" are
+        // scored.
+        long scored = t.getScoredCount();
+        assertThat(descriptions(t.searchForEvent("yard", 5)), equalTo(new String[]{
+                "Yard Lights 0", "Yard Lights 1", "Yard Lights 2", "Yard Lights 3",
+                "Yard Lights 4"}));
+        Assert.assertEquals(10, t.getScoredCount() - scored);
+
+        // Otherwise the subsequence matches are still found.
+        scored = t.getScoredCount();
+        List<EventTable.EventTableEntry> l = t.searchForEvent("yard", 20);
+        Assert.assertEquals(11, l.size());
+        Assert.assertEquals("Y a r d", l.get(10).getDescription());
+        Assert.assertEquals(311, t.getScoredCount() - scored);
+
+        // Entries missing a letter or digit of the query are not scored.
+        scored = t.getScoredCount();
+        Assert.assertEquals(0, t.searchForEvent("lights 5x", 5).size());
+        Assert.assertEquals(0, t.getScoredCount() - scored);
+        assertThat(descriptions(t.searchForEvent("relay 299", 5)), equalTo(new String[]{
+                "Daylight Relay 299"}));
+        Assert.assertEquals(23, t.getScoredCount() - scored);
+    }
 }
@@ -7,6 +7,7 @@ import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 
+import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.mockito.junit.MockitoJUnit;
@@ -17,6 +18,13 @@ import org.openlcb.DatagramRejectedMessage;
 import org.openlcb.InterfaceTestBase;
 import org.openlcb.Message;
 import org.openlcb.NodeID;
+import org.openlcb.ProtocolIdentificationReplyMessage;
+import org.openlcb.ProtocolIdentificationRequestMessage;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataProceedMessage;
+import org.openlcb.StreamDataSendMessage;
+import org.openlcb.StreamInitiateReplyMessage;
+import org.openlcb.StreamInitiateRequestMessage;
 import org.openlcb.Utilities;
 import org.openlcb.can.CanFrame;
 import org.openlcb.can.GridConnect;
@@ -29,6 +37,7 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -708,6 +717,156 @@ public class MemoryConfigurationServiceInterfaceTest extends InterfaceTestBase {
         verifyNoMoreInteractions(hnd2);
     }
 
+    @Test
+    public void testPipelinedRead() {
+        int space = 0xFD;
+        MemoryConfigurationService.McsPipelinedReadHandler hnd = mock(MemoryConfigurationService
+                .McsPipelinedReadHandler.class);
+
+        MemoryConfigurationService.McsPipelinedRead read = iface.getMemoryConfigurationService()
+                .requestPipelinedRead(farID, space, 0x100, 8, 2, 4, hnd);
+        Assert.assertEquals(1, read.getWindow());
+
+        // The window starts with one request.
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0, 0, 1, 0, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x51, 0, 0, 1, 0, 0x11, 0x12}));
+        expectMessage(new DatagramAcknowledgedMessage(hereID, farID));
+        verify(hnd).handleReadData(farID, space, 0x100, new byte[]{0x11, 0x12});
+        Assert.assertEquals(2, read.getWindow());
+
+        // Two requests go out now; the datagram layer sends the second after the first is
+        // acknowledged.
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0, 0, 1, 2, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0, 0, 1, 4, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+
+        // Replies come back out of order.
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x51, 0, 0, 1, 4, 0x15, 0x16}));
+        expectMessageAndNoMore(new DatagramAcknowledgedMessage(hereID, farID));
+        verifyNoMoreInteractions(hnd);
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x51, 0, 0, 1, 2, 0x13, 0x14}));
+        expectMessage(new DatagramAcknowledgedMessage(hereID, farID));
+        InOrder inOrder = inOrder(hnd);
+        inOrder.verify(hnd).handleReadData(farID, space, 0x102, new byte[]{0x13, 0x14});
+        inOrder.verify(hnd).handleReadData(farID, space, 0x104, new byte[]{0x15, 0x16});
+        Assert.assertEquals(3, read.getWindow());
+
+        // Last chunk.
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0, 0, 1, 6, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x51, 0, 0, 1, 6, 0x17, 0x18}));
+        expectMessageAndNoMore(new DatagramAcknowledgedMessage(hereID, farID));
+        verify(hnd).handleReadData(farID, space, 0x106, new byte[]{0x17, 0x18});
+        verify(hnd).handleReadComplete();
+        verifyNoMoreInteractions(hnd);
+    }
+
+    @Test
+    public void testPipelinedReadErrorAfterEnd() {
+        int space = 0xFD;
+        MemoryConfigurationService.McsPipelinedReadHandler hnd = mock(MemoryConfigurationService
+                .McsPipelinedReadHandler.class);
+
+        MemoryConfigurationService.McsPipelinedRead read = iface.getMemoryConfigurationService()
+                .requestPipelinedRead(farID, space, 0, -1, 2, 2, hnd);
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0, 0, 0, 0, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x51, 0, 0, 0, 0, 0x11, 0x12}));
+        expectMessage(new DatagramAcknowledgedMessage(hereID, farID));
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0, 0, 0, 2, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0, 0, 0, 4, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+
+        // The second request is past the end; the short reply to the first one ends the read.
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x59, 0, 0, 0, 4, 0x10, 0x81}));
+        expectMessageAndNoMore(new DatagramAcknowledgedMessage(hereID, farID));
+        verify(hnd).handleReadData(farID, space, 0, new byte[]{0x11, 0x12});
+        verifyNoMoreInteractions(hnd);
+        sendMessage(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x51, 0, 0, 0, 2, 0x13}));
+        expectMessageAndNoMore(new DatagramAcknowledgedMessage(hereID, farID));
+        verify(hnd).handleReadData(farID, space, 2, new byte[]{0x13});
+        verify(hnd).handleReadComplete();
+        verifyNoMoreInteractions(hnd);
+    }
+
+    @Test
+    public void testBulkReadStream() {
+        int space = 0xFD;
+        MemoryConfigurationService.McsPipelinedReadHandler hnd = mock(MemoryConfigurationService
+                .McsPipelinedReadHandler.class);
+
+        MemoryConfigurationService.McsStreamRead read = iface.getMemoryConfigurationService()
+                .requestBulkRead(farID, space, 0, -1, 1, hnd);
+        // Checks the protocols of the remote node first.
+        expectMessageAndNoMore(new ProtocolIdentificationRequestMessage(hereID, farID));
+        sendMessage(new ProtocolIdentificationReplyMessage(farID, hereID, 0x700000000000L));
+
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x61, 0, 0, 0, 0, 0xFF, 1, 0xFF, 0xFF, 0xFF, 0xFF}));
+        Assert.assertTrue(read.isStreaming());
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        sendMessageAndExpectResult(new DatagramMessage(farID, hereID, new int[]{
+                        0x20, 0x71, 0, 0, 0, 0, 0x22, 1}),
+                new DatagramAcknowledgedMessage(hereID, farID));
+        expectNoMessages();
+
+        // The node opens the stream.
+        sendMessage(new StreamInitiateRequestMessage(farID, hereID, 4, (byte) 0x22, (byte) 1));
+        expectMessageAndNoMore(new StreamInitiateReplyMessage(hereID, farID, 4, (byte) 0x22,
+                (byte) 1));
+        sendMessage(new StreamDataSendMessage(farID, hereID, (byte) 1, new int[]{1, 2, 3}));
+        expectNoMessages();
+        verify(hnd).handleReadData(farID, space, 0, new byte[]{1, 2, 3});
+        sendMessage(new StreamDataSendMessage(farID, hereID, (byte) 1, new int[]{4, 5}));
+        // A buffer's worth of data was received.
+        expectMessageAndNoMore(new StreamDataProceedMessage(hereID, farID, (byte) 0x22, (byte)
+                1));
+        verify(hnd).handleReadData(farID, space, 3, new byte[]{4, 5});
+        sendMessage(new StreamDataCompleteMessage(farID, hereID, (byte) 0x22, (byte) 1));
+        verify(hnd).handleReadComplete();
+        verifyNoMoreInteractions(hnd);
+        Assert.assertFalse(read.isStreaming());
+    }
+
+    @Test
+    public void testBulkReadFallsBackToDatagrams() {
+        int space = 0xFD;
+        MemoryConfigurationService.McsPipelinedReadHandler hnd = mock(MemoryConfigurationService
+                .McsPipelinedReadHandler.class);
+
+        iface.getMemoryConfigurationService().requestBulkRead(farID, space, 0x10, 2, 1, hnd);
+        expectMessageAndNoMore(new ProtocolIdentificationRequestMessage(hereID, farID));
+        // No stream support.
+        sendMessage(new ProtocolIdentificationReplyMessage(farID, hereID, 0x500000000000L));
+
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0, 0, 0, 0x10, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        sendMessageAndExpectResult(new DatagramMessage(farID, hereID, new int[]{
+                        0x20, 0x51, 0, 0, 0, 0x10, 0x11, 0x12}),
+                new DatagramAcknowledgedMessage(hereID, farID));
+        verify(hnd).handleReadData(farID, space, 0x10, new byte[]{0x11, 0x12});
+        verify(hnd).handleReadComplete();
+        verifyNoMoreInteractions(hnd);
+    }
+
     /*
     @Test
     @Ignore("commented out prior to JUnit 4")
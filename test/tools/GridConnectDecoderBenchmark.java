@@ -0,0 +1,85 @@
+package tools;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.impl.GridConnectDecoder;
+
+/**
+ * Compares the character based GridConnect parser with the ByteBuffer based decoder.
+ * <p>
+ * Without arguments a synthetic trace is parsed from memory. With a file name argument the
+ * file is memory mapped and replayed through the decoder, which shows whether the replay is
+ * limited by the parser or by the disk.
+ */
+public class GridConnectDecoderBenchmark {
+
+    static long frames;
+
+    public static void main(String[] args) throws IOException {
+        CanFrameListener counter = new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                frames++;
+            }
+        };
+        if (args.length > 0) {
+            replay(args[0], counter);
+            return;
+        }
+
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            b.append(":X195B4123N05010101000000").append(String.format("%02X", i & 0xff))
+                    .append(";\n");
+            b.append(":X1A456123N2040000000004010;\n");
+        }
+        String trace = b.toString();
+        byte[] bytes = trace.getBytes(StandardCharsets.ISO_8859_1);
+
+        for (int pass = 0; pass < 5; pass++) {
+            frames = 0;
+            long start = System.nanoTime();
+            GridConnect.Input input = new GridConnect.Input() {
+                @Override
+                public void onFrame(CanFrame f) {
+                    frames++;
+                }
+            };
+            input.send(trace);
+            report("GridConnect.Input", System.nanoTime() - start, bytes.length);
+
+            frames = 0;
+            start = System.nanoTime();
+            GridConnectDecoder d = new GridConnectDecoder(counter);
+            d.decode(ByteBuffer.wrap(bytes));
+            report("GridConnectDecoder", System.nanoTime() - start, bytes.length);
+        }
+    }
+
+    static void replay(String fileName, CanFrameListener counter) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+             FileChannel ch = file.getChannel()) {
+            GridConnectDecoder d = new GridConnectDecoder(counter);
+            long start = System.nanoTime();
+            long size = ch.size();
+            for (long pos = 0; pos < size; pos += Integer.MAX_VALUE) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos,
+                        Math.min(Integer.MAX_VALUE, size - pos));
+                d.decode(buf);
+            }
+            report("replay " + fileName, System.nanoTime() - start, size);
+        }
+    }
+
+    static void report(String name, long nanos, long bytes) {
+        System.out.println(name + ": " + frames + " frames, " + (nanos / Math.max(frames, 1))
+                + " ns/frame, " + (bytes * 1000 / Math.max(nanos, 1)) + " MB/s");
+    }
+}
@@ -0,0 +1,94 @@
+package tools;
+
+import java.util.List;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.can.AliasMap;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.MessageBuilder;
+
+/**
+ * Compares the list-returning and the sink-based frame decoders of MessageBuilder
+ * on a recorded mix of event reports, datagrams and SNIP replies.
+ * <p>
+ * Run with a large heap and -verbose:gc to see the difference in garbage as well
+ * as in time.
+ */
+public class MessageBuilderBenchmark {
+
+    /// Traffic as captured from a busy segment: mostly event reports, a memory
+    /// config read (datagram + ack) and a multi-frame SNIP reply.
+    static final String TRACE =
+            ":X195B4123N0501010100000001;"
+            + ":X195B4456N0501010100000002;"
+            + ":X195B4123N0501010100000003;"
+            + ":X1A456123N2040000000004010;"
+            + ":X19A28456N01230000;"
+            + ":X1B123456N2050000000000102;"
+            + ":X1C123456N0304050607080910;"
+            + ":X1C123456N1112131415161718;"
+            + ":X1D123456N19202122;"
+            + ":X19A28123N04560000;"
+            + ":X195B4456N0501010100000004;"
+            + ":X19A08456N1123044F70656E;"
+            + ":X19A08456N31234C43420054;"
+            + ":X19A08456N3123657374004E;"
+            + ":X19A08456N2123006A00;"
+            + ":X195B4123N0501010100000005;"
+            + ":X195B4456N0501010100000006;";
+
+    static long messages;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        AliasMap map = new AliasMap();
+        map.insert(0x123, new NodeID(new byte[]{1, 2, 3, 4, 5, 6}));
+        map.insert(0x456, new NodeID(new byte[]{6, 5, 4, 3, 2, 1}));
+        List<CanFrame> frames = GridConnect.parse(TRACE);
+        CanFrame[] trace = frames.toArray(new CanFrame[frames.size()]);
+
+        Connection sink = new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                messages++;
+            }
+        };
+
+        // Alternate a few times so that both paths get warmed up by the JIT.
+        for (int pass = 0; pass < 3; pass++) {
+            MessageBuilder b = new MessageBuilder(map);
+            messages = 0;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (CanFrame f : trace) {
+                    List<Message> l = b.processFrame(f);
+                    if (l != null) {
+                        for (Message m : l) {
+                            sink.put(m, null);
+                        }
+                    }
+                }
+            }
+            report("list", System.nanoTime() - start, rounds * trace.length);
+
+            b = new MessageBuilder(map);
+            messages = 0;
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (CanFrame f : trace) {
+                    b.processFrame(f, sink);
+                }
+            }
+            report("sink", System.nanoTime() - start, rounds * trace.length);
+        }
+    }
+
+    static void report(String name, long nanos, long frames) {
+        System.out.println(name + ": " + frames + " frames, " + messages + " messages, "
+                + (nanos / frames) + " ns/frame");
+    }
+}